@@ -13,13 +13,20 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -33,21 +40,32 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.mark.llamacpp.download.struct.DownloadProgress;
+import org.mark.llamacpp.download.struct.DownloadSource;
 import org.mark.llamacpp.download.struct.DownloadState;
 import org.mark.llamacpp.download.struct.Part;
 import org.mark.llamacpp.download.struct.PartDownloadTask;
 import org.mark.llamacpp.download.struct.PartWithFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * 	基本下载器的实现。本来想自己改的，做了一半背疼。画了个工作流程让AI自己做了。
  */
 public class BasicDownloader {
 
+	private static final Logger logger = LoggerFactory.getLogger(BasicDownloader.class);
+
 	/**
 	 * 	下载中文件的后缀名
 	 */
 	private static final String DOWNLOADING_SUFFIX = "downloading";
 	
+	/**
+	 * 	多源下载时的分片上限和最小分片大小。分片越多，按吞吐量分配越细。
+	 */
+	private static final int MULTI_SOURCE_MAX_PARTS = 64;
+	private static final long MULTI_SOURCE_MIN_PART_BYTES = 32L * 1024 * 1024;
+	
 	/**
 	 * 	输入的原始地址
 	 */
@@ -77,6 +95,31 @@ public class BasicDownloader {
 	private String etag;
 	boolean rangeSupported;
 	
+	/**
+	 * 	同一文件的镜像地址（不含原始地址），可为空。
+	 */
+	private List<URI> mirrorUris = new ArrayList<>();
+	
+	/**
+	 * 	实际可用的下载源，第一个始终是原始地址。
+	 */
+	private List<DownloadSource> sources = new ArrayList<>();
+	
+	/**
+	 * 	期望的SHA-256（LFS oid），为空时不校验。
+	 */
+	private String expectedSha256;
+	
+	/**
+	 * 	断点续传时沿用的分片数量，保证分片边界和上次一致。
+	 */
+	private int partsTotalHint;
+	
+	/**
+	 * 	下载过程中顺带算出的SHA-256，没有算或算失败时为null。
+	 */
+	private volatile String streamedSha256;
+	
 	private final HttpClient httpClient;
 	
 	private final AtomicLong downloadedBytes = new AtomicLong(0);
@@ -103,7 +146,7 @@ public class BasicDownloader {
 	public BasicDownloader(URI uri, Path targetFile) {
 		this.sourceUri = Objects.requireNonNull(uri, "uri");
 		this.targetFile = Objects.requireNonNull(targetFile, "targetFile");
-		this.httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+		this.httpClient = DownloadHttpClients.shared();
 	}
 	
 	/**
@@ -156,6 +199,64 @@ public class BasicDownloader {
 		this.userAgent = Objects.requireNonNull(userAgent, "userAgent");
 	}
 	
+	/**
+	 * 	设置镜像地址，支持分片下载时会同时从这些地址拉取不同的分片。
+	 * @param mirrorUrls
+	 */
+	public void setMirrorUrls(List<String> mirrorUrls) {
+		List<URI> list = new ArrayList<>();
+		if (mirrorUrls != null) {
+			for (String u : mirrorUrls) {
+				if (u == null || u.isBlank()) {
+					continue;
+				}
+				URI uri = URI.create(u.trim());
+				if (!uri.equals(this.sourceUri) && !list.contains(uri)) {
+					list.add(uri);
+				}
+			}
+		}
+		this.mirrorUris = list;
+	}
+	
+	/**
+	 * 	设置期望的SHA-256，下载完成后会按它校验文件。
+	 * @param expectedSha256
+	 */
+	public void setExpectedSha256(String expectedSha256) {
+		this.expectedSha256 = normalizeSha256(expectedSha256);
+	}
+	
+	public String getExpectedSha256() {
+		return this.expectedSha256;
+	}
+	
+	/**
+	 * 	估算还需要占用的磁盘空间：剩余未下载的字节，分片下载时再加上预分配的目标文件。
+	 * 	分片要等合并完成并落盘后才删除，合并期间分片和目标文件同时存在。
+	 * 	需要在requestHead之后，或者断点续传设置好文件大小之后调用。
+	 * @param alreadyDownloaded
+	 * @return
+	 */
+	public long estimateDiskBytesNeeded(long alreadyDownloaded) {
+		if (this.contentLength <= 0) {
+			return 0;
+		}
+		long remaining = Math.max(0, this.contentLength - Math.max(0, alreadyDownloaded));
+		if (!this.rangeSupported || this.parallelism <= 1) {
+			return remaining;
+		}
+		return remaining + this.contentLength;
+	}
+	
+	public void setPartsTotalHint(int partsTotalHint) {
+		this.partsTotalHint = Math.max(0, partsTotalHint);
+	}
+	
+	public int getSourceCount() {
+		return Math.max(1, this.sources.size());
+	}
+	
 	public URI getSourceUri() {
 		return this.sourceUri;
 	}
@@ -282,8 +383,10 @@ public class BasicDownloader {
 				this.downloadSingle(downloadingTargetFile);
 			}
 			
-			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			if (this.expectedSha256 == null || !this.expectedSha256.equals(this.streamedSha256)) {
+				this.state = DownloadState.VERIFYING;
+				this.verifyIntegrity(downloadingTargetFile);
+			}
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
@@ -320,6 +423,7 @@ public class BasicDownloader {
 	 */
 	public void resume(long existingDownloadedBytes) throws IOException, URISyntaxException, InterruptedException {
 		this.resetStop();
+		this.streamedSha256 = null;
 		this.downloadedBytes.set(existingDownloadedBytes);
 		this.startedAtNanos = System.nanoTime();
 		this.finishedAtNanos = 0;
@@ -348,8 +452,10 @@ public class BasicDownloader {
 				this.resumeSingle(downloadingTargetFile);
 			}
 			
-			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			if (this.expectedSha256 == null || !this.expectedSha256.equals(this.streamedSha256)) {
+				this.state = DownloadState.VERIFYING;
+				this.verifyIntegrity(downloadingTargetFile);
+			}
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
@@ -381,8 +487,11 @@ public class BasicDownloader {
 		this.checkStop();
 		this.state = DownloadState.PREPARING;
 
-		URI resolvedFinalUri = this.resolveFinalUri(this.sourceUri);
-		HttpResponse<Void> headResponse = this.sendHeadOrFallback(resolvedFinalUri);
+		ProbeResult probe = this.probeResolved(this.sourceUri, this.resolveFinalUri(this.sourceUri));
+		URI resolvedFinalUri = probe.finalUri();
+		HttpResponse<Void> headResponse = probe.rangeSupported() && parseContentLength(probe.response().headers().map()) > 0
+				? probe.response()
+				: this.sendHeadOrFallback(resolvedFinalUri);
 		if (headResponse == null) {
 			throw new IOException("无法获取文件头信息");
 		}
@@ -403,9 +512,8 @@ public class BasicDownloader {
 		this.finalUri = resolvedFinalUri;
 		this.contentLength = remoteContentLength;
 		this.etag = currentEtag;
-
-		HttpResponse<Void> rangeProbe = this.sendRangeProbe(this.finalUri);
-		this.rangeSupported = rangeProbe != null && rangeProbe.statusCode() == 206;
+		this.rangeSupported = probe.rangeSupported();
+		this.resolveSources();
 	}
 	
 	/**
@@ -417,9 +525,14 @@ public class BasicDownloader {
 	private void prepare() throws IOException, URISyntaxException, InterruptedException {
 		this.checkStop();
 		this.state = DownloadState.PREPARING;
-		this.finalUri = this.resolveFinalUri(this.sourceUri);
+		ProbeResult probe = this.probeResolved(this.sourceUri, this.resolveFinalUri(this.sourceUri));
+		this.finalUri = probe.finalUri();
+		this.rangeSupported = probe.rangeSupported();
 		
-		HttpResponse<Void> headResponse = this.sendHeadOrFallback(this.finalUri);
+		// 分片探测的206响应里已经有文件大小和ETag，能用就省掉一次HEAD
+		HttpResponse<Void> headResponse = this.rangeSupported && parseContentLength(probe.response().headers().map()) > 0
+				? probe.response()
+				: this.sendHeadOrFallback(this.finalUri);
 		
 		if (headResponse == null) {
 			throw new IOException("无法获取文件头信息");
@@ -431,15 +544,132 @@ public class BasicDownloader {
 		}
 		
 		this.etag = firstHeaderValue(headResponse.headers().map(), "etag");
-		
-		HttpResponse<Void> rangeProbe = this.sendRangeProbe(this.finalUri);
-		this.rangeSupported = rangeProbe != null && rangeProbe.statusCode() == 206;
+		this.resolveSources();
+	}
+	
+	/**
+	 * 	探测镜像地址，只保留支持分片且文件大小一致的源。
+	 * @throws InterruptedException
+	 */
+	private void resolveSources() throws InterruptedException {
+		List<DownloadSource> list = new ArrayList<>();
+		list.add(new DownloadSource(this.sourceUri, this.finalUri));
+		if (this.rangeSupported) {
+			for (URI mirror : this.mirrorUris) {
+				this.checkStop();
+				try {
+					ProbeResult result = this.probeResolved(mirror, this.resolveFinalUri(mirror));
+					URI resolved = result.finalUri();
+					HttpResponse<Void> probe = result.response();
+					if (!result.rangeSupported()) {
+						logger.info("镜像不支持分片下载，跳过: {}", mirror);
+						continue;
+					}
+					long length = parseContentLength(probe.headers().map());
+					if (length != this.contentLength) {
+						logger.info("镜像文件大小不一致，跳过: {} 期望: {} 实际: {}", mirror, this.contentLength, length);
+						continue;
+					}
+					list.add(new DownloadSource(mirror, resolved));
+				} catch (IOException | URISyntaxException | IllegalArgumentException e) {
+					logger.info("镜像不可用，跳过: {} {}", mirror, e.getMessage());
+				}
+			}
+		}
+		this.sources = list;
+	}
+	
+	/**
+	 * 	计算分片。多源时切得更细，断点续传时沿用上次的分片数量。
+	 * @return
+	 */
+	private List<Part> computeParts() {
+		if (this.partsTotalHint > 0) {
+			return splitParts(this.contentLength, this.partsTotalHint, 1);
+		}
+		if (this.sources.size() > 1) {
+			return splitParts(this.contentLength, MULTI_SOURCE_MAX_PARTS, Math.max(this.minPartSizeBytes, MULTI_SOURCE_MIN_PART_BYTES));
+		}
+		return splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
+	}
+	
+	/**
+	 * 	下载尚未完成的分片。只有一个源时每个分片一个连接；多个源时交给多源下载器按吞吐量分配。
+	 * 	有期望的SHA-256时，后台按顺序对已完成的分片算摘要，返回的hasher交给合并阶段补完。
+	 * @param parts
+	 * @param partFiles
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private PartSequenceHasher downloadParts(List<Part> parts, List<Path> partFiles) throws IOException, InterruptedException {
+		PartSequenceHasher hasher = null;
+		if (this.expectedSha256 != null) {
+			hasher = new PartSequenceHasher(parts, partFiles, this.stopRequested);
+			hasher.start();
+		}
+		try {
+			this.downloadPartsInternal(parts, partFiles);
+		} finally {
+			if (hasher != null) {
+				hasher.stop();
+			}
+		}
+		return hasher;
+	}
+	
+	private void downloadPartsInternal(List<Part> parts, List<Path> partFiles) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+		this.activePool = pool;
+		try {
+			if (this.sources.size() > 1) {
+				int perSource = Math.max(2, (this.parallelism + this.sources.size() - 1) / this.sources.size());
+				new MultiSourceDownloader(this.httpClient, this.sources, this.userAgent, this.requestTimeout, perSource,
+						this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)
+						.download(parts, partFiles, pool);
+				return;
+			}
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < parts.size(); i++) {
+				Part part = parts.get(i);
+				Path partFile = partFiles.get(i);
+				
+				// 跳过已完成的分片
+				if (Files.exists(partFile) && Files.size(partFile) == part.length()) {
+					continue;
+				}
+				
+				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
+			}
+			
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof InterruptedException ie) {
+						throw ie;
+					}
+					if (cause instanceof IOException io) {
+						throw io;
+					}
+					if (cause instanceof RuntimeException re) {
+						throw re;
+					}
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			this.activePool = null;
+		}
 	}
 	
 	/**
 	 * 	重置进度
 	 */
 	private void resetProgress() {
+		this.streamedSha256 = null;
 		this.downloadedBytes.set(0);
 		this.partsTotal.set(0);
 		this.partsCompleted.set(0);
@@ -526,6 +756,12 @@ public class BasicDownloader {
 				return;
 			}
 
+			// 续传时先把已有的部分算进摘要，后面的边下边算
+			MessageDigest digest = null;
+			if (this.expectedSha256 != null) {
+				digest = newSha256();
+				this.updateDigest(digest, targetFile);
+			}
 			try (InputStream in = new BufferedInputStream(response.body());
 					OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile.toString(), true))) {
 				this.activeResources.add(in);
@@ -536,6 +772,9 @@ public class BasicDownloader {
 					while ((read = in.read(buffer)) != -1) {
 						this.checkStop();
 						out.write(buffer, 0, read);
+						if (digest != null) {
+							digest.update(buffer, 0, read);
+						}
 						this.downloadedBytes.addAndGet(read);
 					}
 				} catch (IOException e) {
@@ -572,6 +811,9 @@ public class BasicDownloader {
 				continue;
 			}
 
+			if (digest != null) {
+				this.streamedSha256 = HexFormat.of().formatHex(digest.digest());
+			}
 			this.partsCompleted.set(1);
 			return;
 		}
@@ -584,7 +826,7 @@ public class BasicDownloader {
 	 */
 	private void resumeMultipart(Path targetFile) throws IOException, InterruptedException {
 		this.downloadedBytes.set(0);
-		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
+		List<Part> parts = this.computeParts();
 		this.partsTotal.set(parts.size());
 		this.partsCompleted.set(0);
 		
@@ -617,7 +859,8 @@ public class BasicDownloader {
 		// 如果所有分片都已完成，直接合并
 		if (completedParts == parts.size()) {
 			this.state = DownloadState.MERGING;
-			this.mergeParts(parts, partFiles, targetFile);
+			PartSequenceHasher hasher = this.expectedSha256 != null ? new PartSequenceHasher(parts, partFiles, this.stopRequested) : null;
+			this.mergeParts(parts, partFiles, targetFile, hasher);
 			
 			for (Path p : partFiles) {
 				Files.deleteIfExists(p);
@@ -636,46 +879,10 @@ public class BasicDownloader {
 		}
 		
 		// 下载剩余的分片
-		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
-		this.activePool = pool;
-		try {
-			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				
-				// 跳过已完成的分片
-				if (Files.exists(partFile) && Files.size(partFile) == part.length()) {
-					continue;
-				}
-				
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
-			}
-			
-			for (Future<Void> f : futures) {
-				try {
-					f.get();
-				} catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof InterruptedException ie) {
-						throw ie;
-					}
-					if (cause instanceof IOException io) {
-						throw io;
-					}
-					if (cause instanceof RuntimeException re) {
-						throw re;
-					}
-					throw new IOException(cause);
-				}
-			}
-		} finally {
-			pool.shutdownNow();
-			this.activePool = null;
-		}
+		PartSequenceHasher hasher = this.downloadParts(parts, partFiles);
 		
 		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
+		this.mergeParts(parts, partFiles, targetFile, hasher);
 		
 		for (Path p : partFiles) {
 			Files.deleteIfExists(p);
@@ -696,6 +903,48 @@ public class BasicDownloader {
 	 * @throws URISyntaxException
 	 */
 	private URI resolveFinalUri(URI initialUri) throws IOException, InterruptedException, URISyntaxException {
+		URI cached = DownloadHttpClients.cachedRedirect(initialUri);
+		if (cached != null) {
+			return cached;
+		}
+		URI resolved = this.followRedirects(initialUri);
+		DownloadHttpClients.cacheRedirect(initialUri, resolved);
+		return resolved;
+	}
+	
+	/**
+	 * 	探测分片支持，缓存的最终地址失效时（签名过期等）重新解析一次。
+	 * @param initialUri
+	 * @param resolved
+	 * @return 实际使用的最终地址和探测结果
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	private ProbeResult probeResolved(URI initialUri, URI resolved) throws IOException, InterruptedException, URISyntaxException {
+		HttpResponse<Void> probe = this.sendRangeProbe(resolved);
+		if (probe.statusCode() >= 400 && DownloadHttpClients.evictRedirect(initialUri)) {
+			resolved = this.resolveFinalUri(initialUri);
+			probe = this.sendRangeProbe(resolved);
+		}
+		return new ProbeResult(resolved, probe);
+	}
+	
+	private record ProbeResult(URI finalUri, HttpResponse<Void> response) {
+		boolean rangeSupported() {
+			return this.response != null && this.response.statusCode() == 206;
+		}
+	}
+	
+	/**
+	 * 	逐跳跟随重定向
+	 * @param initialUri
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 */
+	private URI followRedirects(URI initialUri) throws IOException, InterruptedException, URISyntaxException {
 		URI current = initialUri;
 		for (int i = 0; i < this.maxRedirects; i++) {
 			this.checkStop();
@@ -836,6 +1085,7 @@ public class BasicDownloader {
 					throw new IOException("下载失败，HTTP状态码: " + response.statusCode());
 				}
 
+				MessageDigest digest = this.expectedSha256 != null ? newSha256() : null;
 				try (InputStream in = new BufferedInputStream(response.body());
 						OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile.toString(), false))) {
 					this.activeResources.add(in);
@@ -846,6 +1096,9 @@ public class BasicDownloader {
 						while ((read = in.read(buffer)) != -1) {
 							this.checkStop();
 							out.write(buffer, 0, read);
+							if (digest != null) {
+								digest.update(buffer, 0, read);
+							}
 							this.downloadedBytes.addAndGet(read);
 						}
 					} catch (IOException e) {
@@ -864,6 +1117,9 @@ public class BasicDownloader {
 					throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
 				}
 
+				if (digest != null) {
+					this.streamedSha256 = HexFormat.of().formatHex(digest.digest());
+				}
 				this.partsCompleted.set(1);
 				return;
 			} catch (InterruptedException e) {
@@ -889,7 +1145,7 @@ public class BasicDownloader {
 	 * @throws InterruptedException
 	 */
 	private void downloadMultipart(Path targetFile) throws IOException, InterruptedException {
-		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
+		List<Part> parts = this.computeParts();
 		this.partsTotal.set(parts.size());
 		this.partsCompleted.set(0);
 		this.preAllocateTargetFile(targetFile, this.contentLength);
@@ -899,40 +1155,10 @@ public class BasicDownloader {
 			partFiles.add(targetFile.resolveSibling(targetFile.getFileName().toString() + ".part" + i));
 		}
 		
-		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
-		this.activePool = pool;
-		try {
-			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
-			}
-			
-			for (Future<Void> f : futures) {
-				try {
-					f.get();
-				} catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof InterruptedException ie) {
-						throw ie;
-					}
-					if (cause instanceof IOException io) {
-						throw io;
-					}
-					if (cause instanceof RuntimeException re) {
-						throw re;
-					}
-					throw new IOException(cause);
-				}
-			}
-		} finally {
-			pool.shutdownNow();
-			this.activePool = null;
-		}
+		PartSequenceHasher hasher = this.downloadParts(parts, partFiles);
 		
 		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
+		this.mergeParts(parts, partFiles, targetFile, hasher);
 		
 		for (Path p : partFiles) {
 			Files.deleteIfExists(p);
@@ -945,7 +1171,7 @@ public class BasicDownloader {
 	}
 	
 	/**
-	 * 	准备分配本地缓存文件
+	 * 	预分配目标文件。文件系统不支持直接设置长度时，退回到在末尾写一个字节的稀疏文件。
 	 * @param target
 	 * @param size
 	 * @throws IOException
@@ -953,40 +1179,62 @@ public class BasicDownloader {
 	private void preAllocateTargetFile(Path target, long size) throws IOException {
 		try (RandomAccessFile raf = new RandomAccessFile(target.toString(), "rw")) {
 			raf.setLength(size);
+			return;
+		} catch (IOException e) {
+			logger.info("预分配目标文件失败，改用稀疏文件: {} {}", target, e.getMessage());
+		}
+		if (size <= 0) {
+			return;
+		}
+		try (FileChannel ch = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+			ch.write(ByteBuffer.wrap(new byte[1]), size - 1);
 		}
 	}
 	
 	/**
-	 * 	将下载后的文件合并。
+	 * 	将下载后的文件合并。hasher不为空时，把还没算进摘要的分片在写入时顺带算掉。
+	 * 	合并完成后强制落盘才返回，调用方在这之后才能删除分片，中途崩溃时分片仍在，可以重新合并。
 	 * @param parts
 	 * @param partFiles
 	 * @param target
+	 * @param hasher
 	 * @throws IOException
 	 */
-	private void mergeParts(List<Part> parts, List<Path> partFiles, Path target) throws IOException {
+	private void mergeParts(List<Part> parts, List<Path> partFiles, Path target, PartSequenceHasher hasher) throws IOException {
 		List<PartWithFile> ordered = new ArrayList<>();
 		for (int i = 0; i < parts.size(); i++) {
 			ordered.add(new PartWithFile(parts.get(i), partFiles.get(i)));
 		}
 		ordered.sort(Comparator.comparingLong(p -> p.getPart().getStartInclusive()));
 		
+		// 先检查全部分片，避免合并到一半才发现问题
+		for (PartWithFile pwf : ordered) {
+			long expected = pwf.getPart().length();
+			long actual = Files.size(pwf.getFile());
+			if (actual != expected) {
+				throw new IOException("分片大小不匹配: " + pwf.getFile().getFileName() + " 期望: " + expected + " 实际: " + actual);
+			}
+		}
+		
 		try (RandomAccessFile raf = new RandomAccessFile(target.toString(), "rw")) {
 			for (PartWithFile pwf : ordered) {
-				long expected = pwf.getPart().length();
-				long actual = Files.size(pwf.getFile());
-				if (actual != expected) {
-					throw new IOException("分片大小不匹配: " + pwf.getFile().getFileName() + " 期望: " + expected + " 实际: " + actual);
-				}
-				
+				boolean hashing = hasher != null && !hasher.isHashed(pwf.getPart());
 				raf.seek(pwf.getPart().getStartInclusive());
 				try (InputStream in = new BufferedInputStream(Files.newInputStream(pwf.getFile()))) {
 					byte[] buffer = new byte[1024 * 256];
 					int read;
 					while ((read = in.read(buffer)) != -1) {
 						raf.write(buffer, 0, read);
+						if (hashing) {
+							hasher.update(buffer, 0, read);
+						}
 					}
 				}
 			}
+			raf.getFD().sync();
+		}
+		if (hasher != null) {
+			this.streamedSha256 = hasher.digestHex();
 		}
 	}
 	
@@ -995,8 +1243,21 @@ public class BasicDownloader {
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private void verifyIntegrity() throws IOException, InterruptedException {
+	private void verifyIntegrity(Path downloadedFile) throws IOException, InterruptedException {
 		this.checkStop();
+		if (this.expectedSha256 != null) {
+			// 有LFS的sha256时以它为准，多源下载也只能靠它确认内容一致
+			String actual = this.streamedSha256;
+			if (!this.expectedSha256.equals(actual)) {
+				// 边下边算的结果不一致时再整文件算一遍，排除分片重试带来的误判
+				actual = sha256Of(downloadedFile);
+			}
+			if (!this.expectedSha256.equals(actual)) {
+				Files.deleteIfExists(downloadedFile);
+				throw new IOException("SHA-256校验失败，期望: " + this.expectedSha256 + " 实际: " + actual);
+			}
+			return;
+		}
 		if (this.etag == null || this.etag.isBlank()) {
 			return;
 		}
@@ -1016,6 +1277,71 @@ public class BasicDownloader {
 		}
 	}
 	
+	/**
+	 * 	计算文件的SHA-256
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private String sha256Of(Path file) throws IOException, InterruptedException {
+		MessageDigest digest = newSha256();
+		this.updateDigest(digest, file);
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	/**
+	 * 	把文件内容依次喂给摘要
+	 * @param digest
+	 * @param file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void updateDigest(MessageDigest digest, Path file) throws IOException, InterruptedException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (ch.read(buffer) != -1) {
+				this.checkStop();
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+	}
+	
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * 	LFS的oid就是64位十六进制的sha256，其它格式一律忽略。
+	 * @param sha256
+	 * @return
+	 */
+	private static String normalizeSha256(String sha256) {
+		if (sha256 == null) {
+			return null;
+		}
+		String v = sha256.trim().toLowerCase(Locale.ROOT);
+		if (v.startsWith("sha256:")) {
+			v = v.substring("sha256:".length());
+		}
+		if (v.length() != 64) {
+			return null;
+		}
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return null;
+			}
+		}
+		return v;
+	}
+	
 	private static String normalizeEtag(String etag) {
 		if (etag == null) {
 			return null;
@@ -0,0 +1,120 @@
+package org.mark.llamacpp.download;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 	下载的磁盘空间预留。
+ * 	<p>
+ * 	按文件系统记账：一个任务开始前先声明还需要写入多少字节，可用空间要扣掉同一文件系统上
+ * 	其它任务还没写完的部分。任务写入的字节会体现在可用空间里，所以预留量随下载进度递减，不会重复扣。
+ */
+final class DiskSpaceReservations {
+
+	/**
+	 * 	给系统和其它程序留的余量
+	 */
+	private static final long SAFETY_MARGIN_BYTES = 512L * 1024 * 1024;
+
+	/**
+	 * 	预留结果
+	 */
+	enum Admission {
+		/**
+		 * 	已预留
+		 */
+		ACCEPTED,
+		/**
+		 * 	扣掉其它任务的预留后放不下，等它们结束或被删除后再试
+		 */
+		WAIT,
+		/**
+		 * 	就算其它任务都不下载也放不下
+		 */
+		REJECTED
+	}
+
+	private static final class Reservation {
+		private final FileStore store;
+		private final DownloadTask task;
+		private final long requiredBytes;
+		private final long downloadedAtStart;
+
+		private Reservation(FileStore store, DownloadTask task, long requiredBytes) {
+			this.store = store;
+			this.task = task;
+			this.requiredBytes = requiredBytes;
+			this.downloadedAtStart = task.getDownloadedBytes();
+		}
+
+		/**
+		 * 	还没写到磁盘上的部分
+		 */
+		private long outstanding() {
+			long written = Math.max(0, this.task.getDownloadedBytes() - this.downloadedAtStart);
+			return Math.max(0, this.requiredBytes - written);
+		}
+	}
+
+	private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+	/**
+	 * 	为任务预留空间。
+	 * @param task
+	 * @param requiredBytes 还需要新占用的字节数
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized Admission reserve(DownloadTask task, long requiredBytes) throws IOException {
+		this.reservations.remove(task.getTaskId());
+		if (requiredBytes <= 0) {
+			return Admission.ACCEPTED;
+		}
+		FileStore store = fileStoreOf(task.getFullTargetPath());
+		long usable = store.getUsableSpace() - SAFETY_MARGIN_BYTES;
+		if (usable < requiredBytes) {
+			return Admission.REJECTED;
+		}
+		long reserved = 0;
+		for (Reservation r : this.reservations.values()) {
+			if (r.store.equals(store)) {
+				reserved += r.outstanding();
+			}
+		}
+		if (usable - reserved < requiredBytes) {
+			return Admission.WAIT;
+		}
+		this.reservations.put(task.getTaskId(), new Reservation(store, task, requiredBytes));
+		return Admission.ACCEPTED;
+	}
+
+	/**
+	 * 	释放任务的预留。
+	 * @param taskId
+	 * @return 是否确实释放了预留
+	 */
+	boolean release(String taskId) {
+		return taskId != null && this.reservations.remove(taskId) != null;
+	}
+
+	/**
+	 * 	目标路径的文件系统，目录还没创建时往上找已存在的父目录。
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	static FileStore fileStoreOf(Path target) throws IOException {
+		Path p = target.toAbsolutePath();
+		while (p != null && !Files.exists(p)) {
+			p = p.getParent();
+		}
+		if (p == null) {
+			throw new IOException("无法确定下载目录所在的磁盘: " + target);
+		}
+		return Files.getFileStore(p);
+	}
+}
@@ -0,0 +1,79 @@
+package org.mark.llamacpp.download;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 	所有下载任务共用的HTTP客户端和重定向缓存。
+ * 	<p>
+ * 	共用一个HttpClient后，同一个主机的分片请求会复用连接和TLS会话；CDN支持HTTP/2时，
+ * 	多个分片作为不同的流跑在同一条连接上，不支持时自动退回HTTP/1.1。
+ */
+public final class DownloadHttpClients {
+
+	/**
+	 * 	重定向结果的有效期。huggingface跳转到的CDN地址带签名，过一段时间会失效，所以不能缓存太久。
+	 */
+	private static final long REDIRECT_TTL_NANOS = Duration.ofMinutes(10).toNanos();
+
+	private static final HttpClient SHARED = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.NEVER)
+			.connectTimeout(Duration.ofSeconds(30))
+			.build();
+
+	private record CachedRedirect(URI finalUri, long expiresAtNanos) {
+	}
+
+	private static final Map<URI, CachedRedirect> REDIRECTS = new ConcurrentHashMap<>();
+
+	private DownloadHttpClients() {
+	}
+
+	/**
+	 * 	下载用的共享客户端，不自动跟随重定向。
+	 * @return
+	 */
+	public static HttpClient shared() {
+		return SHARED;
+	}
+
+	/**
+	 * 	取缓存的最终地址。resolve地址里已经包含仓库和版本，所以按原始地址缓存即可。
+	 * @param sourceUri
+	 * @return 没有或已过期时返回null
+	 */
+	static URI cachedRedirect(URI sourceUri) {
+		CachedRedirect c = REDIRECTS.get(sourceUri);
+		if (c == null) {
+			return null;
+		}
+		if (System.nanoTime() - c.expiresAtNanos() >= 0) {
+			REDIRECTS.remove(sourceUri, c);
+			return null;
+		}
+		return c.finalUri();
+	}
+
+	static void cacheRedirect(URI sourceUri, URI finalUri) {
+		if (sourceUri == null || finalUri == null) {
+			return;
+		}
+		// 顺手清理过期的记录，避免长时间运行后越积越多
+		long now = System.nanoTime();
+		REDIRECTS.values().removeIf(c -> now - c.expiresAtNanos() >= 0);
+		REDIRECTS.put(sourceUri, new CachedRedirect(finalUri, now + REDIRECT_TTL_NANOS));
+	}
+
+	/**
+	 * 	最终地址请求失败时清掉缓存。
+	 * @param sourceUri
+	 * @return 是否确实清掉了一条记录
+	 */
+	static boolean evictRedirect(URI sourceUri) {
+		return sourceUri != null && REDIRECTS.remove(sourceUri) != null;
+	}
+}
@@ -32,6 +32,8 @@ public class DownloadManager {
 
     private static final DownloadManager INSTANCE = new DownloadManager();
     private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    // 等待磁盘空间的任务每隔多少个进度周期（秒）重新检查一次，空间可能被外部程序释放
+    private static final int DISK_RECHECK_TICKS = 30;
     
     private final TaskRepository repository;
     private final Map<String, DownloadProgressListener> listeners = new ConcurrentHashMap<>();
@@ -39,6 +41,10 @@ public class DownloadManager {
     private final ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
     private final AtomicInteger activeDownloads = new AtomicInteger(0);
     private final Map<String, DownloadTask> pendingTasks = new ConcurrentHashMap<>();
+    private final DiskSpaceReservations diskReservations = new DiskSpaceReservations();
+    // 因磁盘空间不足而等待的任务，有任务结束、被删除时重新尝试，另外定时重新检查
+    private final Map<String, DownloadTask> diskWaitingTasks = new ConcurrentHashMap<>();
+    private final AtomicInteger progressTicks = new AtomicInteger(0);
     
     public static DownloadManager getInstance() {
         return INSTANCE;
@@ -85,12 +91,29 @@ public class DownloadManager {
 	}
 	
 	public String createTask(String url, String path, String fileName, DownloadTask.DownloadTaskType type) {
+		return createTask(url, path, fileName, type, null, null);
+	}
+	
+	/**
+	 * 创建下载任务
+	 * @param url 下载URL
+	 * @param path 保存路径
+	 * @param fileName 文件名（可选）
+	 * @param type 任务类型
+	 * @param mirrorUrls 同一文件的镜像地址（可选），支持分片时会同时从多个镜像下载
+	 * @param expectedSha256 期望的SHA-256（可选），通常是huggingface的LFS oid
+	 * @return 任务ID
+	 */
+	public String createTask(String url, String path, String fileName, DownloadTask.DownloadTaskType type,
+			List<String> mirrorUrls, String expectedSha256) {
 		Objects.requireNonNull(url, "URL不能为空");
 		Objects.requireNonNull(path, "路径不能为空");
 
 		Path targetPath = Paths.get(path);
 		DownloadTask task = new DownloadTask(url, targetPath, fileName);
 		task.setType(type);
+		task.setMirrorUrls(mirrorUrls);
+		task.setExpectedSha256(expectedSha256);
 
 		// 保存任务到仓库
 		this.repository.saveTask(task);
@@ -180,6 +203,7 @@ public class DownloadManager {
 				|| task.getState() == DownloadState.FAILED) {
 
 			task.setPaused(false);
+			this.diskWaitingTasks.remove(taskId);
 
 			// 如果当前活跃下载任务数未达到上限，则立即开始下载
 			if (this.activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS) {
@@ -225,6 +249,8 @@ public class DownloadManager {
 		}
 		
 		deleteLocalFiles(task);
+		this.diskReservations.release(taskId);
+		this.diskWaitingTasks.remove(taskId);
 		
 		if (task.getType() == DownloadTask.DownloadTaskType.GGUF_MODEL) {
 			deleteEmptyDirectory(task.getFullTargetPath().getParent());
@@ -239,6 +265,10 @@ public class DownloadManager {
 		// 通知监听器
 		this.notifyTaskDeleted(task);
 
+		// 删除释放了磁盘空间，等待空间的任务可以再试
+		retryDiskWaitingTasks();
+		processPendingTasks();
+
 		return true;
 	}
 	
@@ -342,6 +372,8 @@ public class DownloadManager {
 
 				// 创建下载器
 				BasicDownloader downloader = new BasicDownloader(task.getUrl(), task.getFullTargetPath());
+				downloader.setMirrorUrls(task.getMirrorUrls());
+				downloader.setExpectedSha256(task.getExpectedSha256());
 				task.setDownloader(downloader);
 
 				// 检查是否可以断点续传
@@ -355,6 +387,10 @@ public class DownloadManager {
 					downloader.setContentLenght(task.getTotalBytes());
 					downloader.setEtag(task.getEtag());
 					downloader.rangeSupported = task.isRangeSupported();
+					downloader.setPartsTotalHint(task.getPartsTotal());
+					if (!admitDiskSpace(task, downloader.estimateDiskBytesNeeded(task.getDownloadedBytes()))) {
+						return;
+					}
 					
 					task.setState(DownloadState.DOWNLOADING);
 					this.repository.saveTask(task);
@@ -375,6 +411,9 @@ public class DownloadManager {
 					task.setTotalBytes(headProgress.getTotalBytes());
 					task.setEtag(downloader.getEtag());
 					task.setRangeSupported(downloader.isRangeSupported());
+					if (!admitDiskSpace(task, downloader.estimateDiskBytesNeeded(0))) {
+						return;
+					}
 					
 					task.setState(DownloadState.DOWNLOADING);
 					this.repository.saveTask(task);
@@ -405,6 +444,9 @@ public class DownloadManager {
 				// 减少活跃下载计数
 				this.activeDownloads.decrementAndGet();
 				task.setDownloadThread(null);
+				if (this.diskReservations.release(task.getTaskId())) {
+					retryDiskWaitingTasks();
+				}
 
 				// 尝试启动等待队列中的任务
 				processPendingTasks();
@@ -412,6 +454,54 @@ public class DownloadManager {
 		});
 	}
 	
+	/**
+	 * 磁盘空间准入：按文件系统预留空间，同一磁盘上其它任务还没写完的部分也算在内
+	 * @param task 下载任务
+	 * @param requiredBytes 还需要占用的字节数
+	 * @return 是否可以开始下载，放不下时任务已被置为等待或失败
+	 */
+	private boolean admitDiskSpace(DownloadTask task, long requiredBytes) {
+		DiskSpaceReservations.Admission admission;
+		try {
+			admission = this.diskReservations.reserve(task, requiredBytes);
+		} catch (Exception e) {
+			// 拿不到磁盘信息时不拦截
+			logger.info("检查磁盘空间失败: {}", e.getMessage());
+			return true;
+		}
+		if (admission == DiskSpaceReservations.Admission.ACCEPTED) {
+			return true;
+		}
+		String need = String.format("%.2f GB", requiredBytes / (1024.0 * 1024 * 1024));
+		if (admission == DiskSpaceReservations.Admission.WAIT) {
+			task.setState(DownloadState.IDLE);
+			task.setErrorMessage("等待磁盘空间，需要 " + need);
+			this.diskWaitingTasks.put(task.getTaskId(), task);
+			this.repository.saveTask(task);
+			notifyStateChanged(task, DownloadState.PREPARING, DownloadState.IDLE);
+			logger.info("任务 " + task.getTaskId() + " 等待其它下载释放磁盘空间，需要 " + need);
+		} else {
+			String error = "磁盘空间不足，需要 " + need;
+			task.setState(DownloadState.FAILED);
+			task.setErrorMessage(error);
+			this.repository.saveTask(task);
+			notifyTaskFailed(task, error);
+		}
+		return false;
+	}
+	
+	/**
+	 * 有任务释放了磁盘预留、删除了文件，或者定时检查时，把等待磁盘空间的任务放回等待队列
+	 */
+	private void retryDiskWaitingTasks() {
+		for (String taskId : new ArrayList<>(this.diskWaitingTasks.keySet())) {
+			DownloadTask task = this.diskWaitingTasks.remove(taskId);
+			if (task != null && task.getState() == DownloadState.IDLE && !task.isPaused()) {
+				this.pendingTasks.put(taskId, task);
+			}
+		}
+	}
+	
 	/**
 	 * 检查是否可以断点续传
 	 * @param task 下载任务
@@ -489,6 +579,12 @@ public class DownloadManager {
 				notifyProgressUpdated(task, progress);
 			}
 		}
+		notifyProgressTick();
+		
+		if (this.progressTicks.incrementAndGet() % DISK_RECHECK_TICKS == 0 && !this.diskWaitingTasks.isEmpty()) {
+			retryDiskWaitingTasks();
+			processPendingTasks();
+		}
 	}
     
 	/**
@@ -552,6 +648,16 @@ public class DownloadManager {
         }
     }
     
+    private void notifyProgressTick() {
+        for (DownloadProgressListener listener : listeners.values()) {
+            try {
+                listener.onProgressTick();
+            } catch (Exception e) {
+                logger.info("通知监听器失败: {}", e);
+            }
+        }
+    }
+    
     private void notifyTaskCompleted(DownloadTask task) {
         for (DownloadProgressListener listener : listeners.values()) {
             try {
@@ -0,0 +1,113 @@
+package org.mark.llamacpp.download;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mark.llamacpp.download.struct.DownloadProgress;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * 	下载进度聚合器：每个周期收集所有任务的进度，只输出有变化的任务，
+ * 	并附带平滑后的速度和预计剩余时间。
+ */
+public class DownloadProgressAggregator {
+
+	/**
+	 * 	速度平滑系数
+	 */
+	private static final double SPEED_ALPHA = 0.3;
+
+	/**
+	 * 	超过这个时间没有进度的任务不再跟踪，防止暂停、删除与进度周期交错时留下条目
+	 */
+	private static final long STALE_NANOS = 60_000_000_000L;
+
+	private static final class Entry {
+		private long downloadedBytes = -1;
+		private long totalBytes = -1;
+		private int partsCompleted = -1;
+		private int partsTotal = -1;
+		private long sampledAtNanos;
+		private double speedBytesPerSecond;
+		private boolean dirty;
+	}
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * 	记录一个任务在本周期的进度。
+	 * @param task
+	 * @param progress
+	 */
+	public void record(DownloadTask task, DownloadProgress progress) {
+		Entry e = this.entries.computeIfAbsent(task.getTaskId(), k -> new Entry());
+		long now = System.nanoTime();
+		synchronized (e) {
+			long downloaded = progress.getDownloadedBytes();
+			if (e.sampledAtNanos > 0 && e.downloadedBytes >= 0) {
+				long dt = now - e.sampledAtNanos;
+				long delta = downloaded - e.downloadedBytes;
+				if (dt > 0 && delta >= 0) {
+					double sample = delta * 1_000_000_000.0 / dt;
+					e.speedBytesPerSecond = e.speedBytesPerSecond <= 0 ? sample
+							: e.speedBytesPerSecond * (1 - SPEED_ALPHA) + sample * SPEED_ALPHA;
+				}
+			}
+			if (downloaded != e.downloadedBytes || progress.getTotalBytes() != e.totalBytes
+					|| progress.getPartsCompleted() != e.partsCompleted || progress.getPartsTotal() != e.partsTotal) {
+				e.dirty = true;
+			}
+			e.downloadedBytes = downloaded;
+			e.totalBytes = progress.getTotalBytes();
+			e.partsCompleted = progress.getPartsCompleted();
+			e.partsTotal = progress.getPartsTotal();
+			e.sampledAtNanos = now;
+		}
+	}
+
+	/**
+	 * 	取出本周期有变化的任务，没有变化时返回空数组。
+	 * @return
+	 */
+	public JsonArray drainChanged() {
+		JsonArray changed = new JsonArray();
+		long now = System.nanoTime();
+		for (Map.Entry<String, Entry> kv : this.entries.entrySet()) {
+			Entry e = kv.getValue();
+			synchronized (e) {
+				if (!e.dirty) {
+					if (now - e.sampledAtNanos > STALE_NANOS) {
+						this.entries.remove(kv.getKey(), e);
+					}
+					continue;
+				}
+				e.dirty = false;
+				JsonObject item = new JsonObject();
+				item.addProperty("taskId", kv.getKey());
+				item.addProperty("downloadedBytes", e.downloadedBytes);
+				item.addProperty("totalBytes", e.totalBytes);
+				item.addProperty("partsCompleted", e.partsCompleted);
+				item.addProperty("partsTotal", e.partsTotal);
+				item.addProperty("progressRatio", e.totalBytes > 0 ? Math.min(1.0, Math.max(0.0, (double) e.downloadedBytes / e.totalBytes)) : 0.0);
+				item.addProperty("speedBytesPerSecond", (long) e.speedBytesPerSecond);
+				long remaining = e.totalBytes - e.downloadedBytes;
+				long eta = e.speedBytesPerSecond > 0 && remaining >= 0 ? (long) Math.ceil(remaining / e.speedBytesPerSecond) : -1;
+				item.addProperty("etaSeconds", eta);
+				changed.add(item);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * 	任务结束后不再跟踪。
+	 * @param taskId
+	 */
+	public void forget(String taskId) {
+		if (taskId != null) {
+			this.entries.remove(taskId);
+		}
+	}
+}
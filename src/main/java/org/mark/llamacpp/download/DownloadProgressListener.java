@@ -23,6 +23,13 @@ public interface DownloadProgressListener {
      */
     void onProgressUpdated(DownloadTask task, DownloadProgress progress);
     
+    /**
+     * 每个进度周期内所有任务的onProgressUpdated调用完成后调用一次，
+     * 适合把本周期的进度合并后一次性发出
+     */
+    default void onProgressTick() {
+    }
+    
     /**
      * 当任务完成时调用
      * @param task 下载任务
@@ -2,6 +2,8 @@ package org.mark.llamacpp.download;
 
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -34,6 +36,8 @@ public class DownloadTask {
     private String finalUri;
     private String etag;
     private boolean rangeSupported;
+    private List<String> mirrorUrls = new ArrayList<>();
+    private String expectedSha256;
     private transient BasicDownloader downloader;
     private transient Thread downloadThread;
     private volatile boolean paused;
@@ -171,6 +175,24 @@ public class DownloadTask {
         this.updatedAt = LocalDateTime.now();
     }
     
+    public List<String> getMirrorUrls() {
+        return mirrorUrls == null ? new ArrayList<>() : mirrorUrls;
+    }
+    
+    public void setMirrorUrls(List<String> mirrorUrls) {
+        this.mirrorUrls = mirrorUrls == null ? new ArrayList<>() : new ArrayList<>(mirrorUrls);
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    public String getExpectedSha256() {
+        return expectedSha256;
+    }
+    
+    public void setExpectedSha256(String expectedSha256) {
+        this.expectedSha256 = expectedSha256;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
     public BasicDownloader getDownloader() {
         return downloader;
     }
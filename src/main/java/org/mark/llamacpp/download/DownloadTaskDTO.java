@@ -1,6 +1,7 @@
 package org.mark.llamacpp.download;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 import org.mark.llamacpp.download.struct.DownloadState;
 
@@ -26,6 +27,8 @@ public class DownloadTaskDTO {
     private String finalUri;
     private String etag;
     private boolean rangeSupported;
+    private List<String> mirrorUrls;
+    private String expectedSha256;
     
     public DownloadTaskDTO() {
         this.taskId = null;
@@ -55,6 +58,8 @@ public class DownloadTaskDTO {
         this.finalUri = task.getFinalUri();
         this.etag = task.getEtag();
         this.rangeSupported = task.isRangeSupported();
+        this.mirrorUrls = task.getMirrorUrls();
+        this.expectedSha256 = task.getExpectedSha256();
     }
     
     public String getTaskId() {
@@ -178,6 +183,8 @@ public class DownloadTaskDTO {
             task.setFinalUri(finalUri);
             task.setEtag(etag);
             task.setRangeSupported(rangeSupported);
+            task.setMirrorUrls(mirrorUrls);
+            task.setExpectedSha256(expectedSha256);
             
         } catch (Exception e) {
             throw new RuntimeException("无法将DTO转换为DownloadTask", e);
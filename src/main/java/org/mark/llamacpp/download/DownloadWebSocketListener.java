@@ -4,13 +4,18 @@ import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
 import org.mark.llamacpp.server.websocket.WebSocketManager;
 
+import com.google.gson.JsonArray;
+
 /**
  * 下载进度WebSocket监听器，用于将下载状态变化通过WebSocket广播给客户端
+ * 进度不再逐个任务发送，而是每个周期合并成一帧，只包含有变化的任务
  */
 public class DownloadWebSocketListener implements DownloadProgressListener {
     
     private final WebSocketManager webSocketManager;
     
+    private final DownloadProgressAggregator aggregator = new DownloadProgressAggregator();
+    
     public DownloadWebSocketListener() {
         this.webSocketManager = WebSocketManager.getInstance();
     }
@@ -28,6 +33,10 @@ public class DownloadWebSocketListener implements DownloadProgressListener {
             task.getFileName(),
             task.getErrorMessage()
         );
+        // 最终状态已经发出，不再下载的任务（暂停、等待磁盘空间、结束）不再跟踪进度
+        if (newState != DownloadState.DOWNLOADING && newState != DownloadState.PREPARING) {
+            this.aggregator.forget(task.getTaskId());
+        }
     }
     
     @Override
@@ -39,18 +48,20 @@ public class DownloadWebSocketListener implements DownloadProgressListener {
             
         }
         */
-        this.webSocketManager.sendDownloadProgressEvent(
-                task.getTaskId(),
-                progress.getDownloadedBytes(),
-                progress.getTotalBytes(),
-                progress.getPartsCompleted(),
-                progress.getPartsTotal(),
-                task.getProgressRatio()
-            );
+        this.aggregator.record(task, progress);
+    }
+    
+    @Override
+    public void onProgressTick() {
+        JsonArray changed = this.aggregator.drainChanged();
+        if (!changed.isEmpty()) {
+            this.webSocketManager.sendDownloadProgressBatch(changed);
+        }
     }
     
     @Override
     public void onTaskCompleted(DownloadTask task) {
+        this.aggregator.forget(task.getTaskId());
         // 广播任务完成事件
         webSocketManager.sendDownloadStatusEvent(
             task.getTaskId(),
@@ -66,6 +77,8 @@ public class DownloadWebSocketListener implements DownloadProgressListener {
     
     @Override
     public void onTaskFailed(DownloadTask task, String error) {
+        // 删除任务也走这里
+        this.aggregator.forget(task.getTaskId());
         // 广播任务失败事件
         webSocketManager.sendDownloadStatusEvent(
             task.getTaskId(),
@@ -92,6 +105,7 @@ public class DownloadWebSocketListener implements DownloadProgressListener {
             task.getFileName(),
             task.getErrorMessage()
         );
+        this.aggregator.forget(task.getTaskId());
     }
     
     @Override
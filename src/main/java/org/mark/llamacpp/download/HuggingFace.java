@@ -1,9 +1,104 @@
 package org.mark.llamacpp.download;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 
 /**
  * 	预留，用来解析huggingface的模型页面直接下载。
+ * 	目前用于把一个resolve地址展开成多个镜像地址（huggingface.co / hf-mirror.com / ModelScope）。
  */
 public class HuggingFace {
 
+	public static final String HF_HOST = "huggingface.co";
+	public static final String HF_MIRROR_HOST = "hf-mirror.com";
+
+	/**
+	 * 	解析后的resolve地址：/{owner}/{name}/resolve/{revision}/{path}
+	 */
+	public record ResolvePath(String repoId, String revision, String filePath) {
+	}
+
+	/**
+	 * 	判断是否为huggingface（含镜像站）的文件地址。
+	 * @param url
+	 * @return
+	 */
+	public static boolean isResolveUrl(String url) {
+		return parseResolveUrl(url) != null;
+	}
+
+	/**
+	 * 	解析resolve地址，不是huggingface的地址时返回null。
+	 * @param url
+	 * @return
+	 */
+	public static ResolvePath parseResolveUrl(String url) {
+		if (url == null || url.isBlank()) {
+			return null;
+		}
+		try {
+			URI uri = URI.create(url.trim());
+			String host = uri.getHost();
+			if (host == null) {
+				return null;
+			}
+			String h = host.toLowerCase(Locale.ROOT);
+			if (!h.equals(HF_MIRROR_HOST) && !h.equals(HF_HOST) && !h.endsWith("." + HF_HOST)) {
+				return null;
+			}
+			String path = uri.getRawPath();
+			if (path == null) {
+				return null;
+			}
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			String[] segments = path.split("/", 5);
+			if (segments.length < 5 || !"resolve".equals(segments[2])) {
+				return null;
+			}
+			if (segments[0].isBlank() || segments[1].isBlank() || segments[3].isBlank() || segments[4].isBlank()) {
+				return null;
+			}
+			return new ResolvePath(segments[0] + "/" + segments[1], segments[3], segments[4]);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 	把一个huggingface的文件地址展开为全部镜像地址，第一个元素始终是原地址。
+	 * 	非huggingface的地址只返回它自己。
+	 * @param url
+	 * @param includeModelScope 是否附加ModelScope的同名仓库（仓库名不一定一致，下载前会按文件大小校验）
+	 * @return
+	 */
+	public static List<String> mirrorUrlsOf(String url, boolean includeModelScope) {
+		List<String> urls = new ArrayList<>();
+		if (url == null || url.isBlank()) {
+			return urls;
+		}
+		String primary = url.trim();
+		urls.add(primary);
+		ResolvePath rp = parseResolveUrl(primary);
+		if (rp == null) {
+			return urls;
+		}
+		String suffix = "/" + rp.repoId() + "/resolve/" + rp.revision() + "/" + rp.filePath();
+		String official = "https://" + HF_HOST + suffix;
+		String mirror = "https://" + HF_MIRROR_HOST + suffix;
+		if (!primary.equals(official)) {
+			urls.add(official);
+		}
+		if (!primary.equals(mirror)) {
+			urls.add(mirror);
+		}
+		if (includeModelScope) {
+			urls.add(ModelScope.resolveUrl(rp.repoId(), null, rp.filePath()));
+		}
+		return urls;
+	}
 }
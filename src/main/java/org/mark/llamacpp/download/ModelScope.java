@@ -7,4 +7,26 @@ package org.mark.llamacpp.download;
  */
 public class ModelScope {
 
+	public static final String MODELSCOPE_BASE = "https://modelscope.cn";
+
+	/**
+	 * 	ModelScope的默认分支。huggingface的commit sha在这里没有意义。
+	 */
+	public static final String DEFAULT_REVISION = "master";
+
+	/**
+	 * 	拼接ModelScope的文件下载地址。
+	 * @param repoId owner/name
+	 * @param revision 为空时使用master
+	 * @param rawFilePath 已经URL编码过的文件路径
+	 * @return
+	 */
+	public static String resolveUrl(String repoId, String revision, String rawFilePath) {
+		String rev = revision == null || revision.isBlank() ? DEFAULT_REVISION : revision.trim();
+		String p = rawFilePath == null ? "" : rawFilePath;
+		while (p.startsWith("/")) {
+			p = p.substring(1);
+		}
+		return MODELSCOPE_BASE + "/models/" + repoId + "/resolve/" + rev + "/" + p;
+	}
 }
@@ -0,0 +1,233 @@
+package org.mark.llamacpp.download;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mark.llamacpp.download.struct.DownloadSource;
+import org.mark.llamacpp.download.struct.Part;
+import org.mark.llamacpp.download.struct.PartDownloadTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	多源分片下载：同一个文件的不同分片同时从多个镜像拉取。
+ * 	<p>
+ * 	所有分片放在一个共享队列里，每个源开若干个连接去队列里取分片，快的源自然取得多；
+ * 	队列快空时，预计完成时间明显落后的慢源会暂时让出，避免最后一个分片拖住整个文件，
+ * 	但慢源不会被踢掉。某个源出错时分片会放回队列，由其它源接手。
+ */
+final class MultiSourceDownloader {
+
+	private static final Logger logger = LoggerFactory.getLogger(MultiSourceDownloader.class);
+
+	/**
+	 * 	慢源让出的判定系数：自己下完一个分片的时间超过其它源清空队列时间的这个倍数时让出。
+	 */
+	private static final double YIELD_FACTOR = 1.5;
+
+	private static final long IDLE_WAIT_MILLIS = 200;
+
+	private final HttpClient httpClient;
+	private final List<DownloadSource> sources;
+	private final String userAgent;
+	private final Duration timeout;
+	private final int connectionsPerSource;
+	private final int maxRetries;
+	private final AtomicLong downloadedBytes;
+	private final AtomicInteger partsCompleted;
+	private final AtomicBoolean stopRequested;
+	private final Set<AutoCloseable> activeResources;
+
+	MultiSourceDownloader(
+			HttpClient httpClient,
+			List<DownloadSource> sources,
+			String userAgent,
+			Duration timeout,
+			int connectionsPerSource,
+			int maxRetries,
+			AtomicLong downloadedBytes,
+			AtomicInteger partsCompleted,
+			AtomicBoolean stopRequested,
+			Set<AutoCloseable> activeResources) {
+		this.httpClient = httpClient;
+		this.sources = sources;
+		this.userAgent = userAgent;
+		this.timeout = timeout;
+		this.connectionsPerSource = Math.max(1, connectionsPerSource);
+		this.maxRetries = maxRetries;
+		this.downloadedBytes = downloadedBytes;
+		this.partsCompleted = partsCompleted;
+		this.stopRequested = stopRequested;
+		this.activeResources = activeResources;
+	}
+
+	/**
+	 * 	下载全部未完成的分片，返回时所有分片文件都已完整。
+	 * @param parts
+	 * @param partFiles
+	 * @param pool
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void download(List<Part> parts, List<Path> partFiles, ExecutorService pool) throws IOException, InterruptedException {
+		BlockingDeque<Integer> queue = new LinkedBlockingDeque<>();
+		for (int i = 0; i < parts.size(); i++) {
+			Path partFile = partFiles.get(i);
+			if (Files.exists(partFile) && Files.size(partFile) == parts.get(i).length()) {
+				continue;
+			}
+			queue.add(i);
+		}
+		if (queue.isEmpty()) {
+			return;
+		}
+
+		AtomicInteger remaining = new AtomicInteger(queue.size());
+		AtomicIntegerArray attempts = new AtomicIntegerArray(parts.size());
+		AtomicReference<IOException> fatal = new AtomicReference<>();
+		int maxAttemptsPerPart = (this.maxRetries + 1) * this.sources.size();
+
+		List<Future<Void>> futures = new ArrayList<>();
+		for (DownloadSource source : this.sources) {
+			for (int c = 0; c < this.connectionsPerSource; c++) {
+				futures.add(pool.submit(() -> {
+					this.runWorker(source, parts, partFiles, queue, remaining, attempts, maxAttemptsPerPart, fatal);
+					return null;
+				}));
+			}
+		}
+
+		try {
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof InterruptedException ie) {
+						throw ie;
+					}
+					if (cause instanceof IOException io) {
+						throw io;
+					}
+					if (cause instanceof RuntimeException re) {
+						throw re;
+					}
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			for (DownloadSource s : this.sources) {
+				logger.info("下载源 {} 累计 {} 字节，平均 {} B/s，失败 {} 次", s.getHost(), s.getBytesDownloaded(),
+						(long) s.getBytesPerSecond(), s.getTotalFailures());
+			}
+		}
+
+		IOException error = fatal.get();
+		if (error != null) {
+			throw error;
+		}
+		if (remaining.get() > 0) {
+			throw new IOException("多源下载未完成，剩余分片: " + remaining.get());
+		}
+	}
+
+	private void runWorker(DownloadSource source, List<Part> parts, List<Path> partFiles, BlockingDeque<Integer> queue,
+			AtomicInteger remaining, AtomicIntegerArray attempts, int maxAttemptsPerPart,
+			AtomicReference<IOException> fatal) throws IOException, InterruptedException {
+		long backoffMillis = IDLE_WAIT_MILLIS;
+		while (remaining.get() > 0 && fatal.get() == null) {
+			this.checkStop();
+			if (source.isCoolingDown() || this.shouldYield(source, queue, parts)) {
+				Thread.sleep(IDLE_WAIT_MILLIS);
+				continue;
+			}
+			Integer index = queue.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			if (index == null) {
+				continue;
+			}
+			Part part = parts.get(index);
+			Path partFile = partFiles.get(index);
+			long existing = Files.exists(partFile) ? Files.size(partFile) : 0;
+			long begin = System.nanoTime();
+			try {
+				new PartDownloadTask(this.httpClient, source.getFinalUri(), this.userAgent, this.timeout, part, partFile,
+						0, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources).call();
+				source.recordSuccess(part.length() - existing, System.nanoTime() - begin);
+				remaining.decrementAndGet();
+				backoffMillis = IDLE_WAIT_MILLIS;
+			} catch (InterruptedException e) {
+				queue.addFirst(index);
+				throw e;
+			} catch (IOException e) {
+				source.recordFailure();
+				int n = attempts.incrementAndGet(index);
+				logger.info("分片 {} 从 {} 下载失败（第{}次）: {}", index, source.getHost(), n, e.getMessage());
+				if (n >= maxAttemptsPerPart) {
+					fatal.compareAndSet(null, e);
+					return;
+				}
+				// 放回队首，让其它源优先接手
+				queue.addFirst(index);
+				Thread.sleep(backoffMillis);
+				backoffMillis = Math.min(backoffMillis * 2, 5_000);
+			} catch (Exception e) {
+				fatal.compareAndSet(null, new IOException(e));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 	按吞吐量分配：队列里剩下的分片如果其它源能更早清空，慢源就先不取。
+	 * @param self
+	 * @param queue
+	 * @param parts
+	 * @return
+	 */
+	private boolean shouldYield(DownloadSource self, BlockingDeque<Integer> queue, List<Part> parts) {
+		Integer head = queue.peekFirst();
+		if (head == null) {
+			return false;
+		}
+		double selfRate = self.getBytesPerSecond();
+		if (selfRate <= 0) {
+			return false;
+		}
+		double othersRate = 0;
+		for (DownloadSource s : this.sources) {
+			if (s != self && !s.isCoolingDown()) {
+				othersRate += s.getBytesPerSecond() * this.connectionsPerSource;
+			}
+		}
+		if (othersRate <= 0) {
+			return false;
+		}
+		double partBytes = parts.get(head).length();
+		double selfEta = partBytes / selfRate;
+		double othersEta = partBytes * queue.size() / othersRate;
+		return selfEta > othersEta * YIELD_FACTOR;
+	}
+
+	private void checkStop() throws InterruptedException {
+		if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("下载已暂停");
+		}
+	}
+}
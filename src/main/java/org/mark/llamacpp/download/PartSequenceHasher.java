@@ -0,0 +1,158 @@
+package org.mark.llamacpp.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mark.llamacpp.download.struct.Part;
+import org.mark.llamacpp.download.struct.PartWithFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	分片下载时边下边算整个文件的SHA-256。
+ * 	<p>
+ * 	SHA-256不能由各分片的摘要拼出来，只能按文件顺序喂数据。所以这里在后台按起始位置的顺序，
+ * 	把已经下完的、连续的分片依次读进摘要（刚写完的分片基本还在页缓存里）；
+ * 	下载结束时没来得及算的分片，在合并时顺带算掉，整个文件不需要再单独读一遍。
+ */
+final class PartSequenceHasher {
+
+	private static final Logger logger = LoggerFactory.getLogger(PartSequenceHasher.class);
+
+	private static final long POLL_MILLIS = 200;
+
+	private final List<PartWithFile> ordered;
+	private final MessageDigest digest;
+	private final AtomicBoolean stopRequested;
+	private final AtomicBoolean finishing = new AtomicBoolean(false);
+
+	private volatile int hashedParts;
+	private volatile boolean broken;
+	private Thread worker;
+
+	PartSequenceHasher(List<Part> parts, List<Path> partFiles, AtomicBoolean stopRequested) {
+		List<PartWithFile> list = new ArrayList<>();
+		for (int i = 0; i < parts.size(); i++) {
+			list.add(new PartWithFile(parts.get(i), partFiles.get(i)));
+		}
+		list.sort(Comparator.comparingLong(p -> p.getPart().getStartInclusive()));
+		this.ordered = list;
+		this.digest = newSha256();
+		this.stopRequested = stopRequested;
+	}
+
+	/**
+	 * 	启动后台线程。
+	 */
+	void start() {
+		this.worker = Thread.ofVirtual().name("part-sha256").start(this::run);
+	}
+
+	/**
+	 * 	停止后台线程并等它退出，之后由合并过程接着算。
+	 * @throws InterruptedException
+	 */
+	void stop() throws InterruptedException {
+		this.finishing.set(true);
+		Thread t = this.worker;
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	/**
+	 * 	按顺序排在前面、已经算进摘要的分片，合并时从这里往后接着算。
+	 * @param part
+	 * @return
+	 */
+	boolean isHashed(Part part) {
+		int n = this.hashedParts;
+		for (int i = 0; i < n; i++) {
+			if (this.ordered.get(i).getPart() == part) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 	合并时补算剩下的分片，必须在stop之后、按起始位置的顺序调用。
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	void update(byte[] buffer, int offset, int length) {
+		this.digest.update(buffer, offset, length);
+	}
+
+	/**
+	 * 	中途读分片出错后摘要就不可信了，此时返回null，由校验阶段整文件重算。
+	 * @return
+	 */
+	String digestHex() {
+		if (this.broken) {
+			return null;
+		}
+		return HexFormat.of().formatHex(this.digest.digest());
+	}
+
+	private void run() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		try {
+			while (!this.stopRequested.get()) {
+				if (this.hashedParts < this.ordered.size() && this.isComplete(this.ordered.get(this.hashedParts))) {
+					this.hashPart(this.ordered.get(this.hashedParts), buffer);
+					this.hashedParts++;
+					continue;
+				}
+				if (this.finishing.get()) {
+					return;
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			this.broken = true;
+		} catch (IOException e) {
+			this.broken = true;
+			logger.info("边下边算SHA-256失败，改为下载后校验: {}", e.getMessage());
+		}
+	}
+
+	private boolean isComplete(PartWithFile pwf) throws IOException {
+		Path file = pwf.getFile();
+		return Files.exists(file) && Files.size(file) == pwf.getPart().length();
+	}
+
+	private void hashPart(PartWithFile pwf, ByteBuffer buffer) throws IOException, InterruptedException {
+		try (FileChannel ch = FileChannel.open(pwf.getFile(), StandardOpenOption.READ)) {
+			buffer.clear();
+			while (ch.read(buffer) != -1) {
+				if (this.stopRequested.get()) {
+					throw new InterruptedException("下载已暂停");
+				}
+				buffer.flip();
+				this.digest.update(buffer);
+				buffer.clear();
+			}
+		}
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package org.mark.llamacpp.download.struct;
+
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * 	多源下载时的单个下载源，记录吞吐量和失败情况。
+ */
+public final class DownloadSource {
+
+	/**
+	 * 	吞吐量平滑系数
+	 */
+	private static final double RATE_ALPHA = 0.3;
+
+	/**
+	 * 	连续失败多少次后进入冷却
+	 */
+	private static final int FAILURES_BEFORE_COOLDOWN = 3;
+
+	private static final long BASE_COOLDOWN_NANOS = 5_000_000_000L;
+	private static final long MAX_COOLDOWN_NANOS = 120_000_000_000L;
+
+	private final URI sourceUri;
+	private final URI finalUri;
+
+	private long bytesDownloaded;
+	private double bytesPerSecond;
+	private int consecutiveFailures;
+	private int totalFailures;
+	private int cooldownRounds;
+	private long cooldownUntilNanos;
+
+	public DownloadSource(URI sourceUri, URI finalUri) {
+		this.sourceUri = Objects.requireNonNull(sourceUri, "sourceUri");
+		this.finalUri = Objects.requireNonNull(finalUri, "finalUri");
+	}
+
+	public URI getSourceUri() {
+		return this.sourceUri;
+	}
+
+	public URI getFinalUri() {
+		return this.finalUri;
+	}
+
+	public String getHost() {
+		return this.sourceUri.getHost();
+	}
+
+	/**
+	 * 	记录一次成功的分片下载，按指数平滑更新吞吐量。
+	 * @param bytes
+	 * @param elapsedNanos
+	 */
+	public synchronized void recordSuccess(long bytes, long elapsedNanos) {
+		this.consecutiveFailures = 0;
+		this.cooldownRounds = 0;
+		if (bytes <= 0) {
+			return;
+		}
+		this.bytesDownloaded += bytes;
+		double sample = bytes * 1_000_000_000.0 / Math.max(1L, elapsedNanos);
+		this.bytesPerSecond = this.bytesPerSecond <= 0 ? sample : this.bytesPerSecond * (1 - RATE_ALPHA) + sample * RATE_ALPHA;
+	}
+
+	/**
+	 * 	记录一次失败。连续失败达到阈值时进入冷却，冷却时间指数增长。
+	 * 	慢不算失败，只有出错才会被暂时停用。
+	 */
+	public synchronized void recordFailure() {
+		this.totalFailures++;
+		this.consecutiveFailures++;
+		if (this.consecutiveFailures >= FAILURES_BEFORE_COOLDOWN) {
+			long cooldown = Math.min(MAX_COOLDOWN_NANOS, BASE_COOLDOWN_NANOS << Math.min(5, this.cooldownRounds));
+			this.cooldownRounds++;
+			this.consecutiveFailures = 0;
+			this.cooldownUntilNanos = System.nanoTime() + cooldown;
+		}
+	}
+
+	public synchronized boolean isCoolingDown() {
+		return this.cooldownUntilNanos != 0 && System.nanoTime() - this.cooldownUntilNanos < 0;
+	}
+
+	public synchronized double getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	public synchronized long getBytesDownloaded() {
+		return this.bytesDownloaded;
+	}
+
+	public synchronized int getTotalFailures() {
+		return this.totalFailures;
+	}
+}
@@ -1,6 +1,6 @@
 package org.mark.llamacpp.download.struct;
 
-
+import java.util.Map;
 
 /**
  * 	模型下载的请求结构。
@@ -14,6 +14,10 @@ public class ModelDownloadRequest {
 	private Long size;
 	private String lfsOid;
 	private Long lfsSize;
+	/**
+	 * 	下载地址 -> LFS oid（sha256），用于下载完成后的校验。
+	 */
+	private Map<String, String> lfsOids;
 	
 	public ModelDownloadRequest() {
 		
@@ -82,4 +86,12 @@ public class ModelDownloadRequest {
 	public void setLfsSize(Long lfsSize) {
 		this.lfsSize = lfsSize;
 	}
+	
+	public Map<String, String> getLfsOids() {
+		return lfsOids;
+	}
+	
+	public void setLfsOids(Map<String, String> lfsOids) {
+		this.lfsOids = lfsOids;
+	}
 }
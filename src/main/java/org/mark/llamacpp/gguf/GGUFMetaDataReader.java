@@ -45,6 +45,46 @@ public class GGUFMetaDataReader {
         }
     }
 
+    /**
+     * 	只读取 tokenizer.* 的元数据，包括 {@link #read(java.io.File)} 跳过的词表，用于本地分词。
+     * @param file
+     * @return 读取失败时返回空Map
+     */
+    public static java.util.Map<String, Object> readTokenizer(java.io.File file) {
+        if (file == null || !file.exists() || !file.isFile()) {
+            return java.util.Collections.emptyMap();
+        }
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
+             java.nio.channels.FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long mapSize = Math.min(size, 256L * 1024 * 1024);
+            java.nio.ByteBuffer buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, mapSize);
+            buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            String m = new String(magic, java.nio.charset.StandardCharsets.US_ASCII);
+            if (!"GGUF".equals(m)) {
+                return java.util.Collections.emptyMap();
+            }
+            buffer.getInt();
+            buffer.getLong();
+            long kvCount = buffer.getLong();
+            java.util.Map<String, Object> metadata = new java.util.HashMap<>();
+            for (long i = 0; i < kvCount; i++) {
+                String key = readString(buffer);
+                int type = buffer.getInt();
+                if (key.startsWith("tokenizer.") && !key.startsWith("tokenizer.chat_template")) {
+                    metadata.put(key, readValue(buffer, type));
+                } else {
+                    skipValue(buffer, type);
+                }
+            }
+            return metadata;
+        } catch (Exception e) {
+            return java.util.Collections.emptyMap();
+        }
+    }
+
     private static String readString(java.nio.ByteBuffer buffer) {
         long len = buffer.getLong();
         byte[] bytes = new byte[(int) len];
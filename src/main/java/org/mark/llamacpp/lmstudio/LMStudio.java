@@ -2,6 +2,7 @@ package org.mark.llamacpp.lmstudio;
 
 import org.mark.llamacpp.lmstudio.channel.LMStudioRouterHandler;
 import org.mark.llamacpp.lmstudio.websocket.LMStudioWsPathSelectHandler;
+import org.mark.llamacpp.server.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,14 +11,13 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -55,10 +55,13 @@ public class LMStudio {
 	private final AtomicLong generation = new AtomicLong(0L);
 	private volatile long activeGeneration = 0L;
 	
-	private volatile EventLoopGroup bossGroup;
-	private volatile EventLoopGroup workerGroup;
 	private volatile Channel serverChannel;
 	
+	/**
+	 * 	这个端口上已经接受的连接
+	 */
+	private final ChannelGroup connections = new DefaultChannelGroup("lmstudio", GlobalEventExecutor.INSTANCE);
+	
 	
 	private LMStudio() {
 		
@@ -102,25 +105,12 @@ public class LMStudio {
 	}
 	
 	private void runServer(long gen) {
-		EventLoopGroup localBossGroup = new NioEventLoopGroup();
-		EventLoopGroup localWorkerGroup = new NioEventLoopGroup();
-		
-		synchronized (lifecycleLock) {
-			if (this.activeGeneration == gen) {
-				this.bossGroup = localBossGroup;
-				this.workerGroup = localWorkerGroup;
-			}
-		}
-		
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(localBossGroup, localWorkerGroup)
-					.channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024)
-					.childOption(ChannelOption.SO_KEEPALIVE, true)
+			ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						protected void initChannel(SocketChannel ch) throws Exception {
+							LMStudio.this.connections.add(ch);
 							ch.pipeline()
 									.addLast(new HttpServerCodec())
 									.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
@@ -136,7 +126,7 @@ public class LMStudio {
 					});
 			
 			int bindPort = this.port;
-			ChannelFuture future = bootstrap.bind(bindPort).sync();
+			ChannelFuture future = NettyTransport.bind(bootstrap, bindPort).sync();
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = future.channel();
@@ -155,20 +145,9 @@ public class LMStudio {
 		} catch (Exception e) {
 			logger.info("服务器启动失败", e);
 		} finally {
-			try {
-				localBossGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			try {
-				localWorkerGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = null;
-					this.bossGroup = null;
-					this.workerGroup = null;
 					this.worker = null;
 				}
 			}
@@ -188,22 +167,8 @@ public class LMStudio {
 				} catch (Exception ignore) {
 				}
 			}
-			
-			EventLoopGroup bg = this.bossGroup;
-			if (bg != null) {
-				try {
-					bg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
-			
-			EventLoopGroup wg = this.workerGroup;
-			if (wg != null) {
-				try {
-					wg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
+			// 工作线程组是共用的，关掉监听通道后已经接受的连接还在，要单独关闭
+			this.connections.close();
 		}
 	}
 }
@@ -22,6 +22,11 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ReplicaGroup;
+import org.mark.llamacpp.server.embedding.EmbeddingForwarder;
+import org.mark.llamacpp.server.perf.ModelPerfStats;
+import org.mark.llamacpp.server.relay.StreamAdapter;
+import org.mark.llamacpp.server.relay.StreamRelay;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.OpenAIService;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -34,21 +39,12 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
 
 
@@ -76,6 +72,8 @@ public class LMStudioService {
 	private static final int LLAMA_CONNECT_TIMEOUT_MS = 36000 * 1000;
 	private static final int LLAMA_READ_TIMEOUT_MS = 36000 * 1000;
 	
+	private static final byte[] STREAM_DONE = "data: [DONE]\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+	
 	/**
 	 * 	响应：/api/v0/models
 	 * @param ctx
@@ -229,7 +227,7 @@ public class LMStudioService {
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, modelName, modelPort, isStream, body);
+			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, modelName, modelPort, ReplicaGroup.affinityKey(requestJson), isStream, body);
 		} catch (Exception e) {
 			logger.info("处理OpenAI聊天补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -276,7 +274,7 @@ public class LMStudioService {
 				return;
 			}
 			
-			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, modelName, modelPort.intValue(), isStream, content);
+			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, modelName, modelPort.intValue(), ReplicaGroup.affinityKey(requestJson), isStream, content);
 		} catch (Exception e) {
 			logger.info("处理OpenAI文本补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -409,9 +407,22 @@ public class LMStudioService {
 		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 
 		worker.execute(() -> {
+			// 多副本时选择最空闲的副本
+			ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(loadedModelName, 0);
+			if (lease == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 503, null, "Model is not available: " + requestedModelName, null);
+				return;
+			}
 			HttpURLConnection connection = null;
 			try {
-				String targetUrl = String.format("http://localhost:%d/v1/embeddings", port);
+				JsonObject requestJson = JsonUtil.tryParseObject(requestBody);
+				if (EmbeddingForwarder.accepts(loadedModelName, requestJson)) {
+					// 命中缓存的输入不再发给llama-server，其余的和并发的请求合并后发送
+					EmbeddingForwarder.Result result = EmbeddingForwarder.embed(loadedModelName, lease.port(), requestJson);
+					this.sendEmbeddingsResponse(ctx, result.status(), result.body(), result.json(), requestedModelName, loadedModelName);
+					return;
+				}
+				String targetUrl = String.format("http://localhost:%d/v1/embeddings", lease.port());
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 
 				connection = openAndTrack(ctx, targetUrl);
@@ -430,6 +441,7 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				lease.release();
 			}
 		});
 	}
@@ -447,17 +459,21 @@ public class LMStudioService {
 			}
 			responseBody = sb.toString();
 		}
-
+		this.sendEmbeddingsResponse(ctx, responseCode, responseBody, null, requestedModelName, loadedModelName);
+	}
+	
+	private void sendEmbeddingsResponse(ChannelHandlerContext ctx, int responseCode, String responseBody, JsonObject llama, String requestedModelName, String loadedModelName) {
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
 		}
 
-		JsonObject llama = null;
-		try {
-			llama = JsonUtil.fromJson(responseBody, JsonObject.class);
-		} catch (Exception e) {
-			logger.info("解析llama.cpp embeddings JSON失败", e);
+		if (llama == null) {
+			try {
+				llama = JsonUtil.fromJson(responseBody, JsonObject.class);
+			} catch (Exception e) {
+				logger.info("解析llama.cpp embeddings JSON失败", e);
+			}
 		}
 
 		if (llama == null) {
@@ -508,6 +524,7 @@ public class LMStudioService {
 			ChannelHandlerContext ctx, 
 			FullHttpRequest request, 
 			String modelName, int port, 
+			long affinityKey,
 			boolean isStream, String 
 			requestBody) {
 		// 在异步执行前先读取请求体，避免ByteBuf引用计数问题
@@ -519,14 +536,20 @@ public class LMStudioService {
 		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 		
 		worker.execute(() -> {
+			// 多副本时选择最空闲的副本，同一段对话尽量回到上次的slot
+			ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, affinityKey, true);
+			if (lease == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 503, null, "Model is not available: " + modelName, null);
+				return;
+			}
 			// 添加断开连接的事件监听
 			HttpURLConnection connection = null;
 			try {
 				// 构建目标URL
-				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port);
+				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", lease.port());
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				connection = openAndTrack(ctx, targetUrl);
-				configureAndSend(connection, method, headers, requestBody);
+				configureAndSend(connection, method, headers, lease.applySlot(requestBody));
 				
 				// 获取响应码
 				int responseCode = connection.getResponseCode();
@@ -534,10 +557,10 @@ public class LMStudioService {
 				
 				if (isStream) {
 					// 处理流式响应
-					this.handleStreamResponse(ctx, connection, responseCode, modelName);
+					this.handleStreamResponse(ctx, connection, responseCode, modelName, lease);
 				} else {
 					// 处理非流式响应
-					this.handleNonStreamResponse(ctx, connection, responseCode, modelName);
+					this.handleNonStreamResponse(ctx, connection, responseCode, modelName, lease);
 				}
 			} catch (Exception e) {
 				logger.info("转发请求到llama.cpp进程时发生错误", e);
@@ -555,6 +578,7 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				lease.release();
 			}
 		});
 	}
@@ -563,6 +587,7 @@ public class LMStudioService {
 			ChannelHandlerContext ctx,
 			FullHttpRequest request,
 			String modelName, int port,
+			long affinityKey,
 			boolean isStream, String requestBody) {
 		HttpMethod method = request.method();
 		Map<String, String> headers = copyHeaders(request);
@@ -571,20 +596,26 @@ public class LMStudioService {
 		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 		
 		worker.execute(() -> {
+			// 多副本时选择最空闲的副本，同一段对话尽量回到上次的slot
+			ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, affinityKey, true);
+			if (lease == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 503, null, "Model is not available: " + modelName, null);
+				return;
+			}
 			HttpURLConnection connection = null;
 			try {
-				String targetUrl = String.format("http://localhost:%d/v1/completions", port);
+				String targetUrl = String.format("http://localhost:%d/v1/completions", lease.port());
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				connection = openAndTrack(ctx, targetUrl);
-				configureAndSend(connection, method, headers, requestBody);
+				configureAndSend(connection, method, headers, lease.applySlot(requestBody));
 				
 				int responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}", responseCode);
 				
 				if (isStream) {
-					this.handleTextCompletionStreamResponse(ctx, connection, responseCode, modelName);
+					this.handleTextCompletionStreamResponse(ctx, connection, responseCode, modelName, lease);
 				} else {
-					this.handleTextCompletionNonStreamResponse(ctx, connection, responseCode, modelName);
+					this.handleTextCompletionNonStreamResponse(ctx, connection, responseCode, modelName, lease);
 				}
 			} catch (Exception e) {
 				logger.info("转发文本补全请求到llama.cpp进程时发生错误", e);
@@ -596,6 +627,7 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				lease.release();
 			}
 		});
 	}
@@ -607,7 +639,7 @@ public class LMStudioService {
 	 * @param responseCode
 	 * @param modelName
 	 */
-	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
+	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
 		String responseBody = "";
 		try (BufferedReader br = new BufferedReader(new InputStreamReader(
 			responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
@@ -625,6 +657,7 @@ public class LMStudioService {
 			throw e;
 		}
 
+		lease.observe(responseBody);
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
@@ -636,6 +669,7 @@ public class LMStudioService {
 		} catch (Exception e) {
 			logger.info("解析llama.cpp非流式JSON失败", e);
 		}
+		ModelPerfStats.recordResponse(modelName, llama);
 
 		if (llama == null) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.OK, responseBody.getBytes(StandardCharsets.UTF_8), false);
@@ -667,7 +701,7 @@ public class LMStudioService {
 		this.sendOpenAIJsonResponseWithCleanup(ctx, completion, HttpResponseStatus.OK);
 	}
 	
-	private void handleTextCompletionNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
+	private void handleTextCompletionNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
 		String responseBody = "";
 		try (BufferedReader br = new BufferedReader(new InputStreamReader(
 			responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
@@ -683,6 +717,7 @@ public class LMStudioService {
 			throw e;
 		}
 		
+		lease.observe(responseBody);
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
@@ -694,6 +729,7 @@ public class LMStudioService {
 		} catch (Exception e) {
 			logger.info("解析llama.cpp非流式JSON失败", e);
 		}
+		ModelPerfStats.recordResponse(modelName, llama);
 		
 		if (llama == null) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.OK, responseBody.getBytes(StandardCharsets.UTF_8), false);
@@ -729,331 +765,180 @@ public class LMStudioService {
 	 * @param modelName
 	 * @throws IOException
 	 */
-	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		// 创建响应头
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
+		StreamRelay.relay(ctx, connection, responseCode, lease.observe(new ChatStreamAdapter(modelName, responseCode)));
+	}
+	
+	private void handleTextCompletionStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
+		StreamRelay.relay(ctx, connection, responseCode, lease.observe(new TextCompletionStreamAdapter(modelName, responseCode)));
+	}
+	
+	/**
+	 * 	LM Studio聊天补全的流式转发：原样转发数据块，同时累积正文，结束时补发带统计的完整结果和[DONE]。
+	 */
+	private final class ChatStreamAdapter implements StreamAdapter {
+		private final String modelName;
+		private final int responseCode;
+		private final Map<Integer, String> toolCallIds = new HashMap<>();
+		private final StringBuilder fullContent = new StringBuilder();
+		private String completionId;
+		private Long created;
+		private JsonObject timings;
+		private String finishReason;
+		
+		private ChatStreamAdapter(String modelName, int responseCode) {
+			this.modelName = modelName;
+			this.responseCode = responseCode;
+		}
 		
-		// 发送响应头
-		ctx.write(response);
-		ctx.flush();
+		@Override
+		public String name() {
+			return "lmstudio";
+		}
 		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
+		@Override
+		public void headers(HttpHeaders headers) {
+			StreamRelay.sseHeaders(headers);
+			headers.set(HttpHeaderNames.ETAG, ParamTool.buildEtag((this.modelName + ":" + this.responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+		}
 		
-		// 读取流式响应
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			Map<Integer, String> toolCallIds = new HashMap<>();
-			String completionId = null;
-			Long created = null;
-			StringBuilder fullContent = new StringBuilder();
-			JsonObject timings = null;
-			String finishReason = null;
-			while ((line = br.readLine()) != null) {
-				// 检查客户端连接是否仍然活跃
-				if (!ctx.channel().isActive()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
+		@Override
+		public void onData(StreamRelay.Chunk chunk) {
+			JsonObject parsed = chunk.json();
+			if (parsed == null) {
+				chunk.pass();
+				return;
+			}
+			ModelPerfStats.recordResponse(this.modelName, parsed);
+			if (this.completionId == null) {
+				this.completionId = safeString(parsed, "id");
+			}
+			if (this.created == null) {
+				this.created = safeLong(parsed, "created");
+			}
+			JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
+			if (extractedTimings != null) {
+				this.timings = extractedTimings;
+			}
+			JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
+			if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
+				JsonObject c0 = choices.get(0).getAsJsonObject();
+				String fr = safeString(c0, "finish_reason");
+				if (fr != null && !fr.isBlank()) {
+					this.finishReason = fr;
 				}
-				
-				// 处理SSE格式的数据行
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6); // 去掉 "data: " 前缀
-					
-					// 检查是否为结束标记
-					if (data.equals("[DONE]")) {
-						logger.info("收到流式响应结束标记");
-						break;
+				JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
+				if (delta != null) {
+					String piece = safeString(delta, "content");
+					if (piece != null) {
+						this.fullContent.append(piece);
 					}
-					
-					String outLine = line;
-					JsonObject parsed = ParamTool.tryParseObject(data);
-					if (parsed != null) {
-						if (completionId == null) {
-							completionId = safeString(parsed, "id");
-						}
-						if (created == null) {
-							created = safeLong(parsed, "created");
-						}
-
-						JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
-						if (extractedTimings != null) {
-							timings = extractedTimings;
-						}
-
-						JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
-						if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-							JsonObject c0 = choices.get(0).getAsJsonObject();
-							String fr = safeString(c0, "finish_reason");
-							if (fr != null && !fr.isBlank()) {
-								finishReason = fr;
-							}
-							JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
-							if (delta != null) {
-								String piece = safeString(delta, "content");
-								if (piece != null) {
-									fullContent.append(piece);
-								}
-							} else {
-								JsonObject msg = c0.has("message") && c0.get("message").isJsonObject() ? c0.getAsJsonObject("message") : null;
-								if (msg != null) {
-									String piece = safeString(msg, "content");
-									if (piece != null) {
-										fullContent.append(piece);
-									}
-								}
-							}
-						}
-
-						boolean changed = JsonUtil.ensureToolCallIds(parsed, toolCallIds);
-						if (changed) {
-							outLine = "data: " + JsonUtil.toJson(parsed);
+				} else {
+					JsonObject msg = c0.has("message") && c0.get("message").isJsonObject() ? c0.getAsJsonObject("message") : null;
+					if (msg != null) {
+						String piece = safeString(msg, "content");
+						if (piece != null) {
+							this.fullContent.append(piece);
 						}
 					}
-					
-					// 创建数据块
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					// 创建HTTP内容块
-					HttpContent httpContent = new DefaultHttpContent(content);
-					
-					// 发送数据块，并添加监听器检查写入是否成功
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					
-					// 检查写入是否失败，如果失败可能是客户端断开连接
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-							ctx.close();
-						}
-					});
-					
-					chunkCount++;
-					
-					// 每发送10个数据块记录一次日志
-					if (chunkCount % 10 == 0) {
-						//logger.info("已发送 {} 个流式数据块", chunkCount);
-					}
-				} else if (line.startsWith("event: ")) {
-					// 处理事件行
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					// 发送空行作为分隔符
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
 				}
 			}
-			
-			// 构造响应！
-			if (responseCode >= 200 && responseCode < 300) {
-				// 这里生成最后的性能状态信息。
-				JsonObject completion = this.buildLmStudioCompletion(modelName, completionId, created, fullContent.toString(), timings, finishReason);
-				
-				//// 这里做一个调试日志
-				//logger.info("测试输出 - lmstudio响应结果：{}", completion);
-				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
-				ByteBuf buf = ctx.alloc().buffer();
-				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(buf));
-				chunkCount++;
-
-				String done = "data: [DONE]\r\n\r\n";
-				ByteBuf doneBuf = ctx.alloc().buffer();
-				doneBuf.writeBytes(done.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(doneBuf));
-				chunkCount++;
-			}
-			
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
-				}
+			if (JsonUtil.ensureToolCallIds(parsed, this.toolCallIds)) {
+				chunk.writeLine("data: " + JsonUtil.toJson(parsed));
+			} else {
+				chunk.pass();
 			}
-			throw e;
 		}
 		
-		// 发送结束标记
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
+		@Override
+		public void onEnd(StreamRelay.Chunk chunk) {
+			if (!(this.responseCode >= 200 && this.responseCode < 300)) {
+				return;
 			}
-		});
+			// 这里生成最后的性能状态信息。
+			JsonObject completion = buildLmStudioCompletion(this.modelName, this.completionId, this.created, this.fullContent.toString(), this.timings, this.finishReason);
+			chunk.write(("data: " + JsonUtil.toJson(completion) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+			chunk.write(STREAM_DONE);
+		}
 	}
 	
-	private void handleTextCompletionStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+	/**
+	 * 	LM Studio文本补全的流式转发，结束时补发完整结果和[DONE]。
+	 */
+	private final class TextCompletionStreamAdapter implements StreamAdapter {
+		private final String modelName;
+		private final int responseCode;
+		private final StringBuilder fullText = new StringBuilder();
+		private String completionId;
+		private Long created;
+		private JsonObject timings;
+		private JsonObject usage;
+		private String finishReason;
+		private JsonArray lastChoices;
 		
-		ctx.write(response);
-		ctx.flush();
+		private TextCompletionStreamAdapter(String modelName, int responseCode) {
+			this.modelName = modelName;
+			this.responseCode = responseCode;
+		}
 		
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			String completionId = null;
-			Long created = null;
-			StringBuilder fullText = new StringBuilder();
-			JsonObject timings = null;
-			JsonObject usage = null;
-			String finishReason = null;
-			JsonArray lastChoices = null;
-			
-			while ((line = br.readLine()) != null) {
-				if (!ctx.channel().isActive()) {
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
+		@Override
+		public String name() {
+			return "lmstudio";
+		}
+		
+		@Override
+		public void headers(HttpHeaders headers) {
+			StreamRelay.sseHeaders(headers);
+			headers.set(HttpHeaderNames.ETAG, ParamTool.buildEtag((this.modelName + ":" + this.responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+		}
+		
+		@Override
+		public void onData(StreamRelay.Chunk chunk) {
+			JsonObject parsed = chunk.json();
+			if (parsed != null) {
+				ModelPerfStats.recordResponse(this.modelName, parsed);
+				if (this.completionId == null) {
+					this.completionId = safeString(parsed, "id");
 				}
-				
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6);
-					if (data.equals("[DONE]")) {
-						break;
+				if (this.created == null) {
+					this.created = safeLong(parsed, "created");
+				}
+				JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
+				if (extractedTimings != null) {
+					this.timings = extractedTimings;
+				}
+				JsonObject extractedUsage = parsed.has("usage") && parsed.get("usage").isJsonObject() ? parsed.getAsJsonObject("usage") : null;
+				if (extractedUsage != null) {
+					this.usage = extractedUsage;
+				}
+				JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
+				if (choices != null) {
+					this.lastChoices = choices;
+				}
+				if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
+					JsonObject c0 = choices.get(0).getAsJsonObject();
+					String fr = safeString(c0, "finish_reason");
+					if (fr != null && !fr.isBlank()) {
+						this.finishReason = fr;
 					}
-					
-					JsonObject parsed = ParamTool.tryParseObject(data);
-					if (parsed != null) {
-						if (completionId == null) {
-							completionId = safeString(parsed, "id");
-						}
-						if (created == null) {
-							created = safeLong(parsed, "created");
-						}
-						
-						JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
-						if (extractedTimings != null) {
-							timings = extractedTimings;
-						}
-						JsonObject extractedUsage = parsed.has("usage") && parsed.get("usage").isJsonObject() ? parsed.getAsJsonObject("usage") : null;
-						if (extractedUsage != null) {
-							usage = extractedUsage;
-						}
-						
-						JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
-						if (choices != null) {
-							lastChoices = choices;
-						}
-						if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-							JsonObject c0 = choices.get(0).getAsJsonObject();
-							String fr = safeString(c0, "finish_reason");
-							if (fr != null && !fr.isBlank()) {
-								finishReason = fr;
-							}
-							String piece = safeString(c0, "text");
-							if (piece != null) {
-								fullText.append(piece);
-							}
-						}
+					String piece = safeString(c0, "text");
+					if (piece != null) {
+						this.fullText.append(piece);
 					}
-					
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							ctx.close();
-						}
-					});
-					chunkCount++;
-				} else if (line.startsWith("event: ")) {
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
 				}
 			}
-			
-			if (responseCode >= 200 && responseCode < 300) {
-				JsonObject completion = buildLmStudioTextCompletion(modelName, completionId, created, lastChoices, usage, timings, finishReason, fullText.toString());
-				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
-				ByteBuf buf = ctx.alloc().buffer();
-				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(buf));
-				chunkCount++;
-				
-				String done = "data: [DONE]\r\n\r\n";
-				ByteBuf doneBuf = ctx.alloc().buffer();
-				doneBuf.writeBytes(done.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(doneBuf));
-				chunkCount++;
-			}
-			
-			logger.info("流式文本补全响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理流式文本补全响应时发生错误", e);
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				if (connection != null) {
-					connection.disconnect();
-				}
-			}
-			throw e;
+			chunk.pass();
 		}
 		
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
+		@Override
+		public void onEnd(StreamRelay.Chunk chunk) {
+			if (!(this.responseCode >= 200 && this.responseCode < 300)) {
+				return;
 			}
-		});
+			JsonObject completion = buildLmStudioTextCompletion(this.modelName, this.completionId, this.created, this.lastChoices, this.usage, this.timings, this.finishReason, this.fullText.toString());
+			chunk.write(("data: " + JsonUtil.toJson(completion) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+			chunk.write(STREAM_DONE);
+		}
 	}
 	
 	/**
@@ -4,6 +4,7 @@ import java.net.InetSocketAddress;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.mark.llamacpp.server.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,14 +12,13 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 
 /**
@@ -33,9 +33,8 @@ public class LMStudioWebServer implements AutoCloseable {
 	private final int maxContentLength;
 	
 	private final AtomicBoolean started = new AtomicBoolean(false);
-	private EventLoopGroup bossGroup;
-	private EventLoopGroup workerGroup;
 	private Channel serverChannel;
+	private final ChannelGroup connections = new DefaultChannelGroup("lmstudio-web", GlobalEventExecutor.INSTANCE);
 	
 	public LMStudioWebServer(int port) {
 		this("0.0.0.0", port, 16 * 1024 * 1024);
@@ -52,17 +51,11 @@ public class LMStudioWebServer implements AutoCloseable {
 			throw new IllegalStateException("server already started");
 		}
 		
-		bossGroup = new NioEventLoopGroup(1);
-		workerGroup = new NioEventLoopGroup();
-		
-		ServerBootstrap bootstrap = new ServerBootstrap();
-		bootstrap.group(bossGroup, workerGroup)
-				.channel(NioServerSocketChannel.class)
-				.option(ChannelOption.SO_BACKLOG, 1024)
-				.childOption(ChannelOption.SO_KEEPALIVE, true)
+		ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					@Override
 					protected void initChannel(SocketChannel ch) throws Exception {
+						connections.add(ch);
 						ch.pipeline()
 								.addLast(new HttpServerCodec())
 								.addLast(new HttpObjectAggregator(maxContentLength))
@@ -72,7 +65,7 @@ public class LMStudioWebServer implements AutoCloseable {
 				});
 		
 		InetSocketAddress address = new InetSocketAddress(host, port);
-		ChannelFuture future = bootstrap.bind(address);
+		ChannelFuture future = NettyTransport.bind(bootstrap, address);
 		future.addListener((ChannelFuture f) -> {
 			if (f.isSuccess()) {
 				serverChannel = f.channel();
@@ -108,14 +101,8 @@ public class LMStudioWebServer implements AutoCloseable {
 			ch.close();
 			this.serverChannel = null;
 		}
-		if (bossGroup != null) {
-			bossGroup.shutdownGracefully();
-			bossGroup = null;
-		}
-		if (workerGroup != null) {
-			workerGroup.shutdownGracefully();
-			workerGroup = null;
-		}
+		// 共用的工作线程组不会随服务关闭，已经接受的连接要单独关闭
+		this.connections.close();
 		started.set(false);
 	}
 }
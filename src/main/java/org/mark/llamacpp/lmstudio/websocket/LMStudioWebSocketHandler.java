@@ -56,6 +56,8 @@ public class LMStudioWebSocketHandler extends SimpleChannelInboundHandler<WebSoc
     
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
+        // 任何数据（包括pong）都说明连接还活着
+        this.wsManager.touch(this.connectionId);
         // 处理不同类型的WebSocket帧
         if (frame instanceof TextWebSocketFrame) {
             handleTextFrame(ctx, (TextWebSocketFrame) frame);
@@ -500,6 +502,14 @@ public class LMStudioWebSocketHandler extends SimpleChannelInboundHandler<WebSoc
         }
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && this.connectionId != null) {
+            this.wsManager.onWritable(this.connectionId);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         if (this.connected && this.connectionId != null) {
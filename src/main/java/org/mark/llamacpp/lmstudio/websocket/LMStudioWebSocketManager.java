@@ -1,44 +1,31 @@
 package org.mark.llamacpp.lmstudio.websocket;
 
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.websocket.WebSocketEndpoint;
+import org.mark.llamacpp.server.websocket.WebSocketEndpoint.Delivery;
+import org.mark.llamacpp.server.websocket.WebSocketHub;
 
 /**
  * WebSocket连接管理器
+ * 
+ * LM Studio兼容服务的WebSocket入口，和主界面共用WebSocketHub的注册表、编码和心跳。
  */
 public class LMStudioWebSocketManager {
     
     // 单例实例
     private static volatile LMStudioWebSocketManager instance;
     
-    // 存储所有活跃的WebSocket连接
-    private final ConcurrentMap<String, ChannelHandlerContext> connections = new ConcurrentHashMap<>();
-    
-    // 存储连接的确认状态
-    private final ConcurrentMap<String, Boolean> connectionStatus = new ConcurrentHashMap<>();
-    
-    // 连接计数器
-    private int connectionCounter = 0;
-    
-    // 定时任务执行器，用于发送心跳和定期消息
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    // LM Studio兼容服务的入口
+    private final WebSocketEndpoint endpoint;
     
     private LMStudioWebSocketManager() {
-        // 启动定时任务，每30秒发送一次心跳
-        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 30, 30, TimeUnit.SECONDS);
-        
-        // 启动定时任务，每60秒发送一次系统状态
-        scheduler.scheduleAtFixedRate(this::sendSystemStatus, 60, 60, TimeUnit.SECONDS);
+        this.endpoint = WebSocketHub.getInstance().endpoint(WebSocketHub.ENDPOINT_LMSTUDIO);
+        // 每60秒发送一次系统状态，心跳由WebSocketHub发送
+        WebSocketHub.getInstance().every(60, this::sendSystemStatus);
     }
     
     /**
@@ -59,91 +46,70 @@ public class LMStudioWebSocketManager {
      * 添加新的WebSocket连接
      */
     public String addConnection(ChannelHandlerContext ctx) {
-        connectionCounter++;
-        String connectionId = "conn-" + connectionCounter;
-        connections.put(connectionId, ctx);
-        connectionStatus.put(connectionId, false);
-        return connectionId;
+        return endpoint.addConnection(ctx);
     }
     
     /**
      * 移除WebSocket连接
      */
     public void removeConnection(String connectionId) {
-        connections.remove(connectionId);
-        connectionStatus.remove(connectionId);
+        endpoint.removeConnection(connectionId);
+    }
+    
+    /**
+     * 收到了客户端的数据
+     */
+    public void touch(String connectionId) {
+        endpoint.touch(connectionId);
+    }
+    
+    /**
+     * 连接恢复可写，补发合并期间保留的消息
+     */
+    public void onWritable(String connectionId) {
+        endpoint.onWritable(connectionId);
     }
     
     /**
      * 向指定连接发送消息
      */
     public void sendMessage(String connectionId, String message) {
-        ChannelHandlerContext ctx = connections.get(connectionId);
-        if (ctx != null && ctx.channel().isActive()) {
-            ctx.writeAndFlush(new TextWebSocketFrame(message));
-        } else {
-            connections.remove(connectionId);
-        }
+        endpoint.sendMessage(connectionId, message);
     }
     
     /**
      * 向所有连接广播消息
      */
     public void broadcast(String message) {
-        //logger.info("向所有WebSocket客户端广播消息: {}", message);
-        
-        // 使用迭代器安全地遍历并发集合
-        connections.entrySet().removeIf(entry -> {
-            //String connectionId = entry.getKey();
-            ChannelHandlerContext ctx = entry.getValue();
-            
-            if (ctx.channel().isActive()) {
-                ctx.writeAndFlush(new TextWebSocketFrame(message));
-                return false;
-            } else {
-                return true;
-            }
-        });
+        endpoint.publish(null, message, Delivery.ALWAYS, null);
     }
     
     /**
      * 获取当前连接数
      */
     public int getConnectionCount() {
-        return connections.size();
+        return endpoint.getConnectionCount();
     }
     
     /**
      * 确认WebSocket连接
      */
     public void confirmConnection(String connectionId) {
-        if (connections.containsKey(connectionId)) {
-            connectionStatus.put(connectionId, true);
-        }
+        endpoint.confirmConnection(connectionId);
     }
     
     /**
      * 检查连接是否已确认
      */
     public boolean isConnectionConfirmed(String connectionId) {
-        return connectionStatus.getOrDefault(connectionId, false);
+        return endpoint.isConnectionConfirmed(connectionId);
     }
     
     /**
      * 获取已确认的连接数
      */
     public int getConfirmedConnectionCount() {
-        return (int) connectionStatus.values().stream().mapToInt(status -> status ? 1 : 0).sum();
-    }
-    
-    /**
-     * 发送心跳消息
-     */
-    private void sendHeartbeat() {
-        if (getConnectionCount() > 0) {
-            long timestamp = System.currentTimeMillis();
-            broadcast("{\"type\":\"heartbeat\",\"timestamp\":" + timestamp + "}");
-        }
+        return endpoint.getConfirmedConnectionCount();
     }
     
     /**
@@ -163,7 +129,7 @@ public class LMStudioWebSocketManager {
                     getConfirmedConnectionCount()
                 );
                 
-                broadcast(statusMessage);
+                endpoint.publish(null, statusMessage, Delivery.COALESCE, "systemStatus");
             } catch (Exception e) {
             }
         }
@@ -225,7 +191,7 @@ public class LMStudioWebSocketManager {
             b64,
             System.currentTimeMillis()
         );
-        broadcast(eventMessage);
+        endpoint.publish("console", eventMessage, Delivery.DROP, null);
     }
     
     /**
@@ -265,30 +231,13 @@ public class LMStudioWebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        endpoint.publish("downloads", eventMessage, Delivery.COALESCE, "download:" + taskId);
     }
     
     /**
      * 关闭管理器，释放资源
      */
     public void shutdown() {
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-        
-        // 关闭所有连接
-        connections.values().forEach(ctx -> {
-            if (ctx.channel().isActive()) {
-                ctx.close();
-            }
-        });
-        connections.clear();
-        connectionStatus.clear();
+        WebSocketHub.getInstance().closeAll(WebSocketHub.ENDPOINT_LMSTUDIO);
     }
 }
@@ -55,7 +55,8 @@ public class LMStudioWsPathSelectHandler extends ChannelInboundHandlerAdapter {
 			}
 
 			String selfName = ctx.name();
-			ctx.pipeline().addAfter(selfName, "lmstudio-ws-protocol", new WebSocketServerProtocolHandler(path, null, true, Integer.MAX_VALUE));
+			// 不丢弃pong，心跳靠它判断连接是否还活着
+			ctx.pipeline().addAfter(selfName, "lmstudio-ws-protocol", new WebSocketServerProtocolHandler(path, null, true, Integer.MAX_VALUE, false, false, false));
 			ctx.pipeline().addAfter("lmstudio-ws-protocol", "lmstudio-ws-handler", new LMStudioWebSocketHandler());
 			ctx.fireChannelRead(request.retain());
 			ctx.pipeline().remove(this);
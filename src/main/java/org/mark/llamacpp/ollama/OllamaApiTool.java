@@ -21,6 +21,7 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -696,6 +697,68 @@ public final class OllamaApiTool {
 	}
 	
 	
+	/**
+	 * 	把流式响应里的tool_calls增量按index合并：id、name取第一次出现的，arguments依次拼接。
+	 * @param deltaToolCalls 一个数据块里的tool_calls
+	 * @param acc 按index保存的合并结果
+	 */
+	public static void accumulateToolCallDeltas(JsonElement deltaToolCalls, Map<Integer, JsonObject> acc) {
+		if (deltaToolCalls == null || !deltaToolCalls.isJsonArray() || acc == null) {
+			return;
+		}
+		JsonArray arr = deltaToolCalls.getAsJsonArray();
+		for (int i = 0; i < arr.size(); i++) {
+			JsonElement el = arr.get(i);
+			if (el == null || !el.isJsonObject()) {
+				continue;
+			}
+			JsonObject tc = el.getAsJsonObject();
+			Integer idx = readToolCallIndex(tc, i);
+			JsonObject cur = acc.computeIfAbsent(idx, k -> {
+				JsonObject o = new JsonObject();
+				o.addProperty("type", "function");
+				JsonObject fn = new JsonObject();
+				fn.addProperty("arguments", "");
+				o.add("function", fn);
+				return o;
+			});
+			String id = JsonUtil.getJsonString(tc, "id", null);
+			if (id != null && !id.isBlank() && !cur.has("id")) {
+				cur.addProperty("id", id);
+			}
+			JsonObject fn = (tc.has("function") && tc.get("function").isJsonObject()) ? tc.getAsJsonObject("function") : null;
+			if (fn == null) {
+				continue;
+			}
+			JsonObject curFn = cur.getAsJsonObject("function");
+			String name = JsonUtil.getJsonString(fn, "name", null);
+			if (name != null && !name.isBlank() && !curFn.has("name")) {
+				curFn.addProperty("name", name);
+			}
+			JsonElement argsEl = fn.get("arguments");
+			if (argsEl != null && !argsEl.isJsonNull()) {
+				String piece = argsEl.isJsonPrimitive() ? argsEl.getAsString() : argsEl.toString();
+				curFn.addProperty("arguments", curFn.get("arguments").getAsString() + piece);
+			}
+		}
+	}
+
+	/**
+	 * 	按index顺序取出合并好的tool_calls（OpenAI格式）。
+	 * @param acc
+	 * @return 没有时返回null
+	 */
+	public static JsonArray assembleToolCalls(Map<Integer, JsonObject> acc) {
+		if (acc == null || acc.isEmpty()) {
+			return null;
+		}
+		JsonArray out = new JsonArray();
+		for (JsonObject tc : new TreeMap<>(acc).values()) {
+			out.add(tc);
+		}
+		return out;
+	}
+	
 	public static JsonArray toolCallsFromFunctionCall(JsonObject functionCall, String id) {
 		if (functionCall == null) {
 			return null;
@@ -1,8 +1,6 @@
 package org.mark.llamacpp.ollama;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
@@ -11,13 +9,15 @@ import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ProcessSupervisor;
+import org.mark.llamacpp.server.ReplicaGroup;
+import org.mark.llamacpp.server.perf.ModelPerfStats;
+import org.mark.llamacpp.server.relay.StreamRelay;
 import org.mark.llamacpp.server.tools.JsonUtil;
-import org.mark.llamacpp.server.tools.ParamTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,21 +25,10 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpUtil;
-import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.LastHttpContent;
 
 /**
  * 	
@@ -55,9 +44,9 @@ public class OllamaChatService {
 	private final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
 	
 	/**
-	 * 	转发用的HTTP客户端连接。
+	 * 	每个客户端连接正在进行的上游请求。客户端断开时据此断开对应的上游连接，llama-server随即停止生成。
 	 */
-	private HttpURLConnection connection = null;
+	private final Map<ChannelHandlerContext, HttpURLConnection> channelConnectionMap = new HashMap<>();
 	
 	
 	public OllamaChatService() {
@@ -102,13 +91,14 @@ public class OllamaChatService {
 			return;
 		}
 		
-		if (!manager.getLoadedProcesses().containsKey(modelName)) {
+		if (!manager.isModelAvailable(modelName)) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
 			return;
 		}
 		
+		// 模型重启期间端口为空，由转发线程等待新进程
 		Integer port = manager.getModelPort(modelName);
-		if (port == null) {
+		if (port == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found: " + modelName);
 			return;
 		}
@@ -120,16 +110,6 @@ public class OllamaChatService {
 			}
 		} catch (Exception ignore) {
 		}
-		// 是否带了工具
-		boolean hasTools = false;
-		try {
-			JsonElement tools = ollamaReq.get("tools");
-			hasTools = tools != null && !tools.isJsonNull() && tools.isJsonArray() && tools.getAsJsonArray().size() > 0;
-		} catch (Exception ignore) {
-		}
-		if (hasTools) {
-			isStream = false;
-		}
 		// 是否开启thinking
 		boolean enableThinking = false;
 		try {
@@ -137,9 +117,6 @@ public class OllamaChatService {
 			enableThinking = thkning != null && !thkning.isJsonNull() && thkning.isJsonArray() && thkning.getAsJsonArray().size() > 0;
 		} catch (Exception ignore) {
 		}
-		if (hasTools) {
-			isStream = false;
-		}
 		JsonElement messages = ollamaReq.get("messages");
 		if (messages == null || !messages.isJsonArray()) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.BAD_REQUEST, "Missing required parameter: messages");
@@ -162,42 +139,66 @@ public class OllamaChatService {
 		logger.info("转发请求到llama.cpp进程: {} {} 端口: {} 请求体长度: {}", request.method().name(), "/v1/chat/completions", port, requestBodyLength);
 		
 		boolean finalIsStream = isStream;
+		long affinityKey = ReplicaGroup.affinityKey(openAiReq);
 		this.worker.execute(() -> {
+			// 模型正在排空或重启时在这里挂起，直到新进程就绪；多副本时选择最空闲的副本
+			ReplicaGroup.Lease lease = manager.acquireEndpoint(modelName, affinityKey, true);
+			if (lease == null) {
+				Ollama.sendOllamaError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, "Model is not available: " + modelName);
+				return;
+			}
+			HttpURLConnection connection = null;
 			try {
-				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
+				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", lease.port());
 				
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				
 				URL url = URI.create(targetUrl).toURL();
-				this.connection = (HttpURLConnection) url.openConnection();
-				this.connection.setRequestMethod("POST");
-				this.connection.setConnectTimeout(36000 * 1000);
-				this.connection.setReadTimeout(36000 * 1000);
-				this.connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-				this.connection.setDoOutput(true);
-				byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-				//this.connection.setRequestProperty("Content-Length", String.valueOf(input.length));
-				try (OutputStream os = this.connection.getOutputStream()) {
+				connection = (HttpURLConnection) url.openConnection();
+				// 先登记再检查，客户端在等待期间已经断开时不再发出请求
+				synchronized (this.channelConnectionMap) {
+					this.channelConnectionMap.put(ctx, connection);
+				}
+				if (!ctx.channel().isActive()) {
+					logger.info("客户端已断开，取消发往llama.cpp的请求");
+					return;
+				}
+				connection.setRequestMethod("POST");
+				connection.setConnectTimeout(36000 * 1000);
+				connection.setReadTimeout(36000 * 1000);
+				connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+				connection.setDoOutput(true);
+				byte[] input = lease.applySlot(requestBody).getBytes(StandardCharsets.UTF_8);
+				try (OutputStream os = connection.getOutputStream()) {
 					os.write(input, 0, input.length);
 					logger.info("已发送请求体到llama.cpp进程，大小: {} 字节", input.length);
 				}
 
-				int responseCode = this.connection.getResponseCode();
+				int responseCode = connection.getResponseCode();
 				
 				logger.info("llama.cpp进程响应码: {}", responseCode);
 				
 				if (finalIsStream) {
-					this.handleOllamaChatStreamResponse(ctx, this.connection, responseCode, modelName);
+					this.handleOllamaChatStreamResponse(ctx, connection, responseCode, modelName, lease);
 				} else {
-					this.handleOllamaChatNonStreamResponse(ctx, this.connection, responseCode, modelName);
+					this.handleOllamaChatNonStreamResponse(ctx, connection, responseCode, modelName, lease);
 				}
 			} catch (Exception e) {
-				logger.info("处理Ollama chat请求时发生错误", e);
-				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+				if (!ctx.channel().isActive()) {
+					// 客户端断开后上游连接被关闭，读写会抛异常，不需要再回复
+					logger.info("客户端已断开，已取消发往llama.cpp的请求: {}", e.getMessage());
+				} else {
+					logger.info("处理Ollama chat请求时发生错误", e);
+					Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+				}
 			} finally {
-				if (this.connection != null) {
-					this.connection.disconnect();
+				if (connection != null) {
+					connection.disconnect();
+					synchronized (this.channelConnectionMap) {
+						this.channelConnectionMap.remove(ctx, connection);
+					}
 				}
+				lease.release();
 			}
 		});
 	}
@@ -211,8 +212,9 @@ public class OllamaChatService {
 	 * @param modelName
 	 * @throws IOException
 	 */
-	private void handleOllamaChatNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
+	private void handleOllamaChatNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
 		String responseBody = OllamaApiTool.readBody(connection, responseCode >= 200 && responseCode < 300);
+		lease.observe(responseBody);
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.valueOf(responseCode), msg == null ? responseBody : msg);
@@ -225,6 +227,7 @@ public class OllamaChatService {
 			parsed = JsonUtil.fromJson(responseBody, JsonObject.class);
 		} catch (Exception ignore) {
 		}
+		ModelPerfStats.recordResponse(modelName, parsed);
 		String content = null;
 		String thinking = null;
 		String doneReason = "stop";
@@ -313,7 +316,7 @@ public class OllamaChatService {
 	 * @param modelName
 	 * @throws IOException
 	 */
-	private void handleOllamaChatStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
+	private void handleOllamaChatStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, ReplicaGroup.Lease lease) throws IOException {
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			String responseBody = OllamaApiTool.readBody(connection, false);
 			String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
@@ -321,200 +324,7 @@ public class OllamaChatService {
 			return;
 		}
 		
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/x-ndjson; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
-		HttpUtil.setTransferEncodingChunked(response, true);
-		ctx.writeAndFlush(response);
-		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
-		
-		String doneReason = "stop";
-		Map<Integer, String> toolCallIndexToId = new HashMap<>();
-		String functionCallId = null;
-		String functionCallName = null;
-		JsonObject timings = null;
-		int chunkCount = 0;
-		
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			
-			while ((line = br.readLine()) != null) {
-				if (!ctx.channel().isActive()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				if (!line.startsWith("data: ")) {
-					continue;
-				}
-				String data = line.substring(6);
-				if ("[DONE]".equals(data)) {
-					logger.info("收到流式响应结束标记");
-					Map<String, Object> timingFields = OllamaApiTool.buildOllamaTimingFields(timings);
-					this.writeOllamaStreamChunk(ctx, modelName, "", null, true, doneReason, timingFields);
-					chunkCount++;
-					break;
-				}
-				JsonObject chunk = ParamTool.tryParseObject(data);
-				if (chunk == null) {
-					continue;
-				}
-				JsonObject extractedTimings = chunk.has("timings") && chunk.get("timings").isJsonObject() ? chunk.getAsJsonObject("timings") : null;
-				if (extractedTimings != null) {
-					timings = extractedTimings;
-				}
-				
-				String deltaContent = null;
-				String deltaThinking = null;
-				String finish = null;
-				JsonElement deltaToolCalls = null;
-				
-				try {
-					JsonArray choices = chunk.getAsJsonArray("choices");
-					if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-						JsonObject c0 = choices.get(0).getAsJsonObject();
-						JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
-						if (delta != null && delta.has("content")) {
-							deltaContent = JsonUtil.jsonValueToString(delta.get("content"));
-						}
-						if (delta != null && delta.has("reasoning_content")) {
-							deltaThinking = JsonUtil.jsonValueToString(delta.get("reasoning_content"));
-						}
-						if (delta != null) {
-							deltaToolCalls = OllamaApiTool.extractToolCallsFromOpenAIMessage(delta, toolCallIndexToId, false);
-							if (deltaToolCalls == null) {
-								JsonObject fc = (delta.has("function_call") && delta.get("function_call").isJsonObject()) ? delta.getAsJsonObject("function_call") : null;
-								if (fc != null) {
-									String fcName = JsonUtil.getJsonString(fc, "name", null);
-									if (fcName != null && !fcName.isBlank()) {
-										functionCallName = fcName;
-									}
-									if (functionCallId == null) {
-										functionCallId = "call_" + UUID.randomUUID().toString().replace("-", "");
-									}
-									JsonObject enriched = fc.deepCopy();
-									if ((JsonUtil.getJsonString(enriched, "name", null) == null || JsonUtil.getJsonString(enriched, "name", null).isBlank())
-											&& functionCallName != null && !functionCallName.isBlank()) {
-										enriched.addProperty("name", functionCallName);
-									}
-									deltaToolCalls = OllamaApiTool.toolCallsFromFunctionCall(enriched, functionCallId);
-								}
-							}
-						}
-						JsonElement fr = c0.get("finish_reason");
-						if (fr != null && !fr.isJsonNull()) {
-							finish = JsonUtil.jsonValueToString(fr);
-						}
-					}
-				} catch (Exception ignore) {
-				}
-				
-				if (finish != null && !finish.isBlank()) {
-					doneReason = finish;
-				}
-				boolean hasContent = deltaContent != null && !deltaContent.isEmpty();
-				boolean hasThinking = deltaThinking != null && !deltaThinking.isEmpty();
-				boolean hasToolCalls = deltaToolCalls != null && !deltaToolCalls.isJsonNull();
-				if (hasContent || hasThinking || hasToolCalls) {
-					JsonElement ollamaToolCalls = hasToolCalls ? OllamaApiTool.toOllamaToolCalls(deltaToolCalls) : null;
-					this.writeOllamaStreamChunk(ctx, modelName, hasContent ? deltaContent : "", hasThinking ? deltaThinking : null, ollamaToolCalls, false, null, null);
-					chunkCount++;
-				}
-			}
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理Ollama chat流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
-				}
-			}
-			throw e;
-		}
-		
-		LastHttpContent last = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(last).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
-	}
-	
-	
-	/**
-	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
-	 * @param modelName
-	 * @param content
-	 * @param toolCalls
-	 * @param done
-	 * @param doneReason
-	 * @param doneFields
-	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
-		this.writeOllamaStreamChunk(ctx, modelName, content, null, toolCalls, done, doneReason, doneFields);
-	}
-	
-	/**
-	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
-	 * @param modelName
-	 * @param content
-	 * @param thinking
-	 * @param toolCalls
-	 * @param done
-	 * @param doneReason
-	 * @param doneFields
-	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, String thinking, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
-		Map<String, Object> out = new HashMap<>();
-		out.put("model", modelName);
-		out.put("created_at", OllamaApiTool.formatOllamaTime(Instant.now()));
-		
-		Map<String, Object> message = new HashMap<>();
-		message.put("role", "assistant");
-		message.put("content", content == null ? "" : content);
-		if (thinking != null && !thinking.isBlank()) {
-			message.put("thinking", thinking);
-		}
-		if (toolCalls != null && !toolCalls.isJsonNull()) {
-			message.put("tool_calls", toolCalls);
-		}
-		out.put("message", message);
-		
-		out.put("done", Boolean.valueOf(done));
-		if (done) {
-			out.put("done_reason", doneReason == null || doneReason.isBlank() ? "stop" : doneReason);
-			if (doneFields != null && !doneFields.isEmpty()) {
-				out.putAll(doneFields);
-			}
-		}
-		
-		String json = JsonUtil.toJson(out) + "\n";
-		ByteBuf buf = ctx.alloc().buffer();
-		buf.writeBytes(json.getBytes(StandardCharsets.UTF_8));
-		HttpContent httpContent = new DefaultHttpContent(buf);
-		ChannelFuture f = ctx.writeAndFlush(httpContent);
-		f.addListener((ChannelFutureListener) future -> {
-			if (!future.isSuccess()) {
-				logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
-				ctx.close();
-			}
-		});
+		StreamRelay.relay(ctx, connection, responseCode, lease.observe(new OllamaStreamTranscoder(modelName)));
 	}
 	
 	
@@ -565,16 +375,17 @@ public class OllamaChatService {
 	 * @throws Exception
 	 */
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		// 关闭正在进行的链接
-		synchronized (this) {
-			logger.info("检测到客户端连接已断开，尝试断开与llama.cpp的连接");
-			HttpURLConnection conn = this.connection;
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception e) {
-					logger.info("断开与llama.cpp的连接时发生错误", e);
-				}
+		// 只断开这个客户端自己的上游连接，阻塞在读取上的转发线程会随之退出
+		HttpURLConnection conn;
+		synchronized (this.channelConnectionMap) {
+			conn = this.channelConnectionMap.remove(ctx);
+		}
+		if (conn != null) {
+			logger.info("检测到客户端连接已断开，断开与llama.cpp的连接");
+			try {
+				conn.disconnect();
+			} catch (Exception e) {
+				logger.info("断开与llama.cpp的连接时发生错误", e);
 			}
 		}
 	}
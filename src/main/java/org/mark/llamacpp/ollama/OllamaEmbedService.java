@@ -10,6 +10,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ProcessSupervisor;
+import org.mark.llamacpp.server.ReplicaGroup;
+import org.mark.llamacpp.server.embedding.EmbeddingForwarder;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,15 +83,16 @@ public class OllamaEmbedService {
 			return;
 		}
 		
-		if (!manager.getLoadedProcesses().containsKey(modelName)) {
+		if (!manager.isModelAvailable(modelName)) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
 			return;
 		}
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 		
+		// 模型重启期间端口为空，由转发线程等待新进程
 		Integer port = manager.getModelPort(modelName);
-		if (port == null) {
+		if (port == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found: " + modelName);
 			return;
 		}
@@ -103,25 +107,42 @@ public class OllamaEmbedService {
 		String requestBody = JsonUtil.toJson(openAiReq);
 		
 		this.worker.execute(() -> {
+			// 模型正在排空或重启时在这里挂起，直到新进程就绪；多副本时选择最空闲的副本
+			ReplicaGroup.Lease lease = manager.acquireEndpoint(modelName, 0);
+			if (lease == null) {
+				Ollama.sendOllamaError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, "Model is not available: " + modelName);
+				return;
+			}
 			HttpURLConnection connection = null;
 			try {
 				long startNs = System.nanoTime();
-				String targetUrl = String.format("http://localhost:%d/v1/embeddings", port.intValue());
-				URL url = URI.create(targetUrl).toURL();
-				connection = (HttpURLConnection) url.openConnection();
-				connection.setRequestMethod("POST");
-				connection.setConnectTimeout(36000 * 1000);
-				connection.setReadTimeout(36000 * 1000);
-				connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-				connection.setDoOutput(true);
-				byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-				connection.setRequestProperty("Content-Length", String.valueOf(input.length));
-				try (OutputStream os = connection.getOutputStream()) {
-					os.write(input, 0, input.length);
+				int responseCode;
+				String responseBody;
+				JsonObject parsed = null;
+				if (EmbeddingForwarder.accepts(modelName, openAiReq)) {
+					// 命中缓存的输入不再发给llama-server，其余的和并发的请求合并后发送
+					EmbeddingForwarder.Result result = EmbeddingForwarder.embed(modelName, lease.port(), openAiReq);
+					responseCode = result.status();
+					responseBody = result.body();
+					parsed = result.json();
+				} else {
+					String targetUrl = String.format("http://localhost:%d/v1/embeddings", lease.port());
+					URL url = URI.create(targetUrl).toURL();
+					connection = (HttpURLConnection) url.openConnection();
+					connection.setRequestMethod("POST");
+					connection.setConnectTimeout(36000 * 1000);
+					connection.setReadTimeout(36000 * 1000);
+					connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+					connection.setDoOutput(true);
+					byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
+					connection.setRequestProperty("Content-Length", String.valueOf(input.length));
+					try (OutputStream os = connection.getOutputStream()) {
+						os.write(input, 0, input.length);
+					}
+					
+					responseCode = connection.getResponseCode();
+					responseBody = OllamaApiTool.readBody(connection, responseCode >= 200 && responseCode < 300);
 				}
-				
-				int responseCode = connection.getResponseCode();
-				String responseBody = OllamaApiTool.readBody(connection, responseCode >= 200 && responseCode < 300);
 				long totalDurationNs = Math.max(0L, System.nanoTime() - startNs);
 				if (!(responseCode >= 200 && responseCode < 300)) {
 					String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
@@ -129,10 +150,11 @@ public class OllamaEmbedService {
 					return;
 				}
 				
-				JsonObject parsed = null;
-				try {
-					parsed = JsonUtil.fromJson(responseBody, JsonObject.class);
-				} catch (Exception ignore) {
+				if (parsed == null) {
+					try {
+						parsed = JsonUtil.fromJson(responseBody, JsonObject.class);
+					} catch (Exception ignore) {
+					}
 				}
 				// 回复客户端
 				Map<String, Object> out = OllamaApiTool.toOllamaEmbedResponse(modelName, parsed, totalDurationNs);
@@ -144,6 +166,7 @@ public class OllamaEmbedService {
 				if (connection != null) {
 					connection.disconnect();
 				}
+				lease.release();
 			}
 		});
 		
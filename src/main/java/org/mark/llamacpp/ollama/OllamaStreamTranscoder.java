@@ -0,0 +1,568 @@
+package org.mark.llamacpp.ollama;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.mark.llamacpp.server.perf.ModelPerfStats;
+import org.mark.llamacpp.server.relay.StreamAdapter;
+import org.mark.llamacpp.server.relay.StreamRelay;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+
+/**
+ * 	把llama-server的SSE流直接按字节转成Ollama的NDJSON流。
+ * 	<p>
+ * 	普通的数据块只用一个很小的扫描器从字节里找出 choices[0].delta 的 content、reasoning_content 和 finish_reason，
+ * 	字符串原样（保持JSON转义）拷进按模板拼好的输出行，不建Gson树、不转String。
+ * 	带tool_calls、function_call或timings的数据块很少，仍然按原来的方式解析；最后的done数据块完整地构建。
+ * 	读上游、背压和取消由{@link StreamRelay}负责。
+ */
+final class OllamaStreamTranscoder implements StreamAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(OllamaStreamTranscoder.class);
+
+	private static final byte[] K_CHOICES = ascii("choices");
+	private static final byte[] K_DELTA = ascii("delta");
+	private static final byte[] K_CONTENT = ascii("content");
+	private static final byte[] K_REASONING = ascii("reasoning_content");
+	private static final byte[] K_FINISH = ascii("finish_reason");
+	private static final byte[] K_TOOL_CALLS = ascii("tool_calls");
+	private static final byte[] K_FUNCTION_CALL = ascii("function_call");
+	private static final byte[] K_TIMINGS = ascii("timings");
+
+	private static final byte[] T_MESSAGE = ascii("\",\"message\":{\"role\":\"assistant\",\"content\":\"");
+	private static final byte[] T_THINKING = ascii("\",\"thinking\":\"");
+	private static final byte[] T_END = ascii("\"},\"done\":false}\n");
+
+	private final String modelName;
+	/**
+	 * 	{"model":"...","created_at":"
+	 */
+	private final byte[] prefix;
+
+	private long stampMillis = -1;
+	private byte[] stamp;
+
+	// 当前数据块所在的读缓冲，由StreamRelay提供
+	private byte[] buf;
+
+	// 当前数据块的扫描结果，都是buf里的下标
+	private int contentStart;
+	private int contentEnd;
+	private int thinkingStart;
+	private int thinkingEnd;
+	private int finishStart;
+	private int finishEnd;
+	private boolean needTree;
+
+	// 整个流的状态
+	private String doneReason = "stop";
+	private JsonObject timings;
+	private final Map<Integer, String> toolCallIndexToId = new HashMap<>();
+	private final Map<Integer, JsonObject> toolCallAcc = new HashMap<>();
+	private String functionCallId;
+	private String functionCallName;
+	private int chunkCount;
+	private int treeChunks;
+
+	OllamaStreamTranscoder(String modelName) {
+		this.modelName = modelName;
+		this.prefix = ("{\"model\":" + JsonUtil.toJson(modelName == null ? "" : modelName) + ",\"created_at\":\"").getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String name() {
+		return "ollama";
+	}
+
+	@Override
+	public String contentType() {
+		return "application/x-ndjson; charset=UTF-8";
+	}
+
+	@Override
+	public boolean sse() {
+		return false;
+	}
+
+	@Override
+	public void headers(HttpHeaders headers) {
+		headers.set(HttpHeaderNames.DATE, ParamTool.getDate());
+	}
+
+	@Override
+	public void onData(StreamRelay.Chunk chunk) {
+		this.buf = chunk.buffer();
+		if (this.scan(chunk.dataStart(), chunk.dataEnd())) {
+			if (this.finishStart >= 0) {
+				this.doneReason = new String(this.buf, this.finishStart, this.finishEnd - this.finishStart, StandardCharsets.UTF_8);
+			}
+			boolean hasContent = this.contentStart >= 0 && this.contentEnd > this.contentStart;
+			boolean hasThinking = this.thinkingStart >= 0 && !this.isBlankRaw(this.thinkingStart, this.thinkingEnd);
+			if (hasContent || hasThinking) {
+				this.writeDelta(chunk, this.buf, hasContent ? this.contentStart : 0, hasContent ? this.contentEnd : 0,
+						this.buf, hasThinking ? this.thinkingStart : -1, this.thinkingEnd);
+			}
+		} else {
+			JsonObject parsed = chunk.json();
+			if (parsed != null) {
+				this.treeChunks++;
+				this.applyTree(chunk, parsed);
+			}
+		}
+	}
+
+	/**
+	 * 	上游结束（不管有没有发[DONE]），写最后的done数据块，把合并好的工具调用发出去。
+	 */
+	@Override
+	public void onEnd(StreamRelay.Chunk chunk) {
+		this.writeDone(chunk);
+		logger.info("Ollama流式响应共发送 {} 个数据块，其中 {} 个上游数据块完整解析", this.chunkCount, this.treeChunks);
+	}
+
+	/**
+	 * 	扫描一个数据块。
+	 * @return 是否可以走快速路径；需要完整解析或者格式不认识时返回false
+	 */
+	private boolean scan(int p, int end) {
+		this.contentStart = -1;
+		this.thinkingStart = -1;
+		this.finishStart = -1;
+		this.needTree = false;
+		p = this.ws(p, end);
+		if (p >= end || this.buf[p] != '{') {
+			return false;
+		}
+		p++;
+		while (true) {
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == '}') {
+				break;
+			}
+			if (p >= end || this.buf[p] != '"') {
+				return false;
+			}
+			int ks = p + 1;
+			p = this.skipString(p, end);
+			if (p < 0) {
+				return false;
+			}
+			int ke = p - 1;
+			p = this.colon(p, end);
+			if (p < 0) {
+				return false;
+			}
+			if (this.is(ks, ke, K_CHOICES)) {
+				p = this.scanChoices(p, end);
+			} else if (this.is(ks, ke, K_TIMINGS)) {
+				return false;
+			} else {
+				p = this.skipValue(p, end);
+			}
+			if (p < 0 || this.needTree) {
+				return false;
+			}
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == ',') {
+				p++;
+				continue;
+			}
+			if (p < end && this.buf[p] == '}') {
+				break;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 	只看第一个choice，其余的跳过
+	 */
+	private int scanChoices(int p, int end) {
+		if (this.buf[p] != '[') {
+			return this.skipValue(p, end);
+		}
+		p = this.ws(p + 1, end);
+		if (p < end && this.buf[p] == ']') {
+			return p + 1;
+		}
+		p = p < end && this.buf[p] == '{' ? this.scanChoice(p, end) : this.skipValue(p, end);
+		while (p >= 0) {
+			p = this.ws(p, end);
+			if (p >= end) {
+				return -1;
+			}
+			if (this.buf[p] == ']') {
+				return p + 1;
+			}
+			if (this.buf[p] != ',') {
+				return -1;
+			}
+			p = this.skipValue(p + 1, end);
+		}
+		return -1;
+	}
+
+	private int scanChoice(int p, int end) {
+		p++;
+		while (true) {
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == '}') {
+				return p + 1;
+			}
+			if (p >= end || this.buf[p] != '"') {
+				return -1;
+			}
+			int ks = p + 1;
+			p = this.skipString(p, end);
+			if (p < 0) {
+				return -1;
+			}
+			int ke = p - 1;
+			p = this.colon(p, end);
+			if (p < 0) {
+				return -1;
+			}
+			if (this.is(ks, ke, K_DELTA)) {
+				p = this.buf[p] == '{' ? this.scanDelta(p, end) : this.skipValue(p, end);
+			} else if (this.is(ks, ke, K_FINISH) && this.buf[p] == '"') {
+				this.finishStart = p + 1;
+				p = this.skipString(p, end);
+				this.finishEnd = p - 1;
+			} else {
+				p = this.skipValue(p, end);
+			}
+			if (p < 0) {
+				return -1;
+			}
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == ',') {
+				p++;
+			} else if (p < end && this.buf[p] == '}') {
+				return p + 1;
+			} else {
+				return -1;
+			}
+		}
+	}
+
+	private int scanDelta(int p, int end) {
+		p++;
+		while (true) {
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == '}') {
+				return p + 1;
+			}
+			if (p >= end || this.buf[p] != '"') {
+				return -1;
+			}
+			int ks = p + 1;
+			p = this.skipString(p, end);
+			if (p < 0) {
+				return -1;
+			}
+			int ke = p - 1;
+			p = this.colon(p, end);
+			if (p < 0) {
+				return -1;
+			}
+			boolean isContent = this.is(ks, ke, K_CONTENT);
+			boolean isThinking = !isContent && this.is(ks, ke, K_REASONING);
+			if ((isContent || isThinking) && this.buf[p] == '"') {
+				int s = p + 1;
+				p = this.skipString(p, end);
+				if (p < 0) {
+					return -1;
+				}
+				if (isContent) {
+					this.contentStart = s;
+					this.contentEnd = p - 1;
+				} else {
+					this.thinkingStart = s;
+					this.thinkingEnd = p - 1;
+				}
+			} else {
+				boolean isNull = this.buf[p] == 'n';
+				if (!isNull && (isContent || isThinking || this.is(ks, ke, K_TOOL_CALLS) || this.is(ks, ke, K_FUNCTION_CALL))) {
+					// 工具调用，或者content不是字符串，交给完整解析
+					this.needTree = true;
+				}
+				p = this.skipValue(p, end);
+			}
+			if (p < 0) {
+				return -1;
+			}
+			p = this.ws(p, end);
+			if (p < end && this.buf[p] == ',') {
+				p++;
+			} else if (p < end && this.buf[p] == '}') {
+				return p + 1;
+			} else {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * 	完整解析一个数据块：工具调用的增量、timings，以及其中的正文。
+	 */
+	private void applyTree(StreamRelay.Chunk out, JsonObject chunk) {
+		ModelPerfStats.recordResponse(this.modelName, chunk);
+		JsonObject extractedTimings = chunk.has("timings") && chunk.get("timings").isJsonObject() ? chunk.getAsJsonObject("timings") : null;
+		if (extractedTimings != null) {
+			this.timings = extractedTimings;
+		}
+		String deltaContent = null;
+		String deltaThinking = null;
+		JsonElement deltaToolCalls = null;
+		try {
+			JsonArray choices = chunk.getAsJsonArray("choices");
+			if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
+				JsonObject c0 = choices.get(0).getAsJsonObject();
+				JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
+				if (delta != null && delta.has("content")) {
+					deltaContent = JsonUtil.jsonValueToString(delta.get("content"));
+				}
+				if (delta != null && delta.has("reasoning_content")) {
+					deltaThinking = JsonUtil.jsonValueToString(delta.get("reasoning_content"));
+				}
+				if (delta != null) {
+					deltaToolCalls = OllamaApiTool.extractToolCallsFromOpenAIMessage(delta, this.toolCallIndexToId, false);
+					if (deltaToolCalls == null) {
+						JsonObject fc = (delta.has("function_call") && delta.get("function_call").isJsonObject()) ? delta.getAsJsonObject("function_call") : null;
+						if (fc != null) {
+							String fcName = JsonUtil.getJsonString(fc, "name", null);
+							if (fcName != null && !fcName.isBlank()) {
+								this.functionCallName = fcName;
+							}
+							if (this.functionCallId == null) {
+								this.functionCallId = "call_" + UUID.randomUUID().toString().replace("-", "");
+							}
+							JsonObject enriched = fc.deepCopy();
+							if ((JsonUtil.getJsonString(enriched, "name", null) == null || JsonUtil.getJsonString(enriched, "name", null).isBlank())
+									&& this.functionCallName != null && !this.functionCallName.isBlank()) {
+								enriched.addProperty("name", this.functionCallName);
+							}
+							deltaToolCalls = OllamaApiTool.toolCallsFromFunctionCall(enriched, this.functionCallId);
+						}
+					}
+				}
+				JsonElement fr = c0.get("finish_reason");
+				if (fr != null && !fr.isJsonNull()) {
+					String finish = JsonUtil.jsonValueToString(fr);
+					if (finish != null && !finish.isBlank()) {
+						this.doneReason = finish;
+					}
+				}
+			}
+		} catch (Exception ignore) {
+		}
+		OllamaApiTool.accumulateToolCallDeltas(deltaToolCalls, this.toolCallAcc);
+		boolean hasContent = deltaContent != null && !deltaContent.isEmpty();
+		boolean hasThinking = deltaThinking != null && !deltaThinking.isBlank();
+		if (hasContent || hasThinking) {
+			byte[] c = hasContent ? escaped(deltaContent) : new byte[0];
+			byte[] t = hasThinking ? escaped(deltaThinking) : null;
+			this.writeDelta(out, c, 0, c.length, t, t == null ? -1 : 0, t == null ? 0 : t.length);
+		}
+	}
+
+	/**
+	 * 	按模板写一个普通数据块，content和thinking都是已经转义好的JSON字符串内容。
+	 * @param ts 小于0表示没有thinking
+	 */
+	private void writeDelta(StreamRelay.Chunk chunk, byte[] c, int cs, int ce, byte[] t, int ts, int te) {
+		byte[] stamp = this.stamp();
+		int size = this.prefix.length + stamp.length + T_MESSAGE.length + (ce - cs) + T_END.length;
+		if (ts >= 0) {
+			size += T_THINKING.length + (te - ts);
+		}
+		ByteBuf out = chunk.ctx().alloc().buffer(size);
+		out.writeBytes(this.prefix).writeBytes(stamp).writeBytes(T_MESSAGE).writeBytes(c, cs, ce - cs);
+		if (ts >= 0) {
+			out.writeBytes(T_THINKING).writeBytes(t, ts, te - ts);
+		}
+		out.writeBytes(T_END);
+		chunk.write(out);
+		this.chunkCount++;
+	}
+
+	/**
+	 * 	最后的done数据块：合并好的工具调用和统计数据。
+	 */
+	private void writeDone(StreamRelay.Chunk chunk) {
+		Map<String, Object> out = new HashMap<>();
+		out.put("model", this.modelName);
+		out.put("created_at", OllamaApiTool.formatOllamaTime(Instant.now()));
+
+		Map<String, Object> message = new HashMap<>();
+		message.put("role", "assistant");
+		message.put("content", "");
+		JsonElement toolCalls = OllamaApiTool.toOllamaToolCalls(OllamaApiTool.assembleToolCalls(this.toolCallAcc));
+		if (toolCalls != null && !toolCalls.isJsonNull()) {
+			message.put("tool_calls", toolCalls);
+		}
+		out.put("message", message);
+
+		out.put("done", Boolean.TRUE);
+		out.put("done_reason", this.doneReason == null || this.doneReason.isBlank() ? "stop" : this.doneReason);
+		Map<String, Object> timingFields = OllamaApiTool.buildOllamaTimingFields(this.timings);
+		if (timingFields != null && !timingFields.isEmpty()) {
+			out.putAll(timingFields);
+		}
+
+		chunk.write((JsonUtil.toJson(out) + "\n").getBytes(StandardCharsets.UTF_8));
+		this.chunkCount++;
+	}
+
+	/**
+	 * 	created_at，同一毫秒内复用
+	 */
+	private byte[] stamp() {
+		long now = System.currentTimeMillis();
+		if (now != this.stampMillis) {
+			this.stampMillis = now;
+			this.stamp = OllamaApiTool.formatOllamaTime(Instant.ofEpochMilli(now)).getBytes(StandardCharsets.UTF_8);
+		}
+		return this.stamp;
+	}
+
+	private int ws(int p, int end) {
+		while (p < end) {
+			byte c = this.buf[p];
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				break;
+			}
+			p++;
+		}
+		return p;
+	}
+
+	/**
+	 * 	跳过冒号，返回值的起始位置
+	 */
+	private int colon(int p, int end) {
+		p = this.ws(p, end);
+		if (p >= end || this.buf[p] != ':') {
+			return -1;
+		}
+		p = this.ws(p + 1, end);
+		return p < end ? p : -1;
+	}
+
+	/**
+	 * 	p指向开头的引号，返回结尾引号之后的位置
+	 */
+	private int skipString(int p, int end) {
+		p++;
+		while (p < end) {
+			byte c = this.buf[p];
+			if (c == '\\') {
+				p += 2;
+			} else if (c == '"') {
+				return p + 1;
+			} else {
+				p++;
+			}
+		}
+		return -1;
+	}
+
+	private int skipValue(int p, int end) {
+		p = this.ws(p, end);
+		if (p >= end) {
+			return -1;
+		}
+		byte c = this.buf[p];
+		if (c == '"') {
+			return this.skipString(p, end);
+		}
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			while (p < end) {
+				c = this.buf[p];
+				if (c == '"') {
+					p = this.skipString(p, end);
+					if (p < 0) {
+						return -1;
+					}
+					continue;
+				}
+				if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					if (--depth == 0) {
+						return p + 1;
+					}
+				}
+				p++;
+			}
+			return -1;
+		}
+		while (p < end) {
+			c = this.buf[p];
+			if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				break;
+			}
+			p++;
+		}
+		return p;
+	}
+
+	private boolean is(int s, int e, byte[] key) {
+		if (e - s != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (this.buf[s + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	转义后的字符串内容是否只有空白
+	 */
+	private boolean isBlankRaw(int s, int e) {
+		for (int i = s; i < e; i++) {
+			byte c = this.buf[i];
+			if (c == ' ' || c == '\t') {
+				continue;
+			}
+			if (c == '\\' && i + 1 < e && (this.buf[i + 1] == 'n' || this.buf[i + 1] == 'r' || this.buf[i + 1] == 't')) {
+				i++;
+				continue;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 	JSON字符串转义后去掉两边的引号
+	 */
+	private static byte[] escaped(String s) {
+		String json = JsonUtil.toJson(s);
+		return json.substring(1, json.length() - 1).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
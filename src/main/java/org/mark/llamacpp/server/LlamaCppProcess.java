@@ -14,7 +14,9 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
+import org.mark.llamacpp.server.io.ModelLogStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,6 +73,21 @@ public class LlamaCppProcess {
 	 */
 	private Consumer<String> outputHandler;
 	
+	/**
+	 * 	进程意外退出（不是调用stop）时的回调，参数为退出码
+	 */
+	private volatile IntConsumer exitHandler;
+	
+	/**
+	 * 	是否调用过stop()
+	 */
+	private volatile boolean stopRequested;
+	
+	/**
+	 * 	这个进程的日志存储，可以为空
+	 */
+	private ModelLogStore logStore;
+	
 	/**
 	 * 	程序启动后的输入流
 	 */
@@ -114,6 +131,22 @@ public class LlamaCppProcess {
 		this.outputHandler = outputHandler;
 	}
 	
+	/**
+	 * 	设置日志存储，进程的每一行输出都会写入
+	 * @param logStore
+	 */
+	public void setLogStore(ModelLogStore logStore) {
+		this.logStore = logStore;
+	}
+	
+	/**
+	 * 	设置进程意外退出时的回调，调用stop()结束的不会回调
+	 * @param exitHandler 参数为退出码，可以为null
+	 */
+	public void setExitHandler(IntConsumer exitHandler) {
+		this.exitHandler = exitHandler;
+	}
+	
 	/**
 	 * 	在模型加载成功后调用。
 	 * @param ctxSize
@@ -194,6 +227,8 @@ public class LlamaCppProcess {
 			// 正经启动
 			this.process = pb.start();
 			
+			this.stopRequested = false;
+			
 			// 获取PID (Java 9+ 提供了getPid方法)
 			// 获取输入流
 			try {
@@ -207,6 +242,15 @@ public class LlamaCppProcess {
 			
 			this.isRunning.set(true);
 			
+			// 不是stop()引起的退出交给回调处理
+			Process started = this.process;
+			started.onExit().thenAccept(p -> {
+				IntConsumer handler = this.exitHandler;
+				if (!this.stopRequested && handler != null) {
+					handler.accept(p.exitValue());
+				}
+			});
+			
 			// 启动输出读取线程
 			this.startOutputReaders();
 			
@@ -317,6 +361,10 @@ public class LlamaCppProcess {
 			try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.process.getInputStream()))) {
 				String line;
 				while ((line = reader.readLine()) != null && this.isRunning.get()) {
+					// 先写日志存储，只是内存操作
+					if (this.logStore != null) {
+						this.logStore.append(line);
+					}
 					// 将输出的内容转给处理器
 					if (this.outputHandler != null) {
 						this.outputHandler.accept(line);
@@ -347,6 +395,7 @@ public class LlamaCppProcess {
 		}
 		
 		this.isRunning.set(false);
+		this.stopRequested = true;
 		
 		if (this.process != null) {
 			this.process.destroy();
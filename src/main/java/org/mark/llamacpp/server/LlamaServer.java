@@ -1,7 +1,6 @@
 package org.mark.llamacpp.server;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -22,6 +21,7 @@ import org.mark.llamacpp.server.channel.CompletionRouterHandler;
 import org.mark.llamacpp.server.channel.FileDownloadRouterHandler;
 import org.mark.llamacpp.server.channel.OpenAIRouterHandler;
 import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
+import org.mark.llamacpp.server.io.ConsolePipeline;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
 import org.mark.llamacpp.server.struct.LlamaCppDataStruct;
@@ -42,11 +42,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
@@ -73,8 +69,9 @@ public class LlamaServer {
 		// 这里重定向输出流
 		try {
 			Files.createDirectories(CONSOLE_LOG_PATH.getParent());
-			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(
-					new FileOutputStream(CONSOLE_LOG_PATH.toFile(), true), StandardCharsets.UTF_8);
+			ConsolePipeline pipeline = new ConsolePipeline(CONSOLE_LOG_PATH, LlamaServer.out);
+			pipeline.start();
+			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(pipeline, StandardCharsets.UTF_8);
 			PrintStream ps = new PrintStream(out, true, StandardCharsets.UTF_8.name());
 			System.setOut(ps);
 			System.setErr(ps);
@@ -104,6 +101,9 @@ public class LlamaServer {
 		logger.info("正在扫描模型目录...");
 		serverManager.listModel();
 
+		// 系统和模型进程的资源监控
+		SystemMonitorService.getInstance().start(5);
+
 		try {
 			McpClientService.getInstance().initializeFromRegistry();
 		} catch (Exception e) {
@@ -521,15 +521,8 @@ public class LlamaServer {
     
     
     private static void bindAnthropic(int port) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+            ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
@@ -550,7 +543,7 @@ public class LlamaServer {
                         }
                     });
             
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = NettyTransport.bind(bootstrap, port).sync();
             logger.info("LlammServer启动成功，端口: {}", port);
             logger.info("访问地址: http://localhost:{}", port);
             
@@ -561,24 +554,14 @@ public class LlamaServer {
         } catch (Exception e) {
             logger.info("服务器启动失败", e);
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            
             logger.info("服务器已关闭");
         }
     }
     
     
     private static void bindOpenAI(int port) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+            ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
@@ -586,7 +569,8 @@ public class LlamaServer {
                                     .addLast(new HttpServerCodec())
                                     .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
                                     .addLast(new ChunkedWriteHandler())
-                                    .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE))
+                                    // 不丢弃pong，心跳靠它判断连接是否还活着
+                                    .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE, false, false, false))
                                     .addLast(new WebSocketServerHandler())
                                     
                                     .addLast(new BasicRouterHandler())
@@ -601,7 +585,7 @@ public class LlamaServer {
                         }
                     });
             
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = NettyTransport.bind(bootstrap, port).sync();
             logger.info("LlammServer启动成功，端口: {}", port);
             logger.info("访问地址: http://localhost:{}", port);
             
@@ -612,9 +596,6 @@ public class LlamaServer {
         } catch (Exception e) {
             logger.info("服务器启动失败", e);
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            
             logger.info("服务器已关闭");
         }
     }
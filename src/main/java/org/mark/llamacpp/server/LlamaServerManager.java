@@ -21,14 +21,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
@@ -37,6 +36,9 @@ import org.mark.llamacpp.gguf.GGUFBundle;
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.server.io.ModelLogStore;
+import org.mark.llamacpp.server.perf.LlamaLogParser;
+import org.mark.llamacpp.server.perf.ModelPerfStats;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
 import org.mark.llamacpp.server.struct.ModelPathDataStruct;
@@ -114,6 +116,16 @@ public class LlamaServerManager {
 	
 	private Set<String> canceledLoadingModels = new HashSet<>();
 	
+	/**
+	 * 	重启时等待加载结果用，加载结束时完成，值为是否加载成功
+	 */
+	private final Map<String, CompletableFuture<Boolean>> loadResults = new ConcurrentHashMap<>();
+	
+	/**
+	 * 	每个已加载模型的进程组，单进程的模型只有主进程
+	 */
+	private final Map<String, ReplicaGroup> replicaGroups = new ConcurrentHashMap<>();
+	
 	/**
 	 * 端口计数器，用于递增分配端口
 	 */
@@ -136,8 +148,6 @@ public class LlamaServerManager {
 	 */
 	private final ExecutorService executorService = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("llama-loader-", 0).factory());
 	
-	private final ScheduledExecutorService slotsScheduler = new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("llama-slots-", 0).factory());
-	
 	/**
 	 *
 	 */
@@ -200,55 +210,11 @@ public class LlamaServerManager {
         return new ArrayList<>(this.modelPaths);
     }
 	
+	/**
+	 * 	slot状态改为按需查询，见SlotMonitor。
+	 */
 	private void startSlotsPolling() {
-		this.slotsScheduler.scheduleAtFixedRate(() -> {
-			try {
-				Map<String, LlamaCppProcess> loaded = this.getLoadedProcesses();
-				if (loaded.isEmpty()) {
-					return;
-				}
-				for (String modelId : loaded.keySet()) {
-					if (modelId == null || modelId.isBlank()) {
-						continue;
-					}
-					JsonObject resp;
-					try {
-						resp = this.handleModelSlotsGet(modelId);
-					} catch (Exception e) {
-						continue;
-					}
-					JsonArray slots = resp != null && resp.has("slots") && resp.get("slots").isJsonArray()
-							? resp.getAsJsonArray("slots")
-							: null;
-					if (slots == null) {
-						continue;
-					}
-					JsonArray filtered = new JsonArray();
-					for (JsonElement el : slots) {
-						if (el == null || !el.isJsonObject()) {
-							continue;
-						}
-						JsonObject slot = el.getAsJsonObject();
-						JsonObject out = new JsonObject();
-						if (slot.has("id") && !slot.get("id").isJsonNull()) {
-							out.add("id", slot.get("id"));
-						}
-						boolean speculative = slot.has("speculative") && !slot.get("speculative").isJsonNull()
-								? slot.get("speculative").getAsBoolean()
-								: false;
-						boolean isProcessing = slot.has("is_processing") && !slot.get("is_processing").isJsonNull()
-								? slot.get("is_processing").getAsBoolean()
-								: false;
-						out.addProperty("speculative", speculative);
-						out.addProperty("is_processing", isProcessing);
-						filtered.add(out);
-					}
-					LlamaServer.sendModelSlotsEvent(modelId, filtered);
-				}
-			} catch (Exception e) {
-				logger.info("轮询slots时发生错误", e);
-			}
-		}, 1, 1, TimeUnit.SECONDS);
+		SlotMonitor.getInstance().start();
 	}
 	
 	/**
@@ -834,6 +800,9 @@ public class LlamaServerManager {
 	 */
 	public boolean stopModel(String modelId) {
 		String id = modelId == null ? "" : modelId.trim();
+		// 主动停止的模型不再自动重启
+		ProcessSupervisor.getInstance().unwatch(id);
+		this.stopReplicas(id);
 		LlamaCppProcess process;
 		Future<?> task;
 		synchronized (this.processLock) {
@@ -886,6 +855,105 @@ public class LlamaServerManager {
 		return stopped;
 	}
 	
+	/**
+	 * 	模型是否可以接收请求：已经加载，或者正在重启（请求会挂起等待）。
+	 * @param modelId
+	 * @return
+	 */
+	public boolean isModelAvailable(String modelId) {
+		synchronized (this.processLock) {
+			if (this.loadedProcesses.containsKey(modelId)) {
+				return true;
+			}
+		}
+		return ProcessSupervisor.getInstance().isHolding(modelId);
+	}
+	
+	/**
+	 * 	移除已经退出的进程，只在还是同一个进程时移除。由ProcessSupervisor调用。
+	 * @param modelId
+	 * @param process
+	 */
+	void removeExitedProcess(String modelId, LlamaCppProcess process) {
+		synchronized (this.processLock) {
+			if (this.loadedProcesses.get(modelId) != process) {
+				return;
+			}
+			this.loadedProcesses.remove(modelId);
+			this.modelPorts.remove(modelId);
+		}
+		this.loadedModelInfos.remove(modelId);
+		// 主进程重启时副本跟着重新启动
+		this.stopReplicas(modelId);
+	}
+	
+	/**
+	 * 	为一次请求选择转发的目标进程。模型正在重启时会阻塞等待，只能在工作线程里调用。
+	 * 	请求结束后必须调用{@link ReplicaGroup.Lease#release()}。
+	 * @param modelId
+	 * @param affinityKey 亲和键，见{@link ReplicaGroup#affinityKey(JsonObject)}，0表示没有
+	 * @return 模型不可用时返回null
+	 */
+	public ReplicaGroup.Lease acquireEndpoint(String modelId, long affinityKey) {
+		return this.acquireEndpoint(modelId, affinityKey, false);
+	}
+	
+	/**
+	 * 	为一次请求选择转发的目标进程和slot。
+	 * @param modelId
+	 * @param affinityKey
+	 * @param pinSlot 目标接口支持id_slot时为true，转发前用{@link ReplicaGroup.Lease#applySlot(String)}写入请求体
+	 * @return 模型不可用时返回null
+	 */
+	public ReplicaGroup.Lease acquireEndpoint(String modelId, long affinityKey, boolean pinSlot) {
+		// 拿到端口的同时计数，排空重启不会在这个请求连上旧进程之前发生
+		Integer port = ProcessSupervisor.getInstance().acquire(modelId);
+		if (port == null) {
+			return null;
+		}
+		ReplicaGroup group = this.replicaGroups.get(modelId);
+		ReplicaGroup.Lease lease = group == null ? null : group.acquire(affinityKey, pinSlot);
+		return lease != null ? lease : new ReplicaGroup.Lease(modelId, port, null, null, -1);
+	}
+	
+	/**
+	 * 	获取模型的进程组，模型未加载时返回null。
+	 * @param modelId
+	 * @return
+	 */
+	public ReplicaGroup getReplicaGroup(String modelId) {
+		return modelId == null ? null : this.replicaGroups.get(modelId);
+	}
+	
+	/**
+	 * 	移除模型的进程组并停止副本进程（不包括主进程）。
+	 * @param modelId
+	 */
+	private void stopReplicas(String modelId) {
+		ReplicaGroup group = this.replicaGroups.remove(modelId);
+		if (group != null) {
+			group.stopExtras();
+		}
+	}
+	
+	/**
+	 * 	用给定的参数重新加载模型，由ProcessSupervisor在重启时调用。
+	 * @param modelId
+	 * @param spec
+	 * @return 加载结束时完成，值为是否成功
+	 */
+	CompletableFuture<Boolean> reloadModel(String modelId, ProcessSupervisor.LaunchSpec spec) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		this.loadResults.put(modelId, result);
+		boolean submitted = this.loadModelAsyncFromCmd(modelId, spec.llamaBinPath(), spec.device(), spec.mg(), spec.enableVision(),
+				spec.cmd(), spec.extraParams(), spec.chatTemplateFilePath(), spec.replicas());
+		if (!submitted) {
+			this.loadResults.remove(modelId, result);
+			result.complete(false);
+		}
+		return result;
+	}
+	
 	/**
 	 * 	检查指定ID的模型是否处于加载状态。
 	 * @param modelId
@@ -910,6 +978,23 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath) {
+		return this.loadModelAsyncFromCmd(modelId, llamaBinPath, device, mg, enbaleVision, cmd, extraParams, chatTemplateFilePath, 1);
+	}
+	
+	/**
+	 * 	通过CMD命令启动llama-server进程，可以指定副本数。
+	 * @param modelId
+	 * @param llamaBinPath
+	 * @param device
+	 * @param mg
+	 * @param enbaleVision
+	 * @param cmd
+	 * @param extraParams
+	 * @param chatTemplateFilePath
+	 * @param replicas 同时运行的进程数，大于1时每个进程分到一段CPU核心
+	 * @return
+	 */
+	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath, int replicas) {
 		Map<String, Object> launchConfig = new HashMap<>();
 		launchConfig.put("llamaBinPath", llamaBinPath);
 		launchConfig.put("device", device);
@@ -917,6 +1002,9 @@ public class LlamaServerManager {
 		launchConfig.put("cmd", cmd);
 		launchConfig.put("extraParams", extraParams);
 		launchConfig.put("enableVision", enbaleVision);
+		if (replicas > 1) {
+			launchConfig.put("replicas", replicas);
+		}
 		
 		if (chatTemplateFilePath != null && !chatTemplateFilePath.trim().isEmpty()) {
 			launchConfig.put("chatTemplateFile", chatTemplateFilePath);
@@ -955,10 +1043,11 @@ public class LlamaServerManager {
 		final List<String> devSafe = device;
 		final Integer mgSafe = mg;
 		final String chatTemplateFileSafe = chatTemplateFilePath == null ? "" : chatTemplateFilePath;
+		final int replicasSafe = Math.max(1, replicas);
 
 		try {
 			Future<?> future = this.executorService.submit(() -> {
-				this.loadModelInBackgroundFromCmd(modelId, targetModel, binSafe, devSafe, mgSafe, enbaleVision, cmdSafe, extraSafe, chatTemplateFileSafe);
+				this.loadModelInBackgroundFromCmd(modelId, targetModel, binSafe, devSafe, mgSafe, enbaleVision, cmdSafe, extraSafe, chatTemplateFileSafe, replicasSafe);
 			});
 			synchronized (this.processLock) {
 				this.loadingTasks.put(modelId, future);
@@ -987,17 +1076,23 @@ public class LlamaServerManager {
 	 * @param cmd
 	 * @param extraParams
 	 * @param chatTemplateFilePath
+	 * @param replicas
 	 */
 	private void loadModelInBackgroundFromCmd(String modelId, GGUFModel targetModel, String llamaBinPath, List<String> device,
-			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath) {
+			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath, int replicas) {
 		try {
 			if (this.isLoadCanceled(modelId)) {
 				return;
 			}
 			int port = this.getNextAvailablePort();
-			String commandStr = buildCommandStr(targetModel, port, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
+			String commandStr = buildCommandStr(targetModel, port, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath)
+					+ this.replicaPinning(cmd, extraParams, 0, replicas);
 			String processName = "llama-server-" + modelId;
 			LlamaCppProcess process = new LlamaCppProcess(processName, commandStr, llamaBinPath);
+			ModelLogStore logStore = ModelLogStore.forModel(modelId);
+			logStore.append("==== 启动进程: " + commandStr);
+			process.setLogStore(logStore);
+			LlamaLogParser perfParser = new LlamaLogParser(modelId, ModelPerfStats.forModel(modelId));
 
 			logger.info("启动命令：{}", commandStr);
 
@@ -1005,6 +1100,7 @@ public class LlamaServerManager {
 			AtomicBoolean loadSuccess = new AtomicBoolean(false);
 
 			process.setOutputHandler(line -> {
+				perfParser.accept(line);
 				if (line.contains("srv  update_slots: all slots are idle")) {
 					loadSuccess.set(true);
 					latch.countDown();
@@ -1013,23 +1109,10 @@ public class LlamaServerManager {
 					loadSuccess.set(false);
 					latch.countDown();
 				}
-				if (line.contains("Inferior") && line.contains("detached")) {
+				// 只在加载阶段用输出判断失败，加载完成后进程退出由ProcessSupervisor通过退出码处理
+				if (latch.getCount() > 0 && ((line.contains("Inferior") && line.contains("detached")) || line.startsWith("error"))) {
 					logger.info("检测到模型进程异常终止: {}", line);
 					loadSuccess.set(false);
-					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
-					}
-					LlamaServer.sendModelStopEvent(modelId, false, "模型进程异常终止: " + line);
-					latch.countDown();
-				}
-				if (line.startsWith("error")) {
-					logger.info("检测到模型进程异常终止: {}", line);
-					loadSuccess.set(false);
-					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
-					}
 					latch.countDown();
 				}
 			});
@@ -1076,11 +1159,13 @@ public class LlamaServerManager {
 					}
 					LlamaServer.sendModelLoadEvent(modelId, true, "模型加载成功", port);
 					// 这里请求一次
+					int slotCount = 0;
 					try {
 						JsonObject slotsResponse = this.handleModelSlotsGet(modelId);
 						int ctxSize = 0;
 						if (slotsResponse != null && slotsResponse.has("slots") && slotsResponse.get("slots").isJsonArray()) {
 							JsonArray slots = slotsResponse.getAsJsonArray("slots");
+							slotCount = slots.size();
 							if (slots.size() > 0 && slots.get(0).isJsonObject()) {
 								JsonObject slot0 = slots.get(0).getAsJsonObject();
 								if (slot0.has("n_ctx") && !slot0.get("n_ctx").isJsonNull()) {
@@ -1121,6 +1206,17 @@ public class LlamaServerManager {
 					} catch (Exception e) {
 						logger.info("获取/v1/models信息失败: " + modelId, e);
 					}
+					ProcessSupervisor.getInstance().watch(modelId, process, new ProcessSupervisor.LaunchSpec(
+							llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, replicas));
+					ReplicaGroup group = new ReplicaGroup(modelId, slotCount);
+					group.add(0, process, port);
+					this.stopReplicas(modelId);
+					this.replicaGroups.put(modelId, group);
+					if (replicas > 1) {
+						// 副本在后台依次启动，主进程已经可以接收请求
+						Thread.ofVirtual().name("llama-replicas-" + modelId).start(() -> this.startReplicas(modelId, group, targetModel,
+								llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, replicas));
+					}
 				} else {
 					process.stop();
 					if (this.isLoadCanceled(modelId)) {
@@ -1145,9 +1241,119 @@ public class LlamaServerManager {
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(targetModel.getModelId());
 			}
+			CompletableFuture<Boolean> result = this.loadResults.remove(modelId);
+			if (result != null) {
+				synchronized (this.processLock) {
+					result.complete(this.loadedProcesses.containsKey(modelId));
+				}
+			}
 		}
 	}
 	
+	/**
+	 * 	主进程加载成功后启动其余的副本，每个副本等到可用后才加入轮转。
+	 */
+	private void startReplicas(String modelId, ReplicaGroup group, GGUFModel targetModel, String llamaBinPath,
+			List<String> device, Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath, int replicas) {
+		for (int i = 1; i < replicas; i++) {
+			if (!this.startReplica(modelId, group, i, targetModel, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, replicas)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 	启动一个副本，等到可用后加入组，并交给ProcessSupervisor守护，崩溃后由它按退避重新调用这里。
+	 * 	会阻塞到副本加载完成、加载失败或者进程退出。
+	 * @return 副本是否已加入组
+	 */
+	private boolean startReplica(String modelId, ReplicaGroup group, int index, GGUFModel targetModel, String llamaBinPath,
+			List<String> device, Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath, int replicas) {
+		if (this.replicaGroups.get(modelId) != group) {
+			return false;
+		}
+		ModelLogStore logStore = ModelLogStore.forModel(modelId);
+		int port = this.getNextAvailablePort();
+		String commandStr = buildCommandStr(targetModel, port, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath)
+				+ this.replicaPinning(cmd, extraParams, index, replicas);
+		LlamaCppProcess process = new LlamaCppProcess("llama-server-" + modelId + "-r" + index, commandStr, llamaBinPath);
+		logStore.append("==== 启动副本" + index + ": " + commandStr);
+		process.setLogStore(logStore);
+		// 每个进程的任务编号各自独立，解析器不能共用
+		LlamaLogParser perfParser = new LlamaLogParser(modelId, ModelPerfStats.forModel(modelId));
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicBoolean ready = new AtomicBoolean(false);
+		process.setOutputHandler(line -> {
+			perfParser.accept(line);
+			if (line.contains("srv  update_slots: all slots are idle")) {
+				ready.set(true);
+				latch.countDown();
+			}
+			if (line.contains("main: exiting due to model loading error")) {
+				latch.countDown();
+			}
+		});
+		// 加载期间进程不管以什么方式退出都立即结束等待，加入组之后由ProcessSupervisor换成自己的回调
+		process.setExitHandler(code -> latch.countDown());
+		logger.info("启动模型副本{}：{}", index, commandStr);
+		if (!process.start()) {
+			logger.info("启动模型副本失败: {} #{}", modelId, index);
+			return false;
+		}
+		try {
+			if (!latch.await(10, TimeUnit.MINUTES) || !ready.get() || !process.isRunning()) {
+				logger.info("模型副本加载失败: {} #{}", modelId, index);
+				process.setExitHandler(null);
+				process.stop();
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.setExitHandler(null);
+			process.stop();
+			return false;
+		}
+		// 启动期间模型被停止或者重启了
+		if (this.replicaGroups.get(modelId) != group) {
+			process.setExitHandler(null);
+			process.stop();
+			return false;
+		}
+		group.add(index, process, port);
+		ProcessSupervisor.getInstance().watchReplica(modelId, group, index, process, () -> this.startReplica(modelId, group, index,
+				targetModel, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, replicas));
+		logger.info("模型副本已加入: {} #{} 端口: {}", modelId, index, port);
+		return true;
+	}
+	
+	/**
+	 * 	多副本时给每个进程分一段CPU核心，命令里已经指定了线程数或CPU范围的不处理。
+	 * @param cmd
+	 * @param extraParams
+	 * @param index 副本序号
+	 * @param count 副本数
+	 * @return 追加到命令后面的参数，可能为空
+	 */
+	private String replicaPinning(String cmd, String extraParams, int index, int count) {
+		if (count <= 1) {
+			return "";
+		}
+		String allArgs = (cmd == null ? "" : cmd.trim()) + " " + (extraParams == null ? "" : extraParams.trim());
+		int cores = Runtime.getRuntime().availableProcessors();
+		int perReplica = Math.max(1, cores / count);
+		StringBuilder sb = new StringBuilder();
+		if (!cmdHasFlag(allArgs, "-t") && !cmdHasFlag(allArgs, "--threads")) {
+			sb.append(" -t ").append(perReplica);
+		}
+		if (cores >= count && !cmdHasFlag(allArgs, "-C") && !cmdHasFlag(allArgs, "--cpu-mask")
+				&& !cmdHasFlag(allArgs, "-Cr") && !cmdHasFlag(allArgs, "--cpu-range")) {
+			int lo = index * perReplica;
+			sb.append(" --cpu-range ").append(lo).append('-').append(lo + perReplica - 1);
+			sb.append(" --cpu-strict 1");
+		}
+		return sb.toString();
+	}
+	
 	private boolean isLoadCanceled(String modelId) {
 		synchronized (this.processLock) {
 			return this.canceledLoadingModels.contains(modelId);
@@ -1669,6 +1875,7 @@ public class LlamaServerManager {
 	 */
 	public void shutdownAll() {
 		logger.info("开始停止所有模型进程...");
+		ProcessSupervisor.getInstance().shutdown();
 		Map<String, LlamaCppProcess> processes;
 		synchronized (this.processLock) {
 			processes = new HashMap<>(this.loadedProcesses);
@@ -1678,6 +1885,7 @@ public class LlamaServerManager {
 			LlamaCppProcess process = entry.getValue();
 
 			logger.info("正在停止模型进程: {}", modelId);
+			this.stopReplicas(modelId);
 			boolean stopped = process.stop();
 			if (stopped) {
 				logger.info("成功停止模型进程: {}", modelId);
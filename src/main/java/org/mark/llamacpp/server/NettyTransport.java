@@ -0,0 +1,193 @@
+package org.mark.llamacpp.server;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+
+/**
+ * 	所有监听端口（OpenAI、Anthropic、Ollama、LMStudio）共用的传输层。
+ * 	<p>
+ * 	整个进程只有一组boss和worker事件循环，各个服务启停时只开关自己的监听通道，不再各自创建、关闭线程组。
+ * 	关闭监听通道不会断开已经接受的连接，需要停止的服务用ChannelGroup记录自己的连接，停止时一起关闭。
+ * 	Linux上可用时使用原生epoll，否则使用NIO。子连接统一开启TCP_NODELAY，流式输出的小数据块不被Nagle算法攒批。
+ * 	<p>
+ * 	配置在 config/netty_transport.json：epoll（默认true）、acceptors（默认1）、workerThreads（默认0，即Netty默认的2倍CPU核数）。
+ * 	acceptors大于1且使用epoll时，同一个端口用SO_REUSEPORT绑定多次，由内核在多个accept线程间分配新连接；
+ * 	默认不开启SO_REUSEPORT，否则同一台机器上再启动一个实例时不会报端口占用，而是悄悄分走一半连接。
+ */
+public final class NettyTransport {
+
+	private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+
+	private static final boolean EPOLL;
+	private static final int ACCEPTORS;
+	private static final int WORKER_THREADS;
+
+	private static EventLoopGroup bossGroup;
+	private static EventLoopGroup workerGroup;
+
+	static {
+		JsonObject cfg = readConfig();
+		boolean wantEpoll = cfg == null || !cfg.has("epoll") || cfg.get("epoll").getAsBoolean();
+		EPOLL = wantEpoll && Epoll.isAvailable();
+		if (wantEpoll && !EPOLL) {
+			logger.info("原生epoll不可用，使用NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+		}
+		ACCEPTORS = EPOLL ? (int) Math.max(1, JsonUtil.getJsonLong(cfg, "acceptors", 1)) : 1;
+		WORKER_THREADS = (int) Math.max(0, JsonUtil.getJsonLong(cfg, "workerThreads", 0));
+		Runtime.getRuntime().addShutdownHook(new Thread(NettyTransport::shutdown, "netty-transport-shutdown"));
+	}
+
+	private NettyTransport() {
+	}
+
+	/**
+	 * 	创建使用共享线程组的ServerBootstrap，已经设置好通道类型和通用的选项，调用方只需要设置childHandler。
+	 * @return
+	 */
+	public static ServerBootstrap serverBootstrap() {
+		ServerBootstrap bootstrap = new ServerBootstrap();
+		bootstrap.group(boss(), worker())
+				.channel(serverChannelClass())
+				.option(ChannelOption.SO_BACKLOG, 1024)
+				.childOption(ChannelOption.SO_KEEPALIVE, true)
+				.childOption(ChannelOption.TCP_NODELAY, true);
+		if (ACCEPTORS > 1) {
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * 	绑定端口。开启了多个acceptor时，第一个通道绑定成功后再绑定其余的，第一个通道关闭时一起关闭。
+	 * 	调用方只需要持有返回的通道，用法和{@link ServerBootstrap#bind(java.net.SocketAddress)}一样。
+	 * @param bootstrap
+	 * @param address
+	 * @return 第一个通道的绑定结果
+	 */
+	public static ChannelFuture bind(ServerBootstrap bootstrap, InetSocketAddress address) {
+		ChannelFuture first = bootstrap.bind(address);
+		if (ACCEPTORS <= 1) {
+			return first;
+		}
+		first.addListener((ChannelFuture f) -> {
+			if (!f.isSuccess()) {
+				return;
+			}
+			for (int i = 1; i < ACCEPTORS; i++) {
+				bootstrap.bind(address).addListener((ChannelFuture extra) -> {
+					if (!extra.isSuccess()) {
+						logger.info("附加的acceptor绑定失败: {}", address, extra.cause());
+						return;
+					}
+					Channel ch = extra.channel();
+					f.channel().closeFuture().addListener(c -> ch.close());
+					if (!f.channel().isOpen()) {
+						ch.close();
+					}
+				});
+			}
+		});
+		return first;
+	}
+
+	/**
+	 * 	绑定所有网卡上的端口
+	 * @param bootstrap
+	 * @param port
+	 * @return
+	 */
+	public static ChannelFuture bind(ServerBootstrap bootstrap, int port) {
+		return bind(bootstrap, new InetSocketAddress(port));
+	}
+
+	public static boolean isEpoll() {
+		return EPOLL;
+	}
+
+	private static Class<? extends ServerChannel> serverChannelClass() {
+		return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+
+	private static synchronized EventLoopGroup boss() {
+		if (bossGroup == null) {
+			bossGroup = newGroup(ACCEPTORS, "netty-boss");
+			logger.info("网络传输: {}，acceptor: {}，worker线程: {}", EPOLL ? "epoll" : "nio", ACCEPTORS,
+					WORKER_THREADS > 0 ? String.valueOf(WORKER_THREADS) : "默认");
+		}
+		return bossGroup;
+	}
+
+	private static synchronized EventLoopGroup worker() {
+		if (workerGroup == null) {
+			workerGroup = newGroup(WORKER_THREADS, "netty-worker");
+		}
+		return workerGroup;
+	}
+
+	private static EventLoopGroup newGroup(int threads, String name) {
+		DefaultThreadFactory factory = new DefaultThreadFactory(name);
+		return EPOLL ? new EpollEventLoopGroup(threads, factory) : new NioEventLoopGroup(threads, factory);
+	}
+
+	/**
+	 * 	进程退出时关闭共享的线程组
+	 */
+	private static synchronized void shutdown() {
+		if (bossGroup != null) {
+			bossGroup.shutdownGracefully();
+			bossGroup = null;
+		}
+		if (workerGroup != null) {
+			workerGroup.shutdownGracefully();
+			workerGroup = null;
+		}
+	}
+
+	public static JsonObject getInfo() {
+		JsonObject o = new JsonObject();
+		o.addProperty("transport", EPOLL ? "epoll" : "nio");
+		o.addProperty("epollAvailable", Epoll.isAvailable());
+		o.addProperty("acceptors", ACCEPTORS);
+		o.addProperty("reusePort", ACCEPTORS > 1);
+		o.addProperty("workerThreads", WORKER_THREADS);
+		o.addProperty("tcpNoDelay", true);
+		return o;
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "netty_transport.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取网络传输配置失败: {}", path, e);
+			return null;
+		}
+	}
+}
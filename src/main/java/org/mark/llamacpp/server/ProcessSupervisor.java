@@ -0,0 +1,591 @@
+package org.mark.llamacpp.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	llama-server进程的守护。
+ * 	<p>
+ * 	加载成功的模型都会被登记在这里：
+ * 	<ul>
+ * 	<li>通过Process.onExit得到退出码，不是主动停止的退出视为崩溃</li>
+ * 	<li>定时请求/health，连续失败几次视为卡死</li>
+ * 	<li>崩溃或卡死后按退避间隔重启，短时间内重启太多次就放弃</li>
+ * 	<li>重启期间到来的请求先挂起，重启完成后用新的端口继续转发</li>
+ * 	<li>排空重启：不再转发新请求，等正在处理的请求（包括流式）结束后再用最新的启动参数重启</li>
+ * 	<li>多副本时其余副本崩溃后先移出轮转，再按同样的退避和次数限制单独重启</li>
+ * 	</ul>
+ */
+public class ProcessSupervisor {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+
+	private static final ProcessSupervisor INSTANCE = new ProcessSupervisor();
+
+	/**
+	 * 	健康检查的间隔
+	 */
+	private static final long HEALTH_INTERVAL_MILLIS = 5_000;
+
+	/**
+	 * 	连续这么多次健康检查失败就重启
+	 */
+	private static final int MAX_HEALTH_FAILURES = 3;
+
+	/**
+	 * 	重启的退避间隔
+	 */
+	private static final long MIN_BACKOFF_MILLIS = 2_000;
+	private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+	/**
+	 * 	进程连续正常运行这么久之后，退避间隔才恢复到最小值
+	 */
+	private static final long STABLE_UPTIME_MILLIS = 5 * 60_000;
+
+	/**
+	 * 	这段时间内重启超过MAX_RESTARTS次就不再重启
+	 */
+	private static final long RESTART_WINDOW_MILLIS = 10 * 60_000;
+	private static final int MAX_RESTARTS = 5;
+
+	/**
+	 * 	挂起的请求最多等待的时间
+	 */
+	private static final long HOLD_TIMEOUT_MILLIS = 120_000;
+
+	/**
+	 * 	排空时最多等待正在处理的请求的时间
+	 */
+	private static final long DRAIN_TIMEOUT_MILLIS = 10 * 60_000;
+
+	/**
+	 * 	模型的启动参数，和loadModelAsyncFromCmd的参数对应
+	 */
+	public record LaunchSpec(
+			String llamaBinPath,
+			List<String> device,
+			Integer mg,
+			boolean enableVision,
+			String cmd,
+			String extraParams,
+			String chatTemplateFilePath,
+			int replicas) {
+	}
+
+	/**
+	 * 	守护状态
+	 */
+	public enum State {
+		/** 正常运行 */
+		RUNNING,
+		/** 排空中，新请求挂起 */
+		DRAINING,
+		/** 重启中，新请求挂起 */
+		RESTARTING,
+		/** 重启太多次，已放弃 */
+		FAILED
+	}
+
+	/**
+	 * 	单个模型的守护信息
+	 */
+	private static final class Supervised {
+		private final String modelId;
+		private volatile LaunchSpec spec;
+		private volatile LlamaCppProcess process;
+		private volatile State state = State.RUNNING;
+		private volatile CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile int healthFailures;
+		private volatile boolean probing;
+		private volatile long nextProbeAt;
+		private volatile Integer lastExitCode;
+		private volatile String lastReason;
+		private final List<Long> restartTimes = new ArrayList<>();
+		private volatile long backoff = MIN_BACKOFF_MILLIS;
+		private volatile long startedAt;
+
+		private Supervised(String modelId) {
+			this.modelId = modelId;
+		}
+	}
+
+	/**
+	 * 	单个副本（不包括主进程）的守护信息
+	 */
+	private static final class SupervisedReplica {
+		private final String modelId;
+		private final int index;
+		private final ReplicaGroup group;
+		private volatile BooleanSupplier relaunch;
+		private final List<Long> restartTimes = new ArrayList<>();
+		private long backoff = MIN_BACKOFF_MILLIS;
+		private volatile long startedAt;
+
+		private SupervisedReplica(String modelId, int index, ReplicaGroup group) {
+			this.modelId = modelId;
+			this.index = index;
+			this.group = group;
+		}
+	}
+
+	private final Map<String, Supervised> models = new ConcurrentHashMap<>();
+	private final Map<String, SupervisedReplica> replicas = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofVirtual().name("llama-supervisor-", 0).factory());
+	private final HttpClient httpClient = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(3))
+			.executor(Executors.newVirtualThreadPerTaskExecutor())
+			.build();
+
+	public static ProcessSupervisor getInstance() {
+		return INSTANCE;
+	}
+
+	private ProcessSupervisor() {
+		this.scheduler.scheduleWithFixedDelay(this::probeAll, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 	模型加载成功后登记，重启成功后也会再次调用。
+	 * @param modelId
+	 * @param process
+	 * @param spec
+	 */
+	public void watch(String modelId, LlamaCppProcess process, LaunchSpec spec) {
+		Supervised s = this.models.computeIfAbsent(modelId, Supervised::new);
+		s.spec = spec;
+		s.process = process;
+		s.healthFailures = 0;
+		s.nextProbeAt = System.currentTimeMillis() + HEALTH_INTERVAL_MILLIS;
+		s.startedAt = System.currentTimeMillis();
+		process.setExitHandler(code -> this.onUnexpectedExit(s, process, code));
+		synchronized (s) {
+			s.state = State.RUNNING;
+			s.ready.complete(null);
+		}
+	}
+
+	/**
+	 * 	副本加入组之后登记，崩溃重启成功后也会再次调用。
+	 * @param modelId
+	 * @param group 副本所在的组，模型重启后换成新的组，旧组的副本不再重启
+	 * @param index 副本序号
+	 * @param process
+	 * @param relaunch 重新启动这个副本，阻塞到加载结束，返回是否成功
+	 */
+	public void watchReplica(String modelId, ReplicaGroup group, int index, LlamaCppProcess process, BooleanSupplier relaunch) {
+		SupervisedReplica r = this.replicas.compute(modelId + "#" + index,
+				(k, old) -> old != null && old.group == group ? old : new SupervisedReplica(modelId, index, group));
+		r.relaunch = relaunch;
+		r.startedAt = System.currentTimeMillis();
+		process.setExitHandler(code -> this.onReplicaExit(r, process, code));
+		// 加载完成到这里之间退出的进程不会再触发回调
+		if (!process.isRunning()) {
+			this.onReplicaExit(r, process, -1);
+		}
+	}
+
+	/**
+	 * 	用户主动停止模型时取消守护，挂起的请求会拿到空端口。
+	 * @param modelId
+	 */
+	public void unwatch(String modelId) {
+		Supervised s = modelId == null ? null : this.models.remove(modelId);
+		if (modelId != null) {
+			this.replicas.values().removeIf(r -> r.modelId.equals(modelId));
+		}
+		if (s != null) {
+			s.state = State.FAILED;
+			s.ready.complete(null);
+		}
+	}
+
+	/**
+	 * 	这个模型的请求是否需要先挂起等待。
+	 * @param modelId
+	 * @return
+	 */
+	public boolean isHolding(String modelId) {
+		Supervised s = modelId == null ? null : this.models.get(modelId);
+		return s != null && (s.state == State.DRAINING || s.state == State.RESTARTING);
+	}
+
+	/**
+	 * 	等模型可用后返回端口，并把这个请求计入正在处理的请求数，请求结束后必须调用{@link #requestFinished(String)}。
+	 * 	检查状态和计数在同一把锁里完成，排空线程看到没有请求时不会再有请求拿到旧端口；排空或重启期间一直等待。
+	 * 	会阻塞，只能在工作线程里调用。
+	 * @param modelId
+	 * @return 模型不可用时返回null，这时不计数
+	 */
+	public Integer acquire(String modelId) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Supervised s = modelId == null ? null : this.models.get(modelId);
+		if (s == null) {
+			return manager.getModelPort(modelId);
+		}
+		long deadline = System.currentTimeMillis() + HOLD_TIMEOUT_MILLIS;
+		while (true) {
+			CompletableFuture<Void> ready;
+			synchronized (s) {
+				if (s.state == State.RUNNING) {
+					Integer port = manager.getModelPort(modelId);
+					if (port != null) {
+						s.inFlight.incrementAndGet();
+					}
+					return port;
+				}
+				if (s.state == State.FAILED || this.models.get(modelId) != s) {
+					return manager.getModelPort(modelId);
+				}
+				ready = s.ready;
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				logger.info("等待模型重启超时: {}", modelId);
+				return null;
+			}
+			try {
+				ready.get(wait, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				logger.info("等待模型重启超时: {}", modelId);
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 	一个请求转发结束（包括流式响应结束）。
+	 * @param modelId
+	 */
+	public void requestFinished(String modelId) {
+		Supervised s = modelId == null ? null : this.models.get(modelId);
+		if (s != null) {
+			s.inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 	排空后重启，用于修改启动参数后生效。
+	 * @param modelId
+	 * @param spec 新的启动参数，null表示使用保存的启动配置
+	 * @return 模型不在守护中时返回false
+	 */
+	public boolean drainAndRestart(String modelId, LaunchSpec spec) {
+		Supervised s = modelId == null ? null : this.models.get(modelId);
+		if (s == null) {
+			return false;
+		}
+		LaunchSpec next = spec != null ? spec : savedLaunchSpec(modelId, s.spec);
+		synchronized (s) {
+			if (s.state != State.RUNNING) {
+				return false;
+			}
+			s.ready = new CompletableFuture<>();
+			s.state = State.DRAINING;
+			s.lastReason = "排空重启";
+		}
+		logger.info("开始排空模型: {}，正在处理的请求: {}", modelId, s.inFlight.get());
+		Thread.ofVirtual().name("llama-drain-" + modelId).start(() -> {
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+			while (true) {
+				synchronized (s) {
+					// 排空期间进程崩溃的话已经按崩溃重启了
+					if (this.models.get(modelId) != s || s.state != State.DRAINING) {
+						return;
+					}
+					// DRAINING状态下acquire不会再计数，这里看到0就不会再有请求用旧端口
+					if (s.inFlight.get() <= 0 || System.currentTimeMillis() >= deadline) {
+						s.spec = next;
+						s.state = State.RESTARTING;
+						break;
+					}
+				}
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			// 主动重启，不计入崩溃重启的次数
+			this.restart(s, false);
+		});
+		return true;
+	}
+
+	/**
+	 * 	进程不是被主动停止的，视为崩溃。
+	 */
+	private void onUnexpectedExit(Supervised s, LlamaCppProcess process, int exitCode) {
+		if (this.models.get(s.modelId) != s || s.process != process) {
+			return;
+		}
+		logger.info("模型进程意外退出: {}，退出码: {}", s.modelId, exitCode);
+		s.lastExitCode = exitCode;
+		LlamaServerManager.getInstance().removeExitedProcess(s.modelId, process);
+		LlamaServer.sendModelStopEvent(s.modelId, false, "模型进程意外退出，退出码: " + exitCode + "，准备重启");
+		this.scheduleRestart(s, "进程退出，退出码: " + exitCode, false);
+	}
+
+	/**
+	 * 	副本进程不是被主动停止的，移出轮转后按退避重启。
+	 */
+	private void onReplicaExit(SupervisedReplica r, LlamaCppProcess process, int exitCode) {
+		if (!r.group.markDead(process)) {
+			return;
+		}
+		logger.info("模型副本进程意外退出: {} #{}，退出码: {}", r.modelId, r.index, exitCode);
+		this.scheduleReplicaRestart(r, "进程退出，退出码: " + exitCode);
+	}
+
+	/**
+	 * 	按退避间隔安排副本重启，模型已经停止或重启过时不再处理。
+	 */
+	private void scheduleReplicaRestart(SupervisedReplica r, String reason) {
+		String key = r.modelId + "#" + r.index;
+		if (this.replicas.get(key) != r || LlamaServerManager.getInstance().getReplicaGroup(r.modelId) != r.group) {
+			this.replicas.remove(key, r);
+			return;
+		}
+		long delay;
+		synchronized (r) {
+			long now = System.currentTimeMillis();
+			if (now - r.startedAt >= STABLE_UPTIME_MILLIS) {
+				r.backoff = MIN_BACKOFF_MILLIS;
+			}
+			r.restartTimes.removeIf(t -> now - t > RESTART_WINDOW_MILLIS);
+			if (r.restartTimes.size() >= MAX_RESTARTS) {
+				logger.info("模型副本 {} #{} 在{}分钟内重启了{}次，不再重启", r.modelId, r.index, RESTART_WINDOW_MILLIS / 60_000, r.restartTimes.size());
+				this.replicas.remove(key, r);
+				return;
+			}
+			r.restartTimes.add(now);
+			delay = r.backoff;
+			r.backoff = Math.min(MAX_BACKOFF_MILLIS, r.backoff * 2);
+		}
+		logger.info("{}ms后重启模型副本: {} #{}，原因: {}", delay, r.modelId, r.index, reason);
+		// 副本加载会阻塞很久，不能占用守护的调度线程
+		this.scheduler.schedule(() -> Thread.ofVirtual().name("llama-replica-restart-" + key).start(() -> {
+			if (this.replicas.get(key) != r || LlamaServerManager.getInstance().getReplicaGroup(r.modelId) != r.group) {
+				return;
+			}
+			if (r.relaunch.getAsBoolean()) {
+				logger.info("模型副本重启完成: {} #{}", r.modelId, r.index);
+			} else {
+				this.scheduleReplicaRestart(r, "重新加载失败");
+			}
+		}), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 	按退避间隔安排重启。
+	 */
+	private void scheduleRestart(Supervised s, String reason, boolean retry) {
+		synchronized (s) {
+			if (s.state == State.FAILED || (!retry && s.state == State.RESTARTING)) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			s.restartTimes.removeIf(t -> now - t > RESTART_WINDOW_MILLIS);
+			if (s.restartTimes.size() >= MAX_RESTARTS) {
+				logger.info("模型 {} 在{}分钟内重启了{}次，不再重启", s.modelId, RESTART_WINDOW_MILLIS / 60_000, s.restartTimes.size());
+				s.state = State.FAILED;
+				s.lastReason = reason;
+				this.models.remove(s.modelId, s);
+				s.ready.complete(null);
+				LlamaServer.sendModelStopEvent(s.modelId, false, "模型重启次数过多，已停止守护: " + reason);
+				return;
+			}
+			s.restartTimes.add(now);
+			if (s.ready.isDone()) {
+				s.ready = new CompletableFuture<>();
+			}
+			s.state = State.RESTARTING;
+			s.lastReason = reason;
+			long delay = s.backoff;
+			s.backoff = Math.min(MAX_BACKOFF_MILLIS, s.backoff * 2);
+			logger.info("{}ms后重启模型: {}，原因: {}", delay, s.modelId, reason);
+			this.scheduler.schedule(() -> this.restart(s, true), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 	停掉旧进程，用保存的参数重新加载。
+	 * @param crash 是否是崩溃后的重启，失败时继续按退避重试
+	 */
+	private void restart(Supervised s, boolean crash) {
+		if (this.models.get(s.modelId) != s) {
+			return;
+		}
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		LlamaCppProcess old = s.process;
+		if (old != null) {
+			// 主动停止，不会再触发退出回调
+			old.setExitHandler(null);
+			old.stop();
+			manager.removeExitedProcess(s.modelId, old);
+		}
+		LaunchSpec spec = s.spec;
+		if (spec == null) {
+			this.giveUp(s, "没有启动参数");
+			return;
+		}
+		manager.reloadModel(s.modelId, spec).whenComplete((ok, err) -> {
+			if (this.models.get(s.modelId) != s) {
+				return;
+			}
+			if (Boolean.TRUE.equals(ok)) {
+				// watch里已经恢复为RUNNING并放行挂起的请求
+				if (!crash) {
+					s.backoff = MIN_BACKOFF_MILLIS;
+				}
+				logger.info("模型重启完成: {}", s.modelId);
+				return;
+			}
+			this.scheduleRestart(s, "重新加载失败", true);
+		});
+	}
+
+	private void giveUp(Supervised s, String reason) {
+		s.state = State.FAILED;
+		s.lastReason = reason;
+		this.models.remove(s.modelId, s);
+		s.ready.complete(null);
+		LlamaServer.sendModelStopEvent(s.modelId, false, "模型无法重启: " + reason);
+	}
+
+	/**
+	 * 	对到期的模型发起健康检查。
+	 */
+	private void probeAll() {
+		long now = System.currentTimeMillis();
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		for (Supervised s : this.models.values()) {
+			if (s.state != State.RUNNING || s.probing || now < s.nextProbeAt) {
+				continue;
+			}
+			Integer port = manager.getModelPort(s.modelId);
+			if (port == null) {
+				continue;
+			}
+			s.probing = true;
+			HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/health"))
+					.timeout(Duration.ofSeconds(5))
+					.GET()
+					.build();
+			this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+				try {
+					if (err == null && resp.statusCode() == 200) {
+						s.healthFailures = 0;
+						// 刚重启就又崩溃的进程每次都能通过几次检查，只有稳定运行一段时间后才恢复退避间隔
+						if (System.currentTimeMillis() - s.startedAt >= STABLE_UPTIME_MILLIS) {
+							s.backoff = MIN_BACKOFF_MILLIS;
+						}
+						return;
+					}
+					s.healthFailures++;
+					logger.info("模型健康检查失败: {}，连续{}次", s.modelId, s.healthFailures);
+					if (s.healthFailures >= MAX_HEALTH_FAILURES && s.state == State.RUNNING) {
+						this.scheduleRestart(s, "健康检查连续失败" + s.healthFailures + "次", false);
+					}
+				} finally {
+					s.nextProbeAt = System.currentTimeMillis() + HEALTH_INTERVAL_MILLIS;
+					s.probing = false;
+				}
+			});
+		}
+	}
+
+	/**
+	 * 	从保存的启动配置生成启动参数，没有时用原来的。
+	 */
+	@SuppressWarnings("unchecked")
+	private static LaunchSpec savedLaunchSpec(String modelId, LaunchSpec fallback) {
+		Map<String, Object> cfg = ConfigManager.getInstance().loadAllLaunchConfigs().get(modelId);
+		if (cfg == null || !(cfg.get("llamaBinPath") instanceof String bin) || bin.isBlank()) {
+			return fallback;
+		}
+		List<String> device = null;
+		if (cfg.get("device") instanceof List<?> list) {
+			device = new ArrayList<>();
+			for (Object o : list) {
+				if (o != null) {
+					device.add(String.valueOf(o));
+				}
+			}
+		}
+		Integer mg = cfg.get("mg") instanceof Number n ? n.intValue() : null;
+		boolean vision = cfg.get("enableVision") instanceof Boolean b ? b : fallback == null || fallback.enableVision();
+		String cmd = cfg.get("cmd") instanceof String c ? c : "";
+		String extra = cfg.get("extraParams") instanceof String e ? e : "";
+		String template = cfg.get("chatTemplateFile") instanceof String t ? t : (fallback == null ? null : fallback.chatTemplateFilePath());
+		int replicas = cfg.get("replicas") instanceof Number r ? Math.max(1, r.intValue()) : 1;
+		return new LaunchSpec(bin.trim(), device, mg, vision, cmd.trim(), extra.trim(), template, replicas);
+	}
+
+	/**
+	 * 	所有守护中的模型的状态。
+	 * @return
+	 */
+	public JsonArray toJson() {
+		JsonArray arr = new JsonArray();
+		for (Supervised s : this.models.values()) {
+			JsonObject o = new JsonObject();
+			o.addProperty("modelId", s.modelId);
+			o.addProperty("state", s.state.name());
+			o.addProperty("inFlight", s.inFlight.get());
+			o.addProperty("healthFailures", s.healthFailures);
+			synchronized (s) {
+				o.addProperty("recentRestarts", s.restartTimes.size());
+			}
+			o.addProperty("lastExitCode", s.lastExitCode);
+			o.addProperty("lastReason", s.lastReason);
+			LlamaCppProcess p = s.process;
+			o.addProperty("pid", p == null ? -1 : p.getPid());
+			ReplicaGroup group = LlamaServerManager.getInstance().getReplicaGroup(s.modelId);
+			if (group != null) {
+				o.add("replicaGroup", group.toJson());
+			}
+			arr.add(o);
+		}
+		return arr;
+	}
+
+	/**
+	 * 	程序退出时停止守护。
+	 */
+	public void shutdown() {
+		this.models.clear();
+		this.replicas.clear();
+		this.scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,596 @@
+package org.mark.llamacpp.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.server.relay.StreamAdapter;
+import org.mark.llamacpp.server.relay.StreamRelay;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+
+/**
+ * 	同一个模型的llama-server进程（副本），按正在处理的请求数最少来选择。
+ * 	<p>
+ * 	第0个副本就是LlamaServerManager里登记的主进程，其余副本在主进程加载成功后依次启动，端口连续。
+ * 	单进程的模型也有一个只含主进程的组，用来做slot亲和。
+ * 	<p>
+ * 	带亲和键的请求（同一段对话）优先回到上次的副本，只有那个副本明显比最空闲的副本忙时才换。
+ * 	只有记得上次用的slot、并且这个slot空闲时才通过id_slot指定它；其余情况都不指定，
+ * 	由llama-server按提示词相似度自己选slot。
+ * 	<p>
+ * 	没有指定slot的请求从自己的响应里学习用的是哪个slot：响应里带id_slot时直接用；
+ * 	流式响应收到第一块数据时查询一次那个副本的/slots，正在处理、又没有被其他已知slot的请求占用的slot只有一个时，
+ * 	就是这个请求的。学到之后这个slot在请求结束前算作忙，下一轮对话再指定它。
+ */
+public class ReplicaGroup {
+
+	/**
+	 * 	亲和表的容量，超出后淘汰最久没用的
+	 */
+	private static final int AFFINITY_CAPACITY = 4096;
+
+	/**
+	 * 	亲和副本最多可以比最空闲的副本多几个请求
+	 */
+	private static final int AFFINITY_SLACK = 2;
+
+	/**
+	 * 	参与计算亲和键的前缀长度（字符）
+	 */
+	private static final int AFFINITY_PREFIX_CHARS = 4096;
+
+	/**
+	 * 	主进程的/slots状态在这个时间内才用来判断slot是否空闲
+	 */
+	private static final long SLOTS_FRESH_MILLIS = 2000;
+
+	private static final byte[] ID_SLOT_BYTES = "\"id_slot\"".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 	学习slot时查询/slots用的客户端
+	 */
+	private static final HttpClient SLOTS_CLIENT = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(2))
+			.build();
+
+	/**
+	 * 	一个副本
+	 */
+	public static final class Replica {
+		private final int index;
+		private final LlamaCppProcess process;
+		private final int port;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile boolean alive = true;
+		/**
+		 * 	每个slot上已知正在处理的请求数（指定了slot的和学到了slot的），由ReplicaGroup的锁保护
+		 */
+		private final int[] slotBusy;
+
+		Replica(int index, LlamaCppProcess process, int port, int slotCount) {
+			this.index = index;
+			this.process = process;
+			this.port = port;
+			this.slotBusy = new int[Math.max(0, slotCount)];
+		}
+
+		public int getIndex() {
+			return this.index;
+		}
+
+		public LlamaCppProcess getProcess() {
+			return this.process;
+		}
+
+		public int getPort() {
+			return this.port;
+		}
+
+		public int getOutstanding() {
+			return this.outstanding.get();
+		}
+
+		public boolean isAlive() {
+			return this.alive;
+		}
+	}
+
+	/**
+	 * 	一次请求占用的副本，请求结束（包括流式响应结束）时必须release。
+	 */
+	public static final class Lease {
+		private final String modelId;
+		private final int port;
+		private final ReplicaGroup group;
+		private final Replica replica;
+		private final int slot;
+		/**
+		 * 	要学习slot的亲和键，0表示不需要
+		 */
+		private final long learnKey;
+		/**
+		 * 	从响应里学到的slot，-1表示还不知道，由ReplicaGroup的锁保护
+		 */
+		private int learned = -1;
+		private final AtomicBoolean probed = new AtomicBoolean(false);
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		Lease(String modelId, int port, ReplicaGroup group, Replica replica, int slot) {
+			this(modelId, port, group, replica, slot, 0);
+		}
+
+		Lease(String modelId, int port, ReplicaGroup group, Replica replica, int slot, long learnKey) {
+			this.modelId = modelId;
+			this.port = port;
+			this.group = group;
+			this.replica = replica;
+			this.slot = slot;
+			this.learnKey = learnKey;
+		}
+
+		public int port() {
+			return this.port;
+		}
+
+		/**
+		 * 	副本序号，没有副本组时为0
+		 * @return
+		 */
+		public int replicaIndex() {
+			return this.replica == null ? 0 : this.replica.index;
+		}
+
+		/**
+		 * 	指定的slot，-1表示不指定
+		 * @return
+		 */
+		public int slot() {
+			return this.slot;
+		}
+
+		/**
+		 * 	把id_slot加到请求体里。请求体顶层已经有id_slot或者没有指定slot时原样返回。
+		 * @param body JSON对象格式的请求体
+		 * @return
+		 */
+		public String applySlot(String body) {
+			if (this.slot < 0 || body == null) {
+				return body;
+			}
+			if (body.contains("\"id_slot\"")) {
+				// 可能只是消息内容里出现了这几个字，解析一下看是不是顶层字段
+				JsonObject json = JsonUtil.tryParseObject(body);
+				if (json == null || json.has("id_slot")) {
+					return body;
+				}
+			}
+			int brace = body.indexOf('{');
+			if (brace < 0) {
+				return body;
+			}
+			// 只在开头插入一个字段，不需要重新序列化整个请求
+			String rest = body.substring(brace + 1).stripLeading();
+			String sep = rest.startsWith("}") ? "" : ",";
+			return body.substring(0, brace + 1) + "\"id_slot\":" + this.slot + sep + rest;
+		}
+
+		/**
+		 * 	包装流式转发的适配器，从这个请求自己的响应里学习slot。
+		 * @param adapter
+		 * @return 不需要学习时返回原来的适配器
+		 */
+		public StreamAdapter observe(StreamAdapter adapter) {
+			if (this.learnKey == 0) {
+				return adapter;
+			}
+			return new StreamAdapter() {
+				@Override
+				public String name() {
+					return adapter.name();
+				}
+
+				@Override
+				public void headers(HttpHeaders headers) {
+					adapter.headers(headers);
+				}
+
+				@Override
+				public String contentType() {
+					return adapter.contentType();
+				}
+
+				@Override
+				public boolean sse() {
+					return adapter.sse();
+				}
+
+				@Override
+				public void onData(StreamRelay.Chunk chunk) throws IOException {
+					if (chunk.contains(ID_SLOT_BYTES)) {
+						Lease.this.learnFrom(chunk.json());
+					}
+					if (Lease.this.probed.compareAndSet(false, true)) {
+						// 已经开始生成了，这个请求正占着某个slot
+						Lease.this.group.probeSlot(Lease.this);
+					}
+					adapter.onData(chunk);
+				}
+
+				@Override
+				public void onEnd(StreamRelay.Chunk chunk) throws IOException {
+					adapter.onEnd(chunk);
+				}
+			};
+		}
+
+		/**
+		 * 	从非流式响应里学习slot，响应里没有id_slot时什么也不做。
+		 * @param body
+		 */
+		public void observe(String body) {
+			if (this.learnKey != 0 && body != null && body.contains("\"id_slot\"")) {
+				this.learnFrom(JsonUtil.tryParseObject(body));
+			}
+		}
+
+		/**
+		 * 	响应顶层或者__verbose里的id_slot
+		 */
+		private void learnFrom(JsonObject json) {
+			if (json == null) {
+				return;
+			}
+			JsonElement id = json.get("id_slot");
+			if (id == null && json.get("__verbose") instanceof JsonObject verbose) {
+				id = verbose.get("id_slot");
+			}
+			if (id != null && id.isJsonPrimitive() && id.getAsJsonPrimitive().isNumber()) {
+				this.group.learned(this, id.getAsInt());
+			}
+		}
+
+		public void release() {
+			if (!this.released.compareAndSet(false, true)) {
+				return;
+			}
+			if (this.replica != null) {
+				synchronized (this.group) {
+					this.replica.outstanding.decrementAndGet();
+					int busy = this.slot >= 0 ? this.slot : this.learned;
+					if (busy >= 0) {
+						this.replica.slotBusy[busy]--;
+					}
+				}
+			}
+			ProcessSupervisor.getInstance().requestFinished(this.modelId);
+		}
+	}
+
+	private final String modelId;
+	/**
+	 * 	每个进程的slot数，0表示不知道，这时不指定slot
+	 */
+	private final int slotCount;
+	private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+	/**
+	 * 	亲和键到上次的副本和slot：高32位是副本序号，低32位是slot，slot为-1表示没有指定
+	 */
+	private final Map<Long, Long> affinity = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return this.size() > AFFINITY_CAPACITY;
+		}
+	};
+	private int rotation;
+	private long affinityLookups;
+	private long affinityHits;
+	private long pinnedRequests;
+	private long learnedSlots;
+
+	public ReplicaGroup(String modelId, int slotCount) {
+		this.modelId = modelId;
+		this.slotCount = Math.max(0, slotCount);
+	}
+
+	public String getModelId() {
+		return this.modelId;
+	}
+
+	void add(int index, LlamaCppProcess process, int port) {
+		this.replicas.add(new Replica(index, process, port, this.slotCount));
+	}
+
+	/**
+	 * 	副本进程退出后从轮转里移除，之后由ProcessSupervisor按退避重启。
+	 * @param process
+	 * @return 这个进程是否还在组里
+	 */
+	boolean markDead(LlamaCppProcess process) {
+		boolean removed = false;
+		for (Replica r : this.replicas) {
+			if (r.process == process) {
+				r.alive = false;
+				removed |= this.replicas.remove(r);
+			}
+		}
+		return removed;
+	}
+
+	public List<Replica> getReplicas() {
+		return List.copyOf(this.replicas);
+	}
+
+	/**
+	 * 	选择一个副本（和slot）并计数。
+	 * @param affinityKey 亲和键，0表示没有
+	 * @param pinSlot 目标接口是否支持id_slot
+	 * @return 没有可用副本时返回null
+	 */
+	synchronized Lease acquire(long affinityKey, boolean pinSlot) {
+		List<Replica> list = this.replicas;
+		int n = list.size();
+		if (n == 0) {
+			return null;
+		}
+		// 从轮转位置开始找最空闲的，负载相同时把请求分散开
+		int start = Math.floorMod(this.rotation++, n);
+		Replica best = null;
+		for (int i = 0; i < n; i++) {
+			Replica r = list.get((start + i) % n);
+			if (r.alive && (best == null || r.outstanding.get() < best.outstanding.get())) {
+				best = r;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		Replica chosen = best;
+		int preferredSlot = -1;
+		boolean affine = false;
+		if (affinityKey != 0) {
+			this.affinityLookups++;
+			Long packed = this.affinity.get(affinityKey);
+			if (packed != null) {
+				int index = (int) (packed >> 32);
+				for (Replica r : list) {
+					if (r.index == index && r.alive && r.outstanding.get() <= best.outstanding.get() + AFFINITY_SLACK) {
+						chosen = r;
+						preferredSlot = (int) packed.longValue();
+						affine = true;
+						break;
+					}
+				}
+			}
+		}
+		if (affine) {
+			this.affinityHits++;
+		}
+		int slot = -1;
+		if (pinSlot && affine && this.isSlotFree(chosen, preferredSlot)) {
+			slot = preferredSlot;
+		}
+		if (affinityKey != 0) {
+			// 同一个副本上没有指定slot时先保留记住的slot，从响应里学到后再更新
+			int remembered = affine ? preferredSlot : -1;
+			this.affinity.put(affinityKey, ((long) chosen.index << 32) | (remembered & 0xffffffffL));
+		}
+		chosen.outstanding.incrementAndGet();
+		long learnKey = 0;
+		if (slot >= 0) {
+			chosen.slotBusy[slot]++;
+			this.pinnedRequests++;
+		} else if (pinSlot && affinityKey != 0 && this.slotCount > 0) {
+			learnKey = affinityKey;
+		}
+		return new Lease(this.modelId, chosen.port, this, chosen, slot, learnKey);
+	}
+
+	/**
+	 * 	slot是否空闲：没有已知在用它的请求，主进程刚查到的/slots也没有显示它在处理
+	 * 	（可能是Anthropic这类不指定slot的请求在用）。
+	 */
+	private boolean isSlotFree(Replica replica, int slot) {
+		if (slot < 0 || slot >= this.slotCount || replica.slotBusy[slot] != 0) {
+			return false;
+		}
+		if (replica.index == 0) {
+			JsonArray latest = SlotMonitor.getInstance().getLatestSlots(this.modelId, SLOTS_FRESH_MILLIS);
+			if (latest != null) {
+				for (JsonElement el : latest) {
+					JsonObject o = el.getAsJsonObject();
+					if (o.has("id") && o.get("id").getAsInt() == slot && o.get("is_processing").getAsBoolean()) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	记下请求用的slot：请求结束前这个slot算作忙，亲和表里这段对话指向它。
+	 */
+	private synchronized void learned(Lease lease, int slot) {
+		if (lease.learned >= 0 || lease.released.get() || slot < 0 || slot >= this.slotCount) {
+			return;
+		}
+		lease.learned = slot;
+		lease.replica.slotBusy[slot]++;
+		Long packed = this.affinity.get(lease.learnKey);
+		if (packed != null && (int) (packed >> 32) == lease.replica.index) {
+			this.affinity.put(lease.learnKey, ((long) lease.replica.index << 32) | slot);
+			this.learnedSlots++;
+		}
+	}
+
+	/**
+	 * 	请求已经开始生成时查询副本的/slots。正在处理、又没有已知请求占用的slot只有一个时，就是这个请求的。
+	 */
+	private void probeSlot(Lease lease) {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + lease.replica.port + "/slots"))
+				.timeout(Duration.ofSeconds(5))
+				.GET()
+				.build();
+		SLOTS_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((resp, err) -> {
+			if (err != null || resp.statusCode() != 200) {
+				return;
+			}
+			boolean[] processing = parseProcessing(resp.body(), this.slotCount);
+			if (processing == null) {
+				return;
+			}
+			synchronized (this) {
+				int candidate = -1;
+				for (int i = 0; i < processing.length; i++) {
+					if (processing[i] && lease.replica.slotBusy[i] == 0) {
+						if (candidate >= 0) {
+							return;
+						}
+						candidate = i;
+					}
+				}
+				if (candidate >= 0) {
+					this.learned(lease, candidate);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 	从/slots的响应里取出每个slot是否在处理，格式不对时返回null
+	 */
+	private static boolean[] parseProcessing(String body, int slotCount) {
+		try {
+			JsonElement el = JsonParser.parseString(body);
+			if (!el.isJsonArray() || el.getAsJsonArray().size() != slotCount) {
+				return null;
+			}
+			boolean[] processing = new boolean[slotCount];
+			for (JsonElement item : el.getAsJsonArray()) {
+				JsonObject slot = item.getAsJsonObject();
+				int id = slot.get("id").getAsInt();
+				if (id < 0 || id >= slotCount) {
+					return null;
+				}
+				processing[id] = slot.has("is_processing") && slot.get("is_processing").getAsBoolean();
+			}
+			return processing;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 	停止除主进程以外的全部副本。
+	 */
+	void stopExtras() {
+		for (Replica r : this.replicas) {
+			if (r.index == 0) {
+				continue;
+			}
+			r.alive = false;
+			r.process.setExitHandler(null);
+			r.process.stop();
+		}
+		this.replicas.removeIf(r -> r.index != 0);
+	}
+
+	public JsonObject toJson() {
+		JsonObject o = new JsonObject();
+		o.addProperty("modelId", this.modelId);
+		JsonArray arr = new JsonArray();
+		for (Replica r : this.replicas) {
+			JsonObject item = new JsonObject();
+			item.addProperty("index", r.index);
+			item.addProperty("port", r.port);
+			item.addProperty("pid", r.process.getPid());
+			item.addProperty("outstanding", r.outstanding.get());
+			arr.add(item);
+		}
+		o.add("replicas", arr);
+		o.addProperty("slotsPerReplica", this.slotCount);
+		synchronized (this) {
+			o.addProperty("affinityEntries", this.affinity.size());
+			o.addProperty("affinityLookups", this.affinityLookups);
+			o.addProperty("affinityHits", this.affinityHits);
+			o.addProperty("pinnedRequests", this.pinnedRequests);
+			o.addProperty("learnedSlots", this.learnedSlots);
+		}
+		return o;
+	}
+
+	/**
+	 * 	从请求体里计算亲和键：system提示词加上第一条用户消息。
+	 * 	同一段对话后续的请求只是在后面追加消息，这部分不变，键也不变；第一轮和第二轮也一样。
+	 * @param body OpenAI、Anthropic或Ollama格式的请求体
+	 * @return 没有可用内容时返回0
+	 */
+	public static long affinityKey(JsonObject body) {
+		if (body == null) {
+			return 0;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String field : new String[] { "system", "instructions" }) {
+			JsonElement system = body.get(field);
+			if (system != null && !system.isJsonNull()) {
+				sb.append(system.isJsonPrimitive() ? system.getAsString() : system.toString());
+			}
+		}
+		JsonElement messages = body.has("messages") ? body.get("messages") : body.get("input");
+		if (messages != null && messages.isJsonArray()) {
+			// 开头的system消息和第一条用户消息，之后的助手回复每轮都会变长，不参与计算
+			for (JsonElement m : messages.getAsJsonArray()) {
+				String role = m.isJsonObject() ? JsonUtil.getJsonString(m.getAsJsonObject(), "role", "") : "";
+				if ("system".equals(role) || "developer".equals(role)) {
+					sb.append('\n').append(m.toString());
+					continue;
+				}
+				if ("user".equals(role) || !m.isJsonObject()) {
+					sb.append('\n').append(m.toString());
+				}
+				break;
+			}
+		} else if (messages != null && messages.isJsonPrimitive()) {
+			sb.append(messages.getAsString());
+		}
+		JsonElement prompt = body.get("prompt");
+		if (prompt != null && prompt.isJsonPrimitive()) {
+			sb.append(prompt.getAsString());
+		}
+		if (sb.length() == 0) {
+			return 0;
+		}
+		String prefix = sb.length() > AFFINITY_PREFIX_CHARS ? sb.substring(0, AFFINITY_PREFIX_CHARS) : sb.toString();
+		long h = fnv1a(prefix.getBytes(StandardCharsets.UTF_8));
+		return h == 0 ? 1 : h;
+	}
+
+	private static long fnv1a(byte[] data) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : data) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,278 @@
+package org.mark.llamacpp.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.mark.llamacpp.server.websocket.WebSocketManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * 	按需的slot监控。
+ * 	<p>
+ * 	只有在有订阅了slots主题的WebSocket连接或者内部监听者时才会请求/slots；有slot在处理请求时频繁查询，
+ * 	空闲时逐步放慢到十几秒一次；模型开始或结束处理请求时（从日志里看到）立即查一次。
+ * 	结果和上一次相同就不推送。所有模型共用一个HttpClient，连接保持复用。
+ */
+public class SlotMonitor {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlotMonitor.class);
+
+	private static final SlotMonitor INSTANCE = new SlotMonitor();
+
+	private static final long TICK_MILLIS = 250;
+
+	/**
+	 * 	有slot在处理时的查询间隔
+	 */
+	private static final long BUSY_INTERVAL_MILLIS = 500;
+
+	/**
+	 * 	空闲时的最长查询间隔
+	 */
+	private static final long MAX_IDLE_INTERVAL_MILLIS = 15_000;
+
+	/**
+	 * 	单个模型的监控状态
+	 */
+	private static final class ModelState {
+		private volatile long nextPollAt;
+		private volatile long interval = BUSY_INTERVAL_MILLIS;
+		private volatile boolean inFlight;
+		private volatile JsonArray last;
+		private volatile long polledAt;
+	}
+
+	private final Map<String, ModelState> states = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<BiConsumer<String, JsonArray>> listeners = new CopyOnWriteArrayList<>();
+	private final HttpClient httpClient = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(5))
+			.executor(Executors.newVirtualThreadPerTaskExecutor())
+			.build();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofVirtual().name("llama-slots-", 0).factory());
+
+	private volatile boolean started;
+
+	public static SlotMonitor getInstance() {
+		return INSTANCE;
+	}
+
+	private SlotMonitor() {
+	}
+
+	/**
+	 * 	启动监控。
+	 */
+	public synchronized void start() {
+		if (this.started) {
+			return;
+		}
+		this.started = true;
+		this.scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 	注册内部监听者，slot状态变化时回调（模型ID，过滤后的slots）。有监听者时即使没有WebSocket连接也会查询。
+	 * @param listener
+	 */
+	public void addListener(BiConsumer<String, JsonArray> listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(BiConsumer<String, JsonArray> listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * 	把缓存的slot状态只发给刚订阅的连接，并尽快重新查询一次，其他连接不会重复收到。
+	 * @param connectionId
+	 */
+	public void sendSnapshot(String connectionId) {
+		WebSocketManager ws = WebSocketManager.getInstance();
+		for (Map.Entry<String, ModelState> e : this.states.entrySet()) {
+			ModelState s = e.getValue();
+			JsonArray last = s.last;
+			if (last != null) {
+				ws.sendModelSlotsEvent(connectionId, e.getKey(), last);
+			}
+			s.nextPollAt = 0;
+		}
+	}
+
+	/**
+	 * 	模型在maxAgeMillis毫秒内查到的slot状态，没有查过或者已经过时返回null。
+	 * @param modelId
+	 * @param maxAgeMillis
+	 * @return
+	 */
+	public JsonArray getLatestSlots(String modelId, long maxAgeMillis) {
+		ModelState s = modelId == null ? null : this.states.get(modelId);
+		return s == null || System.currentTimeMillis() - s.polledAt > maxAgeMillis ? null : s.last;
+	}
+
+	/**
+	 * 	模型的最近一次slot状态，没有时返回null。
+	 * @param modelId
+	 * @return
+	 */
+	public JsonArray getLatestSlots(String modelId) {
+		ModelState s = modelId == null ? null : this.states.get(modelId);
+		return s == null ? null : s.last;
+	}
+
+	/**
+	 * 	模型有活动（开始或结束处理请求），尽快查询一次。
+	 * @param modelId
+	 */
+	public void nudge(String modelId) {
+		if (modelId == null) {
+			return;
+		}
+		ModelState s = this.states.computeIfAbsent(modelId, k -> new ModelState());
+		s.interval = BUSY_INTERVAL_MILLIS;
+		s.nextPollAt = 0;
+	}
+
+	private void tick() {
+		try {
+			LlamaServerManager manager = LlamaServerManager.getInstance();
+			Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
+			this.states.keySet().removeIf(id -> !loaded.containsKey(id));
+			if (loaded.isEmpty()) {
+				return;
+			}
+			int subscribers = WebSocketManager.getInstance().getSubscriberCount(WebSocketManager.TOPIC_SLOTS);
+			if (subscribers == 0 && this.listeners.isEmpty()) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (String modelId : loaded.keySet()) {
+				if (modelId == null || modelId.isBlank()) {
+					continue;
+				}
+				ModelState s = this.states.computeIfAbsent(modelId, k -> new ModelState());
+				if (s.inFlight || now < s.nextPollAt) {
+					continue;
+				}
+				Integer port = manager.getModelPort(modelId);
+				if (port == null) {
+					continue;
+				}
+				this.poll(modelId, port, s);
+			}
+		} catch (Exception e) {
+			logger.info("轮询slots时发生错误", e);
+		}
+	}
+
+	private void poll(String modelId, int port, ModelState s) {
+		s.inFlight = true;
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/slots"))
+				.timeout(Duration.ofSeconds(10))
+				.GET()
+				.build();
+		this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((resp, err) -> {
+			try {
+				if (err != null || resp.statusCode() < 200 || resp.statusCode() >= 300) {
+					this.schedule(s, false);
+					return;
+				}
+				JsonArray filtered = filter(resp.body());
+				if (filtered == null) {
+					this.schedule(s, false);
+					return;
+				}
+				s.polledAt = System.currentTimeMillis();
+				boolean busy = false;
+				for (JsonElement el : filtered) {
+					if (el.getAsJsonObject().get("is_processing").getAsBoolean()) {
+						busy = true;
+						break;
+					}
+				}
+				this.schedule(s, busy);
+				if (!filtered.equals(s.last)) {
+					s.last = filtered;
+					LlamaServer.sendModelSlotsEvent(modelId, filtered);
+					for (BiConsumer<String, JsonArray> l : this.listeners) {
+						try {
+							l.accept(modelId, filtered);
+						} catch (Exception e) {
+							logger.info("slot监听者处理失败", e);
+						}
+					}
+				}
+			} finally {
+				s.inFlight = false;
+			}
+		});
+	}
+
+	/**
+	 * 	忙时固定间隔，空闲时间隔翻倍直到上限。
+	 */
+	private void schedule(ModelState s, boolean busy) {
+		s.interval = busy ? BUSY_INTERVAL_MILLIS : Math.min(MAX_IDLE_INTERVAL_MILLIS, s.interval * 2);
+		s.nextPollAt = System.currentTimeMillis() + s.interval;
+	}
+
+	/**
+	 * 	只保留前端需要的字段。
+	 * @param body
+	 * @return
+	 */
+	private static JsonArray filter(String body) {
+		JsonElement el;
+		try {
+			el = JsonParser.parseString(body);
+		} catch (Exception e) {
+			return null;
+		}
+		JsonArray slots = el != null && el.isJsonArray() ? el.getAsJsonArray()
+				: el != null && el.isJsonObject() && el.getAsJsonObject().has("slots") && el.getAsJsonObject().get("slots").isJsonArray()
+						? el.getAsJsonObject().getAsJsonArray("slots")
+						: null;
+		if (slots == null) {
+			return null;
+		}
+		JsonArray filtered = new JsonArray();
+		for (JsonElement item : slots) {
+			if (item == null || !item.isJsonObject()) {
+				continue;
+			}
+			JsonObject slot = item.getAsJsonObject();
+			JsonObject out = new JsonObject();
+			if (slot.has("id") && !slot.get("id").isJsonNull()) {
+				out.add("id", slot.get("id"));
+			}
+			boolean speculative = slot.has("speculative") && !slot.get("speculative").isJsonNull()
+					? slot.get("speculative").getAsBoolean()
+					: false;
+			boolean isProcessing = slot.has("is_processing") && !slot.get("is_processing").isJsonNull()
+					? slot.get("is_processing").getAsBoolean()
+					: false;
+			out.addProperty("speculative", speculative);
+			out.addProperty("is_processing", isProcessing);
+			filtered.add(out);
+		}
+		return filtered;
+	}
+}
@@ -234,7 +234,8 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 //				if (i == 0) {
 //					fileName = sanitizeFileName(req.getName());
 //				}
-				Map<String, Object> r = downloadService.createModelDownloadTask(url, targetDir.toString(), null);
+				String lfsOid = req.getLfsOids() == null ? null : trimToNull(req.getLfsOids().get(url));
+				Map<String, Object> r = downloadService.createModelDownloadTask(url, targetDir.toString(), null, lfsOid);
 				if (!Boolean.TRUE.equals(r.get("success"))) {
 					allSuccess = false;
 				}
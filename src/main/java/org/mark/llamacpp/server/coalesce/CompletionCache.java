@@ -0,0 +1,224 @@
+package org.mark.llamacpp.server.coalesce;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	确定性补全的响应缓存，默认关闭。
+ * 	<p>
+ * 	只缓存结果确定的请求（见{@link SingleFlight#isDeterministic(JsonObject)}），键是模型标识、接口和键排序后的请求体的SHA-256。
+ * 	非流式请求保存完整的响应体；流式请求保存写给客户端的全部SSE数据，命中时一次写出。
+ * 	条目超过ttlSeconds后失效，总字节数超过maxMegabytes时淘汰最久没用的。
+ * 	<p>
+ * 	请求头 Cache-Control: no-cache 跳过查找但会更新缓存，no-store 既不查也不存。
+ * 	配置在 config/completion_cache.json：enabled、maxMegabytes、ttlSeconds、maxEntryKilobytes。
+ */
+public final class CompletionCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompletionCache.class);
+
+	private static final long DEFAULT_MAX_MEGABYTES = 128;
+
+	private static final long DEFAULT_TTL_SECONDS = 3600;
+
+	private static final long DEFAULT_MAX_ENTRY_KILOBYTES = 4096;
+
+	private static final CompletionCache INSTANCE = new CompletionCache();
+
+	/**
+	 * 	缓存的响应
+	 * @param status HTTP状态码
+	 * @param body 响应体，流式请求时是全部SSE数据
+	 * @param stream 是否是流式响应
+	 * @param expiresAt 失效时间，毫秒
+	 */
+	public record Entry(int status, byte[] body, boolean stream, long expiresAt) {
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private final boolean enabled;
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private final long ttlMillis;
+	private long bytes;
+
+	private long lookups;
+	private long hits;
+	private long expired;
+	private long evictions;
+	private long bytesServed;
+
+	public static CompletionCache getInstance() {
+		return INSTANCE;
+	}
+
+	private CompletionCache() {
+		JsonObject cfg = readConfig();
+		this.enabled = cfg != null && cfg.has("enabled") && cfg.get("enabled").getAsBoolean();
+		this.maxBytes = Math.max(1, JsonUtil.getJsonLong(cfg, "maxMegabytes", DEFAULT_MAX_MEGABYTES)) * 1024 * 1024;
+		this.maxEntryBytes = Math.min(this.maxBytes, Math.max(1, JsonUtil.getJsonLong(cfg, "maxEntryKilobytes", DEFAULT_MAX_ENTRY_KILOBYTES)) * 1024);
+		this.ttlMillis = Math.max(1, JsonUtil.getJsonLong(cfg, "ttlSeconds", DEFAULT_TTL_SECONDS)) * 1000;
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * 	单条响应的上限，录制流式响应时超过就放弃
+	 * @return
+	 */
+	public long getMaxEntryBytes() {
+		return this.maxEntryBytes;
+	}
+
+	/**
+	 * 	计算缓存键。
+	 * @param modelId
+	 * @param endpoint 比如 /v1/chat/completions
+	 * @param request 请求体，stream不同的请求是不同的条目
+	 * @return 找不到模型文件时返回null，表示不缓存
+	 */
+	public static String key(String modelId, String endpoint, JsonObject request) {
+		String identity = modelIdentity(modelId);
+		if (identity == null) {
+			return null;
+		}
+		return SingleFlight.fingerprint(identity + "|" + endpoint, request);
+	}
+
+	/**
+	 * 	模型文件的路径、大小、修改时间，加上启动命令。换了文件或者改了启动参数（模板、上下文等）后旧的缓存自然失效。
+	 */
+	private static String modelIdentity(String modelId) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		GGUFModel model = manager.findModelById(modelId);
+		if (model == null || model.getPrimaryModel() == null) {
+			return null;
+		}
+		File file = Paths.get(model.getPath(), model.getPrimaryModel().getFileName()).toFile();
+		LlamaCppProcess process = manager.getLoadedProcesses().get(modelId);
+		String cmd = process == null || process.getCmd() == null ? "" : process.getCmd();
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + cmd;
+	}
+
+	/**
+	 * 	请求头是否要求跳过查找（Cache-Control: no-cache 或 no-store）
+	 * @param cacheControl
+	 * @return
+	 */
+	public static boolean bypassLookup(String cacheControl) {
+		return cacheControl != null && (cacheControl.contains("no-cache") || cacheControl.contains("no-store"));
+	}
+
+	/**
+	 * 	请求头是否禁止保存结果（Cache-Control: no-store）
+	 * @param cacheControl
+	 * @return
+	 */
+	public static boolean bypassStore(String cacheControl) {
+		return cacheControl != null && cacheControl.contains("no-store");
+	}
+
+	/**
+	 * 	取出缓存的响应。
+	 * @param key
+	 * @param stream 请求是否是流式的
+	 * @return 没有或者已经失效时返回null
+	 */
+	public synchronized Entry get(String key, boolean stream) {
+		this.lookups++;
+		Entry e = this.entries.get(key);
+		if (e == null || e.stream() != stream) {
+			return null;
+		}
+		if (e.expiresAt() <= System.currentTimeMillis()) {
+			this.entries.remove(key);
+			this.bytes -= e.body().length;
+			this.expired++;
+			return null;
+		}
+		this.hits++;
+		this.bytesServed += e.body().length;
+		return e;
+	}
+
+	/**
+	 * 	保存一个成功的响应，超出容量时淘汰最久没用的。
+	 * @param key
+	 * @param status
+	 * @param body
+	 * @param stream
+	 */
+	public void put(String key, int status, byte[] body, boolean stream) {
+		if (key == null || body == null || status < 200 || status >= 300 || body.length > this.maxEntryBytes) {
+			return;
+		}
+		Entry entry = new Entry(status, body, stream, System.currentTimeMillis() + this.ttlMillis);
+		synchronized (this) {
+			Entry old = this.entries.put(key, entry);
+			if (old != null) {
+				this.bytes -= old.body().length;
+			}
+			this.bytes += body.length;
+			Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+			while (this.bytes > this.maxBytes && it.hasNext()) {
+				Entry e = it.next().getValue();
+				it.remove();
+				this.bytes -= e.body().length;
+				this.evictions++;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	public synchronized JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		o.addProperty("enabled", this.enabled);
+		o.addProperty("entries", this.entries.size());
+		o.addProperty("bytes", this.bytes);
+		o.addProperty("maxBytes", this.maxBytes);
+		o.addProperty("maxEntryBytes", this.maxEntryBytes);
+		o.addProperty("ttlSeconds", this.ttlMillis / 1000);
+		o.addProperty("lookups", this.lookups);
+		o.addProperty("hits", this.hits);
+		o.addProperty("hitRatio", this.lookups > 0 ? (double) this.hits / this.lookups : 0.0);
+		o.addProperty("expired", this.expired);
+		o.addProperty("evictions", this.evictions);
+		o.addProperty("bytesServed", this.bytesServed);
+		return o;
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "completion_cache.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取补全缓存配置失败: {}", path, e);
+			return null;
+		}
+	}
+}
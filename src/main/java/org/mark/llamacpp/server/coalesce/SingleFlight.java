@@ -0,0 +1,256 @@
+package org.mark.llamacpp.server.coalesce;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+
+/**
+ * 	相同请求的合并（single-flight）。
+ * 	<p>
+ * 	同一个接口、同一个模型、规范化后请求体相同的非流式请求，如果前一个还没有返回，后来的请求不再访问llama-server，
+ * 	而是等第一个请求的结果，直接共用它的响应字节。只合并同时在进行的请求，结束后不缓存。
+ * 	<p>
+ * 	补全类接口只在结果确定时合并（temperature为0或者指定了seed），嵌入、tokenize、apply-template的结果本身是确定的。
+ * 	配置在 config/single_flight.json：enabled，以及endpoints里按接口名（chat、completions、embeddings、tokenize、apply-template）单独开关。
+ */
+public final class SingleFlight {
+
+	private static final Logger logger = LoggerFactory.getLogger(SingleFlight.class);
+
+	public static final String CHAT = "chat";
+	public static final String COMPLETIONS = "completions";
+	public static final String EMBEDDINGS = "embeddings";
+	public static final String TOKENIZE = "tokenize";
+	public static final String APPLY_TEMPLATE = "apply-template";
+
+	private static final String[] ENDPOINTS = { CHAT, COMPLETIONS, EMBEDDINGS, TOKENIZE, APPLY_TEMPLATE };
+
+	/**
+	 * 	上游的响应
+	 * @param status HTTP状态码
+	 * @param body 响应体，可能为null
+	 */
+	public record Response(int status, byte[] body) {
+
+		public String text() {
+			return this.body == null ? null : new String(this.body, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * 	实际访问上游的调用
+	 */
+	@FunctionalInterface
+	public interface Call {
+		Response call() throws IOException;
+	}
+
+	private static final class Counters {
+		private final LongAdder leaders = new LongAdder();
+		private final LongAdder followers = new LongAdder();
+		private final LongAdder bytesShared = new LongAdder();
+	}
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private static final SingleFlight INSTANCE = new SingleFlight();
+
+	private final Map<String, CompletableFuture<Response>> inflight = new ConcurrentHashMap<>();
+	private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+	private final Map<String, Boolean> endpoints = new TreeMap<>();
+	private final boolean enabled;
+
+	public static SingleFlight getInstance() {
+		return INSTANCE;
+	}
+
+	private SingleFlight() {
+		JsonObject cfg = readConfig();
+		this.enabled = cfg == null || !cfg.has("enabled") || cfg.get("enabled").getAsBoolean();
+		JsonObject eps = cfg != null && cfg.get("endpoints") instanceof JsonObject o ? o : null;
+		for (String ep : ENDPOINTS) {
+			this.endpoints.put(ep, eps == null || !eps.has(ep) || eps.get(ep).getAsBoolean());
+			this.counters.put(ep, new Counters());
+		}
+	}
+
+	/**
+	 * 	这个接口是否开启了合并
+	 * @param endpoint
+	 * @return
+	 */
+	public boolean isEnabled(String endpoint) {
+		return this.enabled && Boolean.TRUE.equals(this.endpoints.get(endpoint));
+	}
+
+	/**
+	 * 	补全请求的结果是否确定：temperature为0，或者指定了seed（-1表示随机）。
+	 * @param request
+	 * @return
+	 */
+	public static boolean isDeterministic(JsonObject request) {
+		if (request == null) {
+			return false;
+		}
+		try {
+			JsonElement t = request.get("temperature");
+			if (t != null && t.isJsonPrimitive() && t.getAsDouble() == 0.0) {
+				return true;
+			}
+			JsonElement s = request.get("seed");
+			return s != null && s.isJsonPrimitive() && s.getAsLong() != -1L;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 	执行请求；已经有相同的请求在进行时等它的结果。只在工作线程里调用。
+	 * @param endpoint 接口名，没有开启合并时直接调用
+	 * @param model 模型ID
+	 * @param request 请求体，按键排序后参与指纹计算
+	 * @param call 实际访问上游的调用
+	 * @return
+	 * @throws IOException
+	 */
+	public Response execute(String endpoint, String model, JsonElement request, Call call) throws IOException {
+		if (!this.isEnabled(endpoint)) {
+			return call.call();
+		}
+		Counters c = this.counters.get(endpoint);
+		String key = endpoint + "|" + fingerprint(model, request);
+		CompletableFuture<Response> mine = new CompletableFuture<>();
+		CompletableFuture<Response> running = this.inflight.putIfAbsent(key, mine);
+		if (running != null) {
+			c.followers.increment();
+			Response r = await(running);
+			if (r.body() != null) {
+				c.bytesShared.add(r.body().length);
+			}
+			return r;
+		}
+		c.leaders.increment();
+		try {
+			Response r = call.call();
+			mine.complete(r);
+			return r;
+		} catch (IOException | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.inflight.remove(key, mine);
+		}
+	}
+
+	private static Response await(CompletableFuture<Response> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException io ? io : new IOException(cause);
+		}
+	}
+
+	/**
+	 * 	模型ID加上键排序后的请求体的SHA-256
+	 */
+	static String fingerprint(String model, JsonElement request) {
+		MessageDigest md = SHA256.get();
+		md.reset();
+		md.update((model == null ? "" : model).getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		byte[] d = md.digest(JsonUtil.toJson(canonical(request)).getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(d.length * 2);
+		for (byte b : d) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 	对象的键按字典序重排，客户端字段顺序不同不影响指纹
+	 */
+	private static JsonElement canonical(JsonElement e) {
+		if (e == null) {
+			return new JsonPrimitive("");
+		}
+		if (e.isJsonObject()) {
+			TreeMap<String, JsonElement> sorted = new TreeMap<>();
+			for (Map.Entry<String, JsonElement> entry : e.getAsJsonObject().entrySet()) {
+				sorted.put(entry.getKey(), canonical(entry.getValue()));
+			}
+			JsonObject out = new JsonObject();
+			sorted.forEach(out::add);
+			return out;
+		}
+		if (e.isJsonArray()) {
+			JsonArray out = new JsonArray(e.getAsJsonArray().size());
+			for (JsonElement item : e.getAsJsonArray()) {
+				out.add(canonical(item));
+			}
+			return out;
+		}
+		return e;
+	}
+
+	public JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		o.addProperty("enabled", this.enabled);
+		o.addProperty("inflight", this.inflight.size());
+		JsonObject eps = new JsonObject();
+		for (Map.Entry<String, Boolean> entry : this.endpoints.entrySet()) {
+			Counters c = this.counters.get(entry.getKey());
+			JsonObject e = new JsonObject();
+			e.addProperty("enabled", this.enabled && entry.getValue());
+			e.addProperty("upstreamCalls", c.leaders.sum());
+			// 等待别人结果、没有访问上游的请求数
+			e.addProperty("coalesced", c.followers.sum());
+			e.addProperty("bytesShared", c.bytesShared.sum());
+			eps.add(entry.getKey(), e);
+		}
+		o.add("endpoints", eps);
+		return o;
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "single_flight.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取请求合并配置失败: {}", path, e);
+			return null;
+		}
+	}
+}
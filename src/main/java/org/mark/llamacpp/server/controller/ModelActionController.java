@@ -25,6 +25,8 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ProcessSupervisor;
+import org.mark.llamacpp.server.ReplicaGroup;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.BenchmarkService;
 import org.mark.llamacpp.server.struct.ApiResponse;
@@ -90,6 +92,16 @@ public class ModelActionController implements BaseController {
 			this.handleStopModelRequest(ctx, request);
 			return true;
 		}
+		// 排空后重启指定的模型
+		if (uri.startsWith("/api/models/restart")) {
+			this.handleRestartModelRequest(ctx, request);
+			return true;
+		}
+		// 查询进程守护状态
+		if (uri.startsWith("/api/models/supervisor")) {
+			this.handleSupervisorStatusRequest(ctx, request);
+			return true;
+		}
 		// 执行benchmark
 		if (uri.equals("/api/models/benchmark")) {
 			this.handleModelBenchmark(ctx, request);
@@ -319,6 +331,54 @@ public class ModelActionController implements BaseController {
 		}
 	}
 	
+	/**
+	 * 	处理重启模型请求：等正在处理的请求结束后，用保存的启动配置重新加载，期间的新请求会挂起等待。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleRestartModelRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			if (content == null || content.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体为空"));
+				return;
+			}
+			StopModelRequest restartRequest = JsonUtil.fromJson(content, StopModelRequest.class);
+			String modelId = restartRequest.getModelId();
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
+				return;
+			}
+			if (!ProcessSupervisor.getInstance().drainAndRestart(modelId.trim(), null)) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("模型未加载或正在重启"));
+				return;
+			}
+			Map<String, Object> data = new HashMap<>();
+			data.put("message", "模型开始排空重启");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("重启模型时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("重启模型失败: " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * 	处理进程守护状态请求
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleSupervisorStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		Map<String, Object> data = new HashMap<>();
+		data.put("models", ProcessSupervisor.getInstance().toJson());
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+	}
+	
 	/**
 	 * 处理已加载模型请求
 	 * 
@@ -366,6 +426,8 @@ public class ModelActionController implements BaseController {
 				modelData.put("status", process.isRunning() ? "running" : "stopped");
 				modelData.put("port", manager.getModelPort(modelId));
 				modelData.put("pid", process.getPid());
+				ReplicaGroup group = manager.getReplicaGroup(modelId);
+				modelData.put("replicas", group == null ? 1 : group.getReplicas().size());
 				modelData.put("size", modelInfo != null ? modelInfo.getSize() : 0);
 				modelData.put("path", modelInfo != null ? modelInfo.getPath() : "");
 
@@ -425,6 +487,9 @@ public class ModelActionController implements BaseController {
 			}
 			List<String> device = JsonUtil.getJsonStringList(obj.get("device"));
 			Integer mg = JsonUtil.getJsonInt(obj, "mg", null);
+			// 同一个模型同时运行的进程数
+			Integer replicas = JsonUtil.getJsonInt(obj, "replicas", 1);
+			int replicaCount = replicas == null ? 1 : Math.max(1, Math.min(16, replicas));
 
 			if (modelId == null || modelId.trim().isEmpty()) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
@@ -449,7 +514,7 @@ public class ModelActionController implements BaseController {
 			}
 			//
 			String chatTemplateFilePath = ChatTemplateFileTool.getChatTemplateCacheFilePathIfExists(modelId);
-			boolean started = manager.loadModelAsyncFromCmd(modelId, llamaBinPathSelect, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
+			boolean started = manager.loadModelAsyncFromCmd(modelId, llamaBinPathSelect, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, replicaCount);
 			if (!started) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("提交加载任务失败"));
 				return;
@@ -465,6 +530,7 @@ public class ModelActionController implements BaseController {
 			data.put("cmd", cmd);
 			data.put("extraParams", extraParams);
 			data.put("enableVision", enableVision);
+			data.put("replicas", replicaCount);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
 		} catch (Exception e) {
 			logger.info("加载模型时发生错误", e);
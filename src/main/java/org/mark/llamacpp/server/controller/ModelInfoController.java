@@ -1,6 +1,7 @@
 package org.mark.llamacpp.server.controller;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,9 +11,14 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFMetaDataReader;
@@ -21,7 +27,10 @@ import org.mark.llamacpp.server.ConfigManager;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.coalesce.SingleFlight;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.io.ModelLogStore;
+import org.mark.llamacpp.server.perf.ModelPerfStats;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -84,6 +93,16 @@ public class ModelInfoController implements BaseController {
 			this.handleModelConfigSetRequest(ctx, request);
 			return true;
 		}
+		// 查询模型进程的日志：tail / 翻页 / 按时间 / 搜索
+		if (uri.startsWith("/api/models/log")) {
+			this.handleModelLogRequest(ctx, request);
+			return true;
+		}
+		// 从日志解析出的模型性能统计
+		if (uri.startsWith("/api/models/perf")) {
+			this.handleModelPerfRequest(ctx, request);
+			return true;
+		}
 		// 获取指定模型详情的API
 		if (uri.startsWith("/api/models/details")) {
 			this.handleModelDetailsRequest(ctx, request);
@@ -515,6 +534,118 @@ public class ModelInfoController implements BaseController {
 		}
 	}
 	
+	/**
+	 * 	查询模型进程的日志。
+	 * 	参数：modelId必填；q查找（regex=true时按正则），from从指定序号开始，since从指定时间（毫秒）开始，
+	 * 	都没有时返回最后lines行。limit/lines最多2000。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleModelLogRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String modelId = params.get("modelId");
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
+				return;
+			}
+			ModelLogStore store = ModelLogStore.find(modelId.trim());
+			if (store == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("该模型还没有日志: " + modelId));
+				return;
+			}
+			int limit = Math.max(1, Math.min(2000, parseIntParam(params.get("limit"), parseIntParam(params.get("lines"), 200))));
+			String q = params.get("q");
+			String from = params.get("from");
+			String since = params.get("since");
+
+			Map<String, Object> data = new HashMap<>();
+			List<ModelLogStore.LogLine> lines;
+			if (q != null && !q.isEmpty()) {
+				Predicate<String> matcher;
+				if ("true".equalsIgnoreCase(params.get("regex"))) {
+					Pattern pattern = Pattern.compile(q);
+					matcher = text -> pattern.matcher(text).find();
+				} else {
+					matcher = text -> text.contains(q);
+				}
+				long fromSeq = from == null ? store.getFirstSeq() : Long.parseLong(from.trim());
+				ModelLogStore.SearchResult result = store.search(fromSeq, matcher, limit, 200_000);
+				lines = result.lines();
+				data.put("nextSeq", result.nextSeq());
+			} else if (from != null && !from.isBlank()) {
+				lines = store.range(Long.parseLong(from.trim()), limit);
+				data.put("nextSeq", lines.isEmpty() ? Long.parseLong(from.trim()) : lines.get(lines.size() - 1).seq() + 1);
+			} else if (since != null && !since.isBlank()) {
+				lines = store.since(Long.parseLong(since.trim()), limit);
+				data.put("nextSeq", lines.isEmpty() ? store.getNextSeq() : lines.get(lines.size() - 1).seq() + 1);
+			} else {
+				lines = store.tail(limit);
+				data.put("nextSeq", store.getNextSeq());
+			}
+			List<Map<String, Object>> items = new ArrayList<>();
+			for (ModelLogStore.LogLine line : lines) {
+				Map<String, Object> item = new LinkedHashMap<>();
+				item.put("seq", line.seq());
+				item.put("timestamp", line.timestamp());
+				item.put("text", line.text());
+				items.add(item);
+			}
+			data.put("modelId", store.getModelId());
+			data.put("firstSeq", store.getFirstSeq());
+			data.put("lastSeq", store.getNextSeq() - 1);
+			data.put("lines", items);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (NumberFormatException | PatternSyntaxException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("参数错误: " + e.getMessage()));
+		} catch (Exception e) {
+			logger.info("查询模型日志时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("查询模型日志失败: " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * 	查询模型的性能统计：按分钟聚合的序列和最近的请求明细。
+	 * 	参数：modelId必填，recent为返回的明细数量，默认50。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleModelPerfRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String modelId = params.get("modelId");
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
+				return;
+			}
+			ModelPerfStats stats = ModelPerfStats.find(modelId.trim());
+			if (stats == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("该模型还没有性能数据: " + modelId));
+				return;
+			}
+			int recent = Math.max(0, Math.min(200, parseIntParam(params.get("recent"), 50)));
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(stats.toJson(recent)));
+		} catch (Exception e) {
+			logger.info("查询模型性能统计时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("查询模型性能统计失败: " + e.getMessage()));
+		}
+	}
+	
+	private static int parseIntParam(String value, int defaultValue) {
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
 	/**
 	 * 处理器模型详情的请求
 	 * 
@@ -874,7 +1005,6 @@ public class ModelInfoController implements BaseController {
 			return;
 		}
 		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
-		HttpURLConnection connection = null;
 		try {
 			String content = request.content().toString(CharsetUtil.UTF_8);
 			if (content == null || content.trim().isEmpty()) {
@@ -929,23 +1059,11 @@ public class ModelInfoController implements BaseController {
 			forward.addProperty("parse_special", parseSpecial);
 			forward.addProperty("with_pieces", withPieces);
 
-			String targetUrl = String.format("http://localhost:%d/tokenize", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-
-			byte[] outBytes = JsonUtil.toJson(forward).getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
-
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
+			// 同时到达的相同请求只访问一次llama-server
+			SingleFlight.Response upstream = SingleFlight.getInstance().execute(SingleFlight.TOKENIZE, modelId, forward,
+					() -> postUpstream(port.intValue(), "/tokenize", forward));
+			int responseCode = upstream.status();
+			String responseBody = upstream.text();
 			JsonElement parsed = null;
 			try {
 				parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
@@ -970,13 +1088,6 @@ public class ModelInfoController implements BaseController {
 		} catch (Exception e) {
 			logger.info("tokenize失败", e);
 			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "tokenize失败: " + e.getMessage());
-		} finally {
-			if (connection != null) {
-				try {
-					connection.disconnect();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 
@@ -986,7 +1097,6 @@ public class ModelInfoController implements BaseController {
 			return;
 		}
 		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
-		HttpURLConnection connection = null;
 		try {
 			String content = request.content().toString(CharsetUtil.UTF_8);
 			if (content == null || content.trim().isEmpty()) {
@@ -1029,23 +1139,11 @@ public class ModelInfoController implements BaseController {
 			JsonObject forward = new JsonObject();
 			forward.add("messages", obj.get("messages"));
 
-			String targetUrl = String.format("http://localhost:%d/apply-template", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-
-			byte[] outBytes = JsonUtil.toJson(forward).getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
-
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
+			// 同时到达的相同请求只访问一次llama-server
+			SingleFlight.Response upstream = SingleFlight.getInstance().execute(SingleFlight.APPLY_TEMPLATE, modelId, forward,
+					() -> postUpstream(port.intValue(), "/apply-template", forward));
+			int responseCode = upstream.status();
+			String responseBody = upstream.text();
 			JsonElement parsed = null;
 			try {
 				parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
@@ -1075,12 +1173,35 @@ public class ModelInfoController implements BaseController {
 		} catch (Exception e) {
 			logger.info("apply-template失败", e);
 			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "apply-template失败: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 	POST到llama-server并读取完整响应
+	 */
+	private static SingleFlight.Response postUpstream(int port, String path, JsonObject body) throws IOException {
+		URL url = URI.create(String.format("http://localhost:%d%s", port, path)).toURL();
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(30000);
+			connection.setReadTimeout(30000);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+
+			byte[] outBytes = JsonUtil.toJson(body).getBytes(StandardCharsets.UTF_8);
+			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
+			try (OutputStream os = connection.getOutputStream()) {
+				os.write(outBytes);
+			}
+
+			int responseCode = connection.getResponseCode();
+			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
+			return new SingleFlight.Response(responseCode, responseBody.getBytes(StandardCharsets.UTF_8));
 		} finally {
-			if (connection != null) {
-				try {
-					connection.disconnect();
-				} catch (Exception ignore) {
-				}
+			try {
+				connection.disconnect();
+			} catch (Exception ignore) {
 			}
 		}
 	}
@@ -1,7 +1,6 @@
 package org.mark.llamacpp.server.controller;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,12 +17,22 @@ import java.util.stream.Stream;
 import org.mark.llamacpp.lmstudio.LMStudio;
 import org.mark.llamacpp.ollama.Ollama;
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.io.ConsolePipeline;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.NettyTransport;
+import org.mark.llamacpp.server.SystemMonitorService;
+import org.mark.llamacpp.server.coalesce.CompletionCache;
+import org.mark.llamacpp.server.coalesce.SingleFlight;
+import org.mark.llamacpp.server.embedding.EmbeddingBatcher;
+import org.mark.llamacpp.server.embedding.EmbeddingCache;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.relay.StreamRelay;
 import org.mark.llamacpp.server.struct.ApiResponse;
+import org.mark.llamacpp.server.tokenize.TokenCountService;
 import org.mark.llamacpp.server.tools.CommandLineRunner;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.websocket.WebSocketHub;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,6 +104,79 @@ public class SystemController implements BaseController {
 			return true;
 		}
 		
+		// 系统资源监控的时间序列
+		if (uri.startsWith("/api/sys/monitor")) {
+			this.handleSysMonitorRequest(ctx, request);
+			return true;
+		}
+		
+		// WebSocket推送统计
+		if (uri.startsWith("/api/sys/ws/stats")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(WebSocketHub.getInstance().getStats()));
+			return true;
+		}
+		
+		// 流式转发统计：按协议分的流数量、取消、背压等待和输出字节数
+		if (uri.startsWith("/api/sys/relay/stats")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(StreamRelay.getStats()));
+			return true;
+		}
+		
+		// 网络传输：epoll/NIO、acceptor和worker线程数
+		if (uri.startsWith("/api/sys/transport")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(NettyTransport.getInfo()));
+			return true;
+		}
+		
+		// 相同请求合并的统计
+		if (uri.startsWith("/api/sys/single-flight")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(SingleFlight.getInstance().getStats()));
+			return true;
+		}
+		
+		// 补全缓存：清空
+		if (uri.startsWith("/api/sys/completion-cache/clear")) {
+			this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+			CompletionCache.getInstance().clear();
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(CompletionCache.getInstance().getStats()));
+			return true;
+		}
+		
+		// 补全缓存：命中率、条目数和占用
+		if (uri.startsWith("/api/sys/completion-cache")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(CompletionCache.getInstance().getStats()));
+			return true;
+		}
+		
+		// token计数缓存和本地分词器的状态
+		if (uri.startsWith("/api/sys/token-count")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(TokenCountService.getInstance().getStats()));
+			return true;
+		}
+		
+		// 向量缓存：清空
+		if (uri.startsWith("/api/sys/embedding-cache/clear")) {
+			this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+			EmbeddingCache.getInstance().clear();
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(EmbeddingCache.getInstance().getStats()));
+			return true;
+		}
+		
+		// 向量缓存：命中率和节省的字节数，以及请求合并的情况
+		if (uri.startsWith("/api/sys/embedding-cache")) {
+			this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+			JsonObject stats = EmbeddingCache.getInstance().getStats();
+			stats.add("batching", EmbeddingBatcher.getInstance().getStats());
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(stats));
+			return true;
+		}
+		
 		// 文件系统：目录浏览
 		if (uri.startsWith("/api/sys/fs/list")) {
 			this.handleFsListRequest(ctx, request);
@@ -569,32 +651,48 @@ public class SystemController implements BaseController {
 		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
 		try {
 			Path logPath = LlamaServer.getConsoleLogPath();
-			File file = logPath.toFile();
-			if (!file.exists()) {
-				LlamaServer.sendTextResponse(ctx, "");
-				return;
-			}
-			long max = 1L * 256 * 1024;
-			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-				long len = raf.length();
-				long start = Math.max(0, len - max);
-				raf.seek(start);
-				int toRead = (int) Math.min(max, len - start);
-				byte[] buf = new byte[toRead];
-				int read = raf.read(buf);
-				if (read <= 0) {
-					LlamaServer.sendTextResponse(ctx, "");
-					return;
-				}
-				String text = new String(buf, 0, read, StandardCharsets.UTF_8);
-				LlamaServer.sendTextResponse(ctx, text);
-			}
+			// 日志按大小滚动，刚滚动过时从上一个文件补足
+			String text = ConsolePipeline.readTail(logPath, 256 * 1024);
+			LlamaServer.sendTextResponse(ctx, text);
 		} catch (Exception e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("读取控制台日志失败: " + e.getMessage()));
 		}
 	}
 	
 	
+	/**
+	 * 系统资源监控的时间序列。参数：since（毫秒，只返回之后的采样），modelId（只返回这个模型的进程数据）。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleSysMonitorRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		SystemMonitorService monitor = SystemMonitorService.getInstance();
+		if (!monitor.isStarted()) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("系统监控未启动，当前系统可能不支持/proc"));
+			return;
+		}
+		Map<String, String> params = ParamTool.getQueryParam(request.uri());
+		long since = 0;
+		try {
+			String s = params.get("since");
+			if (s != null && !s.isBlank()) {
+				since = Long.parseLong(s.trim());
+			}
+		} catch (NumberFormatException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("since参数无效"));
+			return;
+		}
+		String modelId = params.get("modelId");
+		if (modelId != null && modelId.isBlank()) {
+			modelId = null;
+		}
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(monitor.getStore().toJson(since, modelId)));
+	}
+	
+	
 	/**
 	 * 处理设备列表请求 执行 llama-bench --list-devices 命令获取可用设备列表
 	 * 
@@ -0,0 +1,311 @@
+package org.mark.llamacpp.server.embedding;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	把同时到达的嵌入请求合并成一次/v1/embeddings调用。
+ * 	<p>
+ * 	发往同一个端口、除input以外参数都相同的请求进同一个队列，第一个请求入队后最多等maxDelayMillis毫秒，
+ * 	或者凑够maxBatchSize条输入就立即发出。返回的向量按顺序切回给各个请求，usage按输入长度分摊。
+ * 	合并后的请求失败时拆开逐个重发，一个请求的错误输入不会影响同一批的其他请求。
+ * 	<p>
+ * 	默认关闭，开启后每个请求最多多等maxDelayMillis毫秒。配置在 config/embedding_batch.json：enabled（默认false）、maxBatchSize、maxDelayMillis。
+ */
+public class EmbeddingBatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingBatcher.class);
+
+	private static final EmbeddingBatcher INSTANCE = new EmbeddingBatcher();
+
+	private static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+	private static final long DEFAULT_MAX_DELAY_MILLIS = 5;
+
+	/**
+	 * 	等待合并的一个请求
+	 */
+	private static final class Pending {
+		private final JsonObject request;
+		private final int size;
+		private final CompletableFuture<EmbeddingForwarder.Result> future = new CompletableFuture<>();
+
+		private Pending(JsonObject request) {
+			this.request = request;
+			this.size = request.getAsJsonArray("input").size();
+		}
+	}
+
+	/**
+	 * 	同一个合并键下正在收集的一批
+	 */
+	private static final class Batch {
+		private final int port;
+		private final List<Pending> items = new ArrayList<>();
+		private int count;
+
+		private Batch(int port) {
+			this.port = port;
+		}
+	}
+
+	private final Map<String, Batch> open = new HashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofVirtual().name("embedding-batcher-", 0).factory());
+	private final ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+	private final boolean enabled;
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+
+	private long batches;
+	private long mergedRequests;
+	private long mergedInputs;
+	private long splitBatches;
+	private long splitRequests;
+
+	public static EmbeddingBatcher getInstance() {
+		return INSTANCE;
+	}
+
+	private EmbeddingBatcher() {
+		JsonObject cfg = readConfig();
+		this.enabled = cfg != null && cfg.has("enabled") && cfg.get("enabled").getAsBoolean();
+		this.maxBatchSize = Math.max(1, JsonUtil.getJsonInt(cfg, "maxBatchSize", DEFAULT_MAX_BATCH_SIZE));
+		this.maxDelayMillis = Math.max(0, JsonUtil.getJsonLong(cfg, "maxDelayMillis", DEFAULT_MAX_DELAY_MILLIS));
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * 	提交一个请求并等待结果，只在工作线程里调用。
+	 * @param port llama-server端口
+	 * @param request OpenAI格式的请求，input必须是字符串数组
+	 * @return 只包含这个请求的输入的响应，index从0开始
+	 * @throws IOException
+	 */
+	public EmbeddingForwarder.Result submit(int port, JsonObject request) throws IOException {
+		Pending p = new Pending(request);
+		if (!this.enabled || this.maxDelayMillis == 0 || p.size >= this.maxBatchSize) {
+			return EmbeddingForwarder.post(port, JsonUtil.toJson(request));
+		}
+		JsonObject shape = request.deepCopy();
+		shape.remove("input");
+		String key = port + "|" + JsonUtil.toJson(shape);
+
+		Batch full = null;
+		synchronized (this.open) {
+			Batch batch = this.open.get(key);
+			if (batch != null && batch.count + p.size > this.maxBatchSize) {
+				// 放不下了，先把当前这批发出去
+				this.open.remove(key);
+				full = batch;
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(port);
+				this.open.put(key, batch);
+				Batch scheduled = batch;
+				this.scheduler.schedule(() -> this.flush(key, scheduled), this.maxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+			batch.items.add(p);
+			batch.count += p.size;
+			if (batch.count >= this.maxBatchSize) {
+				this.open.remove(key);
+				Batch ready = batch;
+				this.sender.execute(() -> this.send(ready));
+			}
+		}
+		if (full != null) {
+			Batch ready = full;
+			this.sender.execute(() -> this.send(ready));
+		}
+
+		try {
+			return p.future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException io ? io : new IOException(cause);
+		}
+	}
+
+	/**
+	 * 	等待时间到了，如果这批还没有发出去就发出去
+	 */
+	private void flush(String key, Batch batch) {
+		synchronized (this.open) {
+			if (this.open.get(key) != batch) {
+				return;
+			}
+			this.open.remove(key);
+		}
+		this.sender.execute(() -> this.send(batch));
+	}
+
+	private void send(Batch batch) {
+		List<Pending> items = batch.items;
+		try {
+			if (items.size() == 1) {
+				items.get(0).future.complete(EmbeddingForwarder.post(batch.port, JsonUtil.toJson(items.get(0).request)));
+				return;
+			}
+			JsonObject merged = items.get(0).request.deepCopy();
+			JsonArray input = new JsonArray(batch.count);
+			for (Pending p : items) {
+				input.addAll(p.request.getAsJsonArray("input"));
+			}
+			merged.add("input", input);
+			synchronized (this) {
+				this.batches++;
+				this.mergedRequests += items.size();
+				this.mergedInputs += batch.count;
+			}
+
+			EmbeddingForwarder.Result r = EmbeddingForwarder.post(batch.port, JsonUtil.toJson(merged));
+			if (r.status() < 200 || r.status() >= 300 || r.json() == null) {
+				// 可能只是其中一个请求的输入有问题（比如太长），分开重发，每个请求拿到自己的结果
+				logger.info("合并的嵌入请求返回{}，拆开重发{}个请求", r.status(), items.size());
+				synchronized (this) {
+					this.splitBatches++;
+					this.splitRequests += items.size();
+				}
+				for (Pending p : items) {
+					this.sender.execute(() -> this.sendOne(batch.port, p));
+				}
+				return;
+			}
+			this.scatter(r.json(), batch);
+		} catch (Exception e) {
+			logger.info("合并的嵌入请求失败", e);
+			for (Pending p : items) {
+				p.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void sendOne(int port, Pending p) {
+		try {
+			p.future.complete(EmbeddingForwarder.post(port, JsonUtil.toJson(p.request)));
+		} catch (Exception e) {
+			p.future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * 	把合并请求的结果按顺序切回给各个请求。
+	 */
+	private void scatter(JsonObject resp, Batch batch) throws IOException {
+		if (!(resp.get("data") instanceof JsonArray data) || data.size() != batch.count) {
+			throw new IOException("unexpected embeddings response");
+		}
+		JsonElement[] byIndex = new JsonElement[batch.count];
+		for (int j = 0; j < data.size(); j++) {
+			if (!(data.get(j) instanceof JsonObject item)) {
+				throw new IOException("unexpected embeddings response");
+			}
+			int index = item.has("index") ? item.get("index").getAsInt() : j;
+			if (index < 0 || index >= batch.count || byIndex[index] != null) {
+				throw new IOException("unexpected embeddings response");
+			}
+			byIndex[index] = item.get("embedding");
+		}
+
+		// llama-server只返回总的token数，按输入的字节数分摊
+		JsonObject usage = resp.get("usage") instanceof JsonObject u ? u : null;
+		long totalTokens = usage == null ? 0 : JsonUtil.getJsonLong(usage, "prompt_tokens", 0);
+		long totalBytes = 0;
+		long[] bytes = new long[batch.items.size()];
+		for (int i = 0; i < bytes.length; i++) {
+			for (JsonElement e : batch.items.get(i).request.getAsJsonArray("input")) {
+				bytes[i] += e.getAsString().getBytes(StandardCharsets.UTF_8).length;
+			}
+			totalBytes += bytes[i];
+		}
+
+		String model = JsonUtil.getJsonString(resp, "model", null);
+		int offset = 0;
+		long assigned = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			Pending p = batch.items.get(i);
+			JsonArray part = new JsonArray(p.size);
+			for (int k = 0; k < p.size; k++) {
+				JsonObject item = new JsonObject();
+				item.addProperty("object", "embedding");
+				item.addProperty("index", k);
+				item.add("embedding", byIndex[offset + k]);
+				part.add(item);
+			}
+			offset += p.size;
+			long tokens = i == bytes.length - 1 ? totalTokens - assigned
+					: totalBytes == 0 ? 0 : totalTokens * bytes[i] / totalBytes;
+			assigned += tokens;
+
+			JsonObject out = new JsonObject();
+			out.addProperty("object", "list");
+			out.add("data", part);
+			if (model != null) {
+				out.addProperty("model", model);
+			}
+			JsonObject u = new JsonObject();
+			u.addProperty("prompt_tokens", tokens);
+			u.addProperty("total_tokens", tokens);
+			out.add("usage", u);
+			p.future.complete(new EmbeddingForwarder.Result(200, JsonUtil.toJson(out), out));
+		}
+	}
+
+	public synchronized JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		o.addProperty("enabled", this.enabled);
+		o.addProperty("maxBatchSize", this.maxBatchSize);
+		o.addProperty("maxDelayMillis", this.maxDelayMillis);
+		o.addProperty("batches", this.batches);
+		o.addProperty("mergedRequests", this.mergedRequests);
+		o.addProperty("mergedInputs", this.mergedInputs);
+		o.addProperty("avgBatchSize", this.batches > 0 ? (double) this.mergedInputs / this.batches : 0.0);
+		// 合并后少发的请求数
+		o.addProperty("upstreamCallsSaved", this.mergedRequests - this.batches - this.splitRequests);
+		// 合并后失败、拆开重发的批次
+		o.addProperty("splitBatches", this.splitBatches);
+		return o;
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "embedding_batch.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取嵌入合并配置失败: {}", path, e);
+			return null;
+		}
+	}
+}
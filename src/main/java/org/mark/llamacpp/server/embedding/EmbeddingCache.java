@@ -0,0 +1,395 @@
+package org.mark.llamacpp.server.embedding;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+
+/**
+ * 	按内容寻址的向量缓存，默认关闭。
+ * 	<p>
+ * 	键是 (模型文件标识, 请求选项, 输入文本) 的SHA-256前128位；向量存在Netty池化的直接内存里，不占堆，
+ * 	默认按fp32原样保存，1024维的向量一条4KB。按总字节数做LRU淘汰。
+ * 	precision为fp16时只占一半内存，但向量有精度损失，未命中时返回的也是舍入后的向量，保证同一个输入每次结果一样。
+ * 	<p>
+ * 	配置在 config/embedding_cache.json：enabled、maxMegabytes、precision（fp32或fp16）、persist。
+ * 	persist为true时退出时写到 cache/embeddings.bin，启动时读回来；精度和文件里的不一致时不读。
+ */
+public class EmbeddingCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingCache.class);
+
+	private static final EmbeddingCache INSTANCE = new EmbeddingCache();
+
+	/**
+	 * 	持久化文件头
+	 */
+	private static final int FILE_MAGIC = 0x454d4232;
+
+	/**
+	 * 	默认容量
+	 */
+	private static final long DEFAULT_MAX_MEGABYTES = 256;
+
+	/**
+	 * 	缓存键，内容哈希的前128位
+	 */
+	public record Key(long hi, long lo) {
+	}
+
+	/**
+	 * 	一条缓存的向量
+	 */
+	private static final class Entry {
+		private final ByteBuf data;
+		private final int dims;
+
+		private Entry(ByteBuf data, int dims) {
+			this.data = data;
+			this.dims = dims;
+		}
+	}
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+	private final boolean enabled;
+	private final boolean persist;
+	private final boolean half;
+	private final long maxBytes;
+	private long bytes;
+
+	private long lookups;
+	private long hits;
+	private long evictions;
+	private long vectorBytesServed;
+	private long inputCharsSaved;
+	private long upstreamRequests;
+
+	public static EmbeddingCache getInstance() {
+		return INSTANCE;
+	}
+
+	private EmbeddingCache() {
+		JsonObject cfg = readConfig();
+		this.enabled = cfg != null && cfg.has("enabled") && cfg.get("enabled").getAsBoolean();
+		this.half = "fp16".equalsIgnoreCase(JsonUtil.getJsonString(cfg, "precision", "fp32"));
+		this.persist = cfg != null && cfg.has("persist") && cfg.get("persist").getAsBoolean();
+		long mb = cfg != null && cfg.has("maxMegabytes") ? cfg.get("maxMegabytes").getAsLong() : DEFAULT_MAX_MEGABYTES;
+		this.maxBytes = Math.max(1, mb) * 1024 * 1024;
+		if (this.enabled && this.persist) {
+			this.load(persistPath());
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> this.save(persistPath()), "embedding-cache-save"));
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * 	计算缓存键。
+	 * @param identity 模型标识，见{@link #modelIdentity(String)}
+	 * @param options 影响结果的请求选项
+	 * @param text 输入文本
+	 * @return
+	 */
+	public static Key key(String identity, String options, String text) {
+		MessageDigest md = SHA256.get();
+		md.reset();
+		md.update(identity.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(options.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		byte[] d = md.digest(text.getBytes(StandardCharsets.UTF_8));
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < 8; i++) {
+			hi = (hi << 8) | (d[i] & 0xff);
+			lo = (lo << 8) | (d[i + 8] & 0xff);
+		}
+		return new Key(hi, lo);
+	}
+
+	/**
+	 * 	模型文件的标识：路径、大小、修改时间，加上会影响向量的启动参数（--pooling）。
+	 * 	同一个ID换了文件或者换了池化方式后旧的缓存自然失效。
+	 * @param modelId
+	 * @return 找不到模型或者池化方式为none（每个token一个向量）时返回null，表示不缓存
+	 */
+	public static String modelIdentity(String modelId) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		GGUFModel model = manager.findModelById(modelId);
+		if (model == null || model.getPrimaryModel() == null) {
+			return null;
+		}
+		File file = Paths.get(model.getPath(), model.getPrimaryModel().getFileName()).toFile();
+		String pooling = "";
+		LlamaCppProcess process = manager.getLoadedProcesses().get(modelId);
+		if (process != null && process.getCmd() != null) {
+			pooling = flagValue(process.getCmd(), "--pooling");
+			if ("none".equals(pooling)) {
+				return null;
+			}
+		}
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|pooling=" + pooling;
+	}
+
+	/**
+	 * 	取出缓存的向量。
+	 * @param key
+	 * @return 没有时返回null
+	 */
+	public float[] get(Key key) {
+		synchronized (this) {
+			this.lookups++;
+			Entry e = this.entries.get(key);
+			if (e == null) {
+				return null;
+			}
+			this.hits++;
+			this.vectorBytesServed += (long) e.dims * Float.BYTES;
+			float[] v = new float[e.dims];
+			ByteBuf buf = e.data;
+			for (int i = 0; i < e.dims; i++) {
+				v[i] = this.half ? Float.float16ToFloat(buf.getShort(i * 2)) : buf.getFloat(i * 4);
+			}
+			return v;
+		}
+	}
+
+	/**
+	 * 	放入一条向量，超出容量时淘汰最久没用的。
+	 * @param key
+	 * @param vector
+	 * @return 以后命中时会返回的向量：fp16时是舍入后的副本，否则就是传入的向量
+	 */
+	public float[] put(Key key, float[] vector) {
+		if (vector == null || vector.length == 0) {
+			return vector;
+		}
+		int size = vector.length * this.bytesPerDim();
+		if (size > this.maxBytes) {
+			return vector;
+		}
+		float[] stored = this.half ? new float[vector.length] : vector;
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+		for (int i = 0; i < vector.length; i++) {
+			if (this.half) {
+				short h = Float.floatToFloat16(vector[i]);
+				buf.writeShort(h);
+				stored[i] = Float.float16ToFloat(h);
+			} else {
+				buf.writeFloat(vector[i]);
+			}
+		}
+		this.insert(key, buf, vector.length);
+		return stored;
+	}
+
+	/**
+	 * 	放入一条编码好的向量，超出容量时按LRU淘汰。
+	 */
+	private synchronized void insert(Key key, ByteBuf buf, int dims) {
+		Entry old = this.entries.put(key, new Entry(buf, dims));
+		if (old != null) {
+			this.bytes -= old.data.capacity();
+			old.data.release();
+		}
+		this.bytes += buf.capacity();
+		Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+		while (this.bytes > this.maxBytes && it.hasNext()) {
+			Entry e = it.next().getValue();
+			it.remove();
+			this.bytes -= e.data.capacity();
+			e.data.release();
+			this.evictions++;
+		}
+	}
+
+	private int bytesPerDim() {
+		return this.half ? 2 : Float.BYTES;
+	}
+
+	/**
+	 * 	记录一次转发给llama-server的请求（只包含未命中的输入）。
+	 */
+	synchronized void recordUpstream() {
+		this.upstreamRequests++;
+	}
+
+	/**
+	 * 	记录没有发给llama-server的输入文本字符数。
+	 * @param n
+	 */
+	synchronized void recordInputSaved(long n) {
+		this.inputCharsSaved += n;
+	}
+
+	public synchronized void clear() {
+		for (Entry e : this.entries.values()) {
+			e.data.release();
+		}
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	public synchronized JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		o.addProperty("enabled", this.enabled);
+		o.addProperty("persist", this.persist);
+		o.addProperty("precision", this.half ? "fp16" : "fp32");
+		o.addProperty("entries", this.entries.size());
+		o.addProperty("bytes", this.bytes);
+		o.addProperty("maxBytes", this.maxBytes);
+		o.addProperty("lookups", this.lookups);
+		o.addProperty("hits", this.hits);
+		o.addProperty("hitRatio", this.lookups > 0 ? (double) this.hits / this.lookups : 0.0);
+		o.addProperty("evictions", this.evictions);
+		// 命中时返回的向量字节数（按fp32计）
+		o.addProperty("vectorBytesServed", this.vectorBytesServed);
+		// 命中后不用再发给llama-server的输入字符数
+		o.addProperty("inputCharsSaved", this.inputCharsSaved);
+		o.addProperty("upstreamRequests", this.upstreamRequests);
+		return o;
+	}
+
+	/**
+	 * 	写到文件，先写临时文件再替换。
+	 */
+	private void save(Path path) {
+		try {
+			Files.createDirectories(path.getParent());
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			int count;
+			try (OutputStream fos = Files.newOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+				synchronized (this) {
+					count = this.entries.size();
+					out.writeInt(FILE_MAGIC);
+					out.writeInt(this.bytesPerDim());
+					out.writeInt(count);
+					// 按从旧到新的顺序写，读回来后LRU顺序不变
+					for (Map.Entry<Key, Entry> me : this.entries.entrySet()) {
+						Entry e = me.getValue();
+						out.writeLong(me.getKey().hi());
+						out.writeLong(me.getKey().lo());
+						out.writeInt(e.dims);
+						e.data.getBytes(0, out, e.dims * this.bytesPerDim());
+					}
+				}
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			logger.info("向量缓存已保存: {} 条 -> {}", count, path);
+		} catch (IOException e) {
+			logger.info("保存向量缓存失败", e);
+		}
+	}
+
+	private void load(Path path) {
+		if (!Files.isRegularFile(path)) {
+			return;
+		}
+		int loaded = 0;
+		try (InputStream fis = Files.newInputStream(path);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16))) {
+			if (in.readInt() != FILE_MAGIC) {
+				logger.info("向量缓存文件格式不对，忽略: {}", path);
+				return;
+			}
+			if (in.readInt() != this.bytesPerDim()) {
+				logger.info("向量缓存文件的精度和配置不一致，忽略: {}", path);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Key key = new Key(in.readLong(), in.readLong());
+				int dims = in.readInt();
+				if (dims <= 0 || dims > 1 << 20) {
+					break;
+				}
+				byte[] raw = new byte[dims * this.bytesPerDim()];
+				in.readFully(raw);
+				ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(raw.length, raw.length);
+				buf.writeBytes(raw);
+				// 文件里从旧到新，全部读完后超出容量的部分按LRU淘汰，留下的是最近用过的
+				this.insert(key, buf, dims);
+				loaded++;
+			}
+		} catch (EOFException e) {
+			// 文件不完整，保留已经读到的
+		} catch (IOException e) {
+			logger.info("读取向量缓存失败", e);
+		}
+		synchronized (this) {
+			logger.info("向量缓存已加载: {} 条，保留 {} 条", loaded, this.entries.size());
+		}
+	}
+
+	private static Path persistPath() {
+		return Paths.get(System.getProperty("user.dir"), "cache", "embeddings.bin");
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "embedding_cache.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取向量缓存配置失败: {}", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * 	从命令行里取一个参数的值，没有时返回空字符串。
+	 */
+	private static String flagValue(String cmd, String flag) {
+		String[] parts = cmd.trim().split("\\s+");
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].equals(flag) && i + 1 < parts.length) {
+				return parts[i + 1];
+			}
+			if (parts[i].startsWith(flag + "=")) {
+				return parts[i].substring(flag.length() + 1);
+			}
+		}
+		return "";
+	}
+}
@@ -0,0 +1,261 @@
+package org.mark.llamacpp.server.embedding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mark.llamacpp.server.coalesce.SingleFlight;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	带缓存的/v1/embeddings转发。
+ * 	<p>
+ * 	多个输入的请求拆开逐条查缓存，只把未命中的输入合成一个请求，经{@link EmbeddingBatcher}和其他并发请求合并后发给llama-server，
+ * 	结果按原来的顺序拼回OpenAI格式的响应。同时到达的相同请求经{@link SingleFlight}合并。OpenAI、Ollama和LM Studio三个入口共用。
+ */
+public final class EmbeddingForwarder {
+
+	/**
+	 * 	转发结果
+	 * @param status HTTP状态码
+	 * @param body 响应体
+	 * @param json 解析后的响应，失败时可能为null
+	 */
+	public record Result(int status, String body, JsonObject json) {
+	}
+
+	private EmbeddingForwarder() {
+	}
+
+	/**
+	 * 	请求是否由这里处理：缓存或合并至少开了一个，输入是字符串或字符串数组，返回float格式。
+	 * @param modelId
+	 * @param request OpenAI格式的请求
+	 * @return
+	 */
+	public static boolean accepts(String modelId, JsonObject request) {
+		if (request == null || (!EmbeddingCache.getInstance().isEnabled() && !EmbeddingBatcher.getInstance().isEnabled())) {
+			return false;
+		}
+		String format = JsonUtil.getJsonString(request, "encoding_format", null);
+		if (format != null && !"float".equals(format)) {
+			return false;
+		}
+		return inputs(request) != null;
+	}
+
+	/**
+	 * 	执行请求，只在工作线程里调用。
+	 * @param modelId
+	 * @param port
+	 * @param request OpenAI格式的请求，需要先用{@link #accepts(String, JsonObject)}判断
+	 * @return
+	 * @throws IOException
+	 */
+	public static Result embed(String modelId, int port, JsonObject request) throws IOException {
+		SingleFlight flight = SingleFlight.getInstance();
+		if (!flight.isEnabled(SingleFlight.EMBEDDINGS)) {
+			return compute(modelId, port, request);
+		}
+		// 同时到达的相同请求只算一次，共用响应字节
+		SingleFlight.Response r = flight.execute(SingleFlight.EMBEDDINGS, modelId, request, () -> {
+			Result computed = compute(modelId, port, request);
+			return new SingleFlight.Response(computed.status(), computed.body().getBytes(StandardCharsets.UTF_8));
+		});
+		String body = r.text();
+		return new Result(r.status(), body, JsonUtil.tryParseObject(body));
+	}
+
+	private static Result compute(String modelId, int port, JsonObject request) throws IOException {
+		EmbeddingCache cache = EmbeddingCache.getInstance();
+		List<String> inputs = inputs(request);
+		String identity = EmbeddingCache.modelIdentity(modelId);
+		if (inputs == null || identity == null) {
+			return post(port, JsonUtil.toJson(request));
+		}
+		String options = options(request);
+		boolean useCache = cache.isEnabled();
+
+		int n = inputs.size();
+		EmbeddingCache.Key[] keys = new EmbeddingCache.Key[n];
+		float[][] vectors = new float[n][];
+		List<Integer> missing = new ArrayList<>();
+		long savedInput = 0;
+		for (int i = 0; i < n; i++) {
+			keys[i] = EmbeddingCache.key(identity, options, inputs.get(i));
+			vectors[i] = useCache ? cache.get(keys[i]) : null;
+			if (vectors[i] == null) {
+				missing.add(i);
+			} else {
+				savedInput += inputs.get(i).length();
+			}
+		}
+		cache.recordInputSaved(savedInput);
+
+		JsonObject upstream = null;
+		if (!missing.isEmpty()) {
+			JsonObject sub = request.deepCopy();
+			JsonArray subInput = new JsonArray();
+			for (int i : missing) {
+				subInput.add(inputs.get(i));
+			}
+			sub.add("input", subInput);
+			cache.recordUpstream();
+			Result r = EmbeddingBatcher.getInstance().submit(port, sub);
+			if (r.status() < 200 || r.status() >= 300 || r.json() == null) {
+				return r;
+			}
+			upstream = r.json();
+			float[][] got = vectors(upstream, missing.size());
+			if (got == null) {
+				// 返回的不是普通的向量（比如按token输出），全部未命中时原样返回，否则无法拼接
+				if (missing.size() == n) {
+					return r;
+				}
+				throw new IOException("unexpected embeddings response");
+			}
+			for (int j = 0; j < missing.size(); j++) {
+				int i = missing.get(j);
+				// 缓存按fp16保存时返回舍入后的向量，和以后命中时的结果一致
+				vectors[i] = useCache ? cache.put(keys[i], got[j]) : got[j];
+			}
+		}
+
+		JsonObject out = new JsonObject();
+		out.addProperty("object", "list");
+		JsonArray data = new JsonArray(n);
+		for (int i = 0; i < n; i++) {
+			JsonObject item = new JsonObject();
+			item.addProperty("object", "embedding");
+			item.addProperty("index", i);
+			JsonArray emb = new JsonArray(vectors[i].length);
+			for (float f : vectors[i]) {
+				emb.add(f);
+			}
+			item.add("embedding", emb);
+			data.add(item);
+		}
+		out.add("data", data);
+		String model = upstream == null ? null : JsonUtil.getJsonString(upstream, "model", null);
+		out.addProperty("model", model != null ? model : JsonUtil.getJsonString(request, "model", modelId));
+		// 只统计实际计算的token，命中缓存的输入不计
+		JsonObject usage = upstream != null && upstream.get("usage") instanceof JsonObject u ? u : null;
+		if (usage == null) {
+			usage = new JsonObject();
+			usage.addProperty("prompt_tokens", 0);
+			usage.addProperty("total_tokens", 0);
+		}
+		out.add("usage", usage);
+		return new Result(200, JsonUtil.toJson(out), out);
+	}
+
+	/**
+	 * 	取出输入列表，不是字符串或字符串数组时返回null。
+	 */
+	private static List<String> inputs(JsonObject request) {
+		JsonElement input = request.get("input");
+		if (input == null || input.isJsonNull()) {
+			return null;
+		}
+		if (input.isJsonPrimitive() && input.getAsJsonPrimitive().isString()) {
+			return List.of(input.getAsString());
+		}
+		if (!input.isJsonArray() || input.getAsJsonArray().isEmpty()) {
+			return null;
+		}
+		List<String> list = new ArrayList<>();
+		for (JsonElement e : input.getAsJsonArray()) {
+			// token数组之类的输入不缓存
+			if (!e.isJsonPrimitive() || !e.getAsJsonPrimitive().isString()) {
+				return null;
+			}
+			list.add(e.getAsString());
+		}
+		return list;
+	}
+
+	/**
+	 * 	影响向量结果的请求选项
+	 */
+	private static String options(JsonObject request) {
+		StringBuilder sb = new StringBuilder();
+		for (String k : new String[] { "embd_normalize", "dimensions", "truncate" }) {
+			JsonElement v = request.get(k);
+			if (v != null && !v.isJsonNull()) {
+				sb.append(k).append('=').append(v).append(';');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 	按index取出返回的向量。
+	 * @return 数量不对或者不是一维数组时返回null
+	 */
+	private static float[][] vectors(JsonObject resp, int expected) {
+		if (!(resp.get("data") instanceof JsonArray data) || data.size() != expected) {
+			return null;
+		}
+		float[][] out = new float[expected][];
+		for (int j = 0; j < data.size(); j++) {
+			if (!(data.get(j) instanceof JsonObject item) || !(item.get("embedding") instanceof JsonArray emb)) {
+				return null;
+			}
+			int index = item.has("index") ? item.get("index").getAsInt() : j;
+			if (index < 0 || index >= expected) {
+				return null;
+			}
+			float[] v = new float[emb.size()];
+			for (int k = 0; k < v.length; k++) {
+				JsonElement e = emb.get(k);
+				if (!e.isJsonPrimitive()) {
+					return null;
+				}
+				v[k] = e.getAsFloat();
+			}
+			out[index] = v;
+		}
+		for (float[] v : out) {
+			if (v == null) {
+				return null;
+			}
+		}
+		return out;
+	}
+
+	static Result post(int port, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) URI.create("http://localhost:" + port + "/v1/embeddings").toURL().openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(36000 * 1000);
+			connection.setReadTimeout(36000 * 1000);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+			connection.setDoOutput(true);
+			byte[] input = body.getBytes(StandardCharsets.UTF_8);
+			try (OutputStream os = connection.getOutputStream()) {
+				os.write(input);
+			}
+			int code = connection.getResponseCode();
+			InputStream in = code >= 200 && code < 300 ? connection.getInputStream() : connection.getErrorStream();
+			String text = "";
+			if (in != null) {
+				try (in) {
+					text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+				}
+			}
+			return new Result(code, text, JsonUtil.tryParseObject(text));
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
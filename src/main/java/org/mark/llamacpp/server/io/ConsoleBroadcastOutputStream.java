@@ -3,70 +3,70 @@ package org.mark.llamacpp.server.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-
-import org.mark.llamacpp.server.LlamaServer;
+import java.util.Arrays;
 
 
 /**
  * 	重定向用的输出流。
+ * 	只负责按行切分，整行交给ConsolePipeline异步处理，调用方不会因为写文件或推送WebSocket而阻塞。
  */
 public class ConsoleBroadcastOutputStream extends OutputStream {
-    private final OutputStream delegate;
+    private final ConsolePipeline pipeline;
     private final Charset charset;
-    private final StringBuilder buffer = new StringBuilder();
+    private byte[] buffer = new byte[256];
+    private int count = 0;
     private volatile boolean closed = false;
     
-    public ConsoleBroadcastOutputStream(OutputStream delegate, Charset charset) {
-        this.delegate = delegate;
+    public ConsoleBroadcastOutputStream(ConsolePipeline pipeline, Charset charset) {
+        this.pipeline = pipeline;
         this.charset = charset;
     }
 
     @Override
     public synchronized void write(int b) throws IOException {
-        delegate.write(b);
-        char c = (char) (b & 0xFF);
-        if (c == '\n') {
-            String line = buffer.toString();
-            LlamaServer.sendConsoleLineEvent(null, line);
-            LlamaServer.out.println(line);
-            buffer.setLength(0);
-        } else if (c != '\r') {
-            buffer.append(c);
-        }
+        this.append((byte) b);
     }
 
     @Override
     public synchronized void write(byte[] b, int off, int len) throws IOException {
-        delegate.write(b, off, len);
-        String text = new String(b, off, len, charset);
-        int start = 0;
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            if (c == '\n') {
-                if (i > start) buffer.append(text, start, i);
-                String line = buffer.toString();
-                LlamaServer.sendConsoleLineEvent(null, line);
-                LlamaServer.out.println(line);
-                buffer.setLength(0);
-                start = i + 1;
-            } else if (c == '\r') {
-                if (i > start) buffer.append(text, start, i);
-                start = i + 1;
+        for (int i = off; i < off + len; i++) {
+            this.append(b[i]);
+        }
+    }
+    
+    /**
+     * 	按字节切行，避免多字节字符被拆开后解码出错。
+     */
+    private void append(byte b) {
+        if (b == '\n') {
+            this.pipeline.submit(new String(this.buffer, 0, this.count, this.charset));
+            this.count = 0;
+            if (this.buffer.length > 64 * 1024) {
+                this.buffer = new byte[256];
             }
+            return;
+        }
+        if (b == '\r') {
+            return;
         }
-        if (start < text.length()) buffer.append(text.substring(start));
+        if (this.count == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+        this.buffer[this.count++] = b;
     }
 
     @Override
     public void flush() throws IOException {
-        delegate.flush();
     }
 
     @Override
     public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
-            delegate.close();
+            if (this.count > 0) {
+                this.pipeline.submit(new String(this.buffer, 0, this.count, this.charset));
+                this.count = 0;
+            }
         }
     }
 }
@@ -0,0 +1,335 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mark.llamacpp.server.websocket.WebSocketManager;
+
+
+/**
+ * 	控制台输出的异步管道。
+ * 	<p>
+ * 	写日志的线程只把整行放进一个有界的无锁队列，文件写入、控制台回显和WebSocket推送都由一个后台线程完成：
+ * 	文件按大小滚动，空闲时立即刷盘；WebSocket两帧之间至少间隔50毫秒，这段时间的行合并成一帧发出。
+ * 	队列满了直接丢弃并计数，不会阻塞请求线程。
+ */
+public class ConsolePipeline {
+
+    /**
+     * 	队列最多缓存的行数
+     */
+    private static final int QUEUE_CAPACITY = 16384;
+
+    /**
+     * 	WebSocket合并推送的间隔
+     */
+    private static final long WS_FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * 	单帧最多推送的行数，超过的部分只写文件不推送
+     */
+    private static final int WS_MAX_LINES_PER_FRAME = 500;
+
+    /**
+     * 	单个日志文件的大小上限
+     */
+    private static final long MAX_SEGMENT_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * 	保留的历史日志文件数量：console.1.log ... console.N.log
+     */
+    private static final int MAX_HISTORY_SEGMENTS = 5;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Path logPath;
+    private final PrintStream echo;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private Thread drainer;
+
+    // 以下字段只在后台线程里使用
+    private OutputStream file;
+    private long segmentBytes;
+    private final List<String> wsBatch = new ArrayList<>();
+    private int wsSkipped;
+    private long lastWsFlushNanos;
+
+    public ConsolePipeline(Path logPath, PrintStream echo) {
+        this.logPath = logPath;
+        this.echo = echo;
+    }
+
+    /**
+     * 	启动后台线程，JVM退出时把剩余的行写完。
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.drainer = new Thread(this::drainLoop, "console-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "console-drainer-shutdown"));
+    }
+
+    /**
+     * 	提交一行输出。队列满时丢弃，永不阻塞。
+     * @param line
+     */
+    public void submit(String line) {
+        if (this.queued.incrementAndGet() > QUEUE_CAPACITY) {
+            this.queued.decrementAndGet();
+            this.dropped.incrementAndGet();
+            return;
+        }
+        this.queue.offer(line);
+        if (!this.running) {
+            // 还没启动或者已经关闭，直接同步写，保证不丢
+            synchronized (this) {
+                this.drainAvailable();
+                this.flushAll();
+            }
+        }
+    }
+
+    /**
+     * 	停止后台线程并写完剩余内容。
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+            t = this.drainer;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(2_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            this.drainAvailable();
+            this.flushAll();
+            this.closeFile();
+        }
+    }
+
+    private void drainLoop() {
+        while (this.running) {
+            boolean any;
+            long parkNanos = IDLE_PARK_NANOS;
+            synchronized (this) {
+                any = this.drainAvailable();
+                if (!any) {
+                    // 文件和回显空闲时立即刷出，WebSocket仍然按间隔合并
+                    this.flushFile();
+                }
+                long elapsed = System.nanoTime() - this.lastWsFlushNanos;
+                if (elapsed >= WS_FLUSH_INTERVAL_NANOS) {
+                    this.flushWebSocket();
+                } else if (!this.wsBatch.isEmpty() || this.wsSkipped > 0) {
+                    // 还有没推送的行，最多睡到这个间隔结束
+                    parkNanos = Math.min(parkNanos, WS_FLUSH_INTERVAL_NANOS - elapsed);
+                }
+            }
+            if (!any) {
+                LockSupport.parkNanos(parkNanos);
+            }
+        }
+    }
+
+    /**
+     * 	取出队列里现有的行，写文件、回显并放入待推送的批次。
+     * @return 是否取到了内容
+     */
+    private boolean drainAvailable() {
+        boolean any = false;
+        long lost = this.dropped.getAndSet(0);
+        if (lost > 0) {
+            this.handleLine("[console] 输出过快，丢弃了 " + lost + " 行");
+            any = true;
+        }
+        String line;
+        int budget = 4096;
+        while (budget-- > 0 && (line = this.queue.poll()) != null) {
+            this.queued.decrementAndGet();
+            this.handleLine(line);
+            any = true;
+        }
+        return any;
+    }
+
+    private void handleLine(String line) {
+        try {
+            this.writeToFile(line);
+        } catch (IOException e) {
+            this.closeFile();
+        }
+        if (this.echo != null) {
+            this.echo.println(line);
+        }
+        if (this.wsBatch.size() < WS_MAX_LINES_PER_FRAME) {
+            this.wsBatch.add(line);
+        } else {
+            this.wsSkipped++;
+        }
+    }
+
+    private void writeToFile(String line) throws IOException {
+        if (this.file == null) {
+            this.openFile();
+        }
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        if (this.segmentBytes > 0 && this.segmentBytes + bytes.length > MAX_SEGMENT_BYTES) {
+            this.rotate();
+        }
+        this.file.write(bytes);
+        this.segmentBytes += bytes.length;
+    }
+
+    private void openFile() throws IOException {
+        Path parent = this.logPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.segmentBytes = Files.exists(this.logPath) ? Files.size(this.logPath) : 0;
+        this.file = new BufferedOutputStream(new FileOutputStream(this.logPath.toFile(), true), 64 * 1024);
+    }
+
+    /**
+     * 	滚动：console.log -> console.1.log -> console.2.log ...，超过保留数量的删除。
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        this.closeFile();
+        Files.deleteIfExists(segmentPath(this.logPath, MAX_HISTORY_SEGMENTS));
+        for (int i = MAX_HISTORY_SEGMENTS - 1; i >= 1; i--) {
+            Path from = segmentPath(this.logPath, i);
+            if (Files.exists(from)) {
+                Files.move(from, segmentPath(this.logPath, i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (Files.exists(this.logPath)) {
+            Files.move(this.logPath, segmentPath(this.logPath, 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.openFile();
+    }
+
+    private void closeFile() {
+        if (this.file != null) {
+            try {
+                this.file.close();
+            } catch (IOException ignored) {
+            }
+            this.file = null;
+        }
+    }
+
+    private void flushAll() {
+        this.flushWebSocket();
+        this.flushFile();
+    }
+
+    private void flushFile() {
+        if (this.file != null) {
+            try {
+                this.file.flush();
+            } catch (IOException e) {
+                this.closeFile();
+            }
+        }
+        if (this.echo != null) {
+            this.echo.flush();
+        }
+    }
+
+    /**
+     * 	推送待发的行。只在真正发出时记录时间，空闲后的第一行不用等满一个间隔。
+     */
+    private void flushWebSocket() {
+        if (this.wsBatch.isEmpty() && this.wsSkipped == 0) {
+            return;
+        }
+        this.lastWsFlushNanos = System.nanoTime();
+        try {
+            WebSocketManager ws = WebSocketManager.getInstance();
+            if (ws.getConnectionCount() > 0) {
+                ws.sendConsoleBatchEvent(null, List.copyOf(this.wsBatch), this.wsSkipped);
+            }
+        } catch (Exception ignored) {
+            // 推送失败不能影响日志本身
+        } finally {
+            this.wsBatch.clear();
+            this.wsSkipped = 0;
+        }
+    }
+
+    /**
+     * 	第index个历史日志文件的路径。
+     * @param logPath
+     * @param index
+     * @return
+     */
+    public static Path segmentPath(Path logPath, int index) {
+        String name = logPath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String rotated = dot > 0 ? name.substring(0, dot) + "." + index + name.substring(dot) : name + "." + index;
+        return logPath.resolveSibling(rotated);
+    }
+
+    /**
+     * 	读取日志末尾最多maxBytes字节，当前文件不够时从上一个滚动文件里补。
+     * @param logPath
+     * @param maxBytes
+     * @return
+     * @throws IOException
+     */
+    public static String readTail(Path logPath, int maxBytes) throws IOException {
+        byte[] current = tailBytes(logPath, maxBytes);
+        byte[] previous = current.length < maxBytes ? tailBytes(segmentPath(logPath, 1), maxBytes - current.length) : new byte[0];
+        byte[] all = new byte[previous.length + current.length];
+        System.arraycopy(previous, 0, all, 0, previous.length);
+        System.arraycopy(current, 0, all, previous.length, current.length);
+        return new String(all, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] tailBytes(Path file, int maxBytes) throws IOException {
+        if (maxBytes <= 0 || !Files.exists(file)) {
+            return new byte[0];
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            long len = raf.length();
+            long start = Math.max(0, len - maxBytes);
+            raf.seek(start);
+            byte[] buf = new byte[(int) (len - start)];
+            raf.readFully(buf);
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 	单个模型进程的日志存储。
+ * 	<p>
+ * 	最近的行放在内存环形缓冲里，全部的行按顺序写入logs/models/{模型}/下的分段文件，文件按大小滚动，只保留最近几个。
+ * 	每行有递增的序号和时间戳，每隔若干行记一个(序号, 时间, 文件偏移)的索引点，
+ * 	按序号或时间定位时只需要从最近的索引点往后读，不用读整个文件。
+ * 	<p>
+ * 	写入方只做内存操作，磁盘写入交给一个共享的后台线程，磁盘跟不上时丢弃磁盘写入，不会阻塞进程输出的读取。
+ */
+public class ModelLogStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelLogStore.class);
+
+    /**
+     * 	内存里保留的行数
+     */
+    private static final int RING_LINES = 5000;
+
+    /**
+     * 	每隔多少行记一个索引点
+     */
+    private static final int INDEX_INTERVAL = 128;
+
+    /**
+     * 	单个分段文件的大小上限
+     */
+    private static final long MAX_SEGMENT_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * 	每个模型保留的分段数量
+     */
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final Path BASE_DIR = Paths.get("logs", "models");
+
+    private static final Map<String, ModelLogStore> STORES = new ConcurrentHashMap<>();
+
+    /**
+     * 	所有模型共用的磁盘写入线程，队列满时丢弃。
+     */
+    private static final ThreadPoolExecutor DISK_WRITER = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(65536), r -> {
+                Thread t = new Thread(r, "model-log-writer");
+                t.setDaemon(true);
+                return t;
+            }, (r, executor) -> {
+                if (r instanceof DiskWrite w) {
+                    w.store().diskDropped.incrementAndGet();
+                }
+            });
+
+    private record DiskWrite(ModelLogStore store, LogLine line) implements Runnable {
+        @Override
+        public void run() {
+            this.store.writeToDisk(this.line);
+        }
+    }
+
+    /**
+     * 	一行日志
+     */
+    public record LogLine(long seq, long timestamp, String text) {
+    }
+
+    private record Checkpoint(long seq, long timestamp, long offset) {
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final List<Checkpoint> index = new ArrayList<>();
+        private long firstSeq = -1;
+        private long lastSeq = -1;
+        private long bytes;
+        private long linesSinceCheckpoint = INDEX_INTERVAL;
+
+        private Segment(Path file) {
+            this.file = file;
+        }
+    }
+
+    private final String modelId;
+    private final Path dir;
+
+    // 内存环形缓冲，由ringLock保护
+    private final Object ringLock = new Object();
+    private final LogLine[] ring = new LogLine[RING_LINES];
+    private long nextSeq = 0;
+
+    // 磁盘分段，由diskLock保护
+    private final Object diskLock = new Object();
+    private final List<Segment> segments = new ArrayList<>();
+    private OutputStream out;
+    private final AtomicLong diskDropped = new AtomicLong(0);
+
+    private ModelLogStore(String modelId) {
+        this.modelId = modelId;
+        this.dir = BASE_DIR.resolve(sanitize(modelId));
+        // 序号每次启动程序都从0开始，上次运行留下的分段没有索引，直接清掉
+        try {
+            if (Files.isDirectory(this.dir)) {
+                try (Stream<Path> s = Files.list(this.dir)) {
+                    for (Path p : (Iterable<Path>) s::iterator) {
+                        if (p.getFileName().toString().endsWith(".log")) {
+                            Files.deleteIfExists(p);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.info("清理模型日志目录失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 	获取模型的日志存储，不存在时创建。
+     * @param modelId
+     * @return
+     */
+    public static ModelLogStore forModel(String modelId) {
+        return STORES.computeIfAbsent(modelId, ModelLogStore::new);
+    }
+
+    /**
+     * 	获取模型的日志存储，不存在时返回null。
+     * @param modelId
+     * @return
+     */
+    public static ModelLogStore find(String modelId) {
+        return modelId == null ? null : STORES.get(modelId);
+    }
+
+    public String getModelId() {
+        return this.modelId;
+    }
+
+    /**
+     * 	追加一行。只做内存操作，磁盘写入异步完成。
+     * @param text
+     */
+    public void append(String text) {
+        LogLine line;
+        synchronized (this.ringLock) {
+            line = new LogLine(this.nextSeq, System.currentTimeMillis(), text == null ? "" : text);
+            this.ring[(int) (this.nextSeq % RING_LINES)] = line;
+            this.nextSeq++;
+        }
+        DISK_WRITER.execute(new DiskWrite(this, line));
+    }
+
+    /**
+     * 	最早还能查到的序号。
+     * @return
+     */
+    public long getFirstSeq() {
+        synchronized (this.diskLock) {
+            if (!this.segments.isEmpty() && this.segments.get(0).firstSeq >= 0) {
+                return this.segments.get(0).firstSeq;
+            }
+        }
+        synchronized (this.ringLock) {
+            return Math.max(0, this.nextSeq - RING_LINES);
+        }
+    }
+
+    /**
+     * 	下一行将要使用的序号，也就是当前最后一行的序号加一。
+     * @return
+     */
+    public long getNextSeq() {
+        synchronized (this.ringLock) {
+            return this.nextSeq;
+        }
+    }
+
+    /**
+     * 	最后n行。
+     * @param n
+     * @return
+     */
+    public List<LogLine> tail(int n) {
+        long from = Math.max(this.getFirstSeq(), this.getNextSeq() - Math.max(0, n));
+        return this.range(from, n);
+    }
+
+    /**
+     * 	从指定序号开始最多limit行，用于翻页。
+     * @param fromSeq
+     * @param limit
+     * @return
+     */
+    public List<LogLine> range(long fromSeq, int limit) {
+        List<LogLine> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+        this.scan(fromSeq, line -> {
+            result.add(line);
+            return result.size() < limit;
+        });
+        return result;
+    }
+
+    /**
+     * 	从指定时间开始最多limit行。
+     * @param timestampMillis
+     * @param limit
+     * @return
+     */
+    public List<LogLine> since(long timestampMillis, int limit) {
+        List<LogLine> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+        this.scan(this.seqBefore(timestampMillis), line -> {
+            if (line.timestamp() >= timestampMillis) {
+                result.add(line);
+            }
+            return result.size() < limit;
+        });
+        return result;
+    }
+
+    /**
+     * 	从指定序号开始查找匹配的行，最多返回limit行，最多扫描maxScan行。
+     * @param fromSeq
+     * @param matcher
+     * @param limit
+     * @param maxScan
+     * @return 匹配的行，以及下一次继续查找的起始序号
+     */
+    public SearchResult search(long fromSeq, Predicate<String> matcher, int limit, int maxScan) {
+        List<LogLine> result = new ArrayList<>();
+        long[] cursor = { Math.max(fromSeq, this.getFirstSeq()) };
+        int[] scanned = { 0 };
+        this.scan(cursor[0], line -> {
+            cursor[0] = line.seq() + 1;
+            if (matcher.test(line.text())) {
+                result.add(line);
+            }
+            return result.size() < limit && ++scanned[0] < maxScan;
+        });
+        return new SearchResult(result, cursor[0]);
+    }
+
+    /**
+     * 	查找结果
+     */
+    public record SearchResult(List<LogLine> lines, long nextSeq) {
+    }
+
+    /**
+     * 	按序号从小到大遍历，先读磁盘分段，磁盘还没写到的部分从内存补。
+     * @param fromSeq
+     * @param consumer 返回false时停止
+     */
+    private void scan(long fromSeq, Predicate<LogLine> consumer) {
+        long next = Math.max(0, fromSeq);
+        long ringOldest;
+        synchronized (this.ringLock) {
+            ringOldest = Math.max(0, this.nextSeq - RING_LINES);
+        }
+        if (next < ringOldest) {
+            long[] lastRead = { next - 1 };
+            boolean more = this.scanDisk(next, ringOldest, line -> {
+                lastRead[0] = line.seq();
+                return consumer.test(line);
+            });
+            if (!more) {
+                return;
+            }
+            next = Math.max(next, lastRead[0] + 1);
+        }
+        while (true) {
+            LogLine line = null;
+            synchronized (this.ringLock) {
+                long oldest = Math.max(0, this.nextSeq - RING_LINES);
+                if (next < oldest) {
+                    next = oldest;
+                }
+                if (next < this.nextSeq) {
+                    line = this.ring[(int) (next % RING_LINES)];
+                }
+            }
+            if (line == null || !consumer.test(line)) {
+                return;
+            }
+            next++;
+        }
+    }
+
+    /**
+     * 	从磁盘读取[fromSeq, untilSeq)之间的行。
+     * @return 是否需要继续往后读
+     */
+    private boolean scanDisk(long fromSeq, long untilSeq, Predicate<LogLine> consumer) {
+        // 先在锁内算好每个分段的起始偏移，读文件时不持锁
+        List<Path> files = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        synchronized (this.diskLock) {
+            this.flushQuietly();
+            for (Segment seg : this.segments) {
+                if (seg.lastSeq < fromSeq) {
+                    continue;
+                }
+                long offset = 0;
+                for (Checkpoint cp : seg.index) {
+                    if (cp.seq() > fromSeq) {
+                        break;
+                    }
+                    offset = cp.offset();
+                }
+                files.add(seg.file);
+                offsets.add(offset);
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            try (FileChannel ch = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                long offset = offsets.get(i);
+                ch.position(offset);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+                String raw;
+                while ((raw = reader.readLine()) != null) {
+                    LogLine line = parse(raw);
+                    if (line == null || line.seq() < fromSeq) {
+                        continue;
+                    }
+                    if (line.seq() >= untilSeq) {
+                        return true;
+                    }
+                    if (!consumer.test(line)) {
+                        return false;
+                    }
+                }
+            } catch (IOException e) {
+                // 分段可能刚被滚动删除，跳过
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 	时间戳早于指定时间的最后一个索引点的序号，作为按时间查找的起点。
+     * @param timestampMillis
+     * @return
+     */
+    private long seqBefore(long timestampMillis) {
+        synchronized (this.ringLock) {
+            long oldest = Math.max(0, this.nextSeq - RING_LINES);
+            LogLine first = this.nextSeq > 0 ? this.ring[(int) (oldest % RING_LINES)] : null;
+            if (first != null && first.timestamp() <= timestampMillis) {
+                return oldest;
+            }
+        }
+        long seq = 0;
+        synchronized (this.diskLock) {
+            for (Segment seg : this.segments) {
+                for (Checkpoint cp : seg.index) {
+                    if (cp.timestamp() >= timestampMillis) {
+                        return seq;
+                    }
+                    seq = cp.seq();
+                }
+            }
+        }
+        return seq;
+    }
+
+    private void writeToDisk(LogLine line) {
+        synchronized (this.diskLock) {
+            try {
+                long lost = this.diskDropped.getAndSet(0);
+                if (lost > 0) {
+                    logger.info("模型 {} 的日志写入过快，磁盘丢弃了 {} 行", this.modelId, lost);
+                }
+                Segment seg = this.currentSegment(line.seq());
+                byte[] bytes = (line.seq() + "\t" + line.timestamp() + "\t" + line.text() + "\n").getBytes(StandardCharsets.UTF_8);
+                if (seg.bytes > 0 && seg.bytes + bytes.length > MAX_SEGMENT_BYTES) {
+                    seg = this.rollSegment(line.seq());
+                }
+                if (seg.linesSinceCheckpoint >= INDEX_INTERVAL) {
+                    seg.index.add(new Checkpoint(line.seq(), line.timestamp(), seg.bytes));
+                    seg.linesSinceCheckpoint = 0;
+                }
+                this.out.write(bytes);
+                seg.bytes += bytes.length;
+                seg.linesSinceCheckpoint++;
+                if (seg.firstSeq < 0) {
+                    seg.firstSeq = line.seq();
+                }
+                seg.lastSeq = line.seq();
+                if (DISK_WRITER.getQueue().isEmpty()) {
+                    this.out.flush();
+                }
+            } catch (IOException e) {
+                this.closeQuietly();
+            }
+        }
+    }
+
+    private Segment currentSegment(long seq) throws IOException {
+        if (this.segments.isEmpty() || this.out == null) {
+            return this.rollSegment(seq);
+        }
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    private Segment rollSegment(long firstSeq) throws IOException {
+        this.closeQuietly();
+        Files.createDirectories(this.dir);
+        Segment seg = new Segment(this.dir.resolve(String.format("%012d.log", firstSeq)));
+        this.out = new BufferedOutputStream(Files.newOutputStream(seg.file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024);
+        this.segments.add(seg);
+        while (this.segments.size() > MAX_SEGMENTS) {
+            Segment old = this.segments.remove(0);
+            Files.deleteIfExists(old.file);
+        }
+        return seg;
+    }
+
+    private void flushQuietly() {
+        if (this.out != null) {
+            try {
+                this.out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException ignored) {
+            }
+            this.out = null;
+        }
+    }
+
+    private static LogLine parse(String raw) {
+        int a = raw.indexOf('\t');
+        int b = a < 0 ? -1 : raw.indexOf('\t', a + 1);
+        if (b < 0) {
+            return null;
+        }
+        try {
+            return new LogLine(Long.parseLong(raw.substring(0, a)), Long.parseLong(raw.substring(a + 1, b)), raw.substring(b + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String sanitize(String modelId) {
+        String s = modelId == null ? "unknown" : modelId.replaceAll("[^A-Za-z0-9._-]", "_");
+        return s.isEmpty() ? "unknown" : s;
+    }
+}
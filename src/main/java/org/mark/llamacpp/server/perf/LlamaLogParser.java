@@ -0,0 +1,186 @@
+package org.mark.llamacpp.server.perf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.server.SlotMonitor;
+
+
+/**
+ * 	llama-server输出的流式解析器，从日志里提取性能相关的事件。
+ * 	<p>
+ * 	识别的内容：
+ * 	<ul>
+ * 	<li>slot ... | task N | new prompt, ... n_prompt_tokens = X</li>
+ * 	<li>kv cache rm [P, end) / memory_seq_rm [P, end)：前P个token命中了缓存</li>
+ * 	<li>context shift：上下文滚动</li>
+ * 	<li>stop processing: n_past = X</li>
+ * 	<li>print_timing之后的 prompt eval time / eval time 两行</li>
+ * 	</ul>
+ * 	计时和stop processing两者都到了之后产生一个请求的性能事件。
+ * 	每一行先用contains快速过滤，绝大多数行不会进正则。一个进程一个实例，只在读取输出的线程里调用。
+ */
+public class LlamaLogParser implements Consumer<String> {
+
+	private static final Pattern SLOT_TASK = Pattern.compile("id\\s+(\\d+)\\s*\\|\\s*task\\s+(-?\\d+)");
+	private static final Pattern N_PROMPT = Pattern.compile("n_prompt_tokens\\s*=\\s*(\\d+)");
+	private static final Pattern CACHE_RM = Pattern.compile("(?:kv cache rm|memory_seq_rm)\\s*\\[(\\d+),");
+	private static final Pattern N_PAST = Pattern.compile("n_past\\s*=\\s*(\\d+)");
+	private static final Pattern N_DISCARD = Pattern.compile("n_discard\\s*=\\s*(\\d+)");
+	private static final Pattern TIMING = Pattern.compile(
+			"eval time\\s*=\\s*([\\d.]+)\\s*ms\\s*/\\s*(\\d+)\\s*tokens.*?([\\d.]+)\\s*tokens per second");
+
+	/**
+	 * 	一个请求在解析过程中积累的数据
+	 */
+	private static final class TaskState {
+		private int slotId;
+		private int promptTokens = -1;
+		private int cachedTokens = -1;
+		private int nPast = -1;
+		private double promptMs = -1;
+		private int promptEvalTokens = -1;
+		private double promptTps = -1;
+		private int generatedTokens = -1;
+		private double generateMs = -1;
+		private double generateTps = -1;
+		private boolean released;
+	}
+
+	private final String modelId;
+	private final ModelPerfStats stats;
+	private final Map<Integer, TaskState> tasks = new HashMap<>();
+
+	/**
+	 * 	最近一次print_timing对应的任务，后面两行计时不带slot信息
+	 */
+	private int timingTask = Integer.MIN_VALUE;
+
+	public LlamaLogParser(String modelId, ModelPerfStats stats) {
+		this.modelId = modelId;
+		this.stats = stats;
+	}
+
+	@Override
+	public void accept(String line) {
+		if (line == null || line.isEmpty()) {
+			return;
+		}
+		try {
+			this.parse(line);
+		} catch (RuntimeException e) {
+			// 解析失败不影响进程输出的读取
+		}
+	}
+
+	private void parse(String line) {
+		if (line.contains("eval time =")) {
+			this.parseTiming(line);
+			return;
+		}
+		if (!line.startsWith("slot ")) {
+			return;
+		}
+		Matcher st = SLOT_TASK.matcher(line);
+		if (!st.find()) {
+			return;
+		}
+		int slotId = Integer.parseInt(st.group(1));
+		int taskId = Integer.parseInt(st.group(2));
+
+		if (line.contains("print_timing")) {
+			this.timingTask = taskId;
+			return;
+		}
+		if (taskId < 0) {
+			return;
+		}
+		if (line.contains("new prompt")) {
+			SlotMonitor.getInstance().nudge(this.modelId);
+			TaskState t = this.task(taskId, slotId);
+			Matcher m = N_PROMPT.matcher(line);
+			if (m.find()) {
+				t.promptTokens = Integer.parseInt(m.group(1));
+			}
+			return;
+		}
+		if (line.contains("context shift")) {
+			Matcher m = N_DISCARD.matcher(line);
+			int discarded = m.find() ? Integer.parseInt(m.group(1)) : 0;
+			this.stats.recordContextShift(slotId, taskId, discarded);
+			return;
+		}
+		if (line.contains("cache rm") || line.contains("memory_seq_rm")) {
+			Matcher m = CACHE_RM.matcher(line);
+			if (m.find()) {
+				TaskState t = this.task(taskId, slotId);
+				if (t.cachedTokens < 0) {
+					t.cachedTokens = Integer.parseInt(m.group(1));
+				}
+			}
+			return;
+		}
+		if (line.contains("stop processing")) {
+			Matcher m = N_PAST.matcher(line);
+			TaskState t = this.task(taskId, slotId);
+			if (m.find()) {
+				t.nPast = Integer.parseInt(m.group(1));
+			}
+			t.released = true;
+			SlotMonitor.getInstance().nudge(this.modelId);
+			// 计时一般在释放slot之前打印，这里是一个请求的最后一行
+			if (t.generatedTokens >= 0) {
+				this.finish(taskId, t);
+			}
+		}
+	}
+
+	private void parseTiming(String line) {
+		TaskState t = this.tasks.get(this.timingTask);
+		if (t == null) {
+			return;
+		}
+		Matcher m = TIMING.matcher(line);
+		if (!m.find()) {
+			return;
+		}
+		double ms = Double.parseDouble(m.group(1));
+		int tokens = Integer.parseInt(m.group(2));
+		double tps = Double.parseDouble(m.group(3));
+		if (line.contains("prompt eval time")) {
+			t.promptMs = ms;
+			t.promptEvalTokens = tokens;
+			t.promptTps = tps;
+			return;
+		}
+		t.generatedTokens = tokens;
+		t.generateMs = ms;
+		t.generateTps = tps;
+		int taskId = this.timingTask;
+		this.timingTask = Integer.MIN_VALUE;
+		// 个别版本先释放slot再打印计时
+		if (t.released) {
+			this.finish(taskId, t);
+		}
+	}
+
+	private void finish(int taskId, TaskState t) {
+		this.tasks.remove(taskId);
+		this.stats.recordRequest(new RequestPerf(this.modelId, t.slotId, taskId, System.currentTimeMillis(),
+				t.promptTokens, t.cachedTokens, t.promptEvalTokens, t.promptMs, t.promptTps,
+				t.generatedTokens, t.generateMs, t.generateTps, t.nPast));
+	}
+
+	private TaskState task(int taskId, int slotId) {
+		TaskState t = this.tasks.computeIfAbsent(taskId, k -> new TaskState());
+		t.slotId = slotId;
+		// 异常情况下任务可能没有计时行，防止无限增长
+		if (this.tasks.size() > 256) {
+			this.tasks.keySet().removeIf(k -> k < taskId - 256);
+		}
+		return t;
+	}
+}
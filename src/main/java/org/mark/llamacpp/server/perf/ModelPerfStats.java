@@ -0,0 +1,251 @@
+package org.mark.llamacpp.server.perf;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mark.llamacpp.server.websocket.WebSocketEndpoint;
+import org.mark.llamacpp.server.websocket.WebSocketManager;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	单个模型的性能统计：最近的请求明细，加上按分钟聚合的时间序列。
+ * 	数据来自LlamaLogParser解析的日志，不需要额外请求llama-server；
+ * 	提示词缓存命中另外用转发响应里的timings统计。
+ */
+public class ModelPerfStats {
+
+	/**
+	 * 	保留的请求明细数量
+	 */
+	private static final int MAX_RECENT = 200;
+
+	/**
+	 * 	保留的分钟桶数量
+	 */
+	private static final int MAX_BUCKETS = 120;
+
+	private static final long BUCKET_MILLIS = 60_000L;
+
+	private static final Map<String, ModelPerfStats> STATS = new ConcurrentHashMap<>();
+
+	/**
+	 * 	一分钟内的汇总
+	 */
+	private static final class Bucket {
+		private final long start;
+		private int requests;
+		private long promptTokens;
+		private long cachedTokens;
+		private long promptEvalTokens;
+		private double promptMs;
+		private long generatedTokens;
+		private double generateMs;
+		private int contextShifts;
+
+		private Bucket(long start) {
+			this.start = start;
+		}
+	}
+
+	private final String modelId;
+	private final Deque<RequestPerf> recent = new ArrayDeque<>();
+	private final Deque<Bucket> buckets = new ArrayDeque<>();
+	private long totalRequests;
+	private long totalContextShifts;
+	/**
+	 * 	转发的响应里timings的累计值，和日志解析的结果互相印证
+	 */
+	private long timedRequests;
+	private long timedCachedTokens;
+	private long timedPromptTokens;
+
+	private ModelPerfStats(String modelId) {
+		this.modelId = modelId;
+	}
+
+	/**
+	 * 	获取模型的统计，不存在时创建。
+	 * @param modelId
+	 * @return
+	 */
+	public static ModelPerfStats forModel(String modelId) {
+		return STATS.computeIfAbsent(modelId, ModelPerfStats::new);
+	}
+
+	/**
+	 * 	获取模型的统计，不存在时返回null。
+	 * @param modelId
+	 * @return
+	 */
+	public static ModelPerfStats find(String modelId) {
+		return modelId == null ? null : STATS.get(modelId);
+	}
+
+	/**
+	 * 	记录一个完成的请求，并推送给前端。
+	 * @param perf
+	 */
+	public void recordRequest(RequestPerf perf) {
+		synchronized (this) {
+			this.recent.addLast(perf);
+			while (this.recent.size() > MAX_RECENT) {
+				this.recent.removeFirst();
+			}
+			this.totalRequests++;
+			Bucket b = this.bucket(perf.timestamp());
+			b.requests++;
+			if (perf.promptTokens() > 0) {
+				b.promptTokens += perf.promptTokens();
+			}
+			if (perf.cachedTokens() > 0) {
+				b.cachedTokens += perf.cachedTokens();
+			}
+			if (perf.promptEvalTokens() > 0 && perf.promptMs() > 0) {
+				b.promptEvalTokens += perf.promptEvalTokens();
+				b.promptMs += perf.promptMs();
+			}
+			if (perf.generatedTokens() > 0 && perf.generateMs() > 0) {
+				b.generatedTokens += perf.generatedTokens();
+				b.generateMs += perf.generateMs();
+			}
+		}
+		JsonObject event = new JsonObject();
+		event.addProperty("type", "model_perf");
+		event.addProperty("modelId", this.modelId);
+		event.add("request", toJson(perf));
+		event.addProperty("timestamp", System.currentTimeMillis());
+		WebSocketManager ws = WebSocketManager.getInstance();
+		if (ws.getConnectionCount() > 0) {
+			ws.publish(WebSocketManager.TOPIC_PERF, event.toString(), WebSocketEndpoint.Delivery.DROP, null);
+		}
+	}
+
+	/**
+	 * 	从转发的响应里取timings记录提示词缓存命中。流式响应只有最后一块带timings。
+	 * @param modelId
+	 * @param response 响应或者一个流式数据块
+	 */
+	public static void recordResponse(String modelId, JsonObject response) {
+		if (modelId == null || response == null || !(response.get("timings") instanceof JsonObject timings)) {
+			return;
+		}
+		// cache_n：复用缓存的token数；prompt_n：这次实际计算的token数
+		if (!timings.has("prompt_n")) {
+			return;
+		}
+		long promptN = timings.get("prompt_n").getAsLong();
+		long cacheN = timings.has("cache_n") ? timings.get("cache_n").getAsLong() : 0;
+		ModelPerfStats stats = forModel(modelId);
+		synchronized (stats) {
+			stats.timedRequests++;
+			stats.timedCachedTokens += Math.max(0, cacheN);
+			stats.timedPromptTokens += Math.max(0, promptN);
+		}
+	}
+
+	/**
+	 * 	记录一次上下文滚动。
+	 * @param slotId
+	 * @param taskId
+	 * @param discardedTokens
+	 */
+	public void recordContextShift(int slotId, int taskId, int discardedTokens) {
+		synchronized (this) {
+			this.totalContextShifts++;
+			this.bucket(System.currentTimeMillis()).contextShifts++;
+		}
+		JsonObject event = new JsonObject();
+		event.addProperty("type", "model_context_shift");
+		event.addProperty("modelId", this.modelId);
+		event.addProperty("slotId", slotId);
+		event.addProperty("taskId", taskId);
+		event.addProperty("discardedTokens", discardedTokens);
+		event.addProperty("timestamp", System.currentTimeMillis());
+		WebSocketManager ws = WebSocketManager.getInstance();
+		if (ws.getConnectionCount() > 0) {
+			ws.publish(WebSocketManager.TOPIC_PERF, event.toString(), WebSocketEndpoint.Delivery.DROP, null);
+		}
+	}
+
+	/**
+	 * 	汇总、分钟序列和最近的请求明细。
+	 * @param recentLimit 返回的明细数量
+	 * @return
+	 */
+	public synchronized JsonObject toJson(int recentLimit) {
+		JsonObject out = new JsonObject();
+		out.addProperty("modelId", this.modelId);
+		out.addProperty("totalRequests", this.totalRequests);
+		out.addProperty("totalContextShifts", this.totalContextShifts);
+		JsonObject cache = new JsonObject();
+		cache.addProperty("requests", this.timedRequests);
+		cache.addProperty("cachedTokens", this.timedCachedTokens);
+		cache.addProperty("promptTokens", this.timedPromptTokens);
+		long all = this.timedCachedTokens + this.timedPromptTokens;
+		cache.addProperty("hitRatio", all > 0 ? (double) this.timedCachedTokens / all : 0.0);
+		out.add("promptCache", cache);
+
+		JsonArray series = new JsonArray();
+		for (Bucket b : this.buckets) {
+			JsonObject o = new JsonObject();
+			o.addProperty("start", b.start);
+			o.addProperty("requests", b.requests);
+			o.addProperty("promptTokens", b.promptTokens);
+			o.addProperty("cachedTokens", b.cachedTokens);
+			o.addProperty("cacheHitRatio", b.promptTokens > 0 ? (double) b.cachedTokens / b.promptTokens : 0.0);
+			o.addProperty("promptTokensPerSecond", b.promptMs > 0 ? b.promptEvalTokens * 1000.0 / b.promptMs : 0.0);
+			o.addProperty("generatedTokens", b.generatedTokens);
+			o.addProperty("tokensPerSecond", b.generateMs > 0 ? b.generatedTokens * 1000.0 / b.generateMs : 0.0);
+			o.addProperty("contextShifts", b.contextShifts);
+			series.add(o);
+		}
+		out.add("series", series);
+
+		JsonArray items = new JsonArray();
+		int skip = Math.max(0, this.recent.size() - Math.max(0, recentLimit));
+		for (RequestPerf p : this.recent) {
+			if (skip-- > 0) {
+				continue;
+			}
+			items.add(toJson(p));
+		}
+		out.add("recent", items);
+		return out;
+	}
+
+	private Bucket bucket(long timestamp) {
+		long start = timestamp - (timestamp % BUCKET_MILLIS);
+		Bucket last = this.buckets.peekLast();
+		if (last != null && last.start == start) {
+			return last;
+		}
+		Bucket b = new Bucket(start);
+		this.buckets.addLast(b);
+		while (this.buckets.size() > MAX_BUCKETS) {
+			this.buckets.removeFirst();
+		}
+		return b;
+	}
+
+	private static JsonObject toJson(RequestPerf p) {
+		JsonObject o = new JsonObject();
+		o.addProperty("slotId", p.slotId());
+		o.addProperty("taskId", p.taskId());
+		o.addProperty("timestamp", p.timestamp());
+		o.addProperty("promptTokens", p.promptTokens());
+		o.addProperty("cachedTokens", p.cachedTokens());
+		o.addProperty("promptEvalTokens", p.promptEvalTokens());
+		o.addProperty("promptMs", p.promptMs());
+		o.addProperty("promptTokensPerSecond", p.promptTps());
+		o.addProperty("generatedTokens", p.generatedTokens());
+		o.addProperty("generateMs", p.generateMs());
+		o.addProperty("tokensPerSecond", p.generateTps());
+		o.addProperty("nPast", p.nPast());
+		return o;
+	}
+}
@@ -0,0 +1,278 @@
+package org.mark.llamacpp.server.perf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * 	直接读取/proc和cgroup文件的采样器，不启动任何子进程。
+ * 	<p>
+ * 	CPU和IO都是累计值，两次采样之间做差得到占用率和速率；第一次采样时这些值为-1。
+ * 	只在Linux上可用，其他系统上{@link #isAvailable()}返回false。
+ * 	不是线程安全的，由SystemMonitorService的定时线程独占使用。
+ */
+public class ProcSampler {
+
+	private static final Path PROC = Path.of("/proc");
+	private static final Path CGROUP = Path.of("/sys/fs/cgroup");
+
+	/**
+	 * 	进程上一次的累计值
+	 */
+	private static final class ProcCounters {
+		private long cpuTicks;
+		private long readBytes = -1;
+		private long writeBytes = -1;
+	}
+
+	private long lastTotalTicks = -1;
+	private long lastIdleTicks = -1;
+	private long lastSampleAt;
+	private final Map<Long, ProcCounters> lastProcs = new HashMap<>();
+
+	/**
+	 * 	当前系统是否有/proc可读。
+	 * @return
+	 */
+	public boolean isAvailable() {
+		return Files.isReadable(PROC.resolve("stat"));
+	}
+
+	/**
+	 * 	采样一次。
+	 * @param pids 模型ID到进程PID
+	 * @return
+	 * @throws IOException /proc/stat读取失败
+	 */
+	public SystemSample sample(Map<String, Long> pids) throws IOException {
+		long now = System.currentTimeMillis();
+		int cpuCount = Runtime.getRuntime().availableProcessors();
+
+		// /proc/stat 第一行：cpu user nice system idle iowait irq softirq steal ...
+		long totalTicks = 0;
+		long idleTicks = 0;
+		String stat = read(PROC.resolve("stat"));
+		int eol = stat.indexOf('\n');
+		String[] cpu = (eol < 0 ? stat : stat.substring(0, eol)).trim().split("\\s+");
+		for (int i = 1; i < cpu.length && i <= 8; i++) {
+			long v = Long.parseLong(cpu[i]);
+			totalTicks += v;
+			if (i == 4 || i == 5) {
+				idleTicks += v;
+			}
+		}
+		// 总的ticks是所有核加起来的，换算进程占用时要乘宿主机的核数；
+		// availableProcessors()在容器里受cgroup限制，会比这个少，所以直接数cpuN行
+		int statCpus = countCpuLines(stat);
+		long deltaTotal = this.lastTotalTicks < 0 ? -1 : totalTicks - this.lastTotalTicks;
+		double cpuPercent = -1;
+		if (deltaTotal > 0) {
+			cpuPercent = 100.0 * (deltaTotal - (idleTicks - this.lastIdleTicks)) / deltaTotal;
+		}
+
+		// 内存
+		Map<String, Long> meminfo = parseKeyValues(read(PROC.resolve("meminfo")));
+		long memTotal = meminfo.getOrDefault("MemTotal", 0L) * 1024;
+		long memAvailable = meminfo.getOrDefault("MemAvailable", meminfo.getOrDefault("MemFree", 0L)) * 1024;
+		long memUsed = Math.max(0, memTotal - memAvailable);
+
+		// 负载和进程数：0.52 0.58 0.59 2/1234 5678
+		double[] load = new double[] { -1, -1, -1 };
+		int processCount = -1;
+		String loadavg = readQuietly(PROC.resolve("loadavg"));
+		if (loadavg != null) {
+			String[] parts = loadavg.trim().split("\\s+");
+			for (int i = 0; i < 3 && i < parts.length; i++) {
+				load[i] = Double.parseDouble(parts[i]);
+			}
+			if (parts.length > 3) {
+				int slash = parts[3].indexOf('/');
+				if (slash > 0) {
+					processCount = Integer.parseInt(parts[3].substring(slash + 1));
+				}
+			}
+		}
+
+		// cgroup限制，容器里运行时真正可用的资源
+		long cgroupMemLimit = cgroupMemoryLimit();
+		double cgroupCpuLimit = cgroupCpuLimit();
+		long cgroupMemUsage = readLong(CGROUP.resolve("memory.current"), readLong(CGROUP.resolve("memory/memory.usage_in_bytes"), -1));
+
+		// 各模型进程
+		double seconds = this.lastSampleAt > 0 ? (now - this.lastSampleAt) / 1000.0 : -1;
+		Map<String, ProcessSample> models = new HashMap<>();
+		Map<Long, ProcCounters> current = new HashMap<>();
+		for (Map.Entry<String, Long> e : pids.entrySet()) {
+			long pid = e.getValue() == null ? -1 : e.getValue();
+			if (pid <= 0) {
+				continue;
+			}
+			Path dir = PROC.resolve(Long.toString(pid));
+			String pstat = readQuietly(dir.resolve("stat"));
+			if (pstat == null) {
+				continue;
+			}
+			// comm可能带空格，从最后一个右括号之后开始数；utime/stime是第14、15个字段
+			String[] f = pstat.substring(pstat.lastIndexOf(')') + 2).trim().split("\\s+");
+			ProcCounters c = new ProcCounters();
+			c.cpuTicks = Long.parseLong(f[11]) + Long.parseLong(f[12]);
+			int threads = Integer.parseInt(f[17]);
+
+			String status = readQuietly(dir.resolve("status"));
+			Map<String, Long> st = status == null ? Map.of() : parseKeyValues(status);
+			long rss = st.getOrDefault("VmRSS", -1L);
+			rss = rss < 0 ? -1 : rss * 1024;
+
+			// 其他用户的进程或者内核没开统计时读不到
+			String io = readQuietly(dir.resolve("io"));
+			if (io != null) {
+				Map<String, Long> iom = parseKeyValues(io);
+				c.readBytes = iom.getOrDefault("read_bytes", -1L);
+				c.writeBytes = iom.getOrDefault("write_bytes", -1L);
+			}
+			current.put(pid, c);
+
+			ProcCounters prev = this.lastProcs.get(pid);
+			double procCpu = -1;
+			double readRate = -1;
+			double writeRate = -1;
+			if (prev != null && deltaTotal > 0) {
+				// 以单核为100%，和top一致
+				procCpu = 100.0 * statCpus * (c.cpuTicks - prev.cpuTicks) / deltaTotal;
+			}
+			if (prev != null && seconds > 0) {
+				if (c.readBytes >= 0 && prev.readBytes >= 0) {
+					readRate = (c.readBytes - prev.readBytes) / seconds;
+				}
+				if (c.writeBytes >= 0 && prev.writeBytes >= 0) {
+					writeRate = (c.writeBytes - prev.writeBytes) / seconds;
+				}
+			}
+			models.put(e.getKey(), new ProcessSample(pid, procCpu, rss, threads, readRate, writeRate));
+		}
+		this.lastProcs.clear();
+		this.lastProcs.putAll(current);
+		this.lastTotalTicks = totalTicks;
+		this.lastIdleTicks = idleTicks;
+		this.lastSampleAt = now;
+
+		return new SystemSample(now, cpuCount, cpuPercent, memTotal, memUsed, load[0], load[1], load[2], processCount,
+				cgroupMemLimit, cgroupMemUsage, cgroupCpuLimit, models);
+	}
+
+	/**
+	 * 	/proc/stat里cpu0、cpu1...的行数，即在线的核数。
+	 */
+	private static int countCpuLines(String stat) {
+		int count = 0;
+		int start = 0;
+		while (start < stat.length()) {
+			if (stat.startsWith("cpu", start) && start + 3 < stat.length() && Character.isDigit(stat.charAt(start + 3))) {
+				count++;
+			} else if (count > 0) {
+				// cpuN行是连在一起的
+				break;
+			}
+			int eol = stat.indexOf('\n', start);
+			if (eol < 0) {
+				break;
+			}
+			start = eol + 1;
+		}
+		return Math.max(1, count);
+	}
+
+	/**
+	 * 	cgroup内存上限，没有限制时返回-1。
+	 */
+	private static long cgroupMemoryLimit() {
+		String v2 = readQuietly(CGROUP.resolve("memory.max"));
+		if (v2 != null) {
+			v2 = v2.trim();
+			return "max".equals(v2) ? -1 : parseLong(v2, -1);
+		}
+		long v1 = readLong(CGROUP.resolve("memory/memory.limit_in_bytes"), -1);
+		// v1没有限制时是一个接近Long.MAX_VALUE的数
+		return v1 <= 0 || v1 >= Long.MAX_VALUE / 2 ? -1 : v1;
+	}
+
+	/**
+	 * 	cgroup的CPU配额（核数），没有限制时返回-1。
+	 */
+	private static double cgroupCpuLimit() {
+		String v2 = readQuietly(CGROUP.resolve("cpu.max"));
+		if (v2 != null) {
+			String[] parts = v2.trim().split("\\s+");
+			if (parts.length == 2 && !"max".equals(parts[0])) {
+				long quota = parseLong(parts[0], -1);
+				long period = parseLong(parts[1], -1);
+				return quota > 0 && period > 0 ? (double) quota / period : -1;
+			}
+			return -1;
+		}
+		long quota = readLong(CGROUP.resolve("cpu/cpu.cfs_quota_us"), -1);
+		long period = readLong(CGROUP.resolve("cpu/cpu.cfs_period_us"), -1);
+		return quota > 0 && period > 0 ? (double) quota / period : -1;
+	}
+
+	/**
+	 * 	解析 "Key:   123 kB" 形式的内容，只保留数字部分。
+	 */
+	private static Map<String, Long> parseKeyValues(String text) {
+		Map<String, Long> map = new HashMap<>();
+		int start = 0;
+		int len = text.length();
+		while (start < len) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = len;
+			}
+			int colon = text.indexOf(':', start);
+			if (colon > start && colon < end) {
+				int i = colon + 1;
+				while (i < end && Character.isWhitespace(text.charAt(i))) {
+					i++;
+				}
+				int j = i;
+				while (j < end && Character.isDigit(text.charAt(j))) {
+					j++;
+				}
+				if (j > i) {
+					map.put(text.substring(start, colon), Long.parseLong(text.substring(i, j)));
+				}
+			}
+			start = end + 1;
+		}
+		return map;
+	}
+
+	private static String read(Path path) throws IOException {
+		// /proc下的文件大小为0，readAllBytes会一直读到结尾
+		return new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+	}
+
+	private static String readQuietly(Path path) {
+		try {
+			return read(path);
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+	}
+
+	private static long readLong(Path path, long def) {
+		String s = readQuietly(path);
+		return s == null ? def : parseLong(s.trim(), def);
+	}
+
+	private static long parseLong(String s, long def) {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+}
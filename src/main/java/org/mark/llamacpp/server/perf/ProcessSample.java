@@ -0,0 +1,20 @@
+package org.mark.llamacpp.server.perf;
+
+
+/**
+ * 	单个模型进程的一次采样，未知的字段为-1。
+ * @param pid 进程PID
+ * @param cpuPercent CPU占用，单核为100
+ * @param rssBytes 常驻内存
+ * @param threads 线程数
+ * @param readBytesPerSecond 磁盘读取速率
+ * @param writeBytesPerSecond 磁盘写入速率
+ */
+public record ProcessSample(
+		long pid,
+		double cpuPercent,
+		long rssBytes,
+		int threads,
+		double readBytesPerSecond,
+		double writeBytesPerSecond) {
+}
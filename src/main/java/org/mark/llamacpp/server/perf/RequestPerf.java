@@ -0,0 +1,34 @@
+package org.mark.llamacpp.server.perf;
+
+
+/**
+ * 	从llama-server日志里解析出的单个请求的性能数据，未知的字段为-1。
+ * @param modelId 模型
+ * @param slotId 处理请求的slot
+ * @param taskId llama-server内部的任务号
+ * @param timestamp 完成时间（毫秒）
+ * @param promptTokens 提示词token数
+ * @param cachedTokens 命中缓存而不需要重新计算的token数
+ * @param promptEvalTokens 实际计算的提示词token数
+ * @param promptMs 提示词处理耗时
+ * @param promptTps 提示词处理速度
+ * @param generatedTokens 生成的token数
+ * @param generateMs 生成耗时
+ * @param generateTps 生成速度
+ * @param nPast 请求结束时上下文里的token数
+ */
+public record RequestPerf(
+		String modelId,
+		int slotId,
+		int taskId,
+		long timestamp,
+		int promptTokens,
+		int cachedTokens,
+		int promptEvalTokens,
+		double promptMs,
+		double promptTps,
+		int generatedTokens,
+		double generateMs,
+		double generateTps,
+		int nPast) {
+}
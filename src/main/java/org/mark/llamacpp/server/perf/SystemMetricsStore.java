@@ -0,0 +1,107 @@
+package org.mark.llamacpp.server.perf;
+
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	系统采样的时间序列，固定容量的环形缓冲，满了覆盖最旧的。
+ */
+public class SystemMetricsStore {
+
+	private final SystemSample[] ring;
+	private int head;
+	private int size;
+
+	public SystemMetricsStore(int capacity) {
+		this.ring = new SystemSample[Math.max(1, capacity)];
+	}
+
+	public synchronized void add(SystemSample sample) {
+		this.ring[this.head] = sample;
+		this.head = (this.head + 1) % this.ring.length;
+		if (this.size < this.ring.length) {
+			this.size++;
+		}
+	}
+
+	/**
+	 * 	最近一次采样，没有时返回null。
+	 * @return
+	 */
+	public synchronized SystemSample latest() {
+		return this.size == 0 ? null : this.ring[(this.head - 1 + this.ring.length) % this.ring.length];
+	}
+
+	/**
+	 * 	指定时间之后的采样，按时间顺序。
+	 * @param since 毫秒，0表示全部
+	 * @param modelId 只返回这个模型的进程数据，null表示全部
+	 * @return
+	 */
+	public JsonObject toJson(long since, String modelId) {
+		SystemSample[] items;
+		synchronized (this) {
+			items = new SystemSample[this.size];
+			int start = (this.head - this.size + this.ring.length) % this.ring.length;
+			for (int i = 0; i < this.size; i++) {
+				items[i] = this.ring[(start + i) % this.ring.length];
+			}
+		}
+		JsonArray series = new JsonArray();
+		for (SystemSample s : items) {
+			if (s.timestamp() > since) {
+				series.add(toJson(s, modelId));
+			}
+		}
+		JsonObject out = new JsonObject();
+		out.addProperty("capacity", this.ring.length);
+		out.add("series", series);
+		return out;
+	}
+
+	/**
+	 * 	单次采样转JSON。
+	 * @param s
+	 * @param modelId 只保留这个模型，null表示全部
+	 * @return
+	 */
+	public static JsonObject toJson(SystemSample s, String modelId) {
+		JsonObject o = new JsonObject();
+		o.addProperty("timestamp", s.timestamp());
+		o.addProperty("cpuCount", s.cpuCount());
+		o.addProperty("cpuPercent", round(s.cpuPercent()));
+		o.addProperty("memTotal", s.memTotal());
+		o.addProperty("memUsed", s.memUsed());
+		o.addProperty("load1", s.load1());
+		o.addProperty("load5", s.load5());
+		o.addProperty("load15", s.load15());
+		o.addProperty("processCount", s.processCount());
+		o.addProperty("cgroupMemLimit", s.cgroupMemLimit());
+		o.addProperty("cgroupMemUsage", s.cgroupMemUsage());
+		o.addProperty("cgroupCpuLimit", s.cgroupCpuLimit());
+		JsonObject models = new JsonObject();
+		for (Map.Entry<String, ProcessSample> e : s.models().entrySet()) {
+			if (modelId != null && !modelId.equals(e.getKey())) {
+				continue;
+			}
+			ProcessSample p = e.getValue();
+			JsonObject m = new JsonObject();
+			m.addProperty("pid", p.pid());
+			m.addProperty("cpuPercent", round(p.cpuPercent()));
+			m.addProperty("rssBytes", p.rssBytes());
+			m.addProperty("threads", p.threads());
+			m.addProperty("readBytesPerSecond", Math.round(p.readBytesPerSecond()));
+			m.addProperty("writeBytesPerSecond", Math.round(p.writeBytesPerSecond()));
+			models.add(e.getKey(), m);
+		}
+		o.add("models", models);
+		return o;
+	}
+
+	private static double round(double v) {
+		return v < 0 ? v : Math.round(v * 10.0) / 10.0;
+	}
+}
@@ -0,0 +1,36 @@
+package org.mark.llamacpp.server.perf;
+
+import java.util.Map;
+
+
+/**
+ * 	系统的一次采样，未知的字段为-1。
+ * @param timestamp 采样时间（毫秒）
+ * @param cpuCount JVM可见的CPU数
+ * @param cpuPercent 整机CPU占用
+ * @param memTotal 总内存
+ * @param memUsed 已用内存（总内存减去MemAvailable）
+ * @param load1 1分钟负载
+ * @param load5 5分钟负载
+ * @param load15 15分钟负载
+ * @param processCount 进程数
+ * @param cgroupMemLimit cgroup内存上限
+ * @param cgroupMemUsage cgroup已用内存
+ * @param cgroupCpuLimit cgroup的CPU配额（核数）
+ * @param models 模型ID到进程采样
+ */
+public record SystemSample(
+		long timestamp,
+		int cpuCount,
+		double cpuPercent,
+		long memTotal,
+		long memUsed,
+		double load1,
+		double load5,
+		double load15,
+		int processCount,
+		long cgroupMemLimit,
+		long cgroupMemUsage,
+		double cgroupCpuLimit,
+		Map<String, ProcessSample> models) {
+}
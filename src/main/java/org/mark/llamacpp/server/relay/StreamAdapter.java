@@ -0,0 +1,60 @@
+package org.mark.llamacpp.server.relay;
+
+import java.io.IOException;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+
+/**
+ * 	流式转发的协议适配器，每个请求一个实例。
+ * 	<p>
+ * 	{@link StreamRelay}负责读取llama-server的SSE流、写回客户端、背压、客户端断开后取消上游和统计；
+ * 	适配器只决定每个data行怎么改写，以及结束时补发什么。
+ */
+public interface StreamAdapter {
+
+	/**
+	 * 	统计里使用的名字，比如 openai、anthropic、ollama、lmstudio
+	 * @return
+	 */
+	String name();
+
+	/**
+	 * 	设置响应头，Content-Type以外的头由适配器决定
+	 * @param headers
+	 */
+	default void headers(HttpHeaders headers) {
+		StreamRelay.sseHeaders(headers);
+	}
+
+	/**
+	 * 	响应的Content-Type
+	 * @return
+	 */
+	default String contentType() {
+		return "text/event-stream; charset=UTF-8";
+	}
+
+	/**
+	 * 	是否按SSE输出：为true时event行和空行原样转发，为false时（比如NDJSON）只输出适配器写的内容
+	 * @return
+	 */
+	default boolean sse() {
+		return true;
+	}
+
+	/**
+	 * 	处理一个data行。什么都不写就表示丢弃，调用{@link StreamRelay.Chunk#pass()}表示原样转发。
+	 * @param chunk
+	 * @throws IOException
+	 */
+	void onData(StreamRelay.Chunk chunk) throws IOException;
+
+	/**
+	 * 	上游正常结束（收到[DONE]或者流读完）后调用一次，可以写最后的数据块。客户端已经断开时不调用。
+	 * @param chunk 没有data内容，只用来写
+	 * @throws IOException
+	 */
+	default void onEnd(StreamRelay.Chunk chunk) throws IOException {
+	}
+}
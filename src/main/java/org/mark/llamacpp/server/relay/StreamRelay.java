@@ -0,0 +1,518 @@
+package org.mark.llamacpp.server.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+
+/**
+ * 	把llama-server的流式响应转发给客户端，OpenAI、Anthropic、Ollama和LM Studio共用。
+ * 	<p>
+ * 	按字节切分SSE行，不经过Reader和String；适配器原样转发的行直接从读缓冲拷进池化的ByteBuf。
+ * 	客户端来不及接收时等待写完再读上游（背压一直传到llama-server），客户端断开时断开上游连接让llama-server停止生成。
+ * 	每种适配器分别统计。
+ */
+public final class StreamRelay {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamRelay.class);
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] DONE = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 	等待客户端可写时每次最多等多久，之后重新检查连接状态
+	 */
+	private static final long WRITABLE_WAIT_MILLIS = 1000;
+
+	/**
+	 * 	一种适配器的统计
+	 */
+	private static final class Counters {
+		private final LongAdder streams = new LongAdder();
+		private final LongAdder completed = new LongAdder();
+		private final LongAdder cancelled = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder dataLines = new LongAdder();
+		private final LongAdder passed = new LongAdder();
+		private final LongAdder written = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final LongAdder backpressureWaits = new LongAdder();
+		private final LongAdder replayed = new LongAdder();
+	}
+
+	private static final Map<String, Counters> COUNTERS = new ConcurrentHashMap<>();
+
+	/**
+	 * 	录制写给客户端的全部数据，用来缓存流式响应。超过上限后放弃录制。
+	 */
+	public static final class Recorder {
+		private final long limit;
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		public Recorder(long limit) {
+			this.limit = limit;
+		}
+
+		private void record(ByteBuf buf) {
+			if (this.out == null) {
+				return;
+			}
+			int n = buf.readableBytes();
+			if (this.out.size() + (long) n > this.limit) {
+				this.out = null;
+				return;
+			}
+			byte[] b = new byte[n];
+			buf.getBytes(buf.readerIndex(), b);
+			this.out.write(b, 0, n);
+		}
+
+		/**
+		 * 	录制的数据
+		 * @return 超过上限时返回null
+		 */
+		public byte[] toByteArray() {
+			return this.out == null ? null : this.out.toByteArray();
+		}
+	}
+
+	/**
+	 * 	当前data行和写出口。只在转发线程里使用。
+	 */
+	public static final class Chunk {
+		private final ChannelHandlerContext ctx;
+		private final Counters counters;
+		private final ChannelFutureListener writeListener;
+		private final Recorder recorder;
+		private ChannelFuture lastWrite;
+
+		private byte[] buf;
+		private int lineStart;
+		private int dataStart;
+		private int dataEnd;
+		private JsonObject json;
+		private boolean parsed;
+
+		private Chunk(ChannelHandlerContext ctx, Counters counters, Recorder recorder) {
+			this.ctx = ctx;
+			this.counters = counters;
+			this.recorder = recorder;
+			this.writeListener = future -> {
+				if (!future.isSuccess()) {
+					logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
+					ctx.close();
+				}
+			};
+		}
+
+		private void reset(byte[] buf, int lineStart, int dataStart, int dataEnd) {
+			this.buf = buf;
+			this.lineStart = lineStart;
+			this.dataStart = dataStart;
+			this.dataEnd = dataEnd;
+			this.json = null;
+			this.parsed = false;
+		}
+
+		public ChannelHandlerContext ctx() {
+			return this.ctx;
+		}
+
+		/**
+		 * 	读缓冲，data内容在{@link #dataStart()}到{@link #dataEnd()}之间，只在onData期间有效
+		 * @return
+		 */
+		public byte[] buffer() {
+			return this.buf;
+		}
+
+		public int dataStart() {
+			return this.dataStart;
+		}
+
+		public int dataEnd() {
+			return this.dataEnd;
+		}
+
+		/**
+		 * 	data内容里是否有这段字节，用来决定要不要解析
+		 * @param needle
+		 * @return
+		 */
+		public boolean contains(byte[] needle) {
+			int last = this.dataEnd - needle.length;
+			outer:
+			for (int i = this.dataStart; i <= last; i++) {
+				for (int j = 0; j < needle.length; j++) {
+					if (this.buf[i + j] != needle[j]) {
+						continue outer;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * 	data内容
+		 * @return
+		 */
+		public String data() {
+			return new String(this.buf, this.dataStart, this.dataEnd - this.dataStart, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * 	解析后的data内容，同一行只解析一次
+		 * @return 不是JSON对象时返回null
+		 */
+		public JsonObject json() {
+			if (!this.parsed) {
+				this.parsed = true;
+				this.json = JsonUtil.tryParseObject(this.data());
+			}
+			return this.json;
+		}
+
+		/**
+		 * 	原样转发当前行
+		 */
+		public void pass() {
+			int len = this.dataEnd - this.lineStart;
+			ByteBuf out = this.ctx.alloc().buffer(len + 2);
+			out.writeBytes(this.buf, this.lineStart, len).writeBytes(CRLF);
+			this.counters.passed.increment();
+			this.send(out);
+		}
+
+		/**
+		 * 	写一行SSE，自动加上行尾
+		 * @param line
+		 */
+		public void writeLine(String line) {
+			byte[] b = line.getBytes(StandardCharsets.UTF_8);
+			ByteBuf out = this.ctx.alloc().buffer(b.length + 2);
+			out.writeBytes(b).writeBytes(CRLF);
+			this.counters.written.increment();
+			this.send(out);
+		}
+
+		/**
+		 * 	原样写出
+		 * @param bytes
+		 */
+		public void write(byte[] bytes) {
+			ByteBuf out = this.ctx.alloc().buffer(bytes.length);
+			out.writeBytes(bytes);
+			this.counters.written.increment();
+			this.send(out);
+		}
+
+		/**
+		 * 	写出已经拼好的缓冲，所有权交给这里
+		 * @param out
+		 */
+		public void write(ByteBuf out) {
+			this.counters.written.increment();
+			this.send(out);
+		}
+
+		private void send(ByteBuf out) {
+			this.counters.bytesOut.add(out.readableBytes());
+			if (this.recorder != null) {
+				this.recorder.record(out);
+			}
+			this.lastWrite = this.ctx.writeAndFlush(new DefaultHttpContent(out));
+			this.lastWrite.addListener(this.writeListener);
+		}
+
+		/**
+		 * 	客户端的发送缓冲满了就等它写出去，期间不再读上游
+		 */
+		private void awaitWritable() {
+			Channel ch = this.ctx.channel();
+			if (ch.isWritable() || this.lastWrite == null) {
+				return;
+			}
+			this.counters.backpressureWaits.increment();
+			while (ch.isActive() && !ch.isWritable() && !this.lastWrite.isDone()) {
+				this.lastWrite.awaitUninterruptibly(WRITABLE_WAIT_MILLIS);
+			}
+		}
+	}
+
+	private StreamRelay() {
+	}
+
+	/**
+	 * 	原样转发所有data行的适配器
+	 * @param name
+	 * @return
+	 */
+	public static StreamAdapter passthrough(String name) {
+		return new StreamAdapter() {
+			@Override
+			public String name() {
+				return name;
+			}
+
+			@Override
+			public void onData(Chunk chunk) {
+				chunk.pass();
+			}
+		};
+	}
+
+	/**
+	 * 	SSE响应的通用头：不缓存、保持连接、允许跨域
+	 * @param headers
+	 */
+	public static void sseHeaders(HttpHeaders headers) {
+		headers.set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+		headers.set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		headers.set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+	}
+
+	/**
+	 * 	写响应头，转发整个流，最后结束响应并关闭连接。
+	 * @param ctx
+	 * @param connection 已经拿到响应码的上游连接
+	 * @param responseCode
+	 * @param adapter
+	 * @return 是否完整转发；客户端中途断开时返回false
+	 * @throws IOException
+	 */
+	public static boolean relay(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, StreamAdapter adapter) throws IOException {
+		return relay(ctx, connection, responseCode, adapter, null);
+	}
+
+	/**
+	 * 	同{@link #relay(ChannelHandlerContext, HttpURLConnection, int, StreamAdapter)}，同时录制写出的数据
+	 * @param ctx
+	 * @param connection
+	 * @param responseCode
+	 * @param adapter
+	 * @param recorder 可以为null
+	 * @return 是否完整转发；客户端中途断开时返回false
+	 * @throws IOException
+	 */
+	public static boolean relay(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, StreamAdapter adapter, Recorder recorder) throws IOException {
+		Counters counters = COUNTERS.computeIfAbsent(adapter.name(), k -> new Counters());
+		counters.streams.increment();
+
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, adapter.contentType());
+		adapter.headers(response.headers());
+		HttpUtil.setTransferEncodingChunked(response, true);
+		ctx.writeAndFlush(response);
+
+		logger.info("开始处理{}流式响应，响应码: {}", adapter.name(), responseCode);
+
+		Chunk chunk = new Chunk(ctx, counters, recorder);
+		boolean sse = adapter.sse();
+		LineReader reader = new LineReader();
+		try (InputStream in = responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream()) {
+			if (in != null) {
+				while (reader.next(in)) {
+					if (!ctx.channel().isActive()) {
+						logger.info("检测到客户端连接已断开，停止流式响应处理");
+						counters.cancelled.increment();
+						connection.disconnect();
+						return false;
+					}
+					chunk.awaitWritable();
+					byte[] buf = reader.buf;
+					int p = reader.lineStart;
+					int end = reader.lineEnd;
+					if (end - p >= 5 && buf[p] == 'd' && buf[p + 1] == 'a' && buf[p + 2] == 't' && buf[p + 3] == 'a' && buf[p + 4] == ':') {
+						int ds = p + 5;
+						if (ds < end && buf[ds] == ' ') {
+							ds++;
+						}
+						if (isDone(buf, ds, end)) {
+							logger.info("收到流式响应结束标记");
+							break;
+						}
+						counters.dataLines.increment();
+						chunk.reset(buf, p, ds, end);
+						adapter.onData(chunk);
+					} else if (sse && (end == p || startsWith(buf, p, end, "event:"))) {
+						chunk.reset(buf, p, end, end);
+						chunk.pass();
+					}
+				}
+			}
+			if (!ctx.channel().isActive()) {
+				counters.cancelled.increment();
+				return false;
+			}
+			chunk.reset(reader.buf, 0, 0, 0);
+			adapter.onEnd(chunk);
+		} catch (IOException | RuntimeException e) {
+			logger.info("处理{}流式响应时发生错误", adapter.name(), e);
+			counters.failed.increment();
+			// 检查是否是客户端断开连接导致的异常
+			if (e.getMessage() != null &&
+				(e.getMessage().contains("Connection reset by peer") ||
+				 e.getMessage().contains("Broken pipe") ||
+				 e.getMessage().contains("Connection closed"))) {
+				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
+				connection.disconnect();
+			}
+			throw e;
+		}
+
+		counters.completed.increment();
+		logger.info("{}流式响应处理完成", adapter.name());
+		ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
+		return true;
+	}
+
+	/**
+	 * 	把录制好的流一次写出，用于缓存命中，响应头带 X-Cache: HIT。
+	 * @param ctx
+	 * @param responseCode
+	 * @param adapter 只用来决定响应头
+	 * @param body {@link Recorder}录制的数据
+	 */
+	public static void replay(ChannelHandlerContext ctx, int responseCode, StreamAdapter adapter, byte[] body) {
+		Counters counters = COUNTERS.computeIfAbsent(adapter.name(), k -> new Counters());
+		counters.replayed.increment();
+		counters.bytesOut.add(body.length);
+
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, adapter.contentType());
+		adapter.headers(response.headers());
+		response.headers().set("X-Cache", "HIT");
+		HttpUtil.setTransferEncodingChunked(response, true);
+		ctx.write(response);
+		ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(body)));
+		ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	/**
+	 * 	各适配器的统计
+	 * @return
+	 */
+	public static JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		for (Map.Entry<String, Counters> e : COUNTERS.entrySet()) {
+			Counters c = e.getValue();
+			JsonObject item = new JsonObject();
+			item.addProperty("streams", c.streams.sum());
+			item.addProperty("completed", c.completed.sum());
+			item.addProperty("cancelled", c.cancelled.sum());
+			item.addProperty("failed", c.failed.sum());
+			item.addProperty("dataLines", c.dataLines.sum());
+			item.addProperty("passedThrough", c.passed.sum());
+			item.addProperty("rewritten", c.written.sum());
+			item.addProperty("bytesOut", c.bytesOut.sum());
+			item.addProperty("backpressureWaits", c.backpressureWaits.sum());
+			item.addProperty("replayed", c.replayed.sum());
+			o.add(e.getKey(), item);
+		}
+		return o;
+	}
+
+	private static boolean isDone(byte[] buf, int p, int end) {
+		if (end - p != DONE.length) {
+			return false;
+		}
+		for (int i = 0; i < DONE.length; i++) {
+			if (buf[p + i] != DONE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] buf, int p, int end, String prefix) {
+		if (end - p < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[p + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	按字节读行，去掉行尾的\r，一行放不下时扩容
+	 */
+	private static final class LineReader {
+		private byte[] buf = new byte[16 * 1024];
+		private int pos;
+		private int limit;
+		private boolean eof;
+		private int lineStart;
+		private int lineEnd;
+
+		private boolean next(InputStream in) throws IOException {
+			while (true) {
+				for (int i = this.pos; i < this.limit; i++) {
+					if (this.buf[i] == '\n') {
+						this.lineStart = this.pos;
+						this.lineEnd = i > this.pos && this.buf[i - 1] == '\r' ? i - 1 : i;
+						this.pos = i + 1;
+						return true;
+					}
+				}
+				if (this.eof) {
+					if (this.pos < this.limit) {
+						this.lineStart = this.pos;
+						this.lineEnd = this.limit;
+						this.pos = this.limit;
+						return true;
+					}
+					return false;
+				}
+				if (this.pos > 0) {
+					System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+					this.limit -= this.pos;
+					this.pos = 0;
+				}
+				if (this.limit == this.buf.length) {
+					byte[] bigger = new byte[this.buf.length * 2];
+					System.arraycopy(this.buf, 0, bigger, 0, this.limit);
+					this.buf = bigger;
+				}
+				int n = in.read(this.buf, this.limit, this.buf.length - this.limit);
+				if (n < 0) {
+					this.eof = true;
+				} else {
+					this.limit += n;
+				}
+			}
+		}
+	}
+}
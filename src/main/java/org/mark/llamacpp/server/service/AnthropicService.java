@@ -3,7 +3,6 @@ package org.mark.llamacpp.server.service;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -11,6 +10,11 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ProcessSupervisor;
+import org.mark.llamacpp.server.ReplicaGroup;
+import org.mark.llamacpp.server.coalesce.SingleFlight;
+import org.mark.llamacpp.server.relay.StreamRelay;
+import org.mark.llamacpp.server.tokenize.TokenCountService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -149,7 +153,7 @@ public class AnthropicService {
             }
         }
         
-        if (!manager.getLoadedProcesses().containsKey(modelName)) {
+        if (!manager.isModelAvailable(modelName)) {
             if (manager.getLoadedProcesses().size() == 1) {
                 modelName = manager.getFirstModelName();
             } else {
@@ -158,8 +162,9 @@ public class AnthropicService {
             }
         }
         
+        // 模型重启期间端口为空，由转发线程等待新进程
         Integer port = manager.getModelPort(modelName);
-        if (port == null) {
+        if (port == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
             this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
             return;
         }
@@ -169,7 +174,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
         // 开始转发
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/complete", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, content, modelName, ReplicaGroup.affinityKey(anthropicReq), "/v1/complete", isStream);
     }
     
     /**
@@ -211,7 +216,7 @@ public class AnthropicService {
             }
         }
         
-        if (!manager.getLoadedProcesses().containsKey(modelName)) {
+        if (!manager.isModelAvailable(modelName)) {
             if (manager.getLoadedProcesses().size() == 1) {
                 modelName = manager.getFirstModelName();
             } else {
@@ -220,8 +225,9 @@ public class AnthropicService {
             }
         }
         
+        // 模型重启期间端口为空，由转发线程等待新进程
         Integer port = manager.getModelPort(modelName);
-        if (port == null) {
+        if (port == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
         	this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
             return;
         }
@@ -231,7 +237,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
 
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, content, modelName, ReplicaGroup.affinityKey(anthropicReq), "/v1/messages", isStream);
     }
     
     
@@ -273,7 +279,7 @@ public class AnthropicService {
             }
         }
 
-        if (!manager.getLoadedProcesses().containsKey(modelName)) {
+        if (!manager.isModelAvailable(modelName)) {
             if (manager.getLoadedProcesses().size() == 1) {
                 modelName = manager.getFirstModelName();
             } else {
@@ -282,13 +288,40 @@ public class AnthropicService {
             }
         }
 
+        // 模型重启期间端口为空，由转发线程等待新进程
         Integer port = manager.getModelPort(modelName);
-        if (port == null) {
+        if (port == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
         	this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
             return;
         }
 
-        forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages/count_tokens", false);
+        // 相同的请求直接返回上次的计数
+        TokenCountService counter = TokenCountService.getInstance();
+        String endpoint = "/v1/messages/count_tokens";
+        String cacheKey = counter.requestKey(modelName, endpoint, anthropicReq);
+        byte[] cached = counter.getRequestCount(cacheKey);
+        if (cached != null) {
+            this.sendRawJsonResponse(ctx, 200, cached);
+            return;
+        }
+
+        String finalModelName = modelName;
+        worker.execute(() -> {
+            ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(finalModelName, 0);
+            if (lease == null) {
+                this.sendError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, "Model is not available: " + finalModelName);
+                return;
+            }
+            try {
+                SingleFlight.Response r = counter.forwardRequestCount(cacheKey, lease.port(), endpoint, content);
+                this.sendRawJsonResponse(ctx, r.status(), r.body() == null ? new byte[0] : r.body());
+            } catch (Exception e) {
+                logger.info("Error forwarding Anthropic request to llama.cpp", e);
+                this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+            } finally {
+                lease.release();
+            }
+        });
     }
     
     
@@ -297,11 +330,12 @@ public class AnthropicService {
      * @param ctx
      * @param request
      * @param requestBody
-     * @param port
+     * @param modelName
+     * @param affinityKey
      * @param endpoint
      * @param isStream
      */
-    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, int port, String endpoint, boolean isStream) {
+    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, String modelName, long affinityKey, String endpoint, boolean isStream) {
         HttpMethod method = request.method();
         Map<String, String> headers = new HashMap<>();
         for (Map.Entry<String, String> entry : request.headers()) {
@@ -309,9 +343,15 @@ public class AnthropicService {
         }
 
         worker.execute(() -> {
+            // 模型正在排空或重启时在这里挂起，直到新进程就绪；多副本时选择最空闲的副本
+            ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, affinityKey);
+            if (lease == null) {
+                this.sendError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, "Model is not available: " + modelName);
+                return;
+            }
             HttpURLConnection connection = null;
             try {
-                String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
+                String targetUrl = String.format("http://localhost:%d%s", lease.port(), endpoint);
                 URL url = URI.create(targetUrl).toURL();
                 connection = (HttpURLConnection) url.openConnection();
 
@@ -357,6 +397,7 @@ public class AnthropicService {
                 synchronized (this.channelConnectionMap) {
                     this.channelConnectionMap.remove(ctx);
                 }
+                lease.release();
             }
         });
     }
@@ -383,15 +424,19 @@ public class AnthropicService {
             }
         }
 
+        this.sendRawJsonResponse(ctx, responseCode, responseBody.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendRawJsonResponse(ChannelHandlerContext ctx, int responseCode, byte[] body) {
         FullHttpResponse response = new DefaultFullHttpResponse(
             HttpVersion.HTTP_1_1,
             HttpResponseStatus.valueOf(responseCode)
         );
 
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBody.getBytes(StandardCharsets.UTF_8).length);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
 
-        response.content().writeBytes(responseBody.getBytes(StandardCharsets.UTF_8));
+        response.content().writeBytes(body);
 
         ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
             @Override
@@ -402,98 +447,8 @@ public class AnthropicService {
     }
 
     private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode) throws IOException {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-
-        ctx.write(response);
-        ctx.flush();
-
-        logger.info("开始处理 Anthropic 流式响应，响应码: {}", responseCode);
-
-        try (BufferedReader br = new BufferedReader(
-            new InputStreamReader(
-                responseCode >= 200 && responseCode < 300 ?
-                    connection.getInputStream() : connection.getErrorStream(),
-                StandardCharsets.UTF_8
-            )
-        )) {
-            String line;
-            int chunkCount = 0;
-            while ((line = br.readLine()) != null) {
-                if (!ctx.channel().isActive()) {
-                    logger.info("检测到客户端连接已断开，停止流式响应处理");
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
-                    break;
-                }
-
-                if (line.startsWith("data: ")) {
-                    String data = line.substring(6);
-
-                    if (data.equals("[DONE]")) {
-                        logger.info("收到流式响应结束标记");
-                        break;
-                    }
-
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-
-                    ChannelFuture future = ctx.writeAndFlush(httpContent);
-
-                    future.addListener((ChannelFutureListener) channelFuture -> {
-                        if (!channelFuture.isSuccess()) {
-                            logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-                            ctx.close();
-                        }
-                    });
-
-                    chunkCount++;
-                } else if (line.startsWith("event: ")) {
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
-                } else if (line.isEmpty()) {
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
-                }
-            }
-
-            logger.info("Anthropic 流式响应处理完成，共发送 {} 个数据块", chunkCount);
-        } catch (Exception e) {
-            logger.info("处理 Anthropic 流式响应时发生错误", e);
-            if (e.getMessage() != null &&
-                (e.getMessage().contains("Connection reset by peer") ||
-                 e.getMessage().contains("Broken pipe") ||
-                 e.getMessage().contains("Connection closed"))) {
-                logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-                if (connection != null) {
-                    connection.disconnect();
-                }
-            }
-            throw e;
-        }
-
-        LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-        ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        // llama-server已经输出Anthropic格式的事件，原样转发
+        StreamRelay.relay(ctx, connection, responseCode, StreamRelay.passthrough("anthropic"));
     }
 
     private void sendJsonResponse(ChannelHandlerContext ctx, JsonObject json, HttpResponseStatus status) {
@@ -1,6 +1,7 @@
 package org.mark.llamacpp.server.service;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -10,6 +11,7 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tokenize.TokenCountService;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +33,28 @@ public class BenchmarkService {
 		public boolean parseSpecial = true;
 	}
 	
+	/**
+	 * 	渲染目标消息内容时不会出现的标记
+	 */
+	private static final String CONTENT_MARKER = "LLAMACPPSERVERBENCHMARKCONTENTMARKER";
+	
+	/**
+	 * 	按标记切开的提示词模板，中间是追加到目标消息后面的内容
+	 */
+	private static class PromptTemplate {
+		private final String head;
+		private final String tail;
+		
+		private PromptTemplate(String head, String tail) {
+			this.head = head;
+			this.tail = tail;
+		}
+		
+		private String render(String extra) {
+			return this.head + extra + this.tail;
+		}
+	}
+	
 	private static class PromptTokenResult {
 		private final String prompt;
 		private final int tokenCount;
@@ -74,6 +98,7 @@ public class BenchmarkService {
 		String sampleText = repeatUnit(opt.unitText, sampleCount);
 		setMessageContent(targetMsg, baseContent + sampleText);
 		PromptTokenResult sample = countPromptTokens(finalModelId, workingMessages, opt.addSpecial, opt.parseSpecial);
+		PromptTemplate template = splitTemplate(finalModelId, workingMessages, targetMsg, baseContent, base, sampleText, sample);
 		int delta = sample.tokenCount - baseTokens;
 		if (delta <= 0) {
 			delta = sampleCount;
@@ -85,8 +110,7 @@ public class BenchmarkService {
 		
 		int expand = 0;
 		while (expand < 8) {
-			setMessageContent(targetMsg, baseContent + repeatUnit(opt.unitText, high));
-			PromptTokenResult r = countPromptTokens(finalModelId, workingMessages, opt.addSpecial, opt.parseSpecial);
+			PromptTokenResult r = countUnits(finalModelId, workingMessages, targetMsg, baseContent, template, high, opt);
 			if (r.tokenCount >= targetTokens) {
 				break;
 			}
@@ -99,8 +123,7 @@ public class BenchmarkService {
 		int iterations = 0;
 		while (low <= high && iterations < opt.maxIterations) {
 			int mid = low + (high - low) / 2;
-			setMessageContent(targetMsg, baseContent + repeatUnit(opt.unitText, mid));
-			PromptTokenResult r = countPromptTokens(finalModelId, workingMessages, opt.addSpecial, opt.parseSpecial);
+			PromptTokenResult r = countUnits(finalModelId, workingMessages, targetMsg, baseContent, template, mid, opt);
 			iterations++;
 			if (r.tokenCount == targetTokens) {
 				bestUnits = mid;
@@ -121,8 +144,7 @@ public class BenchmarkService {
 			int start = Math.max(bestUnits + 1, 1);
 			int limit = bestUnits + 16;
 			for (int i = start; i <= limit; i++) {
-				setMessageContent(targetMsg, baseContent + repeatUnit(opt.unitText, i));
-				PromptTokenResult r = countPromptTokens(finalModelId, workingMessages, opt.addSpecial, opt.parseSpecial);
+				PromptTokenResult r = countUnits(finalModelId, workingMessages, targetMsg, baseContent, template, i, opt);
 				iterations++;
 				if (r.tokenCount >= targetTokens) {
 					bestUnits = i;
@@ -138,10 +160,9 @@ public class BenchmarkService {
 		}
 		
 		String finalContent = baseContent + repeatUnit(opt.unitText, bestUnits);
-		setMessageContent(targetMsg, finalContent);
 		PromptTokenResult finalResult = bestResult;
 		if (finalResult.prompt == null || finalResult.tokenCount != bestTokens) {
-			finalResult = countPromptTokens(finalModelId, workingMessages, opt.addSpecial, opt.parseSpecial);
+			finalResult = countUnits(finalModelId, workingMessages, targetMsg, baseContent, template, bestUnits, opt);
 		}
 		
 		JsonObject out = new JsonObject();
@@ -171,6 +192,40 @@ public class BenchmarkService {
 		return id;
 	}
 	
+	/**
+	 * 	目标消息追加units个单元后的提示词和token数。有模板切片时在本地拼接，否则调用/apply-template。
+	 */
+	private PromptTokenResult countUnits(String modelId, JsonArray messages, JsonObject targetMsg, String baseContent,
+			PromptTemplate template, int units, BenchmarkTokenOptions opt) {
+		String extra = repeatUnit(opt.unitText, units);
+		setMessageContent(targetMsg, baseContent + extra);
+		if (template == null) {
+			return countPromptTokens(modelId, messages, opt.addSpecial, opt.parseSpecial);
+		}
+		String prompt = template.render(extra);
+		return new PromptTokenResult(prompt, tokenizePrompt(modelId, prompt, opt.addSpecial, opt.parseSpecial));
+	}
+	
+	/**
+	 * 	把目标消息的内容换成标记渲染一次，按标记切成前后两段，之后只在中间拼接追加的内容。
+	 * 	拼接结果要和服务端渲染的基础提示词、采样提示词都一致才使用（模板可能会trim或者改写内容），否则返回null。
+	 */
+	private PromptTemplate splitTemplate(String modelId, JsonArray messages, JsonObject targetMsg, String baseContent,
+			PromptTokenResult base, String sampleText, PromptTokenResult sample) {
+		setMessageContent(targetMsg, baseContent + CONTENT_MARKER);
+		String marked = applyTemplate(modelId, messages);
+		int at = marked.indexOf(CONTENT_MARKER);
+		if (at < 0 || marked.lastIndexOf(CONTENT_MARKER) != at) {
+			return null;
+		}
+		PromptTemplate template = new PromptTemplate(marked.substring(0, at), marked.substring(at + CONTENT_MARKER.length()));
+		if (!template.render("").equals(base.prompt) || !template.render(sampleText).equals(sample.prompt)) {
+			logger.info("模板会改写消息内容，提示词仍由apply-template生成: {}", modelId);
+			return null;
+		}
+		return template;
+	}
+	
 	private PromptTokenResult countPromptTokens(String modelId, JsonArray messages, boolean addSpecial, boolean parseSpecial) {
 		String prompt = applyTemplate(modelId, messages);
 		int tokenCount = tokenizePrompt(modelId, prompt, addSpecial, parseSpecial);
@@ -188,25 +243,12 @@ public class BenchmarkService {
 	}
 	
 	private int tokenizePrompt(String modelId, String content, boolean addSpecial, boolean parseSpecial) {
-		JsonObject payload = new JsonObject();
-		payload.addProperty("content", content == null ? "" : content);
-		payload.addProperty("add_special", addSpecial);
-		payload.addProperty("parse_special", parseSpecial);
-		payload.addProperty("with_pieces", false);
-		JsonObject resp = postJson(modelId, "/tokenize", payload);
-		int count = extractTokenCount(resp);
-		if (count < 0) {
-			throw new IllegalStateException("tokenize响应缺少tokens字段");
-		}
-		return count;
-	}
-	
-	private int extractTokenCount(JsonObject resp) {
-		if (resp == null || !resp.has("tokens") || resp.get("tokens") == null || !resp.get("tokens").isJsonArray()) {
-			return -1;
+		try {
+			return TokenCountService.getInstance().count(modelId, content, addSpecial, parseSpecial);
+		} catch (IOException e) {
+			logger.info("计算token数失败: " + modelId, e);
+			throw new RuntimeException("计算token数失败: " + e.getMessage(), e);
 		}
-		JsonArray arr = resp.getAsJsonArray("tokens");
-		return arr.size();
 	}
 	
 	private JsonObject postJson(String modelId, String path, JsonObject payload) {
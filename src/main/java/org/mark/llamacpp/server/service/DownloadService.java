@@ -7,6 +7,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.download.DownloadManager;
 import org.mark.llamacpp.download.DownloadTask;
+import org.mark.llamacpp.download.HuggingFace;
 import org.mark.llamacpp.download.struct.DownloadState;
 
 /**
@@ -59,15 +60,26 @@ public class DownloadService {
     }
 
     public Map<String, Object> createModelDownloadTask(String url, String path, String fileName) {
+        return createModelDownloadTask(url, path, fileName, null);
+    }
+    
+    /**
+     * 创建模型下载任务。huggingface的地址会自动附加镜像源，多个镜像同时下载不同的分片。
+     * @param url 下载URL
+     * @param path 保存路径
+     * @param fileName 文件名（可选）
+     * @param lfsOid LFS的sha256（可选），有它时才会启用ModelScope等仓库名不确定的镜像
+     * @return 创建结果
+     */
+    public Map<String, Object> createModelDownloadTask(String url, String path, String fileName, String lfsOid) {
         Map<String, Object> result = new HashMap<>();
         
         try {
-            String taskId;
-            if (fileName != null && !fileName.trim().isEmpty()) {
-                taskId = downloadManager.createTask(url, path, fileName, org.mark.llamacpp.download.DownloadTask.DownloadTaskType.GGUF_MODEL);
-            } else {
-                taskId = downloadManager.createTask(url, path, null, org.mark.llamacpp.download.DownloadTask.DownloadTaskType.GGUF_MODEL);
-            }
+            String name = fileName != null && !fileName.trim().isEmpty() ? fileName : null;
+            boolean verifiable = lfsOid != null && !lfsOid.isBlank();
+            List<String> mirrors = HuggingFace.mirrorUrlsOf(url, verifiable);
+            String taskId = downloadManager.createTask(url, path, name, DownloadTask.DownloadTaskType.GGUF_MODEL,
+                    mirrors.size() > 1 ? mirrors.subList(1, mirrors.size()) : null, lfsOid);
             
             result.put("success", true);
             result.put("taskId", taskId);
@@ -2,6 +2,7 @@ package org.mark.llamacpp.server.service;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -21,6 +22,14 @@ import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ProcessSupervisor;
+import org.mark.llamacpp.server.ReplicaGroup;
+import org.mark.llamacpp.server.coalesce.CompletionCache;
+import org.mark.llamacpp.server.coalesce.SingleFlight;
+import org.mark.llamacpp.server.embedding.EmbeddingForwarder;
+import org.mark.llamacpp.server.perf.ModelPerfStats;
+import org.mark.llamacpp.server.relay.StreamAdapter;
+import org.mark.llamacpp.server.relay.StreamRelay;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,23 +38,17 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
 
 /**
@@ -243,7 +246,7 @@ public class OpenAIService {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			
 			// 检查模型是否已加载
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			if (!manager.isModelAvailable(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
@@ -251,12 +254,13 @@ public class OpenAIService {
 			String body = content;
 			// 获取模型端口
 			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
+			// 模型重启期间端口为空，由转发线程等待新进程
+			if (modelPort == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/chat/completions", isStream, body);
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, ReplicaGroup.affinityKey(requestJson), "/v1/chat/completions", isStream, body);
 		} catch (Exception e) {
 			logger.info("处理OpenAI聊天补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -307,7 +311,7 @@ public class OpenAIService {
 			}
 
 			// 检查模型是否已加载
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			if (!manager.isModelAvailable(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
@@ -318,12 +322,13 @@ public class OpenAIService {
 				//return;
 			// 获取模型端口
 			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
+			// 模型重启期间端口为空，由转发线程等待新进程
+			if (modelPort == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/completions", isStream, JsonUtil.toJson(requestJson));
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, ReplicaGroup.affinityKey(requestJson), "/v1/completions", isStream, JsonUtil.toJson(requestJson));
 		} catch (Exception e) {
 			logger.info("处理OpenAI文本补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -356,21 +361,52 @@ public class OpenAIService {
 			} else {
 				modelName = requestJson.get("model").getAsString();
 			}
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			if (!manager.isModelAvailable(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
 			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
+			// 模型重启期间端口为空，由转发线程等待新进程
+			if (modelPort == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
 				return;
 			}
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/embeddings", false, request.content().toString(StandardCharsets.UTF_8));
+			if (EmbeddingForwarder.accepts(modelName, requestJson)) {
+				this.forwardEmbeddingsWithCache(ctx, modelName, requestJson);
+				return;
+			}
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, 0, "/v1/embeddings", false, request.content().toString(StandardCharsets.UTF_8));
 		} catch (Exception e) {
 			logger.info("处理OpenAI嵌入请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
 		}
 	}
+	
+	/**
+	 * 	嵌入请求先查向量缓存，只把未命中的输入转发给llama-server。
+	 */
+	private void forwardEmbeddingsWithCache(ChannelHandlerContext ctx, String modelName, JsonObject requestJson) {
+		worker.execute(() -> {
+			ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, 0);
+			if (lease == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 503, null, "Model is not available: " + modelName, null);
+				return;
+			}
+			try {
+				EmbeddingForwarder.Result result = EmbeddingForwarder.embed(modelName, lease.port(), requestJson);
+				if (result.json() != null) {
+					this.sendOpenAIJsonResponseWithCleanup(ctx, result.json(), HttpResponseStatus.valueOf(result.status()));
+				} else {
+					this.sendOpenAIErrorResponseWithCleanup(ctx, result.status(), null, result.body(), null);
+				}
+			} catch (Exception e) {
+				logger.info("转发嵌入请求到llama.cpp进程时发生错误", e);
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+			} finally {
+				lease.release();
+			}
+		});
+	}
 
 	public void handleOpenAIResponsesRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
 		try {
@@ -403,12 +439,13 @@ public class OpenAIService {
 				isStream = requestJson.get("stream").getAsBoolean();
 			}
 
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			if (!manager.isModelAvailable(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
 			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
+			// 模型重启期间端口为空，由转发线程等待新进程
+			if (modelPort == null && !ProcessSupervisor.getInstance().isHolding(modelName)) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
 				return;
 			}
@@ -420,7 +457,7 @@ public class OpenAIService {
 			if (endpoint == null || endpoint.isBlank()) {
 				endpoint = "/v1/responses";
 			}
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, endpoint, isStream, content);
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, ReplicaGroup.affinityKey(requestJson), endpoint, isStream, content);
 		} catch (Exception e) {
 			logger.info("处理OpenAI responses 请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -431,7 +468,7 @@ public class OpenAIService {
 	/**
 	 * 转发请求到对应的llama.cpp进程
 	 */
-	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, boolean isStream, String requestBody) {
+	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, Integer port, long affinityKey, String endpoint, boolean isStream, String requestBody) {
 		// 在异步执行前先读取请求体，避免ByteBuf引用计数问题
 		HttpMethod method = request.method();
 		// 复制请求头，避免在异步任务中访问已释放的请求对象
@@ -443,12 +480,50 @@ public class OpenAIService {
 		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
 		logger.info("转发请求到llama.cpp进程: {} {} 端口: {} 请求体长度: {}", method.name(), endpoint, port, requestBodyLength);
 		
+		// 结果确定的补全：先查响应缓存，非流式的再和同时在进行的相同请求合并
+		String flight = "/v1/chat/completions".equals(endpoint) ? SingleFlight.CHAT : "/v1/completions".equals(endpoint) ? SingleFlight.COMPLETIONS : null;
+		String cacheKey = null;
+		if (flight != null && method == HttpMethod.POST) {
+			CompletionCache cache = CompletionCache.getInstance();
+			boolean coalesce = !isStream && SingleFlight.getInstance().isEnabled(flight);
+			JsonObject requestJson = cache.isEnabled() || coalesce ? JsonUtil.tryParseObject(requestBody) : null;
+			if (SingleFlight.isDeterministic(requestJson)) {
+				if (cache.isEnabled()) {
+					String cacheControl = request.headers().get(HttpHeaderNames.CACHE_CONTROL);
+					String key = CompletionCache.key(modelName, endpoint, requestJson);
+					if (key != null && !CompletionCache.bypassLookup(cacheControl)) {
+						CompletionCache.Entry hit = cache.get(key, isStream);
+						if (hit != null) {
+							logger.info("补全缓存命中: {} {}", modelName, endpoint);
+							this.sendCachedResponse(ctx, hit, modelName);
+							return;
+						}
+					}
+					cacheKey = CompletionCache.bypassStore(cacheControl) ? null : key;
+				}
+				if (coalesce) {
+					String storeKey = cacheKey;
+					worker.execute(() -> this.forwardCoalesced(ctx, modelName, affinityKey, endpoint, flight, headers, requestJson, requestBody, storeKey));
+					return;
+				}
+			}
+		}
+		String storeKey = cacheKey;
+		
 		worker.execute(() -> {
+			// 模型正在排空或重启时在这里挂起，直到新进程就绪；多副本时选择最空闲的副本
+			// 补全接口支持id_slot，同一段对话尽量回到上次的slot复用提示词缓存
+			boolean pinSlot = "/v1/chat/completions".equals(endpoint) || "/v1/completions".equals(endpoint);
+			ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, affinityKey, pinSlot);
+			if (lease == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 503, null, "Model is not available: " + modelName, null);
+				return;
+			}
 			// 添加断开连接的事件监听
 			HttpURLConnection connection = null;
 			try {
 				// 构建目标URL
-				String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
+				String targetUrl = String.format("http://localhost:%d%s", lease.port(), endpoint);
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				
 				URL url = URI.create(targetUrl).toURL();
@@ -480,7 +555,7 @@ public class OpenAIService {
 				if (method == HttpMethod.POST && requestBody != null && !requestBody.isEmpty()) {
 					connection.setDoOutput(true);
 					try (OutputStream os = connection.getOutputStream()) {
-						byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
+						byte[] input = lease.applySlot(requestBody).getBytes(StandardCharsets.UTF_8);
 						os.write(input, 0, input.length);
 						logger.info("已发送请求体到llama.cpp进程，大小: {} 字节", input.length);
 					}
@@ -492,10 +567,10 @@ public class OpenAIService {
 				
 				if (isStream) {
 					// 处理流式响应
-					this.handleStreamResponse(ctx, connection, responseCode, modelName);
+					this.handleStreamResponse(ctx, connection, responseCode, modelName, storeKey, lease);
 				} else {
 					// 处理非流式响应
-					this.handleNonStreamResponse(ctx, connection, responseCode);
+					this.handleNonStreamResponse(ctx, connection, responseCode, modelName, storeKey, lease);
 				}
 			} catch (Exception e) {
 				logger.info("转发请求到llama.cpp进程时发生错误", e);
@@ -513,6 +588,7 @@ public class OpenAIService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				lease.release();
 			}
 		});
 	}
@@ -520,7 +596,7 @@ public class OpenAIService {
 	/**
 	 * 处理非流式响应
 	 */
-	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode) throws IOException {
+	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, String cacheKey, ReplicaGroup.Lease lease) throws IOException {
 		// 读取响应
 		String responseBody;
 		if (responseCode >= 200 && responseCode < 300) {
@@ -543,17 +619,36 @@ public class OpenAIService {
 				responseBody = response.toString();
 			}
 		}
-
+		lease.observe(responseBody);
+		
+		byte[] responseBytes = completeNonStreamBody(responseCode, responseBody, modelName).getBytes(StandardCharsets.UTF_8);
+		if (cacheKey != null) {
+			CompletionCache.getInstance().put(cacheKey, responseCode, responseBytes, false);
+		}
+		this.sendNonStreamResponse(ctx, responseCode, responseBytes, false);
+	}
+	
+	/**
+	 * 	非流式响应的统计和工具调用ID补全
+	 */
+	private static String completeNonStreamBody(int responseCode, String responseBody, String modelName) {
 		if (responseCode >= 200 && responseCode < 300) {
 			JsonObject parsed = JsonUtil.tryParseObject(responseBody);
 			if (parsed != null) {
+				ModelPerfStats.recordResponse(modelName, parsed);
 				boolean changed = JsonUtil.ensureToolCallIds(parsed, null);
 				if (changed) {
 					responseBody = JsonUtil.toJson(parsed);
 				}
 			}
 		}
-		
+		return responseBody;
+	}
+	
+	/**
+	 * 	发送非流式响应
+	 */
+	private void sendNonStreamResponse(ChannelHandlerContext ctx, int responseCode, byte[] responseBytes, boolean cacheHit) {
 		// 创建响应
 		FullHttpResponse response = new DefaultFullHttpResponse(
 			HttpVersion.HTTP_1_1,
@@ -562,13 +657,15 @@ public class OpenAIService {
 		
 		// 设置响应头
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-		byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBytes.length);
 		response.headers().set(HttpHeaderNames.ETAG, buildEtag(responseBytes));
 		// 添加CORS头
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
+		if (cacheHit) {
+			response.headers().set("X-Cache", "HIT");
+		}
 		
 		// 设置响应体
 		response.content().writeBytes(responseBytes);
@@ -583,130 +680,146 @@ public class OpenAIService {
 	}
 	
 	/**
-	 * 处理流式响应
+	 * 	发送缓存的响应，流式的按录制的SSE数据一次写出
 	 */
-	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		// 创建响应头
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
-		
-		// 发送响应头
-		ctx.write(response);
-		ctx.flush();
-		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
-		
-		// 读取流式响应
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			Map<Integer, String> toolCallIds = new HashMap<>();
-			while ((line = br.readLine()) != null) {
-				// 检查客户端连接是否仍然活跃
-				if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				// 处理SSE格式的数据行
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6); // 去掉 "data: " 前缀
-					
-					// 检查是否为结束标记
-					if (data.equals("[DONE]")) {
-						logger.info("收到流式响应结束标记");
-						break;
-					}
-					
-					String outLine = line;
-					JsonObject parsed = JsonUtil.tryParseObject(data);
-					if (parsed != null) {
-						boolean changed = JsonUtil.ensureToolCallIds(parsed, toolCallIds);
-						if (changed) {
-							outLine = "data: " + JsonUtil.toJson(parsed);
-						}
-					}
-					
-					// 创建数据块
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					// 创建HTTP内容块
-					HttpContent httpContent = new DefaultHttpContent(content);
-					
-					// 发送数据块，并添加监听器检查写入是否成功
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					
-					// 检查写入是否失败，如果失败可能是客户端断开连接
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-							ctx.close();
-						}
-					});
-					
-					chunkCount++;
-					
-					// 每发送10个数据块记录一次日志
-					if (chunkCount % 10 == 0) {
-						//logger.info("已发送 {} 个流式数据块", chunkCount);
-					}
-				} else if (line.startsWith("event: ")) {
-					// 处理事件行
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					// 发送空行作为分隔符
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				}
+	private void sendCachedResponse(ChannelHandlerContext ctx, CompletionCache.Entry entry, String modelName) {
+		if (entry.stream()) {
+			StreamRelay.replay(ctx, entry.status(), new OpenAIStreamAdapter(modelName, entry.status()), entry.body());
+		} else {
+			this.sendNonStreamResponse(ctx, entry.status(), entry.body(), true);
+		}
+	}
+	
+	/**
+	 * 	可合并的非流式补全：相同的请求只有第一个访问llama-server，其余的等它的结果。
+	 * 	共用的上游调用不和某个客户端连接绑定，发起的客户端断开也不会取消其他人在等的请求。
+	 */
+	private void forwardCoalesced(ChannelHandlerContext ctx, String modelName, long affinityKey, String endpoint, String flight,
+			Map<String, String> headers, JsonObject requestJson, String requestBody, String cacheKey) {
+		try {
+			SingleFlight.Response r = SingleFlight.getInstance().execute(flight, modelName, requestJson,
+					() -> this.callNonStream(modelName, affinityKey, endpoint, headers, requestBody));
+			if (r.body() == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, r.status(), null, "Model is not available: " + modelName, null);
+				return;
 			}
-			
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
+			if (cacheKey != null) {
+				CompletionCache.getInstance().put(cacheKey, r.status(), r.body(), false);
+			}
+			this.sendNonStreamResponse(ctx, r.status(), r.body(), false);
 		} catch (Exception e) {
-			logger.info("处理流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
+			logger.info("转发请求到llama.cpp进程时发生错误", e);
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+		}
+	}
+	
+	/**
+	 * 	执行一次非流式补全，返回处理好的响应体
+	 */
+	private SingleFlight.Response callNonStream(String modelName, long affinityKey, String endpoint, Map<String, String> headers, String requestBody) throws IOException {
+		ReplicaGroup.Lease lease = LlamaServerManager.getInstance().acquireEndpoint(modelName, affinityKey, true);
+		if (lease == null) {
+			return new SingleFlight.Response(503, null);
+		}
+		HttpURLConnection connection = null;
+		try {
+			String targetUrl = String.format("http://localhost:%d%s", lease.port(), endpoint);
+			logger.info("连接到llama.cpp进程: {}", targetUrl);
+			connection = (HttpURLConnection) URI.create(targetUrl).toURL().openConnection();
+			connection.setRequestMethod("POST");
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				if (!entry.getKey().equalsIgnoreCase("Connection") &&
+					!entry.getKey().equalsIgnoreCase("Content-Length") &&
+					!entry.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+					connection.setRequestProperty(entry.getKey(), entry.getValue());
 				}
 			}
-			throw e;
+			connection.setConnectTimeout(36000 * 1000);
+			connection.setReadTimeout(36000 * 1000);
+			connection.setDoOutput(true);
+			try (OutputStream os = connection.getOutputStream()) {
+				byte[] input = lease.applySlot(requestBody).getBytes(StandardCharsets.UTF_8);
+				os.write(input, 0, input.length);
+			}
+			int responseCode = connection.getResponseCode();
+			logger.info("llama.cpp进程响应码: {}", responseCode);
+			InputStream in = responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream();
+			String responseBody = "";
+			if (in != null) {
+				try (in) {
+					responseBody = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+				}
+			}
+			lease.observe(responseBody);
+			responseBody = completeNonStreamBody(responseCode, responseBody, modelName);
+			return new SingleFlight.Response(responseCode, responseBody.getBytes(StandardCharsets.UTF_8));
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			lease.release();
 		}
+	}
+	
+	/**
+	 * 处理流式响应
+	 */
+	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, String cacheKey, ReplicaGroup.Lease lease) throws IOException {
+		CompletionCache cache = CompletionCache.getInstance();
+		// 可以缓存时录制写给客户端的SSE数据，完整转发后保存
+		StreamRelay.Recorder recorder = cacheKey != null && responseCode >= 200 && responseCode < 300 ? new StreamRelay.Recorder(cache.getMaxEntryBytes()) : null;
+		boolean completed = StreamRelay.relay(ctx, connection, responseCode, lease.observe(new OpenAIStreamAdapter(modelName, responseCode)), recorder);
+		if (completed && recorder != null) {
+			cache.put(cacheKey, responseCode, recorder.toByteArray(), true);
+		}
+	}
+	
+	/**
+	 * 	OpenAI格式的流式转发：只有带timings或tool_calls的数据块需要解析（统计、补全工具调用ID），其余原样转发。
+	 */
+	private static final class OpenAIStreamAdapter implements StreamAdapter {
 		
-		// 发送结束标记
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
+		private static final byte[] TIMINGS = "\"timings\"".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] TOOL_CALLS = "\"tool_calls\"".getBytes(StandardCharsets.US_ASCII);
+		
+		private final String modelName;
+		private final int responseCode;
+		private final Map<Integer, String> toolCallIds = new HashMap<>();
+		
+		private OpenAIStreamAdapter(String modelName, int responseCode) {
+			this.modelName = modelName;
+			this.responseCode = responseCode;
+		}
+		
+		@Override
+		public String name() {
+			return "openai";
+		}
+		
+		@Override
+		public void headers(HttpHeaders headers) {
+			StreamRelay.sseHeaders(headers);
+			headers.set(HttpHeaderNames.ETAG, buildEtag((this.modelName + ":" + this.responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+		}
+		
+		@Override
+		public void onData(StreamRelay.Chunk chunk) {
+			if (!chunk.contains(TIMINGS) && !chunk.contains(TOOL_CALLS)) {
+				chunk.pass();
+				return;
 			}
-		});
+			JsonObject parsed = chunk.json();
+			if (parsed == null) {
+				chunk.pass();
+				return;
+			}
+			ModelPerfStats.recordResponse(this.modelName, parsed);
+			if (JsonUtil.ensureToolCallIds(parsed, this.toolCallIds)) {
+				chunk.writeLine("data: " + JsonUtil.toJson(parsed));
+			} else {
+				chunk.pass();
+			}
+		}
 	}
 
 //	private static String safeString(JsonObject obj, String key) {
@@ -0,0 +1,416 @@
+package org.mark.llamacpp.server.tokenize;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * 	按GGUF里的 tokenizer.ggml.* 在JVM里分词，行为对照llama.cpp的llama_tokenize。
+ * 	<p>
+ * 	支持两种：tokenizer.ggml.model 为 llama 的SentencePiece（按score合并，字节回退），
+ * 	以及 gpt2 的字节级BPE（按merges合并），后者只支持几种已知的预分词规则（tokenizer.ggml.pre）。
+ * 	其余的返回null，由调用方回退到llama-server。结果是否和服务端一致由{@link TokenCountService}校验。
+ */
+final class LocalTokenizer {
+
+	private static final int TYPE_UNKNOWN = 2;
+	private static final int TYPE_CONTROL = 3;
+	private static final int TYPE_USER_DEFINED = 4;
+
+	/**
+	 * 	SentencePiece里的空格
+	 */
+	private static final String SPM_SPACE = "▁";
+
+	private static final String PRE_GPT2 = "'s|'t|'re|'ve|'m|'ll|'d| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)";
+	private static final String PRE_LLAMA3 = "(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+	private static final String PRE_QWEN2 = "(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+	/**
+	 * 	GPT-2的字节到可见字符的映射
+	 */
+	private static final char[] BYTE_CHARS = new char[256];
+
+	static {
+		int n = 0;
+		for (int b = 0; b < 256; b++) {
+			boolean printable = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+			BYTE_CHARS[b] = printable ? (char) b : (char) (256 + n++);
+		}
+	}
+
+	/**
+	 * 	一对相邻符号的合并候选
+	 */
+	private record Bigram(int left, int right, double priority, int size) {
+	}
+
+	private final boolean spm;
+	private final Map<String, Integer> vocab;
+	private final float[] scores;
+	private final Map<String, Integer> mergeRanks;
+	private final Pattern pre;
+	private final boolean ignoreMerges;
+	private final int[] byteTokens;
+	private final int unk;
+	private final int bos;
+	private final int eos;
+	private final boolean addBos;
+	private final boolean addEos;
+	private final boolean addSpacePrefix;
+
+	// 特殊token，按首字符索引，同一个首字符的按长度从长到短
+	private final String[] specialText;
+	private final int[] specialId;
+	private final boolean[] specialControl;
+	private final Map<Character, int[]> specialByFirst;
+
+	private LocalTokenizer(boolean spm, Map<String, Integer> vocab, float[] scores, Map<String, Integer> mergeRanks, Pattern pre,
+			boolean ignoreMerges, int[] byteTokens, int unk, int bos, int eos, boolean addBos, boolean addEos, boolean addSpacePrefix,
+			String[] specialText, int[] specialId, boolean[] specialControl) {
+		this.spm = spm;
+		this.vocab = vocab;
+		this.scores = scores;
+		this.mergeRanks = mergeRanks;
+		this.pre = pre;
+		this.ignoreMerges = ignoreMerges;
+		this.byteTokens = byteTokens;
+		this.unk = unk;
+		this.bos = bos;
+		this.eos = eos;
+		this.addBos = addBos;
+		this.addEos = addEos;
+		this.addSpacePrefix = addSpacePrefix;
+		this.specialText = specialText;
+		this.specialId = specialId;
+		this.specialControl = specialControl;
+
+		Map<Character, List<Integer>> byFirst = new HashMap<>();
+		for (int i = 0; i < specialText.length; i++) {
+			byFirst.computeIfAbsent(specialText[i].charAt(0), k -> new ArrayList<>()).add(i);
+		}
+		this.specialByFirst = new HashMap<>();
+		for (Map.Entry<Character, List<Integer>> e : byFirst.entrySet()) {
+			this.specialByFirst.put(e.getKey(), e.getValue().stream()
+					.sorted((a, b) -> Integer.compare(specialText[b].length(), specialText[a].length()))
+					.mapToInt(Integer::intValue).toArray());
+		}
+	}
+
+	/**
+	 * 	从GGUF的tokenizer元数据构建。
+	 * @param meta {@link org.mark.llamacpp.gguf.GGUFMetaDataReader#readTokenizer(java.io.File)}的结果
+	 * @return 不支持的分词器返回null
+	 */
+	static LocalTokenizer load(Map<String, Object> meta) {
+		String model = meta.get("tokenizer.ggml.model") instanceof String s ? s : null;
+		if (!(meta.get("tokenizer.ggml.tokens") instanceof List<?> tokenList) || tokenList.isEmpty()) {
+			return null;
+		}
+		boolean spm;
+		Pattern pre = null;
+		boolean ignoreMerges = false;
+		String preType = meta.get("tokenizer.ggml.pre") instanceof String s ? s : "default";
+		if ("llama".equals(model)) {
+			spm = true;
+		} else if ("gpt2".equals(model)) {
+			spm = false;
+			String regex;
+			switch (preType) {
+				case "llama3", "llama-v3", "llama-bpe" -> {
+					regex = PRE_LLAMA3;
+					ignoreMerges = true;
+				}
+				case "qwen2", "deepseek-r1-qwen" -> regex = PRE_QWEN2;
+				case "gpt-2", "phi-2" -> regex = PRE_GPT2;
+				default -> regex = null;
+			}
+			if (regex == null) {
+				return null;
+			}
+			pre = Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+		} else {
+			return null;
+		}
+
+		int n = tokenList.size();
+		String[] tokens = new String[n];
+		Map<String, Integer> vocab = new HashMap<>(n * 2);
+		for (int i = 0; i < n; i++) {
+			tokens[i] = String.valueOf(tokenList.get(i));
+			vocab.putIfAbsent(tokens[i], i);
+		}
+		int[] types = new int[n];
+		Arrays.fill(types, 1);
+		if (meta.get("tokenizer.ggml.token_type") instanceof List<?> typeList && typeList.size() == n) {
+			for (int i = 0; i < n; i++) {
+				types[i] = ((Number) typeList.get(i)).intValue();
+			}
+		}
+
+		float[] scores = null;
+		Map<String, Integer> mergeRanks = null;
+		int[] byteTokens = new int[256];
+		if (spm) {
+			if (!(meta.get("tokenizer.ggml.scores") instanceof List<?> scoreList) || scoreList.size() != n) {
+				return null;
+			}
+			scores = new float[n];
+			for (int i = 0; i < n; i++) {
+				scores[i] = ((Number) scoreList.get(i)).floatValue();
+			}
+			for (int b = 0; b < 256; b++) {
+				byteTokens[b] = vocab.getOrDefault(String.format("<0x%02X>", b), -1);
+			}
+		} else {
+			if (!(meta.get("tokenizer.ggml.merges") instanceof List<?> mergeList)) {
+				return null;
+			}
+			mergeRanks = new HashMap<>(mergeList.size() * 2);
+			for (int i = 0; i < mergeList.size(); i++) {
+				mergeRanks.putIfAbsent(String.valueOf(mergeList.get(i)), i);
+			}
+			for (int b = 0; b < 256; b++) {
+				byteTokens[b] = vocab.getOrDefault(String.valueOf(BYTE_CHARS[b]), -1);
+			}
+		}
+
+		List<Integer> specials = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			if ((types[i] == TYPE_CONTROL || types[i] == TYPE_USER_DEFINED || types[i] == TYPE_UNKNOWN) && !tokens[i].isEmpty()) {
+				specials.add(i);
+			}
+		}
+		String[] specialText = new String[specials.size()];
+		int[] specialId = new int[specials.size()];
+		boolean[] specialControl = new boolean[specials.size()];
+		for (int i = 0; i < specialText.length; i++) {
+			int id = specials.get(i);
+			specialText[i] = tokens[id];
+			specialId[i] = id;
+			specialControl[i] = types[id] != TYPE_USER_DEFINED;
+		}
+
+		int unk = intValue(meta.get("tokenizer.ggml.unknown_token_id"), spm ? 0 : -1);
+		int bos = intValue(meta.get("tokenizer.ggml.bos_token_id"), spm ? 1 : -1);
+		int eos = intValue(meta.get("tokenizer.ggml.eos_token_id"), spm ? 2 : -1);
+		boolean addBos = boolValue(meta.get("tokenizer.ggml.add_bos_token"), spm || ignoreMerges);
+		boolean addEos = boolValue(meta.get("tokenizer.ggml.add_eos_token"), false);
+		boolean addSpacePrefix = boolValue(meta.get("tokenizer.ggml.add_space_prefix"), true);
+		return new LocalTokenizer(spm, vocab, scores, mergeRanks, pre, ignoreMerges, byteTokens, unk, bos, eos,
+				addBos && bos >= 0 && bos < n, addEos && eos >= 0 && eos < n, addSpacePrefix, specialText, specialId, specialControl);
+	}
+
+	/**
+	 * 	分词，参数含义同llama-server的/tokenize
+	 * @param text
+	 * @param addSpecial 是否按模型设置加BOS/EOS
+	 * @param parseSpecial 是否把文本里的控制token识别成token
+	 * @return token ID
+	 */
+	int[] encode(String text, boolean addSpecial, boolean parseSpecial) {
+		List<Integer> out = new ArrayList<>(text.length() / 3 + 4);
+		if (addSpecial && this.addBos) {
+			out.add(this.bos);
+		}
+		boolean prevSpecial = true;
+		int start = 0;
+		int i = 0;
+		while (i < text.length()) {
+			int sp = this.matchSpecial(text, i, parseSpecial);
+			if (sp < 0) {
+				i++;
+				continue;
+			}
+			if (i > start) {
+				this.encodeFragment(text.substring(start, i), prevSpecial, out);
+			}
+			out.add(this.specialId[sp]);
+			prevSpecial = true;
+			i += this.specialText[sp].length();
+			start = i;
+		}
+		if (start < text.length()) {
+			this.encodeFragment(text.substring(start), prevSpecial, out);
+		}
+		if (addSpecial && this.addEos) {
+			out.add(this.eos);
+		}
+		int[] ids = new int[out.size()];
+		for (int k = 0; k < ids.length; k++) {
+			ids[k] = out.get(k);
+		}
+		return ids;
+	}
+
+	/**
+	 * 	在位置i匹配特殊token，返回下标，没有时返回-1。控制token只在parseSpecial时识别，用户定义的总是识别。
+	 */
+	private int matchSpecial(String text, int i, boolean parseSpecial) {
+		int[] candidates = this.specialByFirst.get(text.charAt(i));
+		if (candidates == null) {
+			return -1;
+		}
+		for (int sp : candidates) {
+			if ((parseSpecial || !this.specialControl[sp]) && text.startsWith(this.specialText[sp], i)) {
+				return sp;
+			}
+		}
+		return -1;
+	}
+
+	private void encodeFragment(String text, boolean prevSpecial, List<Integer> out) {
+		if (this.spm) {
+			String t = this.addSpacePrefix && prevSpecial ? " " + text : text;
+			this.encodeSpm(t.replace(" ", SPM_SPACE), out);
+			return;
+		}
+		Matcher m = this.pre.matcher(text);
+		int last = 0;
+		while (m.find()) {
+			if (m.start() > last) {
+				this.encodeBpeWord(text.substring(last, m.start()), out);
+			}
+			this.encodeBpeWord(m.group(), out);
+			last = m.end();
+		}
+		if (last < text.length()) {
+			this.encodeBpeWord(text.substring(last), out);
+		}
+	}
+
+	private void encodeSpm(String text, List<Integer> out) {
+		List<String> symbols = new ArrayList<>(text.length());
+		for (int i = 0; i < text.length(); ) {
+			int cp = text.codePointAt(i);
+			int len = Character.charCount(cp);
+			symbols.add(text.substring(i, i + len));
+			i += len;
+		}
+		for (String s : this.merge(symbols)) {
+			Integer id = this.vocab.get(s);
+			if (id != null) {
+				out.add(id);
+				continue;
+			}
+			// 字节回退
+			for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+				int bt = this.byteTokens[b & 0xff];
+				out.add(bt >= 0 ? bt : this.unk);
+			}
+		}
+	}
+
+	private void encodeBpeWord(String word, List<Integer> out) {
+		byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+		char[] mapped = new char[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			mapped[i] = BYTE_CHARS[bytes[i] & 0xff];
+		}
+		String text = new String(mapped);
+		if (this.ignoreMerges) {
+			Integer id = this.vocab.get(text);
+			if (id != null) {
+				out.add(id);
+				return;
+			}
+		}
+		List<String> symbols = new ArrayList<>(mapped.length);
+		for (char c : mapped) {
+			symbols.add(String.valueOf(c));
+		}
+		for (String s : this.merge(symbols)) {
+			Integer id = this.vocab.get(s);
+			if (id != null) {
+				out.add(id);
+				continue;
+			}
+			for (int i = 0; i < s.length(); i++) {
+				Integer cid = this.vocab.get(String.valueOf(s.charAt(i)));
+				if (cid != null) {
+					out.add(cid);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 	反复合并优先级最高的相邻符号：SentencePiece按合并结果的score从高到低，BPE按merges的顺序，相同时靠左的先合并。
+	 */
+	private List<String> merge(List<String> symbols) {
+		int n = symbols.size();
+		String[] text = symbols.toArray(new String[0]);
+		int[] prev = new int[n];
+		int[] next = new int[n];
+		for (int i = 0; i < n; i++) {
+			prev[i] = i - 1;
+			next[i] = i + 1 < n ? i + 1 : -1;
+		}
+		PriorityQueue<Bigram> queue = new PriorityQueue<>((a, b) -> a.priority() != b.priority()
+				? Double.compare(a.priority(), b.priority()) : Integer.compare(a.left(), b.left()));
+		for (int i = 1; i < n; i++) {
+			this.addBigram(queue, text, i - 1, i);
+		}
+		while (!queue.isEmpty()) {
+			Bigram bg = queue.poll();
+			String l = text[bg.left()];
+			String r = text[bg.right()];
+			// 其中一边已经被合并掉了
+			if (l == null || r == null || l.length() + r.length() != bg.size() || next[bg.left()] != bg.right()) {
+				continue;
+			}
+			text[bg.left()] = l + r;
+			text[bg.right()] = null;
+			next[bg.left()] = next[bg.right()];
+			if (next[bg.right()] >= 0) {
+				prev[next[bg.right()]] = bg.left();
+			}
+			if (prev[bg.left()] >= 0) {
+				this.addBigram(queue, text, prev[bg.left()], bg.left());
+			}
+			if (next[bg.left()] >= 0) {
+				this.addBigram(queue, text, bg.left(), next[bg.left()]);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		for (int i = n > 0 ? 0 : -1; i >= 0; i = next[i]) {
+			result.add(text[i]);
+		}
+		return result;
+	}
+
+	private void addBigram(PriorityQueue<Bigram> queue, String[] text, int left, int right) {
+		String l = text[left];
+		String r = text[right];
+		double priority;
+		if (this.spm) {
+			Integer id = this.vocab.get(l + r);
+			if (id == null) {
+				return;
+			}
+			priority = -this.scores[id];
+		} else {
+			Integer rank = this.mergeRanks.get(l + " " + r);
+			if (rank == null) {
+				return;
+			}
+			priority = rank;
+		}
+		queue.add(new Bigram(left, right, priority, l.length() + r.length()));
+	}
+
+	private static int intValue(Object o, int fallback) {
+		return o instanceof Number num ? num.intValue() : fallback;
+	}
+
+	private static boolean boolValue(Object o, boolean fallback) {
+		return o instanceof Boolean b ? b : fallback;
+	}
+}
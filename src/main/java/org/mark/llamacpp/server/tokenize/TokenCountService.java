@@ -0,0 +1,357 @@
+package org.mark.llamacpp.server.tokenize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.coalesce.CompletionCache;
+import org.mark.llamacpp.server.coalesce.SingleFlight;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	token计数。
+ * 	<p>
+ * 	按（模型文件、add_special、parse_special、文本的SHA-256）缓存计数，模型文件换了以后旧的计数自然不再命中。
+ * 	没有命中时优先用GGUF里的词表在本地分词（见{@link LocalTokenizer}），每个模型文件只加载一次；
+ * 	本地分词要先和llama-server的/tokenize比对token ID，完全一致后才使用，不支持的分词器或者不一致时一直走服务端。
+ * 	<p>
+ * 	另外缓存 /v1/messages/count_tokens 这类整个请求的计数结果，请求体相同就直接返回上次的响应。
+ * 	配置在 config/token_count.json：enabled、localTokenizer、maxEntries。
+ */
+public final class TokenCountService {
+
+	private static final Logger logger = LoggerFactory.getLogger(TokenCountService.class);
+
+	private static final int DEFAULT_MAX_ENTRIES = 50000;
+
+	/**
+	 * 	校验本地分词时使用的文本，覆盖空格、换行、数字、标点、中文和表情
+	 */
+	private static final String PROBE_TEXT = "Hello world! It's 2024, isn't it?\n\n  Indented\ttabs and   spaces.\n"
+			+ "数字12345，中文标点。 Ünïcödé façade 😀 <tag attr=\"x\">{json: [1, 2.5]}</tag>\r\n";
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private static final TokenCountService INSTANCE = new TokenCountService();
+
+	/**
+	 * 	一个模型文件的本地分词器
+	 */
+	private static final class ModelTokenizer {
+		private final LocalTokenizer local;
+		private final String type;
+		// 0：还没有校验，1：和服务端一致，-1：不一致
+		private volatile int verified;
+
+		private ModelTokenizer(LocalTokenizer local, String type) {
+			this.local = local;
+			this.type = type;
+		}
+	}
+
+	private final Map<String, Integer> counts;
+	private final Map<String, byte[]> requestCounts;
+	private final Map<String, ModelTokenizer> tokenizers = new ConcurrentHashMap<>();
+	private final boolean enabled;
+	private final boolean localEnabled;
+	private final int maxEntries;
+
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder localCounts = new LongAdder();
+	private final LongAdder serverCounts = new LongAdder();
+	private final LongAdder requestLookups = new LongAdder();
+	private final LongAdder requestHits = new LongAdder();
+
+	public static TokenCountService getInstance() {
+		return INSTANCE;
+	}
+
+	private TokenCountService() {
+		JsonObject cfg = readConfig();
+		this.enabled = cfg == null || !cfg.has("enabled") || cfg.get("enabled").getAsBoolean();
+		this.localEnabled = cfg == null || !cfg.has("localTokenizer") || cfg.get("localTokenizer").getAsBoolean();
+		this.maxEntries = (int) Math.max(1, JsonUtil.getJsonLong(cfg, "maxEntries", DEFAULT_MAX_ENTRIES));
+		this.counts = lru(this.maxEntries);
+		this.requestCounts = lru(this.maxEntries);
+	}
+
+	private static <V> Map<String, V> lru(int maxEntries) {
+		return new LinkedHashMap<String, V>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * 	计算文本的token数，结果和llama-server的/tokenize一致。会阻塞，只在工作线程里调用。
+	 * @param modelId 已加载的模型
+	 * @param text
+	 * @param addSpecial 是否加BOS/EOS
+	 * @param parseSpecial 是否识别文本里的控制token
+	 * @return
+	 * @throws IOException 访问llama-server失败
+	 */
+	public int count(String modelId, String text, boolean addSpecial, boolean parseSpecial) throws IOException {
+		String content = text == null ? "" : text;
+		String identity = this.enabled ? modelIdentity(modelId) : null;
+		if (identity == null) {
+			return this.countUncached(modelId, null, content, addSpecial, parseSpecial);
+		}
+		String key = sha256(identity + "|" + addSpecial + "|" + parseSpecial + "|" + content);
+		this.lookups.increment();
+		synchronized (this.counts) {
+			Integer cached = this.counts.get(key);
+			if (cached != null) {
+				this.hits.increment();
+				return cached;
+			}
+		}
+		int n = this.countUncached(modelId, identity, content, addSpecial, parseSpecial);
+		synchronized (this.counts) {
+			this.counts.put(key, n);
+		}
+		return n;
+	}
+
+	private int countUncached(String modelId, String identity, String text, boolean addSpecial, boolean parseSpecial) throws IOException {
+		ModelTokenizer mt = identity != null && this.localEnabled ? this.tokenizers.computeIfAbsent(identity, k -> loadTokenizer(modelId)) : null;
+		if (mt == null || mt.local == null || mt.verified < 0) {
+			this.serverCounts.increment();
+			return this.tokenizeOnServer(modelId, text, addSpecial, parseSpecial).length;
+		}
+		if (mt.verified > 0) {
+			this.localCounts.increment();
+			return mt.local.encode(text, addSpecial, parseSpecial).length;
+		}
+		// 第一次使用：用内置文本和这次的文本和服务端比对
+		int[] server = this.tokenizeOnServer(modelId, text, addSpecial, parseSpecial);
+		this.serverCounts.increment();
+		boolean same = Arrays.equals(server, mt.local.encode(text, addSpecial, parseSpecial))
+				&& Arrays.equals(this.tokenizeOnServer(modelId, PROBE_TEXT, addSpecial, parseSpecial), mt.local.encode(PROBE_TEXT, addSpecial, parseSpecial));
+		mt.verified = same ? 1 : -1;
+		logger.info("本地分词校验{}: {} ({})", same ? "通过" : "不一致，改用llama-server", modelId, mt.type);
+		return server.length;
+	}
+
+	private static ModelTokenizer loadTokenizer(String modelId) {
+		File file = modelFile(modelId);
+		if (file == null) {
+			return new ModelTokenizer(null, "unknown");
+		}
+		long t0 = System.currentTimeMillis();
+		Map<String, Object> meta = GGUFMetaDataReader.readTokenizer(file);
+		String type = meta.get("tokenizer.ggml.model") + "/" + meta.getOrDefault("tokenizer.ggml.pre", "default");
+		LocalTokenizer local = null;
+		try {
+			local = LocalTokenizer.load(meta);
+		} catch (Exception e) {
+			logger.info("加载本地分词器失败: {}", file, e);
+		}
+		logger.info("本地分词器{}: {} ({}), 耗时{}ms", local == null ? "不支持" : "已加载", modelId, type, System.currentTimeMillis() - t0);
+		return new ModelTokenizer(local, type);
+	}
+
+	private int[] tokenizeOnServer(String modelId, String text, boolean addSpecial, boolean parseSpecial) throws IOException {
+		Integer port = LlamaServerManager.getInstance().getModelPort(modelId);
+		if (port == null) {
+			throw new IOException("未找到模型端口: " + modelId);
+		}
+		JsonObject payload = new JsonObject();
+		payload.addProperty("content", text);
+		payload.addProperty("add_special", addSpecial);
+		payload.addProperty("parse_special", parseSpecial);
+		payload.addProperty("with_pieces", false);
+		SingleFlight.Response r = post(port.intValue(), "/tokenize", JsonUtil.toJson(payload).getBytes(StandardCharsets.UTF_8));
+		JsonObject resp = r.status() >= 200 && r.status() < 300 ? JsonUtil.tryParseObject(r.text()) : null;
+		if (resp == null || !(resp.get("tokens") instanceof JsonArray tokens)) {
+			throw new IOException("tokenize失败: " + r.status() + " " + r.text());
+		}
+		int[] ids = new int[tokens.size()];
+		for (int i = 0; i < ids.length; i++) {
+			JsonElement el = tokens.get(i);
+			ids[i] = el.isJsonPrimitive() ? el.getAsInt() : -1;
+		}
+		return ids;
+	}
+
+	/**
+	 * 	计数请求（比如 /v1/messages/count_tokens）的缓存键
+	 * @param modelId
+	 * @param endpoint
+	 * @param request
+	 * @return 关闭了缓存或者找不到模型文件时返回null
+	 */
+	public String requestKey(String modelId, String endpoint, JsonObject request) {
+		return this.enabled ? CompletionCache.key(modelId, endpoint, request) : null;
+	}
+
+	/**
+	 * 	取出缓存的计数响应
+	 * @param key
+	 * @return 没有时返回null
+	 */
+	public byte[] getRequestCount(String key) {
+		if (key == null) {
+			return null;
+		}
+		this.requestLookups.increment();
+		synchronized (this.requestCounts) {
+			byte[] body = this.requestCounts.get(key);
+			if (body != null) {
+				this.requestHits.increment();
+			}
+			return body;
+		}
+	}
+
+	/**
+	 * 	把计数请求转发给llama-server，成功的响应按key缓存。
+	 * @param key 可以为null，表示不缓存
+	 * @param port
+	 * @param endpoint
+	 * @param body 请求体
+	 * @return
+	 * @throws IOException
+	 */
+	public SingleFlight.Response forwardRequestCount(String key, int port, String endpoint, String body) throws IOException {
+		SingleFlight.Response r = post(port, endpoint, body.getBytes(StandardCharsets.UTF_8));
+		if (key != null && r.body() != null && r.status() >= 200 && r.status() < 300) {
+			synchronized (this.requestCounts) {
+				this.requestCounts.put(key, r.body());
+			}
+		}
+		return r;
+	}
+
+	private static SingleFlight.Response post(int port, String path, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) URI.create(String.format("http://localhost:%d%s", port, path)).toURL().openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(30000);
+			connection.setReadTimeout(600000);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+			try (OutputStream os = connection.getOutputStream()) {
+				os.write(body);
+			}
+			int code = connection.getResponseCode();
+			InputStream in = code >= 200 && code < 300 ? connection.getInputStream() : connection.getErrorStream();
+			if (in == null) {
+				return new SingleFlight.Response(code, null);
+			}
+			try (in; ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+				in.transferTo(out);
+				return new SingleFlight.Response(code, out.toByteArray());
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static File modelFile(String modelId) {
+		GGUFModel model = LlamaServerManager.getInstance().findModelById(modelId);
+		if (model == null || model.getPrimaryModel() == null) {
+			return null;
+		}
+		return Paths.get(model.getPath(), model.getPrimaryModel().getFileName()).toFile();
+	}
+
+	/**
+	 * 	模型文件的路径、大小、修改时间
+	 */
+	private static String modelIdentity(String modelId) {
+		File file = modelFile(modelId);
+		return file == null ? null : file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+	}
+
+	private static String sha256(String s) {
+		MessageDigest md = SHA256.get();
+		md.reset();
+		byte[] d = md.digest(s.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(d.length * 2);
+		for (byte b : d) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	public JsonObject getStats() {
+		JsonObject o = new JsonObject();
+		o.addProperty("enabled", this.enabled);
+		o.addProperty("localTokenizer", this.localEnabled);
+		o.addProperty("maxEntries", this.maxEntries);
+		synchronized (this.counts) {
+			o.addProperty("entries", this.counts.size());
+		}
+		long l = this.lookups.sum();
+		o.addProperty("lookups", l);
+		o.addProperty("hits", this.hits.sum());
+		o.addProperty("hitRatio", l > 0 ? (double) this.hits.sum() / l : 0.0);
+		o.addProperty("localCounts", this.localCounts.sum());
+		o.addProperty("serverCounts", this.serverCounts.sum());
+		synchronized (this.requestCounts) {
+			o.addProperty("requestEntries", this.requestCounts.size());
+		}
+		o.addProperty("requestLookups", this.requestLookups.sum());
+		o.addProperty("requestHits", this.requestHits.sum());
+		JsonObject models = new JsonObject();
+		for (Map.Entry<String, ModelTokenizer> e : this.tokenizers.entrySet()) {
+			ModelTokenizer mt = e.getValue();
+			JsonObject m = new JsonObject();
+			m.addProperty("type", mt.type);
+			m.addProperty("state", mt.local == null ? "unsupported" : mt.verified > 0 ? "local" : mt.verified < 0 ? "mismatch" : "unverified");
+			models.add(e.getKey().substring(0, e.getKey().indexOf('|')), m);
+		}
+		o.add("tokenizers", models);
+		return o;
+	}
+
+	private static JsonObject readConfig() {
+		Path path = Paths.get(System.getProperty("user.dir"), "config", "token_count.json");
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			return JsonUtil.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			logger.info("读取token计数配置失败: {}", path, e);
+			return null;
+		}
+	}
+}
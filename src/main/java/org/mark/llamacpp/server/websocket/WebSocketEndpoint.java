@@ -0,0 +1,448 @@
+package org.mark.llamacpp.server.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * 一个WebSocket入口（主界面、LM Studio兼容服务）的连接注册表
+ *
+ * 消息按主题推送，连接可以只订阅需要的主题，没有订阅过的连接收到全部消息。
+ * 同一条消息只编码一次，每个接收者持有同一个ByteBuf的引用。
+ * 连接的写缓冲超过高水位时，可丢弃的消息直接丢掉，可合并的消息只保留最新一条，等可写后再发。
+ * 心跳和空闲检测由WebSocketHub统一调度。
+ */
+public class WebSocketEndpoint {
+
+    /**
+     * 连接写不动时的处理方式
+     */
+    public enum Delivery {
+        /** 总是发送，用于加载、停止、下载状态这类少量且不能丢的消息 */
+        ALWAYS,
+        /** 直接丢弃，用于控制台、心跳这类过时就没意义的消息 */
+        DROP,
+        /** 按key只保留最新一条，可写后补发，用于slot、进度这类状态快照 */
+        COALESCE
+    }
+
+    // 写缓冲水位，超过高水位后连接变为不可写
+    private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(256 * 1024, 1024 * 1024);
+
+    /**
+     * 单个连接的状态
+     */
+    private static final class Connection {
+        private final ChannelHandlerContext ctx;
+        private volatile boolean confirmed;
+        // 最后一次收到客户端数据的时间
+        private volatile long lastSeen = System.currentTimeMillis();
+        // 订阅的主题，null表示全部
+        private volatile Set<String> topics;
+        // 附加的订阅信息，比如关注的下载任务
+        private final ConcurrentMap<String, Set<String>> filters = new ConcurrentHashMap<>();
+        // 不可写期间合并的消息：key -> 最新一条
+        private final ConcurrentMap<String, ByteBuf> pending = new ConcurrentHashMap<>();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private volatile boolean closed;
+
+        private Connection(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        private boolean isSubscribed(String topic) {
+            Set<String> t = this.topics;
+            if (t == null || topic == null) {
+                return true;
+            }
+            if (t.contains(topic)) {
+                return true;
+            }
+            // console:模型ID 也匹配订阅了 console 的连接
+            int colon = topic.indexOf(':');
+            return colon > 0 && t.contains(topic.substring(0, colon));
+        }
+
+        private void releasePending() {
+            Iterator<ByteBuf> it = this.pending.values().iterator();
+            while (it.hasNext()) {
+                ByteBuf buf = it.next();
+                it.remove();
+                buf.release();
+            }
+        }
+    }
+
+    private final String name;
+
+    // 存储所有活跃的WebSocket连接
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    // 连接计数器
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    // 统计
+    private final AtomicLong totalConnections = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong closedDropped = new AtomicLong();
+    private final AtomicLong closedCoalesced = new AtomicLong();
+
+    WebSocketEndpoint(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 添加新的WebSocket连接
+     */
+    public String addConnection(ChannelHandlerContext ctx) {
+        String connectionId = "conn-" + connectionCounter.incrementAndGet();
+        ctx.channel().config().setWriteBufferWaterMark(WATER_MARK);
+        connections.put(connectionId, new Connection(ctx));
+        totalConnections.incrementAndGet();
+        return connectionId;
+    }
+
+    /**
+     * 移除WebSocket连接
+     */
+    public void removeConnection(String connectionId) {
+        Connection conn = connectionId == null ? null : connections.remove(connectionId);
+        if (conn != null) {
+            conn.closed = true;
+            closedDropped.addAndGet(conn.dropped.get());
+            closedCoalesced.addAndGet(conn.coalesced.get());
+            conn.releasePending();
+        }
+    }
+
+    /**
+     * 收到了客户端的数据，用于空闲检测
+     */
+    public void touch(String connectionId) {
+        Connection conn = connectionId == null ? null : connections.get(connectionId);
+        if (conn != null) {
+            conn.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 设置连接订阅的主题，topics为空表示订阅全部
+     */
+    public void setTopics(String connectionId, Set<String> topics) {
+        Connection conn = connectionId == null ? null : connections.get(connectionId);
+        if (conn != null) {
+            conn.topics = topics == null || topics.isEmpty() ? null : Set.copyOf(topics);
+        }
+    }
+
+    /**
+     * 设置连接的附加过滤条件，values为空表示不过滤
+     */
+    public void setFilter(String connectionId, String key, Set<String> values) {
+        Connection conn = connectionId == null ? null : connections.get(connectionId);
+        if (conn == null) {
+            return;
+        }
+        if (values == null || values.isEmpty()) {
+            conn.filters.remove(key);
+        } else {
+            conn.filters.put(key, Set.copyOf(values));
+        }
+    }
+
+    /**
+     * 连接恢复可写，补发合并期间保留的消息
+     */
+    public void onWritable(String connectionId) {
+        Connection conn = connectionId == null ? null : connections.get(connectionId);
+        if (conn == null || conn.pending.isEmpty()) {
+            return;
+        }
+        for (String key : conn.pending.keySet()) {
+            if (!conn.ctx.channel().isWritable()) {
+                return;
+            }
+            ByteBuf buf = conn.pending.remove(key);
+            if (buf != null) {
+                write(conn, buf);
+            }
+        }
+    }
+
+    /**
+     * 向指定连接发送消息
+     */
+    public void sendMessage(String connectionId, String message) {
+        Connection conn = connections.get(connectionId);
+        if (conn != null && conn.ctx.channel().isActive()) {
+            write(conn, WebSocketHub.encode(message));
+        } else {
+            removeConnection(connectionId);
+        }
+    }
+
+    /**
+     * 按主题推送消息。消息只编码一次，所有接收者共享。
+     * @param topic 主题，null表示所有连接
+     * @param message 消息
+     * @param delivery 连接写不动时的处理方式
+     * @param coalesceKey 合并用的key，只在COALESCE时使用，为null时用主题
+     */
+    public void publish(String topic, String message, Delivery delivery, String coalesceKey) {
+        if (connections.isEmpty()) {
+            return;
+        }
+        ByteBuf shared = null;
+        try {
+            for (var entry : connections.entrySet()) {
+                Connection conn = entry.getValue();
+                if (!conn.ctx.channel().isActive()) {
+                    removeConnection(entry.getKey());
+                    continue;
+                }
+                if (!conn.isSubscribed(topic)) {
+                    continue;
+                }
+                if (shared == null) {
+                    shared = WebSocketHub.encode(message);
+                }
+                deliver(conn, shared, delivery, coalesceKey != null ? coalesceKey : topic);
+            }
+        } finally {
+            if (shared != null) {
+                shared.release();
+            }
+        }
+    }
+
+    /**
+     * 按连接的过滤条件推送，同一个过滤条件生成的消息在连接间共享。
+     * @param topic 主题
+     * @param filterKey 过滤条件的key，见setFilter
+     * @param render 根据过滤条件生成消息，参数为null表示没有过滤；返回null表示这个连接不需要发送
+     * @param delivery 连接写不动时的处理方式
+     */
+    public void publishFiltered(String topic, String filterKey, Function<Set<String>, String> render, Delivery delivery) {
+        if (connections.isEmpty()) {
+            return;
+        }
+        Map<Set<String>, ByteBuf> encoded = new HashMap<>();
+        ByteBuf unfiltered = null;
+        try {
+            for (Connection conn : connections.values()) {
+                if (!conn.ctx.channel().isActive() || !conn.isSubscribed(topic)) {
+                    continue;
+                }
+                Set<String> filter = conn.filters.get(filterKey);
+                ByteBuf buf;
+                if (filter == null) {
+                    if (unfiltered == null) {
+                        String message = render.apply(null);
+                        if (message == null) {
+                            continue;
+                        }
+                        unfiltered = WebSocketHub.encode(message);
+                    }
+                    buf = unfiltered;
+                } else {
+                    buf = encoded.get(filter);
+                    if (buf == null && !encoded.containsKey(filter)) {
+                        String message = render.apply(filter);
+                        buf = message == null ? null : WebSocketHub.encode(message);
+                        encoded.put(filter, buf);
+                    }
+                    if (buf == null) {
+                        continue;
+                    }
+                }
+                deliver(conn, buf, delivery, null);
+            }
+        } finally {
+            if (unfiltered != null) {
+                unfiltered.release();
+            }
+            for (ByteBuf buf : encoded.values()) {
+                if (buf != null) {
+                    buf.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 发给一个连接，buf由调用方负责释放
+     */
+    private void deliver(Connection conn, ByteBuf buf, Delivery delivery, String key) {
+        if (delivery == Delivery.ALWAYS || conn.ctx.channel().isWritable()) {
+            write(conn, buf.retainedDuplicate());
+            return;
+        }
+        if (delivery == Delivery.DROP || key == null) {
+            conn.dropped.incrementAndGet();
+            return;
+        }
+        ByteBuf old = conn.pending.put(key, buf.retainedDuplicate());
+        if (old != null) {
+            old.release();
+            conn.coalesced.incrementAndGet();
+        }
+        // 刚好在放入时连接被移除，放入的这条没人释放了
+        if (conn.closed) {
+            conn.releasePending();
+        }
+    }
+
+    /**
+     * 写出一帧，buf的所有权交给Netty
+     */
+    private void write(Connection conn, ByteBuf buf) {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(buf.readableBytes());
+        conn.ctx.writeAndFlush(new TextWebSocketFrame(buf));
+    }
+
+    /**
+     * 发送协议层的ping，并关闭超过idleMillis没有任何数据的连接
+     */
+    void heartbeat(long idleMillis, String heartbeatMessage) {
+        long now = System.currentTimeMillis();
+        for (var entry : connections.entrySet()) {
+            Connection conn = entry.getValue();
+            if (!conn.ctx.channel().isActive()) {
+                removeConnection(entry.getKey());
+                continue;
+            }
+            if (now - conn.lastSeen > idleMillis) {
+                removeConnection(entry.getKey());
+                conn.ctx.close();
+                continue;
+            }
+            if (conn.ctx.channel().isWritable()) {
+                conn.ctx.writeAndFlush(new PingWebSocketFrame(Unpooled.EMPTY_BUFFER));
+            }
+        }
+        if (heartbeatMessage != null) {
+            publish(null, heartbeatMessage, Delivery.DROP, null);
+        }
+    }
+
+    /**
+     * 获取当前连接数
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * 订阅了主题的连接数，没有设置过订阅的连接也算在内
+     */
+    public int getSubscriberCount(String topic) {
+        int count = 0;
+        for (Connection conn : connections.values()) {
+            if (conn.isSubscribed(topic)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 连接是否订阅了主题
+     */
+    public boolean isSubscribed(String connectionId, String topic) {
+        Connection conn = connectionId == null ? null : connections.get(connectionId);
+        return conn != null && conn.isSubscribed(topic);
+    }
+
+    /**
+     * 确认WebSocket连接
+     */
+    public void confirmConnection(String connectionId) {
+        Connection conn = connections.get(connectionId);
+        if (conn != null) {
+            conn.confirmed = true;
+        }
+    }
+
+    /**
+     * 检查连接是否已确认
+     */
+    public boolean isConnectionConfirmed(String connectionId) {
+        Connection conn = connections.get(connectionId);
+        return conn != null && conn.confirmed;
+    }
+
+    /**
+     * 获取已确认的连接数
+     */
+    public int getConfirmedConnectionCount() {
+        return (int) connections.values().stream().filter(c -> c.confirmed).count();
+    }
+
+    /**
+     * 对每个连接执行操作，用于关闭
+     */
+    void forEachContext(Consumer<ChannelHandlerContext> action) {
+        connections.values().forEach(c -> action.accept(c.ctx));
+    }
+
+    /**
+     * 推送统计：连接数、发送的帧数和字节数，每个连接的订阅、是否可写、丢弃和合并的消息数
+     */
+    public JsonObject getStats() {
+        long dropped = closedDropped.get();
+        long coalesced = closedCoalesced.get();
+        JsonArray items = new JsonArray();
+        for (Map.Entry<String, Connection> e : connections.entrySet()) {
+            Connection conn = e.getValue();
+            JsonObject o = new JsonObject();
+            o.addProperty("connectionId", e.getKey());
+            o.addProperty("writable", conn.ctx.channel().isWritable());
+            o.addProperty("bytesBeforeUnwritable", conn.ctx.channel().bytesBeforeUnwritable());
+            o.addProperty("lastSeen", conn.lastSeen);
+            o.addProperty("dropped", conn.dropped.get());
+            o.addProperty("coalesced", conn.coalesced.get());
+            Set<String> topics = conn.topics;
+            if (topics != null) {
+                JsonArray arr = new JsonArray();
+                topics.forEach(arr::add);
+                o.add("topics", arr);
+            }
+            items.add(o);
+            dropped += conn.dropped.get();
+            coalesced += conn.coalesced.get();
+        }
+        JsonObject out = new JsonObject();
+        out.addProperty("endpoint", name);
+        out.addProperty("connections", connections.size());
+        out.addProperty("totalConnections", totalConnections.get());
+        out.addProperty("framesSent", framesSent.get());
+        out.addProperty("bytesSent", bytesSent.get());
+        out.addProperty("dropped", dropped);
+        out.addProperty("coalesced", coalesced);
+        out.add("clients", items);
+        return out;
+    }
+}
@@ -0,0 +1,170 @@
+package org.mark.llamacpp.server.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * WebSocket中心
+ *
+ * 主界面和LM Studio兼容服务的WebSocket都在这里注册为不同的入口，
+ * 共用一个时间轮做心跳、空闲检测和定时推送，不再各自开线程池。
+ */
+public class WebSocketHub {
+    
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketHub.class);
+    
+    /**
+     * 入口：主界面
+     */
+    public static final String ENDPOINT_MAIN = "main";
+    
+    /**
+     * 入口：LM Studio兼容服务
+     */
+    public static final String ENDPOINT_LMSTUDIO = "lmstudio";
+    
+    // 心跳间隔
+    private static final long HEARTBEAT_SECONDS = 30;
+    
+    // 超过这个时间没有收到任何数据（包括pong）的连接会被关闭
+    private static final long IDLE_MILLIS = 4 * HEARTBEAT_SECONDS * 1000;
+    
+    private static final WebSocketHub INSTANCE = new WebSocketHub();
+    
+    private final ConcurrentMap<String, WebSocketEndpoint> endpoints = new ConcurrentHashMap<>();
+    
+    // 所有定时任务共用一个线程
+    private final HashedWheelTimer timer;
+    
+    private volatile boolean stopped = false;
+    
+    private WebSocketHub() {
+        this.timer = new HashedWheelTimer(r -> {
+            Thread t = new Thread(r, "websocket-hub");
+            t.setDaemon(true);
+            return t;
+        }, 100, TimeUnit.MILLISECONDS, 512);
+        this.every(HEARTBEAT_SECONDS, this::heartbeat);
+    }
+    
+    /**
+     * 获取单例实例
+     */
+    public static WebSocketHub getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * 获取入口，不存在时创建
+     */
+    public WebSocketEndpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, WebSocketEndpoint::new);
+    }
+    
+    /**
+     * 周期执行任务，在时间轮的线程里运行，任务本身要快
+     */
+    public void every(long seconds, Runnable task) {
+        timer.newTimeout(new Repeating(seconds, task), seconds, TimeUnit.SECONDS);
+    }
+    
+    private final class Repeating implements TimerTask {
+        private final long seconds;
+        private final Runnable task;
+        
+        private Repeating(long seconds, Runnable task) {
+            this.seconds = seconds;
+            this.task = task;
+        }
+        
+        @Override
+        public void run(Timeout timeout) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.info("WebSocket定时任务执行失败", e);
+            }
+            if (!stopped) {
+                timer.newTimeout(this, seconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+    
+    /**
+     * 发送心跳，关闭空闲连接
+     */
+    private void heartbeat() {
+        String message = "{\"type\":\"heartbeat\",\"timestamp\":" + System.currentTimeMillis() + "}";
+        for (WebSocketEndpoint endpoint : endpoints.values()) {
+            if (endpoint.getConnectionCount() > 0) {
+                endpoint.heartbeat(IDLE_MILLIS, message);
+            }
+        }
+    }
+    
+    /**
+     * 所有入口共用的编码，得到的ByteBuf由调用方释放
+     */
+    public static ByteBuf encode(String message) {
+        return Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 各入口的统计
+     */
+    public JsonObject getStats() {
+        JsonArray items = new JsonArray();
+        long frames = 0;
+        long bytes = 0;
+        int connections = 0;
+        for (WebSocketEndpoint endpoint : endpoints.values()) {
+            JsonObject o = endpoint.getStats();
+            frames += o.get("framesSent").getAsLong();
+            bytes += o.get("bytesSent").getAsLong();
+            connections += o.get("connections").getAsInt();
+            items.add(o);
+        }
+        JsonObject out = new JsonObject();
+        out.addProperty("connections", connections);
+        out.addProperty("framesSent", frames);
+        out.addProperty("bytesSent", bytes);
+        out.add("endpoints", items);
+        return out;
+    }
+    
+    /**
+     * 关闭入口的所有连接
+     */
+    public void closeAll(String name) {
+        WebSocketEndpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.forEachContext(ChannelHandlerContext::close);
+    }
+    
+    /**
+     * 停止定时任务，关闭所有连接
+     */
+    public void shutdown() {
+        stopped = true;
+        timer.stop();
+        for (String name : endpoints.keySet()) {
+            closeAll(name);
+        }
+    }
+}
@@ -1,48 +1,66 @@
 package org.mark.llamacpp.server.websocket;
 
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Set;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.SlotMonitor;
 import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.websocket.WebSocketEndpoint.Delivery;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
  * WebSocket连接管理器
+ * 
+ * 主界面的WebSocket入口，连接注册、推送和背压都在WebSocketEndpoint里，心跳由WebSocketHub统一调度。
+ * 消息按主题推送，连接可以只订阅需要的主题，没有订阅过的连接收到全部消息。
  */
 public class WebSocketManager {
     
-    // 单例实例
-    private static volatile WebSocketManager instance;
+    /**
+     * 主题：控制台，按模型区分时为 console:模型ID
+     */
+    public static final String TOPIC_CONSOLE = "console";
     
-    // 存储所有活跃的WebSocket连接
-    private final ConcurrentMap<String, ChannelHandlerContext> connections = new ConcurrentHashMap<>();
+    /**
+     * 主题：slot状态
+     */
+    public static final String TOPIC_SLOTS = "slots";
     
-    // 存储连接的确认状态
-    private final ConcurrentMap<String, Boolean> connectionStatus = new ConcurrentHashMap<>();
+    /**
+     * 主题：下载
+     */
+    public static final String TOPIC_DOWNLOADS = "downloads";
     
-    // 连接计数器
-    private int connectionCounter = 0;
+    /**
+     * 主题：系统状态、资源监控
+     */
+    public static final String TOPIC_SYSTEM = "system";
     
-    // 定时任务执行器，用于发送心跳和定期消息
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    /**
+     * 主题：模型的请求性能
+     */
+    public static final String TOPIC_PERF = "perf";
+    
+    // 下载任务过滤条件的key
+    private static final String FILTER_DOWNLOAD_TASKS = "downloadTaskIds";
+    
+    // 单例实例
+    private static volatile WebSocketManager instance;
+    
+    // 主界面的入口
+    private final WebSocketEndpoint endpoint;
     
     private WebSocketManager() {
-        // 启动定时任务，每30秒发送一次心跳
-        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 30, 30, TimeUnit.SECONDS);
-        
-        // 启动定时任务，每60秒发送一次系统状态
-        scheduler.scheduleAtFixedRate(this::sendSystemStatus, 60, 60, TimeUnit.SECONDS);
+        this.endpoint = WebSocketHub.getInstance().endpoint(WebSocketHub.ENDPOINT_MAIN);
+        // 每60秒发送一次系统状态，心跳由WebSocketHub发送
+        WebSocketHub.getInstance().every(60, this::sendSystemStatus);
     }
     
     /**
@@ -63,91 +81,118 @@ public class WebSocketManager {
      * 添加新的WebSocket连接
      */
     public String addConnection(ChannelHandlerContext ctx) {
-        connectionCounter++;
-        String connectionId = "conn-" + connectionCounter;
-        connections.put(connectionId, ctx);
-        connectionStatus.put(connectionId, false);
-        return connectionId;
+        return endpoint.addConnection(ctx);
     }
     
     /**
      * 移除WebSocket连接
      */
     public void removeConnection(String connectionId) {
-        connections.remove(connectionId);
-        connectionStatus.remove(connectionId);
+        endpoint.removeConnection(connectionId);
+    }
+    
+    /**
+     * 收到了客户端的数据
+     */
+    public void touch(String connectionId) {
+        endpoint.touch(connectionId);
+    }
+    
+    /**
+     * 设置连接订阅的主题，topics为空表示订阅全部
+     */
+    public void setTopics(String connectionId, Set<String> topics) {
+        boolean hadSlots = endpoint.isSubscribed(connectionId, TOPIC_SLOTS);
+        endpoint.setTopics(connectionId, topics);
+        if (!hadSlots) {
+            sendSlotsSnapshot(connectionId);
+        }
+    }
+    
+    /**
+     * 连接订阅了slots主题时，把当前的slot状态只发给这个连接
+     */
+    public void sendSlotsSnapshot(String connectionId) {
+        if (endpoint.isSubscribed(connectionId, TOPIC_SLOTS)) {
+            SlotMonitor.getInstance().sendSnapshot(connectionId);
+        }
+    }
+    
+    /**
+     * 设置连接关注的下载任务，taskIds为空表示关注全部任务
+     */
+    public void setDownloadSubscription(String connectionId, Set<String> taskIds) {
+        endpoint.setFilter(connectionId, FILTER_DOWNLOAD_TASKS, taskIds);
+    }
+    
+    /**
+     * 连接恢复可写，补发合并期间保留的消息
+     */
+    public void onWritable(String connectionId) {
+        endpoint.onWritable(connectionId);
     }
     
     /**
      * 向指定连接发送消息
      */
     public void sendMessage(String connectionId, String message) {
-        ChannelHandlerContext ctx = connections.get(connectionId);
-        if (ctx != null && ctx.channel().isActive()) {
-            ctx.writeAndFlush(new TextWebSocketFrame(message));
-        } else {
-            connections.remove(connectionId);
-        }
+        endpoint.sendMessage(connectionId, message);
     }
     
     /**
      * 向所有连接广播消息
      */
     public void broadcast(String message) {
-        //logger.info("向所有WebSocket客户端广播消息: {}", message);
-        
-        // 使用迭代器安全地遍历并发集合
-        connections.entrySet().removeIf(entry -> {
-            //String connectionId = entry.getKey();
-            ChannelHandlerContext ctx = entry.getValue();
-            
-            if (ctx.channel().isActive()) {
-                ctx.writeAndFlush(new TextWebSocketFrame(message));
-                return false;
-            } else {
-                return true;
-            }
-        });
+        endpoint.publish(null, message, Delivery.ALWAYS, null);
+    }
+    
+    /**
+     * 按主题推送消息，见WebSocketEndpoint.publish
+     */
+    public void publish(String topic, String message, Delivery delivery, String coalesceKey) {
+        endpoint.publish(topic, message, delivery, coalesceKey);
     }
     
     /**
      * 获取当前连接数
      */
     public int getConnectionCount() {
-        return connections.size();
+        return endpoint.getConnectionCount();
+    }
+    
+    /**
+     * 订阅了主题的连接数
+     */
+    public int getSubscriberCount(String topic) {
+        return endpoint.getSubscriberCount(topic);
     }
     
     /**
      * 确认WebSocket连接
      */
     public void confirmConnection(String connectionId) {
-        if (connections.containsKey(connectionId)) {
-            connectionStatus.put(connectionId, true);
-        }
+        endpoint.confirmConnection(connectionId);
     }
     
     /**
      * 检查连接是否已确认
      */
     public boolean isConnectionConfirmed(String connectionId) {
-        return connectionStatus.getOrDefault(connectionId, false);
+        return endpoint.isConnectionConfirmed(connectionId);
     }
     
     /**
      * 获取已确认的连接数
      */
     public int getConfirmedConnectionCount() {
-        return (int) connectionStatus.values().stream().mapToInt(status -> status ? 1 : 0).sum();
+        return endpoint.getConfirmedConnectionCount();
     }
     
     /**
-     * 发送心跳消息
+     * 推送统计
      */
-    private void sendHeartbeat() {
-        if (getConnectionCount() > 0) {
-            long timestamp = System.currentTimeMillis();
-            broadcast("{\"type\":\"heartbeat\",\"timestamp\":" + timestamp + "}");
-        }
+    public JsonObject getStats() {
+        return endpoint.getStats();
     }
     
     /**
@@ -159,15 +204,18 @@ public class WebSocketManager {
                 LlamaServerManager serverManager = LlamaServerManager.getInstance();
                 int loadedModelsCount = serverManager.getLoadedProcesses().size();
                 
+                JsonObject stats = getStats();
                 String statusMessage = String.format(
-                    "{\"type\":\"systemStatus\",\"timestamp\":%d,\"loadedModels\":%d,\"connections\":%d,\"confirmedConnections\":%d}",
+                    "{\"type\":\"systemStatus\",\"timestamp\":%d,\"loadedModels\":%d,\"connections\":%d,\"confirmedConnections\":%d,\"droppedMessages\":%d,\"coalescedMessages\":%d}",
                     System.currentTimeMillis(),
                     loadedModelsCount,
                     getConnectionCount(),
-                    getConfirmedConnectionCount()
+                    getConfirmedConnectionCount(),
+                    stats.get("dropped").getAsLong(),
+                    stats.get("coalesced").getAsLong()
                 );
                 
-                broadcast(statusMessage);
+                publish(TOPIC_SYSTEM, statusMessage, Delivery.COALESCE, "systemStatus");
             } catch (Exception e) {
             }
         }
@@ -221,12 +269,23 @@ public class WebSocketManager {
     }
 
     public void sendModelSlotsEvent(String modelId, JsonArray slots) {
+        publish(TOPIC_SLOTS, modelSlotsEvent(modelId, slots), Delivery.COALESCE, "slots:" + modelId);
+    }
+    
+    /**
+     * 只发给一个连接的slot状态
+     */
+    public void sendModelSlotsEvent(String connectionId, String modelId, JsonArray slots) {
+        endpoint.sendMessage(connectionId, modelSlotsEvent(modelId, slots));
+    }
+    
+    private static String modelSlotsEvent(String modelId, JsonArray slots) {
         JsonObject event = new JsonObject();
         event.addProperty("type", "model_slots");
         event.addProperty("modelId", modelId == null ? "" : modelId);
         event.add("slots", slots == null ? new JsonArray() : slots);
         event.addProperty("timestamp", System.currentTimeMillis());
-        broadcast(JsonUtil.toJson(event));
+        return JsonUtil.toJson(event);
     }
     
     public void sendConsoleLineEvent(String modelId, String line) {
@@ -238,7 +297,32 @@ public class WebSocketManager {
             b64,
             System.currentTimeMillis()
         );
-        broadcast(eventMessage);
+        publish(consoleTopic(modelId), eventMessage, Delivery.DROP, null);
+    }
+    
+    /**
+     * 控制台的主题，modelId为空时是程序自身的控制台
+     */
+    public static String consoleTopic(String modelId) {
+        return modelId == null || modelId.isEmpty() ? TOPIC_CONSOLE : TOPIC_CONSOLE + ":" + modelId;
+    }
+    
+    /**
+     * 批量发送控制台输出，skipped为本批因过多而未推送的行数
+     */
+    public void sendConsoleBatchEvent(String modelId, List<String> lines, int skipped) {
+        JsonArray arr = new JsonArray();
+        for (String line : lines) {
+            byte[] bytes = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
+            arr.add(Base64.getEncoder().encodeToString(bytes));
+        }
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "console_batch");
+        event.addProperty("modelId", modelId == null ? "" : modelId);
+        event.add("lines64", arr);
+        event.addProperty("skipped", skipped);
+        event.addProperty("timestamp", System.currentTimeMillis());
+        publish(consoleTopic(modelId), JsonUtil.toJson(event), Delivery.DROP, null);
     }
     
     /**
@@ -259,7 +343,7 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        publish(TOPIC_DOWNLOADS, eventMessage, Delivery.ALWAYS, null);
     }
     
     /**
@@ -278,30 +362,46 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        publish(TOPIC_DOWNLOADS, eventMessage, Delivery.COALESCE, "download:" + taskId);
     }
     
     /**
-     * 关闭管理器，释放资源
+     * 批量发送下载进度，一个周期一帧，只包含有变化的任务
+     * 订阅了部分任务的连接只收到自己关注的任务
      */
-    public void shutdown() {
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
-            Thread.currentThread().interrupt();
+    public void sendDownloadProgressBatch(JsonArray tasks) {
+        if (tasks == null || tasks.isEmpty() || endpoint.getConnectionCount() == 0) {
+            return;
         }
-        
-        // 关闭所有连接
-        connections.values().forEach(ctx -> {
-            if (ctx.channel().isActive()) {
-                ctx.close();
+        long timestamp = System.currentTimeMillis();
+        // 批次里只有变化的任务，不能用新的覆盖旧的，写不动时丢弃，下一批还会带上最新进度
+        endpoint.publishFiltered(TOPIC_DOWNLOADS, FILTER_DOWNLOAD_TASKS, filter -> {
+            if (filter == null) {
+                return buildDownloadProgressBatch(tasks, timestamp);
             }
-        });
-        connections.clear();
-        connectionStatus.clear();
+            JsonArray selected = new JsonArray();
+            for (JsonElement el : tasks) {
+                JsonObject item = el.getAsJsonObject();
+                if (filter.contains(item.get("taskId").getAsString())) {
+                    selected.add(item);
+                }
+            }
+            return selected.isEmpty() ? null : buildDownloadProgressBatch(selected, timestamp);
+        }, Delivery.DROP);
+    }
+    
+    private static String buildDownloadProgressBatch(JsonArray tasks, long timestamp) {
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "download_progress_batch");
+        event.add("tasks", tasks);
+        event.addProperty("timestamp", timestamp);
+        return JsonUtil.toJson(event);
+    }
+    
+    /**
+     * 关闭管理器，释放资源
+     */
+    public void shutdown() {
+        WebSocketHub.getInstance().closeAll(WebSocketHub.ENDPOINT_MAIN);
     }
 }
@@ -1,5 +1,8 @@
 package org.mark.llamacpp.server.websocket;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -45,7 +48,11 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
                 System.currentTimeMillis()
             );
             ctx.channel().writeAndFlush(new TextWebSocketFrame(welcomeMessage));
+            // 新连接默认订阅全部主题，补一份当前的slot状态
+            this.wsManager.sendSlotsSnapshot(this.connectionId);
     	}
+        // 任何数据（包括pong）都说明连接还活着
+        this.wsManager.touch(this.connectionId);
         // 处理不同类型的WebSocket帧
         if (frame instanceof TextWebSocketFrame) {
             handleTextFrame(ctx, (TextWebSocketFrame) frame);
@@ -81,6 +88,14 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
                         // 处理连接确认消息
                         handleConnectMessage(ctx, jsonObject);
                         break;
+                    case "subscribe":
+                        // 只接收指定主题的消息
+                        handleSubscribe(jsonObject);
+                        break;
+                    case "download_subscribe":
+                        // 只关注指定的下载任务
+                        handleDownloadSubscribe(jsonObject);
+                        break;
                     default:
                         
                         break;
@@ -119,6 +134,36 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
         ctx.channel().writeAndFlush(new TextWebSocketFrame(response));
     }
     
+    /**
+     * 处理主题订阅，topics为空表示接收全部消息
+     */
+    private void handleSubscribe(JsonObject message) {
+        Set<String> topics = new HashSet<>();
+        if (message.has("topics") && message.get("topics").isJsonArray()) {
+            for (JsonElement el : message.getAsJsonArray("topics")) {
+                if (el != null && el.isJsonPrimitive()) {
+                    topics.add(el.getAsString());
+                }
+            }
+        }
+        this.wsManager.setTopics(this.connectionId, topics);
+    }
+    
+    /**
+     * 处理下载进度订阅，taskIds为空表示关注全部任务
+     */
+    private void handleDownloadSubscribe(JsonObject message) {
+        Set<String> taskIds = new HashSet<>();
+        if (message.has("taskIds") && message.get("taskIds").isJsonArray()) {
+            for (JsonElement el : message.getAsJsonArray("taskIds")) {
+                if (el != null && el.isJsonPrimitive()) {
+                    taskIds.add(el.getAsString());
+                }
+            }
+        }
+        this.wsManager.setDownloadSubscription(this.connectionId, taskIds);
+    }
+    
     /**
      * 处理Ping帧
      */
@@ -158,6 +203,15 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
         }
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 写缓冲降到低水位以下，补发积压期间合并的消息
+        if (ctx.channel().isWritable() && this.connectionId != null) {
+            this.wsManager.onWritable(this.connectionId);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         if (this.connected && this.connectionId != null) {
@@ -202,6 +202,17 @@
         }
     }
 
+    // 只关注列表里的任务，其它任务的进度服务端不再推送；列表为空时服务端按全部任务处理
+    function syncSubscription() {
+        const ws = state.websocket;
+        if (!ws || ws.readyState !== WebSocket.OPEN) return;
+        const taskIds = (state.downloads || []).filter((d) => d && d.taskId).map((d) => String(d.taskId));
+        try {
+            ws.send(JSON.stringify({ type: 'download_subscribe', taskIds }));
+        } catch (e) {
+        }
+    }
+
     function handleWsMessage(raw) {
         try {
             const data = JSON.parse(raw);
@@ -211,7 +222,9 @@
                 return;
             }
             if (data.type === 'download_update' && data.taskId) {
+                const known = (state.downloads || []).some((d) => d && String(d.taskId) === String(data.taskId));
                 mergeUpdate(data.taskId, data);
+                if (!known) syncSubscription();
                 if (data.state) {
                     const st = String(data.state).toUpperCase();
                     if (st === 'COMPLETED') {
@@ -232,40 +245,51 @@
                 renderList();
                 return;
             }
-            if (data.type === 'download_progress' && data.taskId) {
-                const id = String(data.taskId);
-                const nowMs = normalizeTimestampMs(data && data.timestamp);
-                const downloadedBytes = data && data.downloadedBytes != null ? Number(data.downloadedBytes) : 0;
-                const serverSpeed = data && data.speedBytesPerSecond != null
-                    ? Number(data.speedBytesPerSecond)
-                    : (data && data.speed != null ? Number(data.speed) : NaN);
-
-                const prev = state.speedByTaskId ? state.speedByTaskId[id] : null;
-                const prevObj = (prev && typeof prev === 'object') ? prev : null;
-
-                let speedBps = 0;
-                if (Number.isFinite(serverSpeed) && serverSpeed >= 0) {
-                    speedBps = serverSpeed;
-                } else if (prevObj && typeof prevObj.atMs === 'number' && typeof prevObj.bytes === 'number') {
-                    const dtMs = nowMs - prevObj.atMs;
-                    const deltaBytes = downloadedBytes - prevObj.bytes;
-                    if (dtMs > 0 && deltaBytes >= 0) speedBps = (deltaBytes * 1000) / dtMs;
-                    else if (typeof prevObj.speedBps === 'number') speedBps = prevObj.speedBps;
-                }
-
-                if (!state.speedByTaskId) state.speedByTaskId = {};
-                state.speedByTaskId[id] = { atMs: nowMs, bytes: downloadedBytes, speedBps };
-                mergeUpdate(id, {
-                    downloadedBytes: data.downloadedBytes,
-                    totalBytes: data.totalBytes
+            if (data.type === 'download_progress_batch' && Array.isArray(data.tasks)) {
+                data.tasks.forEach((item) => {
+                    if (item && item.taskId) applyProgress(Object.assign({ timestamp: data.timestamp }, item));
                 });
                 renderList();
                 return;
             }
+            if (data.type === 'download_progress' && data.taskId) {
+                applyProgress(data);
+                renderList();
+                return;
+            }
         } catch (e) {
         }
     }
 
+    function applyProgress(data) {
+        const id = String(data.taskId);
+        const nowMs = normalizeTimestampMs(data && data.timestamp);
+        const downloadedBytes = data && data.downloadedBytes != null ? Number(data.downloadedBytes) : 0;
+        const serverSpeed = data && data.speedBytesPerSecond != null
+            ? Number(data.speedBytesPerSecond)
+            : (data && data.speed != null ? Number(data.speed) : NaN);
+
+        const prev = state.speedByTaskId ? state.speedByTaskId[id] : null;
+        const prevObj = (prev && typeof prev === 'object') ? prev : null;
+
+        let speedBps = 0;
+        if (Number.isFinite(serverSpeed) && serverSpeed >= 0) {
+            speedBps = serverSpeed;
+        } else if (prevObj && typeof prevObj.atMs === 'number' && typeof prevObj.bytes === 'number') {
+            const dtMs = nowMs - prevObj.atMs;
+            const deltaBytes = downloadedBytes - prevObj.bytes;
+            if (dtMs > 0 && deltaBytes >= 0) speedBps = (deltaBytes * 1000) / dtMs;
+            else if (typeof prevObj.speedBps === 'number') speedBps = prevObj.speedBps;
+        }
+
+        if (!state.speedByTaskId) state.speedByTaskId = {};
+        state.speedByTaskId[id] = { atMs: nowMs, bytes: downloadedBytes, speedBps };
+        mergeUpdate(id, {
+            downloadedBytes: data.downloadedBytes,
+            totalBytes: data.totalBytes
+        });
+    }
+
     function connectWs() {
         const protocol = window.location.protocol === 'https:' ? 'wss:' : 'ws:';
         const wsUrl = `${protocol}//${window.location.host}/ws`;
@@ -277,6 +301,7 @@
                     state.websocket.send(JSON.stringify({ type: 'connect', message: 'Connected', timestamp: new Date().toISOString() }));
                 } catch (e) {
                 }
+                syncSubscription();
             };
             state.websocket.onmessage = function (event) {
                 handleWsMessage(event.data);
@@ -302,6 +327,7 @@
                 if (!data || data.success !== true) throw new Error((data && data.error) ? data.error : t('download.list_fetch_failed', '获取下载列表失败'));
                 state.downloads = Array.isArray(data.downloads) ? data.downloads : [];
                 renderList();
+                syncSubscription();
             })
             .catch((e) => {
                 if (container) {
@@ -110,6 +110,7 @@
             state.websocket.onopen = function() {
                 state.reconnectAttempts = 0;
                 state.websocket.send(JSON.stringify({ type: 'connect', message: 'Connected', timestamp: new Date().toISOString() }));
+                syncDownloadSubscription();
             };
             state.websocket.onmessage = function(event) {
                 handleWebSocketMessage(event.data);
@@ -128,6 +129,14 @@
         }
     }
 
+    // 只关注列表里的任务，其它任务的进度服务端不再推送；列表为空时服务端按全部任务处理
+    function syncDownloadSubscription() {
+        const ws = state.websocket;
+        if (!ws || ws.readyState !== WebSocket.OPEN) return;
+        const taskIds = (state.downloads || []).filter(d => d && d.taskId).map(d => d.taskId);
+        ws.send(JSON.stringify({ type: 'download_subscribe', taskIds }));
+    }
+
     function handleWebSocketMessage(message) {
         try {
             const data = JSON.parse(message);
@@ -137,6 +146,11 @@
                     showToast(data.title || t('toast.info', '提示'), data.message || '', data.level || 'info');
                     break;
                 case 'download_update':
+                    if (data.taskId && !(state.downloads || []).some(d => d && d.taskId === data.taskId)) {
+                        // 别处新建的任务，重新拉列表并更新订阅
+                        refreshDownloads();
+                        break;
+                    }
                     if (data.taskId) {
                         updateDownloadItem(data.taskId, data);
                         if (data.state) {
@@ -163,6 +177,11 @@
                 case 'download_progress':
                     if (data.taskId) updateDownloadProgress(data.taskId, data);
                     break;
+                case 'download_progress_batch':
+                    (Array.isArray(data.tasks) ? data.tasks : []).forEach(item => {
+                        if (item && item.taskId) updateDownloadProgress(item.taskId, { timestamp: data.timestamp, ...item });
+                    });
+                    break;
             }
         } catch (error) {
             console.error(t('log.ws_message_handle_failed', '处理WebSocket消息失败:'), error);
@@ -181,6 +200,7 @@
                     state.downloads = data.downloads || [];
                     renderDownloadsList();
                     updateStats();
+                    syncDownloadSubscription();
                 } else {
                     throw new Error((data && data.error) ? data.error : t('download.list_fetch_failed', '获取下载列表失败'));
                 }
@@ -368,7 +388,10 @@
         const downloadedBytesNumber = data && data.downloadedBytes > 0 ? Number(data.downloadedBytes) : 0;
         const prevSpeed = state.speedByTaskId && state.speedByTaskId[taskId] ? state.speedByTaskId[taskId] : null;
         if (!state.speedByTaskId) state.speedByTaskId = {};
-        if (prevSpeed && typeof prevSpeed.atMs === 'number' && typeof prevSpeed.bytes === 'number') {
+        const serverSpeed = data && data.speedBytesPerSecond != null ? Number(data.speedBytesPerSecond) : NaN;
+        if (Number.isFinite(serverSpeed) && serverSpeed >= 0) {
+            state.speedByTaskId[taskId] = { atMs: nowMs, bytes: downloadedBytesNumber, speedBps: serverSpeed };
+        } else if (prevSpeed && typeof prevSpeed.atMs === 'number' && typeof prevSpeed.bytes === 'number') {
             const dtMs = nowMs - prevSpeed.atMs;
             const deltaBytes = downloadedBytesNumber - prevSpeed.bytes;
             if (dtMs > 0 && deltaBytes >= 0) {
@@ -407,7 +407,12 @@ async function downloadModel(groupIndex) {
     }
     const ggufPath = (g.displayPath || '') || ((g.files && g.files[0] && g.files[0].path != null) ? String(g.files[0].path) : '') || (g.key || '');
     const fileName = getFileNameFromPath(ggufPath || (g.displayPath || g.key || ''));
-    const payload = { author: repo.author, modelId: repo.modelId, downloadUrl };
+    const lfsOids = {};
+    const allFiles = (g.files || []).concat(bestMmproj && bestMmproj.files ? bestMmproj.files : []);
+    for (const f of allFiles) {
+        if (f && f.downloadUrl && f.lfsOid) lfsOids[String(f.downloadUrl).trim()] = String(f.lfsOid);
+    }
+    const payload = { author: repo.author, modelId: repo.modelId, downloadUrl, lfsOids };
     if (fileName) payload.name = fileName;
     if (ggufPath) payload.path = ggufPath;
 
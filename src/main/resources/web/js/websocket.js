@@ -79,6 +79,22 @@ function handleWebSocketMessage(message) {
                         }
                     }
                     break;
+                case 'console_batch':
+                    {
+                        const consoleMain = document.getElementById('main-console');
+                        if (consoleMain && consoleMain.style && consoleMain.style.display !== 'none' && Array.isArray(data.lines64)) {
+                            if (typeof appendLogLine !== 'function') break;
+                            for (const line64 of data.lines64) {
+                                if (typeof line64 !== 'string') continue;
+                                const bin = atob(line64);
+                                const bytes = new Uint8Array(bin.length);
+                                for (let i = 0; i < bin.length; i++) bytes[i] = bin.charCodeAt(i);
+                                appendLogLine(wsDecoder.decode(bytes));
+                            }
+                            if (data.skipped > 0) appendLogLine('[console] 输出过快，' + data.skipped + ' 行未推送，完整内容见日志文件');
+                        }
+                    }
+                    break;
             }
         }
     } catch (error) {}
@@ -0,0 +1,151 @@
+package org.mark.llamacpp.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+
+
+/**
+ * 	NettyTransport的简单基准，不依赖测试框架，直接运行main。
+ * 	<p>
+ * 	1. 接受速率：多个线程同时建立连接，统计服务端每秒接受的连接数。
+ * 	2. 单token延迟：服务端每隔1毫秒写一个8字节的小块（内容是写出时的nanoTime），模拟流式输出，
+ * 	客户端收到后计算从写出到收到的时间。关掉TCP_NODELAY时这里会明显变差。
+ * 	<p>
+ * 	用法：java -cp build/classes:lib/* org.mark.llamacpp.server.NettyTransportBenchmark [连接数] [token数]
+ * 	传输方式等按config/netty_transport.json，和正式运行时一样。
+ */
+public class NettyTransportBenchmark {
+
+	private static final int CLIENT_THREADS = 8;
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int tokens = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		System.out.println("transport: " + NettyTransport.getInfo());
+
+		benchAccept(connections);
+		benchTokenLatency(tokens);
+		System.exit(0);
+	}
+
+	/**
+	 * 	接受速率
+	 */
+	private static void benchAccept(int connections) throws Exception {
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch allAccepted = new CountDownLatch(connections);
+		ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						accepted.incrementAndGet();
+						allAccepted.countDown();
+					}
+				});
+		Channel server = NettyTransport.bind(bootstrap, new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+		int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+		List<Socket> sockets = new ArrayList<>(connections);
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		Thread[] threads = new Thread[CLIENT_THREADS];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				while (next.getAndIncrement() < connections) {
+					try {
+						Socket s = new Socket("127.0.0.1", port);
+						synchronized (sockets) {
+							sockets.add(s);
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+						allAccepted.countDown();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		allAccepted.await(30, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("accept: %d 个连接，失败 %d，用时 %.1f ms，%.0f 个/秒%n", accepted.get(), failed.get(),
+				elapsed / 1e6, accepted.get() * 1e9 / elapsed);
+		for (Socket s : sockets) {
+			s.close();
+		}
+		server.close().sync();
+	}
+
+	/**
+	 * 	单token写出延迟
+	 */
+	private static void benchTokenLatency(int tokens) throws Exception {
+		ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+							private int sent;
+
+							@Override
+							public void channelActive(ChannelHandlerContext ctx) {
+								this.writeNext(ctx);
+							}
+
+							private void writeNext(ChannelHandlerContext ctx) {
+								if (this.sent++ >= tokens || !ctx.channel().isActive()) {
+									return;
+								}
+								ByteBuf buf = ctx.alloc().buffer(8);
+								buf.writeLong(System.nanoTime());
+								ctx.writeAndFlush(buf);
+								ctx.executor().schedule(() -> this.writeNext(ctx), 1, TimeUnit.MILLISECONDS);
+							}
+						});
+					}
+				});
+		Channel server = NettyTransport.bind(bootstrap, new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+		int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+		long[] latencies = new long[tokens];
+		try (Socket s = new Socket("127.0.0.1", port)) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			for (int i = 0; i < tokens; i++) {
+				long stamp = in.readLong();
+				latencies[i] = System.nanoTime() - stamp;
+			}
+		}
+		server.close().sync();
+
+		// 去掉前10%预热
+		long[] sorted = Arrays.copyOfRange(latencies, tokens / 10, tokens);
+		Arrays.sort(sorted);
+		System.out.printf("token: %d 个，p50 %.1f us，p99 %.1f us，max %.1f us%n", sorted.length,
+				percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3, sorted[sorted.length - 1] / 1e3);
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+}
@@ -0,0 +1,290 @@
+package org.mark.llamacpp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.server.channel.OpenAIRouterHandler;
+import org.mark.llamacpp.server.service.OpenAIService;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+
+/**
+ * 	流式转发取消的压力测试，不依赖测试框架，直接运行main。
+ * 	<p>
+ * 	启动一个假的上游（每隔几毫秒写一块SSE数据，写完后关闭连接）和一个只挂OpenAIRouterHandler的转发端口，
+ * 	同时发出几百个流式请求，大部分在中途断开。全部结束后检查：
+ * 	<ul>
+ * 	<li>每个OpenAIService的channelConnectionMap都清空了</li>
+ * 	<li>上游没有残留的连接，也就是取消的请求都断开了上游</li>
+ * 	</ul>
+ * 	检查不通过时退出码为1。
+ * 	<p>
+ * 	用法：java -cp build/classes:lib/* org.mark.llamacpp.server.StreamCancelStress [请求数] [取消的百分比]
+ */
+public class StreamCancelStress {
+
+	private static final String MODEL = "stream-cancel-stress";
+
+	/**
+	 * 	上游每个请求写出的数据块数和间隔
+	 */
+	private static final int UPSTREAM_CHUNKS = 200;
+	private static final long UPSTREAM_INTERVAL_MILLIS = 5;
+
+	/**
+	 * 	请求都结束后，等待清理完成的最长时间
+	 */
+	private static final long DRAIN_TIMEOUT_MILLIS = 30_000;
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		int cancelPercent = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+
+		AtomicInteger upstreamOpen = new AtomicInteger();
+		AtomicInteger upstreamAccepted = new AtomicInteger();
+		Channel upstream = startUpstream(upstreamOpen, upstreamAccepted);
+		int upstreamPort = ((InetSocketAddress) upstream.localAddress()).getPort();
+		registerModel(upstreamPort);
+
+		Queue<OpenAIRouterHandler> routers = new ConcurrentLinkedQueue<>();
+		Channel proxy = startProxy(routers);
+		int proxyPort = ((InetSocketAddress) proxy.localAddress()).getPort();
+
+		AtomicInteger cancelled = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(requests);
+		long start = System.nanoTime();
+		try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < requests; i++) {
+				// 取消的请求在第1到UPSTREAM_CHUNKS/2块之间随机断开
+				int cancelAfter = i % 100 < cancelPercent ? ThreadLocalRandom.current().nextInt(1, UPSTREAM_CHUNKS / 2) : -1;
+				int index = i;
+				clients.execute(() -> {
+					try {
+						if (streamOnce(proxyPort, index, cancelAfter)) {
+							completed.incrementAndGet();
+						} else {
+							cancelled.incrementAndGet();
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			done.await(5, TimeUnit.MINUTES);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("请求: %d，完整 %d，中途断开 %d，失败 %d，用时 %.1f ms%n", requests, completed.get(), cancelled.get(),
+				failed.get(), elapsed / 1e6);
+
+		// 断开后的清理是异步的，等一会儿
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		int mapEntries = countMapEntries(routers);
+		while ((mapEntries > 0 || upstreamOpen.get() > 0) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			mapEntries = countMapEntries(routers);
+		}
+		System.out.printf("上游: 接受 %d 个连接，残留 %d；channelConnectionMap 残留 %d%n", upstreamAccepted.get(), upstreamOpen.get(), mapEntries);
+
+		proxy.close().sync();
+		upstream.close().sync();
+
+		boolean ok = failed.get() == 0 && mapEntries == 0 && upstreamOpen.get() == 0 && upstreamAccepted.get() == requests;
+		System.out.println(ok ? "通过" : "不通过");
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * 	假的上游：每个请求写UPSTREAM_CHUNKS块SSE数据，最后写[DONE]并关闭连接，对端断开时停止写
+	 */
+	private static Channel startUpstream(AtomicInteger open, AtomicInteger accepted) throws InterruptedException {
+		ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline()
+								.addLast(new HttpServerCodec())
+								.addLast(new HttpObjectAggregator(1024 * 1024))
+								.addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+									private int sent;
+
+									@Override
+									public void channelActive(ChannelHandlerContext ctx) throws Exception {
+										open.incrementAndGet();
+										accepted.incrementAndGet();
+										super.channelActive(ctx);
+									}
+
+									@Override
+									public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+										open.decrementAndGet();
+										super.channelInactive(ctx);
+									}
+
+									@Override
+									protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+										HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+										response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream");
+										response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+										ctx.writeAndFlush(response);
+										this.writeNext(ctx);
+									}
+
+									private void writeNext(ChannelHandlerContext ctx) {
+										if (!ctx.channel().isActive()) {
+											return;
+										}
+										if (this.sent++ >= UPSTREAM_CHUNKS) {
+											ctx.writeAndFlush(Unpooled.copiedBuffer("data: [DONE]\n\n", StandardCharsets.UTF_8))
+													.addListener(ChannelFutureListener.CLOSE);
+											return;
+										}
+										String chunk = "data: {\"id\":\"stress\",\"object\":\"chat.completion.chunk\",\"model\":\"" + MODEL
+												+ "\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"t" + this.sent + "\"}}]}\n\n";
+										ctx.writeAndFlush(Unpooled.copiedBuffer(chunk, StandardCharsets.UTF_8));
+										ctx.executor().schedule(() -> this.writeNext(ctx), UPSTREAM_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+									}
+
+									@Override
+									public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+										ctx.close();
+									}
+								});
+					}
+				});
+		return NettyTransport.bind(bootstrap, new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+	}
+
+	/**
+	 * 	转发端口，和bindOpenAI一样的HTTP处理，只保留OpenAIRouterHandler
+	 */
+	private static Channel startProxy(Queue<OpenAIRouterHandler> routers) throws InterruptedException {
+		ServerBootstrap bootstrap = NettyTransport.serverBootstrap()
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						OpenAIRouterHandler router = new OpenAIRouterHandler();
+						routers.add(router);
+						ch.pipeline()
+								.addLast(new HttpServerCodec())
+								.addLast(new HttpObjectAggregator(1024 * 1024))
+								.addLast(new ChunkedWriteHandler())
+								.addLast(router);
+					}
+				});
+		return NettyTransport.bind(bootstrap, new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+	}
+
+	/**
+	 * 	把假的上游登记成一个已加载的模型
+	 */
+	@SuppressWarnings("unchecked")
+	private static void registerModel(int port) throws ReflectiveOperationException {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Object lock = field(LlamaServerManager.class, "processLock").get(manager);
+		synchronized (lock) {
+			((Map<String, LlamaCppProcess>) field(LlamaServerManager.class, "loadedProcesses").get(manager))
+					.put(MODEL, new LlamaCppProcess(MODEL, "stress", ""));
+			((Map<String, Integer>) field(LlamaServerManager.class, "modelPorts").get(manager)).put(MODEL, port);
+		}
+	}
+
+	/**
+	 * 	发一个流式请求
+	 * @param cancelAfter 收到这么多块后断开，-1表示读完
+	 * @return 是否完整读完
+	 */
+	private static boolean streamOnce(int port, int index, int cancelAfter) throws IOException {
+		String body = "{\"model\":\"" + MODEL + "\",\"stream\":true,\"messages\":[{\"role\":\"user\",\"content\":\"stress " + index + "\"}]}";
+		byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+		String head = "POST /v1/chat/completions HTTP/1.1\r\n"
+				+ "Host: 127.0.0.1:" + port + "\r\n"
+				+ "Content-Type: application/json\r\n"
+				+ "Content-Length: " + bodyBytes.length + "\r\n"
+				+ "\r\n";
+		try (Socket s = new Socket("127.0.0.1", port)) {
+			s.setSoTimeout(60_000);
+			OutputStream out = s.getOutputStream();
+			out.write(head.getBytes(StandardCharsets.US_ASCII));
+			out.write(bodyBytes);
+			out.flush();
+
+			InputStream in = s.getInputStream();
+			byte[] buffer = new byte[8192];
+			StringBuilder pending = new StringBuilder();
+			int chunks = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				pending.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+				int at;
+				while ((at = pending.indexOf("data:")) >= 0) {
+					pending.delete(0, at + 5);
+					chunks++;
+				}
+				if (cancelAfter > 0 && chunks >= cancelAfter) {
+					// 直接关闭socket，和浏览器中途取消一样
+					return false;
+				}
+			}
+			// 转发端不转发[DONE]，读完全部数据块后关闭连接
+			if (chunks < UPSTREAM_CHUNKS) {
+				throw new IOException("响应提前结束，只收到 " + chunks + " 块");
+			}
+			return true;
+		}
+	}
+
+	private static int countMapEntries(Queue<OpenAIRouterHandler> routers) throws ReflectiveOperationException {
+		Field serviceField = field(OpenAIRouterHandler.class, "openAIServerHandler");
+		Field mapField = field(OpenAIService.class, "channelConnectionMap");
+		int total = 0;
+		for (OpenAIRouterHandler router : routers) {
+			Map<?, ?> map = (Map<?, ?>) mapField.get(serviceField.get(router));
+			synchronized (map) {
+				total += map.size();
+			}
+		}
+		return total;
+	}
+
+	private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+		Field f = type.getDeclaredField(name);
+		f.setAccessible(true);
+		return f;
+	}
+}